@@ -190,6 +190,34 @@ public interface IServiceCluster {
 	public IAttributeValue getAttributeValue(String attributeName, IEndPointRequestContext endPointRequestContext)
 			throws ApplianceException, ServiceClusterException;
 
+	/**
+	 * Reads many attributes implemented by this service cluster. Service
+	 * clusters associated to physical devices read all the attributes with the
+	 * minimum number of requests (e.g. a single ZigBee Read Attributes
+	 * command), the others read them one by one.
+	 * 
+	 * @param attributeNames
+	 *            The names of the attributes, or {@code null} to read all the
+	 *            attributes of the service cluster
+	 * @param endPointRequestContext
+	 *            The request context, including the connected end point that
+	 *            can be used to get the reference to the notification interface
+	 *            ( {@link IEndPointRequestContext#getPeerEndPoint()},
+	 *            {@link IEndPoint#getServiceClustersListener()})
+	 * @return A map from the attribute names to the {@link IAttributeValue}
+	 *         read. The attributes that couldn't be read are not contained in
+	 *         the map.
+	 * @throws ApplianceException
+	 *             In case of generic errors (e.g. end point not available or
+	 *             invalid appliance connection)
+	 * @throws ServiceClusterException
+	 *             In case of specific problems during the execution of the
+	 *             requested operation (e.g. an error code returned by the
+	 *             associated physical ZigBee device)
+	 */
+	public Map getAttributeValues(String[] attributeNames, IEndPointRequestContext endPointRequestContext)
+			throws ApplianceException, ServiceClusterException;
+
 	/**
 	 * Writes an attribute exposed by this service cluster
 	 * 
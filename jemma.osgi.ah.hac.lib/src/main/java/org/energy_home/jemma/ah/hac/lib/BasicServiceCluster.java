@@ -431,6 +431,84 @@ public class BasicServiceCluster implements IServiceCluster, IServiceClusterList
 		return new AttributeValue(result);
 	}
 
+	public Map getAttributeValues(String[] attributeNames, IEndPointRequestContext endPointRequestContext)
+			throws ApplianceException, ServiceClusterException {
+		checkServiceClusterAvailability();
+		if (attributeNames == null)
+			attributeNames = (String[]) getterMethods.keySet().toArray(new String[getterMethods.size()]);
+
+		Map result = readAttributeValues(attributeNames, endPointRequestContext);
+		if (result == null)
+			result = new HashMap();
+
+		for (int i = 0; i < attributeNames.length; i++) {
+			String attributeName = attributeNames[i];
+			if (result.containsKey(attributeName)) {
+				IAttributeValue attributeValue = (IAttributeValue) result.get(attributeName);
+				if (attributeValue == null) {
+					// read by readAttributeValues(), but not available
+					result.remove(attributeName);
+					continue;
+				}
+				if (isGetterResult(attributeName, attributeValue.getValue()))
+					continue;
+			}
+			if (!getterMethods.containsKey(attributeName)) {
+				result.remove(attributeName);
+				continue;
+			}
+			try {
+				result.put(attributeName, getAttributeValue(attributeName, endPointRequestContext));
+			} catch (ServiceClusterException e) {
+				result.remove(attributeName);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reads many attributes at once. Service clusters that can read many
+	 * attributes with a single request to the device override this method;
+	 * the default implementation returns {@code null}, so that
+	 * {@link #getAttributeValues(String[], IEndPointRequestContext)} calls the
+	 * attribute getters one by one.
+	 * 
+	 * @return A map from the names of the attributes to their values. The
+	 *         attributes that are not contained in the map are read with their
+	 *         getter, the ones associated to a {@code null} value have been
+	 *         read but are not available.
+	 */
+	protected Map readAttributeValues(String[] attributeNames, IEndPointRequestContext endPointRequestContext)
+			throws ApplianceException, ServiceClusterException {
+		return null;
+	}
+
+	private boolean isGetterResult(String attributeName, Object value) {
+		Method getterMethod = (Method) getterMethods.get(attributeName);
+		if ((getterMethod == null) || (value == null))
+			return false;
+		Class returnType = getterMethod.getReturnType();
+		if (returnType.isPrimitive()) {
+			if (returnType == Boolean.TYPE)
+				returnType = Boolean.class;
+			else if (returnType == Byte.TYPE)
+				returnType = Byte.class;
+			else if (returnType == Short.TYPE)
+				returnType = Short.class;
+			else if (returnType == Integer.TYPE)
+				returnType = Integer.class;
+			else if (returnType == Long.TYPE)
+				returnType = Long.class;
+			else if (returnType == Float.TYPE)
+				returnType = Float.class;
+			else if (returnType == Double.TYPE)
+				returnType = Double.class;
+			else if (returnType == Character.TYPE)
+				returnType = Character.class;
+		}
+		return returnType.isInstance(value);
+	}
+
 	// public IAttributeValue selectAttributeValue(String attributeName, String
 	// attributeSelector,
 	// IEndPointRequestContext endPointRequestContext) throws
@@ -108,6 +108,12 @@ public class PeerServiceCluster implements IServiceCluster, IServiceClusterListe
 		return managedServiceCluster.getAttributeValue(attributeName, endPointRequestContext);
 	}
 
+	public Map getAttributeValues(String[] attributeNames, IEndPointRequestContext endPointRequestContext)
+			throws ApplianceException, ServiceClusterException {
+		endPointRequestContext = peerEndPoint.getPeerValidRequestContext(endPointRequestContext);
+		return managedServiceCluster.getAttributeValues(attributeNames, endPointRequestContext);
+	}
+
 	public IAttributeValue setAttributeValue(String attributeName, Object attributeValue,
 			IEndPointRequestContext endPointRequestContext) throws ApplianceException, ServiceClusterException {
 		endPointRequestContext = peerEndPoint.getPeerValidRequestContext(endPointRequestContext);
@@ -0,0 +1,84 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.hac.lib;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks used by the HacService to serialize the operations on appliances.
+ * <p>
+ * An operation on a single appliance (install, update, remove, service
+ * callbacks) holds the shared lock and the monitor returned by get() for the
+ * appliance pid: operations on different appliances run in parallel, while
+ * the ones on the same appliance are serialized. Operations that involve all
+ * the appliances (e.g. loading or resetting the configuration) hold the
+ * exclusive lock. Both locks are reentrant and a thread holding the
+ * exclusive lock can also take the shared one, but the shared lock cannot be
+ * upgraded: lockExclusive() fails if the calling thread holds the shared
+ * lock, instead of waiting forever for itself.
+ * <p>
+ * Monitors are striped by pid, so the number of lock objects is fixed and
+ * does not depend on the number of appliances.
+ */
+class ApplianceLocks {
+
+	private static final int STRIPES = 32;
+
+	private final Object[] monitors = new Object[STRIPES];
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	ApplianceLocks() {
+		for (int i = 0; i < monitors.length; i++) {
+			monitors[i] = new Object();
+		}
+	}
+
+	/**
+	 * Returns the monitor of the appliance. A null pid is mapped to the first
+	 * monitor.
+	 */
+	Object get(String appliancePid) {
+		if (appliancePid == null)
+			return monitors[0];
+		int h = appliancePid.hashCode();
+		h ^= (h >>> 16);
+		return monitors[(h & 0x7fffffff) % STRIPES];
+	}
+
+	void lockShared() {
+		lock.readLock().lock();
+	}
+
+	void unlockShared() {
+		lock.readLock().unlock();
+	}
+
+	/**
+	 * Takes the exclusive lock.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the calling thread holds the shared lock
+	 */
+	void lockExclusive() {
+		if (lock.getReadHoldCount() > 0)
+			throw new IllegalStateException("the shared appliance lock cannot be upgraded to the exclusive one");
+		lock.writeLock().lock();
+	}
+
+	void unlockExclusive() {
+		lock.writeLock().unlock();
+	}
+}
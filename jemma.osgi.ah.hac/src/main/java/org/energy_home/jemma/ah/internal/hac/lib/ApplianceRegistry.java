@@ -0,0 +1,409 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.hac.lib;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.energy_home.jemma.ah.hac.IAppliance;
+import org.energy_home.jemma.ah.hac.IApplianceDescriptor;
+import org.energy_home.jemma.ah.hac.IManagedAppliance;
+
+/**
+ * In memory registry of the appliances known by the HacService, indexed by
+ * pid and, for the installed appliances, by type, name, location, category,
+ * device type (i.e. driver) and end point type.
+ * <p>
+ * The registry content is an immutable snapshot replaced at each update
+ * (copy on write): readers never lock and always see a consistent view, even
+ * across several lookups made on the same snapshot. Updates are serialized.
+ * The maps of a snapshot are persistent (see PersistentHashMap), so an update
+ * only copies the path to the entries it touches and, in the indexes, the
+ * array of the appliances with a key of the updated appliance: its cost does
+ * not grow with the number of appliances. The installed and installing
+ * arrays are built on the first call to getInstalled() and getInstalling()
+ * on a snapshot, and are shared by the following snapshots until they
+ * change.
+ * <p>
+ * The keys under which an appliance is indexed are computed when it is added
+ * and when reindex() is called (i.e. after its configuration changed) and are
+ * kept in the snapshot, so the entries can be removed even if the appliance
+ * configuration changed in the meanwhile.
+ */
+class ApplianceRegistry {
+
+	static final int TYPE = 0;
+	static final int NAME = 1;
+	static final int LOCATION = 2;
+	static final int CATEGORY = 3;
+	static final int DEVICE_TYPE = 4;
+	static final int END_POINT_TYPE = 5;
+	private static final int INDEXES = 6;
+
+	private static final IManagedAppliance[] EMPTY = new IManagedAppliance[0];
+
+	/**
+	 * Immutable set of appliances that keeps their insertion order
+	 */
+	private static class Sequence {
+		static final Sequence EMPTY_SEQUENCE = new Sequence(PersistentHashMap.EMPTY, PersistentHashMap.EMPTY);
+
+		// Integer sequence number -> IManagedAppliance, iterated in ascending
+		// order of the numbers
+		private final PersistentHashMap appliances;
+		// IManagedAppliance -> Integer sequence number
+		private final PersistentHashMap numbers;
+		private volatile IManagedAppliance[] array;
+
+		private Sequence(PersistentHashMap appliances, PersistentHashMap numbers) {
+			this.appliances = appliances;
+			this.numbers = numbers;
+		}
+
+		boolean contains(IManagedAppliance appliance) {
+			return numbers.containsKey(appliance);
+		}
+
+		/**
+		 * @param number
+		 *            Greater, as unsigned, than the numbers already used
+		 */
+		Sequence add(IManagedAppliance appliance, int number) {
+			if (contains(appliance))
+				return this;
+			Integer key = new Integer(number);
+			return new Sequence(appliances.put(key, appliance), numbers.put(appliance, key));
+		}
+
+		/**
+		 * @return This sequence if it doesn't contain the appliance
+		 */
+		Sequence remove(IManagedAppliance appliance) {
+			Object key = numbers.get(appliance);
+			if (key == null)
+				return this;
+			if (numbers.size() == 1)
+				return EMPTY_SEQUENCE;
+			return new Sequence(appliances.remove(key), numbers.remove(appliance));
+		}
+
+		IManagedAppliance[] toArray() {
+			IManagedAppliance[] result = array;
+			if (result == null) {
+				// concurrent readers may build it twice, with the same content
+				result = appliances.isEmpty() ? EMPTY : (IManagedAppliance[]) appliances.values(new IManagedAppliance[appliances
+						.size()]);
+				array = result;
+			}
+			return result;
+		}
+	}
+
+	static class Snapshot {
+		// pid -> IManagedAppliance, for all the appliances
+		private final PersistentHashMap pids;
+		// installed appliances, in installation order
+		private final Sequence installed;
+		// appliances waiting to be installed
+		private final Sequence installing;
+		// key -> IManagedAppliance[], for each index
+		private final PersistentHashMap[] indexes;
+		// IManagedAppliance -> String[][] keys it is indexed with
+		private final PersistentHashMap keys;
+
+		private Snapshot(PersistentHashMap pids, Sequence installed, Sequence installing, PersistentHashMap[] indexes,
+				PersistentHashMap keys) {
+			this.pids = pids;
+			this.installed = installed;
+			this.installing = installing;
+			this.indexes = indexes;
+			this.keys = keys;
+		}
+
+		IManagedAppliance get(String pid) {
+			return (pid == null) ? null : (IManagedAppliance) pids.get(pid);
+		}
+
+		/**
+		 * Returns the installed appliances. The array must not be modified.
+		 */
+		IManagedAppliance[] getInstalled() {
+			return installed.toArray();
+		}
+
+		/**
+		 * Returns the appliances waiting to be installed. The array must not
+		 * be modified.
+		 */
+		IManagedAppliance[] getInstalling() {
+			return installing.toArray();
+		}
+
+		boolean isInstalled(IManagedAppliance appliance) {
+			return installed.contains(appliance);
+		}
+
+		boolean isInstalling(IManagedAppliance appliance) {
+			return installing.contains(appliance);
+		}
+
+		/**
+		 * Returns the installed appliances with the passed key in the passed
+		 * index. The array must not be modified.
+		 */
+		IManagedAppliance[] find(int index, String key) {
+			if (key == null)
+				return EMPTY;
+			IManagedAppliance[] result = (IManagedAppliance[]) indexes[index].get(key);
+			return (result == null) ? EMPTY : result;
+		}
+	}
+
+	private volatile Snapshot snapshot;
+	// next sequence number of the installed and installing appliances
+	private int nextNumber = 0;
+
+	ApplianceRegistry() {
+		PersistentHashMap[] indexes = new PersistentHashMap[INDEXES];
+		for (int i = 0; i < INDEXES; i++)
+			indexes[i] = PersistentHashMap.EMPTY;
+		snapshot = new Snapshot(PersistentHashMap.EMPTY, Sequence.EMPTY_SEQUENCE, Sequence.EMPTY_SEQUENCE, indexes,
+				PersistentHashMap.EMPTY);
+	}
+
+	Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Adds the appliance to the pid index, replacing any appliance with the
+	 * same pid
+	 */
+	synchronized void register(IManagedAppliance appliance) {
+		Snapshot s = snapshot;
+		snapshot = new Snapshot(s.pids.put(appliance.getPid(), appliance), s.installed, s.installing, s.indexes, s.keys);
+	}
+
+	/**
+	 * Removes the appliance from the registry
+	 */
+	synchronized void unregister(IManagedAppliance appliance) {
+		Snapshot s = snapshot;
+		PersistentHashMap pids = s.pids;
+		if (pids.get(appliance.getPid()) == appliance)
+			pids = pids.remove(appliance.getPid());
+		Snapshot next = new Snapshot(pids, s.installed, s.installing.remove(appliance), s.indexes, s.keys);
+		snapshot = uninstall(next, appliance);
+	}
+
+	/**
+	 * Moves the appliance among the installed ones
+	 */
+	synchronized void install(IManagedAppliance appliance) {
+		Snapshot s = snapshot;
+		Sequence installing = s.installing.remove(appliance);
+		if (s.installed.contains(appliance)) {
+			if (installing != s.installing)
+				snapshot = new Snapshot(s.pids, s.installed, installing, s.indexes, s.keys);
+			return;
+		}
+
+		String[][] keys = getKeys(appliance);
+		PersistentHashMap[] indexes = addToIndexes(s.indexes, appliance, keys);
+		Sequence installed = s.installed.add(appliance, nextNumber++);
+		snapshot = new Snapshot(s.pids, installed, installing, indexes, s.keys.put(appliance, keys));
+	}
+
+	/**
+	 * Adds the appliance to the ones waiting to be installed
+	 */
+	synchronized void setInstalling(IManagedAppliance appliance) {
+		Snapshot s = snapshot;
+		if (!s.installing.contains(appliance))
+			snapshot = new Snapshot(s.pids, s.installed, s.installing.add(appliance, nextNumber++), s.indexes, s.keys);
+	}
+
+	/**
+	 * Removes the appliance from the ones waiting to be installed
+	 */
+	synchronized void clearInstalling(IManagedAppliance appliance) {
+		Snapshot s = snapshot;
+		Sequence installing = s.installing.remove(appliance);
+		if (installing != s.installing)
+			snapshot = new Snapshot(s.pids, s.installed, installing, s.indexes, s.keys);
+	}
+
+	/**
+	 * Removes the appliance from the installed ones, it remains registered
+	 * 
+	 * @return false if the appliance was not installed
+	 */
+	synchronized boolean uninstall(IManagedAppliance appliance) {
+		Snapshot s = snapshot;
+		if (!s.installed.contains(appliance))
+			return false;
+		snapshot = uninstall(s, appliance);
+		return true;
+	}
+
+	/**
+	 * Updates the index entries of an installed appliance after its
+	 * configuration changed
+	 */
+	synchronized void reindex(IManagedAppliance appliance) {
+		Snapshot s = snapshot;
+		String[][] oldKeys = (String[][]) s.keys.get(appliance);
+		if (oldKeys == null)
+			return;
+		String[][] newKeys = getKeys(appliance);
+
+		PersistentHashMap[] indexes = s.indexes;
+		boolean changed = false;
+		for (int i = 0; i < INDEXES; i++) {
+			if (!equals(oldKeys[i], newKeys[i])) {
+				changed = true;
+				break;
+			}
+		}
+		if (!changed)
+			return;
+
+		indexes = removeFromIndexes(indexes, appliance, oldKeys);
+		indexes = addToIndexes(indexes, appliance, newKeys);
+		snapshot = new Snapshot(s.pids, s.installed, s.installing, indexes, s.keys.put(appliance, newKeys));
+	}
+
+	private static Snapshot uninstall(Snapshot s, IManagedAppliance appliance) {
+		String[][] keys = (String[][]) s.keys.get(appliance);
+		if (keys == null)
+			return s;
+		PersistentHashMap[] indexes = removeFromIndexes(s.indexes, appliance, keys);
+		return new Snapshot(s.pids, s.installed.remove(appliance), s.installing, indexes, s.keys.remove(appliance));
+	}
+
+	/**
+	 * Returns the keys of the appliance in each index
+	 */
+	private static String[][] getKeys(IManagedAppliance appliance) {
+		String[][] keys = new String[INDEXES][];
+		IApplianceDescriptor descriptor = appliance.getDescriptor();
+		keys[TYPE] = key((descriptor != null) ? descriptor.getType() : null);
+		keys[DEVICE_TYPE] = key((descriptor != null) ? descriptor.getDeviceType() : null);
+
+		Dictionary config = appliance.getConfiguration();
+		keys[NAME] = key((config != null) ? config.get(IAppliance.APPLIANCE_NAME_PROPERTY) : null);
+		keys[LOCATION] = key((config != null) ? config.get(IAppliance.APPLIANCE_LOCATION_PID_PROPERTY) : null);
+		keys[CATEGORY] = key((config != null) ? config.get(IAppliance.APPLIANCE_CATEGORY_PID_PROPERTY) : null);
+
+		String[] endPointTypes = appliance.getEndPointTypes();
+		if (endPointTypes == null) {
+			keys[END_POINT_TYPE] = new String[0];
+		} else {
+			// an appliance is indexed once for each distinct type
+			Map distinct = new HashMap();
+			for (int i = 0; i < endPointTypes.length; i++) {
+				if (endPointTypes[i] != null)
+					distinct.put(endPointTypes[i], endPointTypes[i]);
+			}
+			keys[END_POINT_TYPE] = (String[]) distinct.keySet().toArray(new String[distinct.size()]);
+		}
+		return keys;
+	}
+
+	private static String[] key(Object value) {
+		if (value instanceof String)
+			return new String[] { (String) value };
+		return new String[0];
+	}
+
+	/**
+	 * Returns the indexes with the appliance added under the passed keys. Only
+	 * the arrays of those keys are copied.
+	 */
+	private static PersistentHashMap[] addToIndexes(PersistentHashMap[] indexes, IManagedAppliance appliance,
+			String[][] keys) {
+		PersistentHashMap[] result = (PersistentHashMap[]) indexes.clone();
+		for (int i = 0; i < INDEXES; i++) {
+			for (int k = 0; k < keys[i].length; k++) {
+				IManagedAppliance[] entry = (IManagedAppliance[]) result[i].get(keys[i][k]);
+				result[i] = result[i].put(keys[i][k], add((entry == null) ? EMPTY : entry, appliance));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the indexes with the appliance removed from the passed keys
+	 */
+	private static PersistentHashMap[] removeFromIndexes(PersistentHashMap[] indexes, IManagedAppliance appliance,
+			String[][] keys) {
+		PersistentHashMap[] result = (PersistentHashMap[]) indexes.clone();
+		for (int i = 0; i < INDEXES; i++) {
+			for (int k = 0; k < keys[i].length; k++) {
+				IManagedAppliance[] entry = (IManagedAppliance[]) result[i].get(keys[i][k]);
+				if (entry == null)
+					continue;
+				entry = remove(entry, appliance);
+				if (entry.length == 0)
+					result[i] = result[i].remove(keys[i][k]);
+				else
+					result[i] = result[i].put(keys[i][k], entry);
+			}
+		}
+		return result;
+	}
+
+	private static boolean equals(String[] a, String[] b) {
+		if (a.length != b.length)
+			return false;
+		for (int i = 0; i < a.length; i++) {
+			if (!a[i].equals(b[i]))
+				return false;
+		}
+		return true;
+	}
+
+	private static int indexOf(IManagedAppliance[] array, IManagedAppliance appliance) {
+		for (int i = 0; i < array.length; i++) {
+			if (array[i] == appliance)
+				return i;
+		}
+		return -1;
+	}
+
+	private static IManagedAppliance[] add(IManagedAppliance[] array, IManagedAppliance appliance) {
+		IManagedAppliance[] result = new IManagedAppliance[array.length + 1];
+		System.arraycopy(array, 0, result, 0, array.length);
+		result[array.length] = appliance;
+		return result;
+	}
+
+	/**
+	 * @return The passed array if it doesn't contain the appliance
+	 */
+	private static IManagedAppliance[] remove(IManagedAppliance[] array, IManagedAppliance appliance) {
+		int i = indexOf(array, appliance);
+		if (i < 0)
+			return array;
+		if (array.length == 1)
+			return EMPTY;
+		IManagedAppliance[] result = new IManagedAppliance[array.length - 1];
+		System.arraycopy(array, 0, result, 0, i);
+		System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+		return result;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.hac.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.energy_home.jemma.ah.hac.IEndPoint;
+import org.energy_home.jemma.ah.hac.IServiceCluster;
+
+/**
+ * Results of the cluster matching algorithm between two end points, keyed by
+ * the signature of the end points (their sorted client and server cluster
+ * types and cluster listener types).
+ * <p>
+ * The default matching algorithm (see Appliance) only depends on these sets,
+ * so end points of the same kind share the same entry and the matching runs
+ * once per pair of end point kinds instead of once per pair of end points.
+ * An end point whose cluster set changes gets a different signature, so stale
+ * entries are never returned; they are dropped when the cache is full.
+ * <p>
+ * This class is not thread safe: it is guarded by the ConnectionAdminService
+ * lock.
+ */
+class ClusterMatchCache {
+
+	private static final int MAX_ENTRIES = 512;
+
+	// marks a cached pair with no matching clusters
+	private static final ArrayList NO_MATCH = new ArrayList(0);
+
+	private Map matches = new HashMap();
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Returns the signature of the end point, built from its sorted client
+	 * and server cluster types and cluster listener types.
+	 */
+	public static String getSignature(IEndPoint endPoint) {
+		StringBuilder sb = new StringBuilder();
+		appendSorted(sb, endPoint.getServiceClusterTypes(IServiceCluster.CLIENT_SIDE));
+		appendSorted(sb, endPoint.getServiceClusterTypes(IServiceCluster.SERVER_SIDE));
+		appendSorted(sb, endPoint.getAdditionalClusterTypes(IServiceCluster.CLIENT_SIDE));
+		appendSorted(sb, endPoint.getAdditionalClusterTypes(IServiceCluster.SERVER_SIDE));
+		return sb.toString();
+	}
+
+	/**
+	 * Returns true if a result is cached for the pair of signatures.
+	 */
+	public boolean contains(String signature1, String signature2) {
+		return matches.containsKey(getKey(signature1, signature2));
+	}
+
+	/**
+	 * Returns a copy of the matching cluster names cached for the pair of
+	 * signatures: null if there are no matching clusters or if nothing is
+	 * cached (see contains()).
+	 */
+	public ArrayList get(String signature1, String signature2) {
+		ArrayList names = (ArrayList) matches.get(getKey(signature1, signature2));
+		if (names == null)
+			return null;
+		hits++;
+		if (names == NO_MATCH)
+			return null;
+		return new ArrayList(names);
+	}
+
+	public void put(String signature1, String signature2, ArrayList names) {
+		misses++;
+		if (matches.size() >= MAX_ENTRIES)
+			matches.clear();
+		matches.put(getKey(signature1, signature2), names == null || names.size() == 0 ? NO_MATCH : new ArrayList(names));
+	}
+
+	public void clear() {
+		matches.clear();
+	}
+
+	public String toString() {
+		return "entries: " + matches.size() + ", hits: " + hits + ", misses: " + misses;
+	}
+
+	private static String getKey(String signature1, String signature2) {
+		return signature1 + '|' + signature2;
+	}
+
+	private static void appendSorted(StringBuilder sb, String[] types) {
+		if (types != null && types.length > 0) {
+			String[] sorted = new String[types.length];
+			System.arraycopy(types, 0, sorted, 0, types.length);
+			Arrays.sort(sorted);
+			for (int i = 0; i < sorted.length; i++) {
+				if (i > 0)
+					sb.append(',');
+				sb.append(sorted[i]);
+			}
+		}
+		sb.append(';');
+	}
+}
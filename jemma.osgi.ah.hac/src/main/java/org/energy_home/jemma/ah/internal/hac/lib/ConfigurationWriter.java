@@ -0,0 +1,181 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.hac.lib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes the HacService configurations from a dedicated thread, so that no
+ * file is written while the locks of the HacService are held.
+ * <p>
+ * Writes are performed one at a time, in the order in which they have been
+ * submitted. A write of a configuration that is still waiting in the queue is
+ * replaced by the new one, so a burst of changes results in a single write
+ * of the last version. If the writer is not running, configurations are
+ * written by the calling thread.
+ */
+class ConfigurationWriter implements Runnable {
+
+	/**
+	 * The object that actually writes a configuration.
+	 */
+	interface Store {
+		boolean write(String configName, String data);
+	}
+
+	/**
+	 * A pending write. Several submits of the same configuration can share
+	 * the same request.
+	 */
+	static class Request {
+		private final String configName;
+		private String data;
+		private boolean done = false;
+		private boolean result = false;
+
+		Request(String configName, String data) {
+			this.configName = configName;
+			this.data = data;
+		}
+
+		/**
+		 * Waits until the configuration has been written.
+		 * 
+		 * @return true if the configuration has been written successfully
+		 */
+		synchronized boolean await() {
+			boolean interrupted = false;
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			return result;
+		}
+
+		synchronized void completed(boolean result) {
+			this.result = result;
+			this.done = true;
+			notifyAll();
+		}
+	}
+
+	private static final Log log = LogFactory.getLog(ConfigurationWriter.class);
+
+	private final Store store;
+
+	// configuration name -> Request, in submission order
+	private final Map pending = new LinkedHashMap();
+	private Thread thread = null;
+	private boolean running = false;
+
+	ConfigurationWriter(Store store) {
+		this.store = store;
+	}
+
+	synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		thread = new Thread(this, "HAC Configuration Writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the writer, after the pending configurations have been written.
+	 */
+	void stop() {
+		Thread t;
+		synchronized (this) {
+			if (!running)
+				return;
+			running = false;
+			t = thread;
+			thread = null;
+			notifyAll();
+		}
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queues the write of a configuration, replacing any write of the same
+	 * configuration that is still in the queue.
+	 */
+	Request submit(String configName, String data) {
+		Request request;
+		synchronized (this) {
+			if (running) {
+				request = (Request) pending.get(configName);
+				if (request != null) {
+					request.data = data;
+				} else {
+					request = new Request(configName, data);
+					pending.put(configName, request);
+					notifyAll();
+				}
+				return request;
+			}
+		}
+		request = new Request(configName, data);
+		write(request);
+		return request;
+	}
+
+	public void run() {
+		while (true) {
+			Request request;
+			synchronized (this) {
+				while (running && pending.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// checks running again
+					}
+				}
+				if (pending.isEmpty())
+					return;
+				Iterator it = pending.values().iterator();
+				request = (Request) it.next();
+				it.remove();
+			}
+			write(request);
+		}
+	}
+
+	private void write(Request request) {
+		boolean result = false;
+		try {
+			result = store.write(request.configName, request.data);
+		} catch (Throwable e) {
+			log.error("unable to write configuration " + request.configName, e);
+		}
+		request.completed(result);
+	}
+}
@@ -45,7 +45,9 @@ import java.util.Collection;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -87,6 +89,12 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 
 	protected ArrayList positiveRules = new ArrayList();
 
+	// compiled and indexed form of positiveRules, kept in sync with it
+	private ConnectionRules rules = new ConnectionRules();
+
+	// matching cluster names between kinds of end points
+	private ClusterMatchCache clusterMatchCache = new ClusterMatchCache();
+
 	private Timer timer = null;
 	private int saveTimeout = 1;
 	
@@ -136,6 +144,7 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 		if (this.managedApplianceServiceTracker != null) {
 			this.managedApplianceServiceTracker.close();
 		}
+		this.clusterMatchCache.clear();
 		this.saveConfiguration();
 	}
 
@@ -198,12 +207,16 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 			log.debug("new appliance with pid '" + appliance.getPid() + "' found, checks if there are connections pending for it");
 		}
 
+		// only the rules that can match the pid of the new appliance are
+		// evaluated
+		syncRules();
+		Set peers = rules.getPeers(appliance.getPid(), this.pid2appliance.keySet());
+
 		for (Iterator it = this.pid2appliance.values().iterator(); it.hasNext();) {
 			IManagedAppliance appliance2 = (IManagedAppliance) it.next();
 
 			if (appliance != appliance2) {
-				if (checkConnectivityOnDb(appliance.getPid(), appliance2.getPid()) ||
-						appliance2.getPid().equals(CORE_APP_PID) || appliance2.getPid().equals(CORE_APP_PID)) {
+				if (peers.contains(appliance2.getPid()) || appliance2.getPid().equals(CORE_APP_PID)) {
 					boolean res = activateConnection(appliance, appliance2);
 					if (res) {
 						log.debug(appliance.getPid() + " <--> " + appliance2.getPid());
@@ -276,23 +289,27 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 	}
 
 	protected boolean checkConnectivityOnDb(String appliance1Pid, String appliance2Pid) {
-		Dictionary connectionProps1 = new Hashtable();
-
-		Dictionary connectionProps2 = new Hashtable();
-
-		connectionProps1.put("pid1", appliance1Pid);
-		connectionProps1.put("pid2", appliance2Pid);
-
-		connectionProps2.put("pid2", appliance1Pid);
-		connectionProps2.put("pid1", appliance2Pid);
+		syncRules();
+		return rules.matches(appliance1Pid, appliance2Pid);
+	}
 
+	/**
+	 * Rebuilds the compiled rules if positiveRules has been modified
+	 * directly (e.g. by a subclass), even if its size did not change.
+	 */
+	private void syncRules() {
+		if (rules.isCompiledFrom(positiveRules))
+			return;
+		rules.clear();
 		for (int i = 0; i < positiveRules.size(); i++) {
-			Filter f = (Filter) this.positiveRules.get(i);
-			if (f.match(connectionProps1) || f.match(connectionProps2)) {
-				return true;
-			}
+			rules.add((Filter) positiveRules.get(i));
 		}
-		return false;
+	}
+
+	private void addRule(Filter filter) {
+		syncRules();
+		this.positiveRules.add(filter);
+		this.rules.add(filter);
 	}
 
 	public synchronized boolean deactivateBind(String appliance1Pid, String appliance2Pid) {
@@ -347,6 +364,7 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 		}
 
 		this.positiveRules.clear();
+		this.rules.clear();
 		this.saveConfiguration();
 	}
 
@@ -459,11 +477,11 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 			throw new ApplianceException("Internal error");
 		}
 
-		this.positiveRules.add(filter);
+		this.addRule(filter);
 
 		this.saveConfigurationDelayed();
 
-		activateRules();
+		activateRules(filter);
 
 		addedRuleEvent(filter);
 		return false;
@@ -476,28 +494,26 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 		}
 	}
 
-	private boolean activateRules() {
-
-		for (Iterator it1 = this.pid2appliance.values().iterator(); it1.hasNext();) {
-			IManagedAppliance appliance1 = (IManagedAppliance) it1.next();
-			if (appliance1 == null) {
+	/**
+	 * Activates the connections allowed by a rule that has just been added.
+	 * The pairs allowed by the other rules have already been connected when
+	 * their appliances were set, so only the pairs matched by the new rule
+	 * are evaluated.
+	 */
+	private boolean activateRules(Filter filter) {
+		List pairs = rules.getPairs(filter, this.pid2appliance.keySet());
+
+		for (int i = 0; i < pairs.size(); i++) {
+			String[] pair = (String[]) pairs.get(i);
+			IManagedAppliance appliance1 = (IManagedAppliance) this.pid2appliance.get(pair[0]);
+			IManagedAppliance appliance2 = (IManagedAppliance) this.pid2appliance.get(pair[1]);
+			if (appliance1 == null || appliance2 == null) {
 				continue;
 			}
 
-			for (Iterator it2 = this.pid2appliance.values().iterator(); it2.hasNext();) {
-				IManagedAppliance appliance2 = (IManagedAppliance) it2.next();
-				if (appliance2 == null) {
-					continue;
-				}
-
-				if (appliance1 != appliance2) {
-					if (checkConnectivityOnDb(appliance1.getPid(), appliance2.getPid())) {
-						boolean res = activateConnection(appliance1, appliance2);
-						if (res) {
-							log.debug(appliance1.getPid() + " <--> " + appliance2.getPid());
-						}
-					}
-				}
+			boolean res = activateConnection(appliance1, appliance2);
+			if (res) {
+				log.debug(appliance1.getPid() + " <--> " + appliance2.getPid());
 			}
 		}
 
@@ -621,13 +637,25 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 		boolean isPeerApplianceValid = false;
 		boolean isPeerEndPointValid = false;
 		PeerAppliance[] peerAppliances = new PeerAppliance[endPoints1.length];
+		// The appliance manager of an Appliance is final and always uses the
+		// default matching algorithm, that only depends on the cluster types
+		// of the end points: its results can be cached
+		String[] signatures1 = null;
+		String[] signatures2 = null;
+		if (managedAppliance2 instanceof Appliance) {
+			signatures1 = getSignatures(endPoints1);
+			signatures2 = getSignatures(endPoints2);
+		}
 		for (int i = 0; i < endPoints1.length; i++) {
 			peerAppliance = new PeerAppliance((Appliance)managedAppliance2, endPoints1[i]);
 			isPeerApplianceValid = false;
 			for (int j = 0; j < endPoints2.length; j++) {
 				peerEndPoint = new PeerEndPoint(endPoints2[j]);
 				isPeerEndPointValid = false;
-				serverMatchingClusterNames = this.getMatchingClusterNames(managedAppliance2, endPoints2[j], managedAppliance1, endPoints1[i]);
+				if (signatures2 != null)
+					serverMatchingClusterNames = this.getMatchingClusterNames(managedAppliance2, endPoints2[j], signatures2[j], managedAppliance1, endPoints1[i], signatures1[i]);
+				else
+					serverMatchingClusterNames = this.getMatchingClusterNames(managedAppliance2, endPoints2[j], managedAppliance1, endPoints1[i]);
 				if (serverMatchingClusterNames != null && serverMatchingClusterNames.size() > 0) {
 					for (Iterator iterator = serverMatchingClusterNames.iterator(); iterator.hasNext();) {
 						clusterName = (String) iterator.next();
@@ -681,6 +709,34 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 		return peerAppliances;
 	}
 	
+	/**
+	 * Returns the signatures of the end points, used as keys of the cluster
+	 * matching cache.
+	 */
+	private String[] getSignatures(EndPoint[] endPoints) {
+		String[] signatures = new String[endPoints.length];
+		for (int i = 0; i < endPoints.length; i++) {
+			signatures[i] = ClusterMatchCache.getSignature(endPoints[i]);
+		}
+		return signatures;
+	}
+
+	/**
+	 * Same as getMatchingClusterNames(IManagedAppliance, IEndPoint,
+	 * IManagedAppliance, IEndPoint), but the result is looked up in (and
+	 * stored into) the cluster matching cache, using the signatures of the
+	 * two end points.
+	 */
+	protected ArrayList getMatchingClusterNames(IManagedAppliance appliance1, IEndPoint ep1, String signature1,
+			IManagedAppliance appliance2, IEndPoint ep2, String signature2) {
+		ArrayList matchingClusterNamesList = clusterMatchCache.get(signature1, signature2);
+		if (matchingClusterNamesList == null && !clusterMatchCache.contains(signature1, signature2)) {
+			matchingClusterNamesList = getMatchingClusterNames(appliance1, ep1, appliance2, ep2);
+			clusterMatchCache.put(signature1, signature2, matchingClusterNamesList);
+		}
+		return matchingClusterNamesList;
+	}
+
 	/**
 	 * Return an ArrayList with the name of appliance1's matching service
 	 * clusters (services exposed to appliance1)
@@ -735,6 +791,7 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 		for (int i = 0; i < this.positiveRules.size(); i++) {
 			log.debug(i + "\t\t" + this.positiveRules.get(i));
 		}
+		log.debug("Cluster matching cache: " + this.clusterMatchCache);
 	}
 
 	public synchronized boolean loadConfiguration() {
@@ -1018,16 +1075,22 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 
 	}
 
+	/**
+	 * Returns a copy of the bind rules: the rules are changed only through
+	 * the methods of this service, which keep the compiled rules in sync.
+	 */
 	public synchronized ArrayList getBindRules() {
-		return this.positiveRules;
+		return new ArrayList(this.positiveRules);
 	}
 
 	public synchronized boolean removeBindRule(String pid) throws HacException {
 		// FIXME: should revert any connection that was activated thanks to the
 		// bind rule that is being deleted.
+		syncRules();
 		Filter filter = (Filter) this.positiveRules.remove(Integer.parseInt(pid));
 
 		if (filter != null) {
+			this.rules.remove(filter);
 			this.saveConfigurationDelayed();
 			this.deactivateRule(filter);
 			return true;
@@ -1065,16 +1128,16 @@ public class ConnectionAdminService implements TimerListener, IConnectionAdminSe
 
 		Filter filter = this.ctxt.getBundleContext().createFilter(rule);
 
-		this.positiveRules.add(filter);
+		this.addRule(filter);
 		this.saveConfigurationDelayed();
-		activateRules();
+		activateRules(filter);
 		addedRuleEvent(filter);
 	}
 
 	private void internalAddBindRule(String rule) throws InvalidSyntaxException {
 		Filter filter = this.ctxt.getBundleContext().createFilter(rule);
-		this.positiveRules.add(filter);
-		activateRules();
+		this.addRule(filter);
+		activateRules(filter);
 		addedRuleEvent(filter);
 	}
 	
@@ -0,0 +1,607 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.hac.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Filter;
+
+/**
+ * The bind rules of the ConnectionAdminService in a form suitable for
+ * incremental evaluation.
+ * <p>
+ * A bind rule is an LDAP filter evaluated against the properties
+ * <code>pid1</code> and <code>pid2</code> of a pair of appliances, in both
+ * orientations. Each filter is compiled into a tree of predicates that works
+ * directly on the two pids (no Dictionary is created for each match) and is
+ * indexed by the values that the filter requires for <code>pid1</code> and
+ * <code>pid2</code>: the usual rule <code>(&(pid1=a)(pid2=b))</code> is only
+ * evaluated for pairs that involve <code>a</code> or <code>b</code>. Rules
+ * that test <code>pid1</code> (or <code>pid2</code>) in any other way are
+ * evaluated for every pair. Filters that cannot be compiled are matched with
+ * Filter.match(), as before.
+ * <p>
+ * This class is not thread safe: it is guarded by the ConnectionAdminService
+ * lock.
+ */
+class ConnectionRules {
+
+	private static final String PID1 = "pid1";
+	private static final String PID2 = "pid2";
+
+	private List rules = new ArrayList();
+
+	// Rules indexed by the value required for pid1 (or pid2). Rules that do
+	// not require a fixed set of values are kept in the "any" lists.
+	private Map pid1Index = new HashMap();
+	private Map pid2Index = new HashMap();
+	private List pid1Any = new ArrayList();
+	private List pid2Any = new ArrayList();
+
+	public void add(Filter filter) {
+		Rule rule = new Rule(filter);
+		rules.add(rule);
+		index(rule);
+	}
+
+	public boolean remove(Filter filter) {
+		for (int i = 0; i < rules.size(); i++) {
+			if (((Rule) rules.get(i)).filter == filter) {
+				rules.remove(i);
+				reindex();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void clear() {
+		rules.clear();
+		reindex();
+	}
+
+	public int size() {
+		return rules.size();
+	}
+
+	/**
+	 * Returns true if the rules have been compiled from exactly the passed
+	 * filters (same instances, same order).
+	 */
+	public boolean isCompiledFrom(List filters) {
+		if (rules.size() != filters.size())
+			return false;
+		for (int i = 0; i < rules.size(); i++) {
+			if (((Rule) rules.get(i)).filter != filters.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if at least one rule allows the connection between the two
+	 * appliances, in any orientation.
+	 */
+	public boolean matches(String appliance1Pid, String appliance2Pid) {
+		return matchesOriented(appliance1Pid, appliance2Pid) || matchesOriented(appliance2Pid, appliance1Pid);
+	}
+
+	/**
+	 * Returns the pids, among the ones passed as parameter, of the appliances
+	 * that the rules connect to the appliance <code>appliancePid</code>.
+	 */
+	public Set getPeers(String appliancePid, Collection pids) {
+		Set peers = new HashSet();
+		List candidates = (List) pid1Index.get(appliancePid);
+		if (candidates != null)
+			addPeers(candidates, appliancePid, true, pids, peers);
+		addPeers(pid1Any, appliancePid, true, pids, peers);
+		candidates = (List) pid2Index.get(appliancePid);
+		if (candidates != null)
+			addPeers(candidates, appliancePid, false, pids, peers);
+		addPeers(pid2Any, appliancePid, false, pids, peers);
+		peers.remove(appliancePid);
+		return peers;
+	}
+
+	/**
+	 * Returns the pairs of appliances, among the ones passed as parameter,
+	 * that are connected by the rule <code>filter</code>. Each pair is
+	 * returned once, as a String[2] in the orientation matched by the rule.
+	 */
+	public List getPairs(Filter filter, Collection pids) {
+		Rule rule = null;
+		for (int i = 0; i < rules.size(); i++) {
+			if (((Rule) rules.get(i)).filter == filter) {
+				rule = (Rule) rules.get(i);
+				break;
+			}
+		}
+		List pairs = new ArrayList();
+		if (rule == null)
+			return pairs;
+
+		Collection firsts = candidates(rule.pid1Values, pids);
+		Collection seconds = candidates(rule.pid2Values, pids);
+		Set found = new HashSet();
+		for (Iterator it1 = firsts.iterator(); it1.hasNext();) {
+			String pid1 = (String) it1.next();
+			for (Iterator it2 = seconds.iterator(); it2.hasNext();) {
+				String pid2 = (String) it2.next();
+				if (pid1.equals(pid2) || !rule.eval(pid1, pid2))
+					continue;
+				// the pair and its reverse are the same connection
+				String key = pid1.compareTo(pid2) < 0 ? pid1 + '\n' + pid2 : pid2 + '\n' + pid1;
+				if (found.add(key))
+					pairs.add(new String[] { pid1, pid2 });
+			}
+		}
+		return pairs;
+	}
+
+	private boolean matchesOriented(String pid1, String pid2) {
+		List candidates = (List) pid1Index.get(pid1);
+		if (candidates != null) {
+			for (int i = 0; i < candidates.size(); i++) {
+				if (((Rule) candidates.get(i)).eval(pid1, pid2))
+					return true;
+			}
+		}
+		for (int i = 0; i < pid1Any.size(); i++) {
+			if (((Rule) pid1Any.get(i)).eval(pid1, pid2))
+				return true;
+		}
+		return false;
+	}
+
+	private void addPeers(List candidates, String appliancePid, boolean asPid1, Collection pids, Set peers) {
+		for (int i = 0; i < candidates.size(); i++) {
+			Rule rule = (Rule) candidates.get(i);
+			Collection others = candidates(asPid1 ? rule.pid2Values : rule.pid1Values, pids);
+			for (Iterator it = others.iterator(); it.hasNext();) {
+				String other = (String) it.next();
+				if (peers.contains(other))
+					continue;
+				if (asPid1 ? rule.eval(appliancePid, other) : rule.eval(other, appliancePid))
+					peers.add(other);
+			}
+		}
+	}
+
+	private static Collection candidates(String[] values, Collection pids) {
+		if (values == null)
+			return pids;
+		List result = new ArrayList(values.length);
+		for (int i = 0; i < values.length; i++) {
+			if (pids.contains(values[i]))
+				result.add(values[i]);
+		}
+		return result;
+	}
+
+	private void index(Rule rule) {
+		index(rule, rule.pid1Values, pid1Index, pid1Any);
+		index(rule, rule.pid2Values, pid2Index, pid2Any);
+	}
+
+	private static void index(Rule rule, String[] values, Map index, List any) {
+		if (values == null) {
+			any.add(rule);
+			return;
+		}
+		for (int i = 0; i < values.length; i++) {
+			List list = (List) index.get(values[i]);
+			if (list == null) {
+				list = new ArrayList(2);
+				index.put(values[i], list);
+			}
+			if (!list.contains(rule))
+				list.add(rule);
+		}
+	}
+
+	private void reindex() {
+		pid1Index.clear();
+		pid2Index.clear();
+		pid1Any.clear();
+		pid2Any.clear();
+		for (int i = 0; i < rules.size(); i++)
+			index((Rule) rules.get(i));
+	}
+
+	private static class Rule {
+		final Filter filter;
+		final Node predicate;
+		final String[] pid1Values;
+		final String[] pid2Values;
+
+		Rule(Filter filter) {
+			this.filter = filter;
+			Node node = null;
+			try {
+				node = new Parser(filter.toString()).parse();
+			} catch (IllegalArgumentException e) {
+				// evaluated with Filter.match()
+			}
+			this.predicate = node;
+			if (node != null) {
+				Set values = node.requiredValues(0);
+				this.pid1Values = values == null ? null : (String[]) values.toArray(new String[values.size()]);
+				values = node.requiredValues(1);
+				this.pid2Values = values == null ? null : (String[]) values.toArray(new String[values.size()]);
+			} else {
+				this.pid1Values = null;
+				this.pid2Values = null;
+			}
+		}
+
+		boolean eval(String pid1, String pid2) {
+			if (predicate != null)
+				return predicate.eval(pid1, pid2);
+			Hashtable props = new Hashtable(2);
+			props.put(PID1, pid1);
+			props.put(PID2, pid2);
+			return filter.match(props);
+		}
+	}
+
+	/**
+	 * A node of a compiled filter. The semantics follow the matching of an
+	 * OSGi filter against String property values.
+	 */
+	private static abstract class Node {
+		abstract boolean eval(String pid1, String pid2);
+
+		/**
+		 * Returns the set of values that the attribute must have for this
+		 * node to match, or null if any value can match.
+		 */
+		Set requiredValues(int attr) {
+			return null;
+		}
+	}
+
+	private static class And extends Node {
+		private final Node[] children;
+
+		And(Node[] children) {
+			this.children = children;
+		}
+
+		boolean eval(String pid1, String pid2) {
+			for (int i = 0; i < children.length; i++) {
+				if (!children[i].eval(pid1, pid2))
+					return false;
+			}
+			return true;
+		}
+
+		Set requiredValues(int attr) {
+			// any constrained child is enough, the smallest is the best
+			Set result = null;
+			for (int i = 0; i < children.length; i++) {
+				Set values = children[i].requiredValues(attr);
+				if (values != null && (result == null || values.size() < result.size()))
+					result = values;
+			}
+			return result;
+		}
+	}
+
+	private static class Or extends Node {
+		private final Node[] children;
+
+		Or(Node[] children) {
+			this.children = children;
+		}
+
+		boolean eval(String pid1, String pid2) {
+			for (int i = 0; i < children.length; i++) {
+				if (children[i].eval(pid1, pid2))
+					return true;
+			}
+			return false;
+		}
+
+		Set requiredValues(int attr) {
+			Set result = new HashSet();
+			for (int i = 0; i < children.length; i++) {
+				Set values = children[i].requiredValues(attr);
+				if (values == null)
+					return null;
+				result.addAll(values);
+			}
+			return result;
+		}
+	}
+
+	private static class Not extends Node {
+		private final Node child;
+
+		Not(Node child) {
+			this.child = child;
+		}
+
+		boolean eval(String pid1, String pid2) {
+			return !child.eval(pid1, pid2);
+		}
+	}
+
+	private static abstract class Item extends Node {
+		protected final int attr;
+
+		Item(int attr) {
+			this.attr = attr;
+		}
+
+		boolean eval(String pid1, String pid2) {
+			String value = attr == 0 ? pid1 : (attr == 1 ? pid2 : null);
+			return value != null && match(value);
+		}
+
+		abstract boolean match(String value);
+	}
+
+	private static class Equal extends Item {
+		private final String literal;
+
+		Equal(int attr, String literal) {
+			super(attr);
+			this.literal = literal;
+		}
+
+		boolean match(String value) {
+			return value.equals(literal);
+		}
+
+		Set requiredValues(int attr) {
+			if (attr != this.attr)
+				return null;
+			Set result = new HashSet(2);
+			result.add(literal);
+			return result;
+		}
+	}
+
+	private static class Approx extends Item {
+		private final String literal;
+
+		Approx(int attr, String literal) {
+			super(attr);
+			this.literal = removeWhitespace(literal);
+		}
+
+		boolean match(String value) {
+			return removeWhitespace(value).equalsIgnoreCase(literal);
+		}
+
+		private static String removeWhitespace(String s) {
+			StringBuilder sb = new StringBuilder(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (!Character.isWhitespace(c))
+					sb.append(c);
+			}
+			return sb.toString();
+		}
+	}
+
+	private static class Compare extends Item {
+		private final String literal;
+		private final boolean greater;
+
+		Compare(int attr, String literal, boolean greater) {
+			super(attr);
+			this.literal = literal;
+			this.greater = greater;
+		}
+
+		boolean match(String value) {
+			int c = value.compareTo(literal);
+			return greater ? c >= 0 : c <= 0;
+		}
+	}
+
+	private static class Present extends Item {
+		Present(int attr) {
+			super(attr);
+		}
+
+		boolean match(String value) {
+			return true;
+		}
+	}
+
+	private static class Substring extends Item {
+		// parts[0] is the initial part and parts[length - 1] the final one;
+		// both are null when the pattern starts (ends) with a '*'
+		private final String[] parts;
+
+		Substring(int attr, String[] parts) {
+			super(attr);
+			this.parts = parts;
+		}
+
+		boolean match(String value) {
+			int pos = 0;
+			int last = parts.length - 1;
+			if (parts[0] != null) {
+				if (!value.startsWith(parts[0]))
+					return false;
+				pos = parts[0].length();
+			}
+			for (int i = 1; i < last; i++) {
+				int index = value.indexOf(parts[i], pos);
+				if (index < 0)
+					return false;
+				pos = index + parts[i].length();
+			}
+			if (parts[last] != null)
+				return value.length() - parts[last].length() >= pos && value.endsWith(parts[last]);
+			return true;
+		}
+	}
+
+	/**
+	 * Parses the string representation of a filter. Throws an
+	 * IllegalArgumentException on anything it does not understand.
+	 */
+	private static class Parser {
+		private final String s;
+		private int pos = 0;
+
+		Parser(String s) {
+			this.s = s;
+		}
+
+		Node parse() {
+			Node node = parseFilter();
+			skipWhitespace();
+			if (pos != s.length())
+				throw new IllegalArgumentException();
+			return node;
+		}
+
+		private Node parseFilter() {
+			skipWhitespace();
+			expect('(');
+			skipWhitespace();
+			Node node;
+			char c = peek();
+			if (c == '&') {
+				pos++;
+				node = new And(parseList());
+			} else if (c == '|') {
+				pos++;
+				node = new Or(parseList());
+			} else if (c == '!') {
+				pos++;
+				node = new Not(parseFilter());
+			} else {
+				node = parseItem();
+			}
+			skipWhitespace();
+			expect(')');
+			return node;
+		}
+
+		private Node[] parseList() {
+			List children = new ArrayList(2);
+			skipWhitespace();
+			while (peek() == '(') {
+				children.add(parseFilter());
+				skipWhitespace();
+			}
+			if (children.size() == 0)
+				throw new IllegalArgumentException();
+			return (Node[]) children.toArray(new Node[children.size()]);
+		}
+
+		private Node parseItem() {
+			int start = pos;
+			while (pos < s.length() && "=~<>()".indexOf(s.charAt(pos)) < 0)
+				pos++;
+			String name = s.substring(start, pos).trim();
+			if (name.length() == 0)
+				throw new IllegalArgumentException();
+			int attr;
+			if (name.equalsIgnoreCase(PID1))
+				attr = 0;
+			else if (name.equalsIgnoreCase(PID2))
+				attr = 1;
+			else
+				attr = -1; // never present in the match properties
+
+			char c = peek();
+			pos++;
+			if (c == '~' || c == '>' || c == '<') {
+				expect('=');
+				String literal = parseValue(null);
+				if (c == '~')
+					return new Approx(attr, literal);
+				return new Compare(attr, literal, c == '>');
+			}
+			if (c != '=')
+				throw new IllegalArgumentException();
+
+			List parts = new ArrayList(2);
+			String literal = parseValue(parts);
+			if (parts.size() == 0)
+				return new Equal(attr, literal);
+			parts.add(literal);
+			if (parts.size() == 2 && parts.get(0) == null && parts.get(1) == null)
+				return new Present(attr);
+			return new Substring(attr, (String[]) parts.toArray(new String[parts.size()]));
+		}
+
+		/**
+		 * Parses a value up to the closing parenthesis. If <code>parts</code>
+		 * is not null, unescaped '*' split the value: the parts before the
+		 * last one are added to the list (null for empty parts at the start)
+		 * and the last one is returned (null if empty and preceded by a '*').
+		 */
+		private String parseValue(List parts) {
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				char c = peek();
+				if (c == ')') {
+					break;
+				} else if (c == '(') {
+					throw new IllegalArgumentException();
+				} else if (c == '\\') {
+					pos++;
+					sb.append(peek());
+					pos++;
+				} else if (c == '*' && parts != null) {
+					pos++;
+					parts.add(sb.length() == 0 && parts.size() == 0 ? null : sb.toString());
+					sb.setLength(0);
+				} else {
+					sb.append(c);
+					pos++;
+				}
+			}
+			if (parts != null && parts.size() > 0 && sb.length() == 0)
+				return null;
+			return sb.toString();
+		}
+
+		private void skipWhitespace() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+				pos++;
+		}
+
+		private char peek() {
+			if (pos >= s.length())
+				throw new IllegalArgumentException();
+			return s.charAt(pos);
+		}
+
+		private void expect(char c) {
+			if (peek() != c)
+				throw new IllegalArgumentException();
+			pos++;
+		}
+	}
+}
@@ -32,7 +32,6 @@ import org.apache.felix.bundlerepository.RepositoryAdmin;
 import org.apache.felix.bundlerepository.Resource;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.service.device.DriverLocator;
 
@@ -109,24 +108,9 @@ public class HacDriverLocator implements DriverLocator {
 			return null;
 		}
 
-		try {
-			String servicePid = (String) props.get("service.pid");
-			Configuration[] configurations = this.configAdmin.listConfigurations("(device.serial=" + servicePid + ")");
-			// if (configurations == null) {
-			// // this device not in the DB, returns configurator pid
-			// return new String[] { "configurator.pid" };
-			// }
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-
-		} catch (InvalidSyntaxException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		// the configurations of the device (configAdmin.listConfigurations()
+		// with filter "(device.serial=" + service.pid + ")") are not used yet
+		// to select the driver, so they are not queried for each device
 
 		String driverId = (String) props.get(IAppliance.APPLIANCE_TYPE_PROPERTY);
 		if (driverId != null) {
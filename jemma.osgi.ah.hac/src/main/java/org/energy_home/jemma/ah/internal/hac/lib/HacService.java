@@ -95,15 +95,11 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	private boolean permitAlternateDefaultConfiguration = false;
 
 	/**
-	 * Dictionary that permits to retrieve the IManagedAppliance service from
-	 * its pid
+	 * The IManagedAppliance services, indexed by pid and, once installed, by
+	 * type, name, location, category, device type and end point types. It is
+	 * read without holding lockHacService
 	 */
-	private Hashtable pid2appliance = new Hashtable();
-
-	/** dictionary of currently available IManagedAppliance services */
-	private Vector appliances = new Vector();
-
-	protected Vector installingAppliances = new Vector();
+	private final ApplianceRegistry registry = new ApplianceRegistry();
 
 	/** dictionary the appliances pids */
 	private Vector appliancePids = new Vector();
@@ -123,7 +119,8 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 
 	private Vector applianceFactories = new Vector();
 
-	private ConfigurationAdmin configAdmin;
+	// read by the appliance operations without holding lockHacService
+	private volatile ConfigurationAdmin configAdmin;
 	private Hashtable type2applianceFactory = new Hashtable();
 	private DocumentBuilderFactory factory;
 	private BundleContext bc;
@@ -140,8 +137,38 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	Hashtable factorypids2configuration = new Hashtable();
 	private Object lockHacService = new Object();
 
+	/**
+	 * Operations on a single appliance are serialized per appliance (see
+	 * ApplianceLocks) and don't hold lockHacService. Operations involving all
+	 * the appliances hold lockHacService and the exclusive lock.
+	 */
+	private final ApplianceLocks locks = new ApplianceLocks();
+
+	/** Writes the configuration files outside of lockHacService */
+	private final ConfigurationWriter configurationWriter = new ConfigurationWriter(new ConfigurationWriter.Store() {
+		public boolean write(String configName, String data) {
+			return writeConfiguration(configName, data);
+		}
+	});
+
 	private int newAppliancePid = 0;
 
+	/**
+	 * Serializes the generation of appliance pids and names and guards
+	 * newAppliancePid and reservations. It is never held while taking other
+	 * locks.
+	 */
+	private final Object lockNames = new Object();
+
+	/**
+	 * Generated pids (and names) whose configuration is not in the registry
+	 * indexes yet: appliance pid -> reserved name, or null if only the pid has
+	 * been reserved. Without it two appliances created concurrently could get
+	 * the same pid or name, since an appliance is indexed only when its
+	 * configuration update is delivered.
+	 */
+	private final HashMap reservations = new HashMap();
+
 	private Hashtable pid2configurations = new Hashtable();
 
 	private LocationsService locationsDb;
@@ -162,31 +189,37 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 
 	protected void activate(ComponentContext ctxt) {
 		synchronized (lockHacService) {
-			this.bc = ctxt.getBundleContext();
+			locks.lockExclusive();
+			try {
+				this.bc = ctxt.getBundleContext();
+				configurationWriter.start();
 
-			if (permitAlternateDefaultConfiguration) {
-				String defaultConfigProp = this.bc.getProperty("org.telecomitalia.hac.configuration");
+				if (permitAlternateDefaultConfiguration) {
+					String defaultConfigProp = this.bc.getProperty("org.telecomitalia.hac.configuration");
 
-				if (defaultConfigProp != null) {
-					defaultConfig = defaultConfigProp;
+					if (defaultConfigProp != null) {
+						defaultConfig = defaultConfigProp;
+					}
 				}
-			}
 
-			this.createLocationService();
+				this.createLocationService();
 
-			loadCurrentConfig();
-			this.bc.addFrameworkListener(this);
-			if (useManagedApplianceServiceTracker) {
-				this.managedApplianceServiceTracker = new ManagedApplianceServiceTracker(bc, this);
-				this.managedApplianceServiceTracker.open();
+				loadCurrentConfig();
+				this.bc.addFrameworkListener(this);
+				if (useManagedApplianceServiceTracker) {
+					this.managedApplianceServiceTracker = new ManagedApplianceServiceTracker(bc, this);
+					this.managedApplianceServiceTracker.open();
+				}
+	// Core appliance no more used (now exported service clusters have been implemented by AppliancesProxy)
+	//			try {
+	//				coreAppliance = new CoreAppliance();
+	//				coreAppliance.start(bc);
+	//			} catch (ApplianceException e) {
+	//				log.error("Error while creating core appliance", e);
+	//			}
+			} finally {
+				locks.unlockExclusive();
 			}
-// Core appliance no more used (now exported service clusters have been implemented by AppliancesProxy)
-//			try {
-//				coreAppliance = new CoreAppliance();
-//				coreAppliance.start(bc);
-//			} catch (ApplianceException e) {
-//				log.error("Error while creating core appliance", e);
-//			}
 		}
 	}
 
@@ -211,14 +244,21 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 
 	protected void deactivate(ComponentContext ctxt) {
 		synchronized (lockHacService) {
-			disposeLocationService();
-
-			Led.setLed(0);
-			this.bc.removeFrameworkListener(this);
-			log.debug("deactivated");
-//			coreAppliance.stop();
-			if (this.managedApplianceServiceTracker != null)
-				this.managedApplianceServiceTracker.close();
+			locks.lockExclusive();
+			try {
+				disposeLocationService();
+
+				Led.setLed(0);
+				this.bc.removeFrameworkListener(this);
+				log.debug("deactivated");
+	//			coreAppliance.stop();
+				if (this.managedApplianceServiceTracker != null)
+					this.managedApplianceServiceTracker.close();
+				// writes the pending configurations
+				configurationWriter.stop();
+			} finally {
+				locks.unlockExclusive();
+			}
 		}
 	}
 
@@ -253,153 +293,168 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	 */
 
 	public void setManagedAppliance(IManagedAppliance appliance, Map appProps) throws ApplianceException {
-		synchronized (lockHacService) {
+		locks.lockShared();
+		try {
+			synchronized (locks.get(appliance.getPid())) {
 
-			/*
-			 * Internally to the hac applications are identified by their pid
-			 * that should be unique and persistent.
-			 * 
-			 * This helps to maintain a coherence when the HAC or an Appliance
-			 * is restarted.
-			 */
+				/*
+				 * Internally to the hac applications are identified by their pid
+				 * that should be unique and persistent.
+				 * 
+				 * This helps to maintain a coherence when the HAC or an Appliance
+				 * is restarted.
+				 */
 
-			String appliancePid = appliance.getPid();
+				String appliancePid = appliance.getPid();
 
-			if (appliancePid == null) {
-				log.warn("the managed appliance doesn't have an associated pid, discarding it!");
-				return;
-			}
+				if (appliancePid == null) {
+					log.warn("the managed appliance doesn't have an associated pid, discarding it!");
+					return;
+				}
 
-			if (!pid2appliance.contains(appliancePid)) {
-				pid2appliance.put(appliancePid, appliance);
-			} else {
-				log.warn("discarding appliance because it has a duplicated appliance.pid");
-				return;
-			}
+				registry.register(appliance);
 
-			if (enableAutoInstall) {
-				appliances.add(appliance);
-			} else {
-				String appStatus = (String) appProps.get("ah.status");
-				if (appStatus != null && (appStatus.equals("installing"))) {
-					log.debug("New appliance to install detected: " + appliancePid);
-					installingAppliances.add(appliance);
+				if (enableAutoInstall) {
+					registry.install(appliance);
 				} else {
-					appliances.add(appliance);
+					String appStatus = (String) appProps.get("ah.status");
+					if (appStatus != null && (appStatus.equals("installing"))) {
+						log.debug("New appliance to install detected: " + appliancePid);
+						registry.setInstalling(appliance);
+					} else {
+						registry.install(appliance);
+					}
 				}
-			}
 
-			((ApplianceManager) appliance.getApplianceManager()).setHacService(this);
+				if ((appProps.get(IAppliance.APPLIANCE_NAME_PROPERTY) != null) && registry.getSnapshot().isInstalled(appliance)) {
+					// the name is in the registry indexes
+					releaseReservation(appliancePid);
+				}
 
-			String applianceName = null;
+				((ApplianceManager) appliance.getApplianceManager()).setHacService(this);
 
-			Configuration c;
-			try {
-				c = getApplianceCAConfiguration(appliancePid);
-			} catch (Exception e) {
-				return;
-			}
+				String applianceName = null;
 
-			applianceName = (String) appProps.get(IAppliance.APPLIANCE_NAME_PROPERTY);
-			// If no name is assigned to the appliance, a unique name is
-			// created and assigned
-			if (applianceName == null) {
-				if (c == null) {
-					String factoryPid = (String) appProps.get(IAppliance.APPLIANCE_TYPE_PROPERTY);
-
-					if (factoryPid == null) {
-						if (!appliance.isSingleton())
-							log.error("the appliance doesn't have the ah.app.type property set and is not a singleton");
-						return;
-					}
+				Configuration c;
+				try {
+					c = getApplianceCAConfiguration(appliancePid);
+				} catch (Exception e) {
+					return;
+				}
+
+				applianceName = (String) appProps.get(IAppliance.APPLIANCE_NAME_PROPERTY);
+				// If no name is assigned to the appliance, a unique name is
+				// created and assigned
+				if (applianceName == null) {
+					if (c == null) {
+						String factoryPid = (String) appProps.get(IAppliance.APPLIANCE_TYPE_PROPERTY);
+
+						if (factoryPid == null) {
+							if (!appliance.isSingleton())
+								log.error("the appliance doesn't have the ah.app.type property set and is not a singleton");
+							return;
+						}
 					
-					IApplianceFactory applianceFactory = this.getApplianceFactory(factoryPid);
+						IApplianceFactory applianceFactory = this.getApplianceFactory(factoryPid);
 
-					if (applianceFactory == null) {
-						log.error("no factory for type " + factoryPid);
-						return;
-					}
-					try {
-						Configuration[] configurations = this.getApplianceCAConfigurations(appliancePid);
-						if (configurations == null) {
-							c = this.configAdmin.createFactoryConfiguration(factoryPid, null);
-							log.debug("created configuration for appliance.pid " + appliancePid);
+						if (applianceFactory == null) {
+							log.error("no factory for type " + factoryPid);
+							return;
+						}
+						try {
+							Configuration[] configurations = this.getApplianceCAConfigurations(appliancePid);
+							if (configurations == null) {
+								c = this.configAdmin.createFactoryConfiguration(factoryPid, null);
+								log.debug("created configuration for appliance.pid " + appliancePid);
+							}
+						} catch (Exception e) {
+							log.error(e);
+							return;
 						}
-					} catch (Exception e) {
-						log.error(e);
-						return;
 					}
-				}
 
-				Dictionary props = new Hashtable();
-				for (Iterator iterator = appProps.keySet().iterator(); iterator.hasNext();) {
-					Object type = (Object) iterator.next();
-					props.put(type, appProps.get(type));
-				}
-				if (applianceName == null) {
-					String namePrefix = appliance.getDescriptor().getFriendlyName();
-					applianceName = createUniqueName(namePrefix);
-					props.put(IAppliance.APPLIANCE_NAME_PROPERTY, applianceName);
-				}
+					Dictionary props = new Hashtable();
+					for (Iterator iterator = appProps.keySet().iterator(); iterator.hasNext();) {
+						Object type = (Object) iterator.next();
+						props.put(type, appProps.get(type));
+					}
+					if (applianceName == null) {
+						String namePrefix = appliance.getDescriptor().getFriendlyName();
+						applianceName = reserveUniqueName(namePrefix, appliancePid);
+						props.put(IAppliance.APPLIANCE_NAME_PROPERTY, applianceName);
+					}
 
-				try {
-					c.update(props);
-				} catch (IOException e) {
-					log.error(e);
+					try {
+						// the name is released by updatedManagedAppliance()
+						c.update(props);
+					} catch (IOException e) {
+						log.error(e);
+						releaseReservation(appliancePid);
+					}
 				}
 			}
+		} finally {
+			locks.unlockShared();
 		}
 	}
 
 	protected void unsetManagedAppliance(IManagedAppliance appliance) {
-		synchronized (lockHacService) {
-			String appliancePid = appliance.getPid();
+		locks.lockShared();
+		try {
+			synchronized (locks.get(appliance.getPid())) {
+				String appliancePid = appliance.getPid();
 
-			if (appliancePid == null) {
-				return;
-			}
+				if (appliancePid == null) {
+					return;
+				}
 
-			appliancePids.remove(appliancePid);
-			pid2appliance.remove(appliancePid);
-			appliances.remove(appliance);
-			installingAppliances.remove(appliance);
+				appliancePids.remove(appliancePid);
+				registry.unregister(appliance);
+				releaseReservation(appliancePid);
+			}
+		} finally {
+			locks.unlockShared();
 		}
 	}
 
 	protected void updatedManagedAppliance(IManagedAppliance appliance, final Map props) {
 		log.debug("called updated method");
 		// this method is called when the service properties are updated
-		synchronized (lockHacService) {
-			String appliancePid = appliance.getPid();
+		locks.lockShared();
+		try {
+			synchronized (locks.get(appliance.getPid())) {
+				String appliancePid = appliance.getPid();
 
-			if (appliancePid == null) {
-				log.warn("the managed appliance doesn't have an associated pid, discarding it!");
-				return;
-			}
+				if (appliancePid == null) {
+					log.warn("the managed appliance doesn't have an associated pid, discarding it!");
+					return;
+				}
 
-			Object a = pid2appliance.get(appliancePid);
-			if (a == null) {
-				log.fatal("updated unknown appliance " + appliancePid);
-				return;
-			}
+				Object a = registry.getSnapshot().get(appliancePid);
+				if (a == null) {
+					log.fatal("updated unknown appliance " + appliancePid);
+					return;
+				}
 
-			String appStatus = (String) props.get("ah.status");
-			if (appStatus != null && (appStatus.equals("installing"))) {
-				// !!!Multieps: a concurrent update can occur (device access and
-				// configuration admin can concurrenlty attach and update the
-				// application)
-				log.info("appliance with installing state detected. Why? The appliance pid is " + appliancePid);
-				return;
-			} else {
-				// !!!Multieps: a concurrent update can occur (device access and
-				// configuration admin can concurrenlty attach and update the
-				// application)
-				if (installingAppliances.contains(appliance))
-					installingAppliances.remove(appliance);
-				if (!appliances.contains(appliance)) {
-					appliances.add(appliance);
+				String appStatus = (String) props.get("ah.status");
+				if (appStatus != null && (appStatus.equals("installing"))) {
+					// !!!Multieps: a concurrent update can occur (device access and
+					// configuration admin can concurrenlty attach and update the
+					// application)
+					log.info("appliance with installing state detected. Why? The appliance pid is " + appliancePid);
+					return;
+				} else {
+					// !!!Multieps: a concurrent update can occur (device access and
+					// configuration admin can concurrenlty attach and update the
+					// application)
+					registry.install(appliance);
+					// the name, location or category could be changed
+					registry.reindex(appliance);
+					releaseReservation(appliancePid);
 				}
 			}
+		} finally {
+			locks.unlockShared();
 		}
 	}
 
@@ -485,9 +540,10 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	 * @param type
 	 * @param pid
 	 * @param props
+	 * @return false if the configuration could not be created
 	 */
 
-	protected void createConfiguration(String factoryPid, String pid, Dictionary props) {
+	protected boolean createConfiguration(String factoryPid, String pid, Dictionary props) {
 
 		if (pid == null)
 			pid = generatePid();
@@ -507,8 +563,10 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 				log.debug("created configuration for appliance.pid " + pid);
 				c.update(props);
 			}
+			return true;
 		} catch (Exception e) {
 			log.error(e);
+			return false;
 		}
 	}
 
@@ -543,11 +601,12 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 			}
 
 			if ((props.get(IAppliance.APPLIANCE_NAME_PROPERTY) == null) && (friendlyName != null)) {
-				String name = createUniqueName(friendlyName);
+				String name = reserveUniqueName(friendlyName, pid);
 				props.put(IAppliance.APPLIANCE_NAME_PROPERTY, name);
 			}
 
-			createConfiguration(factoryPid, pid, props);
+			if (!createConfiguration(factoryPid, pid, props))
+				releaseReservation(pid);
 			return pid;
 		}
 	}
@@ -606,45 +665,81 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	}
 
 	private String generatePid() {
-		return Integer.toString(newAppliancePid++);
+		synchronized (lockNames) {
+			return Integer.toString(newAppliancePid++);
+		}
 	}
 
-
-	
+	/**
+	 * Returns a pid not used by any appliance and reserves it until the
+	 * appliance is indexed (see releaseReservation())
+	 */
 	private String generateUniquePid(String prefix) {
-		int count = 1;
-		String generatedPid;
-
-		while (true) {
-			// Multieps: modified pid format with prefix used in hap service to
-			// identify an appliance pid
-			generatedPid = "ah.app." + replaceIvalidPidChars(prefix) + Integer.toString(count);
-			Vector app = browseAppliances(IAppliance.APPLIANCE_PID_PROPERTY_KEY, generatedPid);
-
-			if (app.size() == 0) {
-				break;
+		synchronized (lockNames) {
+			int count = 1;
+			String generatedPid;
+
+			while (true) {
+				// Multieps: modified pid format with prefix used in hap service to
+				// identify an appliance pid
+				generatedPid = "ah.app." + replaceIvalidPidChars(prefix) + Integer.toString(count);
+				Vector app = browseAppliances(IAppliance.APPLIANCE_PID_PROPERTY_KEY, generatedPid);
+
+				if ((app.size() == 0) && !reservations.containsKey(generatedPid)) {
+					break;
+				}
+				count++;
 			}
-			count++;
+			reservations.put(generatedPid, null);
+			return generatedPid;
 		}
-		return generatedPid;
 	}
 
+	/**
+	 * Returns a name not used by any appliance nor reserved. The name is not
+	 * reserved, use reserveUniqueName() to assign it to an appliance.
+	 */
 	public String createUniqueName(String rootName) {
-		int count = 1;
-		String proposedName;
-		Vector applNames;
+		synchronized (lockNames) {
+			int count = 1;
+			String proposedName;
+			Vector applNames;
+
+			while (true) {
+				proposedName = rootName + " " + Integer.toString(count);
+				applNames = browseAppliances(IAppliance.APPLIANCE_NAME_PROPERTY_KEY, proposedName);
+
+				if ((applNames.size() == 0) && !reservations.containsValue(proposedName)) {
+					// found a not used name
+					break;
+				}
+				count++;
+			}
+			return proposedName;
+		}
+	}
 
-		while (true) {
-			proposedName = rootName + " " + Integer.toString(count);
-			applNames = browseAppliances(IAppliance.APPLIANCE_NAME_PROPERTY_KEY, proposedName);
+	/**
+	 * Returns a unique name and reserves it for the appliance until its
+	 * configuration update reaches the registry indexes
+	 */
+	private String reserveUniqueName(String rootName, String appliancePid) {
+		synchronized (lockNames) {
+			String name = createUniqueName(rootName);
+			reservations.put(appliancePid, name);
+			return name;
+		}
+	}
 
-			if (applNames.size() == 0) {
-				// found a not used name
-				break;
-			}
-			count++;
+	/**
+	 * Releases the pid and name reserved for the appliance, if any. Called
+	 * once the appliance is in the registry indexes with its configuration,
+	 * or when it goes away.
+	 */
+	private void releaseReservation(String appliancePid) {
+		synchronized (lockNames) {
+			reservations.remove(appliancePid);
 		}
-		return proposedName;
 	}
 
 	/*
@@ -652,18 +747,17 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	 */
 
 	protected boolean add(IManagedAppliance managedAppliance) {
-		if (appliances.indexOf(managedAppliance) != -1) {
+		ApplianceRegistry.Snapshot snapshot = registry.getSnapshot();
+		if (snapshot.isInstalled(managedAppliance)) {
 			return true;
 		}
 
-		Iterator it = appliances.iterator();
-
 		String name = managedAppliance.getDescriptor().getType();
+		IManagedAppliance[] installed = snapshot.getInstalled();
 		boolean found = false;
 
-		while (it.hasNext()) {
-			IManagedAppliance d = (IManagedAppliance) it.next();
-			if (name == d.getDescriptor().getType()) {
+		for (int i = 0; i < installed.length; i++) {
+			if (name == installed[i].getDescriptor().getType()) {
 				found = true;
 				break;
 			}
@@ -674,101 +768,71 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 			return false;
 		}
 
-		appliances.add(managedAppliance);
-		// objects.put(new Integer(managedAppliance.hashCode()),
-		// managedAppliance);
-
-		pid2appliance.put(managedAppliance.getPid(), managedAppliance);
+		registry.register(managedAppliance);
+		registry.install(managedAppliance);
 		return true;
 	}
 
 	public Vector getAppliances() {
-		synchronized (lockHacService) {
-
-			Vector list = new Vector();
-			for (Iterator iterator = appliances.iterator(); iterator.hasNext();) {
-				IAppliance object = (IAppliance) iterator.next();
-				list.add(object.getPid());
-			}
-			return list;
-		}
+		IManagedAppliance[] installed = registry.getSnapshot().getInstalled();
+		Vector list = new Vector(installed.length);
+		for (int i = 0; i < installed.length; i++)
+			list.add(installed[i].getPid());
+		return list;
 	}
 
 	public Vector browseAppliances(int key_type, String key_value) {
-		synchronized (lockHacService) {
-			Vector result = new Vector();
-
-			log.debug("called browseDevices");
-			IManagedAppliance d = null;
-
-			if (key_type == IAppliance.APPLIANCE_TYPE_PROPERTY_KEY) {
-				if (key_value.compareTo("") == 0) {
-					// return the list of devices as it is!
-					return appliances;
-				}
-
-				Iterator it = appliances.iterator();
-				while (it.hasNext()) {
-					d = (IManagedAppliance) it.next();
-					if ((d.getDescriptor().getType() != null) && (d.getDescriptor().getType().compareTo(key_value) == 0)) {
-						result.add(d);
-					}
-				}
-			} else if (key_type == IAppliance.APPLIANCE_LOCATION_PID_PROPERTY_KEY) {
-				// returns the list of devices at the specific location
-				if (key_value.compareTo("") == 0) {
-					return appliances;
-				}
-
-				Iterator it = appliances.iterator();
-				while (it.hasNext()) {
-					d = (IManagedAppliance) it.next();
-					if (d != null) {
-						String locationPid = (String) d.getConfiguration().get(IAppliance.APPLIANCE_LOCATION_PID_PROPERTY);
-						if (locationPid != null && locationPid.equals(key_value))
-							result.add(d);
-					}
-				}
-			} else if (key_type == IAppliance.APPLIANCE_CATEGORY_PID_PROPERTY_KEY) {
+		log.debug("called browseDevices");
 
-				// returns the list of devices at the specific location
-				if (key_value.compareTo("") == 0) {
-					return appliances;
-				}
+		ApplianceRegistry.Snapshot snapshot = registry.getSnapshot();
+		int index;
+		switch (key_type) {
+		case IAppliance.APPLIANCE_TYPE_PROPERTY_KEY:
+			index = ApplianceRegistry.TYPE;
+			break;
+		case IAppliance.APPLIANCE_LOCATION_PID_PROPERTY_KEY:
+			index = ApplianceRegistry.LOCATION;
+			break;
+		case IAppliance.APPLIANCE_CATEGORY_PID_PROPERTY_KEY:
+			index = ApplianceRegistry.CATEGORY;
+			break;
+		case IAppliance.APPLIANCE_NAME_PROPERTY_KEY:
+			index = ApplianceRegistry.NAME;
+			break;
+		case IAppliance.APPLIANCE_PID_PROPERTY_KEY:
+			Vector result = new Vector(1);
+			IAppliance appliance = snapshot.get(key_value);
+			if (appliance != null)
+				result.add(appliance);
+			return result;
+		default:
+			return new Vector();
+		}
 
-				Iterator it = appliances.iterator();
-				while (it.hasNext()) {
-					d = (IManagedAppliance) it.next();
-					if (d != null) {
-						String categoryPid = (String) d.getConfiguration().get(IAppliance.APPLIANCE_CATEGORY_PID_PROPERTY);
-						if (categoryPid != null && categoryPid.equals(key_value))
-							result.add(d);
-					}
-				}
-			} else if (key_type == IAppliance.APPLIANCE_NAME_PROPERTY_KEY) {
+		if (key_value.compareTo("") == 0) {
+			// return the list of devices as it is!
+			return toVector(snapshot.getInstalled());
+		}
+		return toVector(snapshot.find(index, key_value));
+	}
 
-				// returns the list of devices at the specific location
-				if (key_value.compareTo("") == 0) {
-					return appliances;
-				}
+	/**
+	 * Returns the installed appliances with the passed key in one of the
+	 * indexes of the appliance registry
+	 * 
+	 * @param index
+	 *            One of the index ids defined in ApplianceRegistry (e.g.
+	 *            ApplianceRegistry.DEVICE_TYPE)
+	 */
+	protected Vector findAppliances(int index, String key) {
+		return toVector(registry.getSnapshot().find(index, key));
+	}
 
-				Iterator it = appliances.iterator();
-				while (it.hasNext()) {
-					d = (IManagedAppliance) it.next();
-					if (d != null) {
-						Dictionary c = d.getConfiguration();
-						String name = (String) c.get(IAppliance.APPLIANCE_NAME_PROPERTY);
-						if (name != null && name.equals(key_value))
-							result.add(d);
-					}
-				}
-			} else if (key_type == IAppliance.APPLIANCE_PID_PROPERTY_KEY) {
-				IAppliance appliance = (IAppliance) this.pid2appliance.get(key_value);
-				if (appliance != null)
-					result.add(appliance);
-			}
-			return result;
-		}
+	private static Vector toVector(IManagedAppliance[] appliances) {
+		Vector result = new Vector(appliances.length);
+		for (int i = 0; i < appliances.length; i++)
+			result.add(appliances[i]);
+		return result;
 	}
 
 	public ILocation[] getLocations() {
@@ -803,33 +867,41 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	public boolean removeAppliance(String appliancePid) {
 		if (appliancePid.equals(IAppliancesProxy.PROXY_APPLIANCE_PID))
 			throw new IllegalArgumentException("Appliances proxy appliance cannot be deleted!");
-		synchronized (lockHacService) {
-			IManagedAppliance appliance = (IManagedAppliance) this.pid2appliance.get(appliancePid);
-			this.removeDevice(appliance);
+		locks.lockShared();
+		try {
+			synchronized (locks.get(appliancePid)) {
+				IManagedAppliance appliance = registry.getSnapshot().get(appliancePid);
+				this.removeDevice(appliance);
 
-			if (appliance != null) {
-				try {
-					Configuration configuration = this.getApplianceCAConfiguration(appliancePid);
-					if (configuration != null) {
-						configuration.delete();
+				if (appliance != null) {
+					try {
+						Configuration configuration = this.getApplianceCAConfiguration(appliancePid);
+						if (configuration != null) {
+							configuration.delete();
+						}
+						return true;
+					} catch (Exception e) {
+						e.printStackTrace();
 					}
-					return true;
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
 
+				}
+				return false;
 			}
-			return false;
+		} finally {
+			locks.unlockShared();
 		}
 	}
 
 	public boolean removeDevice(IManagedAppliance device) {
-		synchronized (lockHacService) {
-			if (appliances.contains(device)) {
-				appliances.remove(device);
-				return true;
+		locks.lockShared();
+		try {
+			synchronized (locks.get(device != null ? device.getPid() : null)) {
+				if (device == null)
+					return false;
+				return registry.uninstall(device);
 			}
-			return false;
+		} finally {
+			locks.unlockShared();
 		}
 	}
 
@@ -851,7 +923,8 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	public void timer(int event) {
 		switch (event) {
 		case saveTimerId:
-			saveConfiguration();
+			// the timer thread doesn't wait for the file to be written
+			takeConfigurationSnapshot(configurationFilename, false);
 			break;
 		}
 
@@ -871,22 +944,27 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 
 	public void clean() {
 		synchronized (lockHacService) {
+			locks.lockExclusive();
 			try {
-				Configuration[] configurations = configAdmin.listConfigurations("(appliance.pid=*)");
-				if (configurations != null)
-					for (int i = 0; i < configurations.length; i++) {
-						configurations[i].delete();
-					}
-			} catch (IOException e) {
-				log.error("exception deleting configurations", e);
-			} catch (Exception e) {
-				log.error("exception deleting configurations", e);
-			}
+				try {
+					Configuration[] configurations = configAdmin.listConfigurations("(appliance.pid=*)");
+					if (configurations != null)
+						for (int i = 0; i < configurations.length; i++) {
+							configurations[i].delete();
+						}
+				} catch (IOException e) {
+					log.error("exception deleting configurations", e);
+				} catch (Exception e) {
+					log.error("exception deleting configurations", e);
+				}
 
-			categories.clear();
-			locationsDb.clear();
+				categories.clear();
+				locationsDb.clear();
 
-			this.saveConfiguration();
+				this.saveConfiguration();
+			} finally {
+				locks.unlockExclusive();
+			}
 		}
 	}
 
@@ -922,7 +1000,23 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	 */
 
 	protected boolean takeConfigurationSnapshot(String configName) {
+		return takeConfigurationSnapshot(configName, true);
+	}
+
+	/**
+	 * Takes a snapshot of the current configuration and queues it to the
+	 * configuration writer. If wait is true, waits until it has been written.
+	 */
+	private boolean takeConfigurationSnapshot(String configName, boolean wait) {
+		String xmlConfig;
+		synchronized (lockHacService) {
+			xmlConfig = createConfigurationXml();
+		}
+		ConfigurationWriter.Request request = configurationWriter.submit(configName, xmlConfig);
+		return wait ? request.await() : true;
+	}
 
+	private String createConfigurationXml() {
 		Document doc = createDoc();
 
 		Element configurationEl = doc.createElement("configuration");
@@ -946,7 +1040,14 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 		String xmlConfig = doc2xmlString(doc);
 		if (log.isDebugEnabled())
 			log.debug(xmlConfig);
+		return xmlConfig;
+	}
 
+	/**
+	 * Writes the configuration on the filesystem. Called by the configuration
+	 * writer.
+	 */
+	private boolean writeConfiguration(String configName, String xmlConfig) {
 		// save the configuration on the filesystem
 		File configFile = bc.getDataFile(SCENARIOS_PATH + configName + ".xml");
 		log.debug("saving configuration into " + configFile.getPath());
@@ -1057,85 +1158,90 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 
 	protected boolean loadConfiguration(String configName, boolean storageArea) {
 		synchronized (lockHacService) {
-			File configFile;
-			InputStream stream = null;
+			locks.lockExclusive();
+			try {
+				File configFile;
+				InputStream stream = null;
 
-			if (configName == null) {
-				configName = "defaultconfig";
-				storageArea = true;
-			}
+				if (configName == null) {
+					configName = "defaultconfig";
+					storageArea = true;
+				}
 
-			log.debug("try to load '" + configName + "'");
+				log.debug("try to load '" + configName + "'");
 
-			try {
-				if (storageArea) {
-					String configFilename = SCENARIOS_PATH + configName + ".xml";
-					if (getProperty("it.telecomitalia.ah.updatepatch", enableUpdatePatch)) {
-						patched  = PatchUpdateBug.patchUpdateBugOnHacLib(bc, configFilename);
-					}
-					configFile = bc.getDataFile(configFilename);
-					log.debug("storage area is " + configFile);
-					stream = new FileInputStream(configFile);
-				} else {
-					File f = new File(configName);
-					if (f.isAbsolute()) {
-						stream = new FileInputStream(configName);
-					} else {
+				try {
+					if (storageArea) {
 						String configFilename = SCENARIOS_PATH + configName + ".xml";
-						URL url = bc.getBundle().getEntry(configFilename);
-						if (url == null) {
-							log.warn("unable to open file " + configFilename);
-							return false;
+						if (getProperty("it.telecomitalia.ah.updatepatch", enableUpdatePatch)) {
+							patched  = PatchUpdateBug.patchUpdateBugOnHacLib(bc, configFilename);
+						}
+						configFile = bc.getDataFile(configFilename);
+						log.debug("storage area is " + configFile);
+						stream = new FileInputStream(configFile);
+					} else {
+						File f = new File(configName);
+						if (f.isAbsolute()) {
+							stream = new FileInputStream(configName);
+						} else {
+							String configFilename = SCENARIOS_PATH + configName + ".xml";
+							URL url = bc.getBundle().getEntry(configFilename);
+							if (url == null) {
+								log.warn("unable to open file " + configFilename);
+								return false;
+							}
+							stream = url.openStream();
 						}
-						stream = url.openStream();
 					}
+				} catch (FileNotFoundException e) {
+					log.warn("no saved configuration '" + configName + "'");
+					return false;
+				} catch (IOException e) {
+					log.error("unable to open file " + configName);
+					return false;
 				}
-			} catch (FileNotFoundException e) {
-				log.warn("no saved configuration '" + configName + "'");
-				return false;
-			} catch (IOException e) {
-				log.error("unable to open file " + configName);
-				return false;
-			}
 
-			categories.clear();
+				categories.clear();
 
-			try {
-				factory.setNamespaceAware(true);
-				factory.setValidating(false);
+				try {
+					factory.setNamespaceAware(true);
+					factory.setValidating(false);
 
-				DocumentBuilder parser = factory.newDocumentBuilder();
-				Document doc = parser.parse(new InputSource(stream));
+					DocumentBuilder parser = factory.newDocumentBuilder();
+					Document doc = parser.parse(new InputSource(stream));
 
-				// parses the configuration file and updates the current
-				// configuration present in memory
-				traverseConfigurationTree(doc);
-			} catch (IOException e) {
-				e.printStackTrace();
-				return false;
-			} catch (SAXException e) {
-				e.printStackTrace();
-				return false;
-			} catch (Exception e) {
-				e.printStackTrace();
-				return false;
-			}
-
-			if (stream != null) {
-				try {
-					stream.close();
+					// parses the configuration file and updates the current
+					// configuration present in memory
+					traverseConfigurationTree(doc);
 				} catch (IOException e) {
-					log.fatal(e);
+					e.printStackTrace();
+					return false;
+				} catch (SAXException e) {
+					e.printStackTrace();
+					return false;
+				} catch (Exception e) {
+					e.printStackTrace();
 					return false;
 				}
-			}
+
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException e) {
+						log.fatal(e);
+						return false;
+					}
+				}
 			
-			if (patched && (getProperty("it.telecomitalia.ah.updatepatch", enableUpdatePatch))) {
-				PatchUpdateBug.moveFactoryConfigurations(configAdmin, LocationsService.FACTORY_PID);
-			}
+				if (patched && (getProperty("it.telecomitalia.ah.updatepatch", enableUpdatePatch))) {
+					PatchUpdateBug.moveFactoryConfigurations(configAdmin, LocationsService.FACTORY_PID);
+				}
 
-			log.info("loaded successfully the previously saved configuration");
-			return true;
+				log.info("loaded successfully the previously saved configuration");
+				return true;
+			} finally {
+				locks.unlockExclusive();
+			}
 		}
 	}
 
@@ -1449,57 +1555,55 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	// }
 
 	public boolean postConfiguration(String data) {
-		synchronized (lockHacService) {
-			// url of the energy at home application
-			String applUrl = bc.getProperty("it.telecomitalia.energyathome.url");
-			if (applUrl == null) {
-				applUrl = "http://163.162.180.229:8282/energyathome";
-			}
+		// url of the energy at home application
+		String applUrl = bc.getProperty("it.telecomitalia.energyathome.url");
+		if (applUrl == null) {
+			applUrl = "http://163.162.180.229:8282/energyathome";
+		}
 
-			String wsncId = bc.getProperty("org.telecomitalia.gal.wsnc.id");
-			if (wsncId == null) {
-				return false;
-			}
+		String wsncId = bc.getProperty("org.telecomitalia.gal.wsnc.id");
+		if (wsncId == null) {
+			return false;
+		}
 
-			HttpClient client = new HttpClient();
+		HttpClient client = new HttpClient();
 
-			PostMethod method = new PostMethod(applUrl + "/store?n=" + wsncId);
+		PostMethod method = new PostMethod(applUrl + "/store?n=" + wsncId);
 
-			InputStream inputStream = null;
-			method.setRequestEntity(new StringRequestEntity(data));
+		InputStream inputStream = null;
+		method.setRequestEntity(new StringRequestEntity(data));
 
-			// Execute the method.
-			int statusCode = 0;
+		// Execute the method.
+		int statusCode = 0;
 
-			try {
-				statusCode = client.executeMethod(method);
-			} catch (HttpException e) {
-				log.error(e);
-				return false;
-			} catch (IOException e) {
-				log.error(e);
-				return false;
-			}
+		try {
+			statusCode = client.executeMethod(method);
+		} catch (HttpException e) {
+			log.error(e);
+			return false;
+		} catch (IOException e) {
+			log.error(e);
+			return false;
+		}
 
-			if (statusCode != HttpStatus.SC_OK) {
-				log.error("method failed: " + method.getStatusLine());
-				return false;
-			}
+		if (statusCode != HttpStatus.SC_OK) {
+			log.error("method failed: " + method.getStatusLine());
+			return false;
+		}
 
-			String responseBody = null;
+		String responseBody = null;
 
-			try {
-				responseBody = method.getResponseBodyAsString();
-			} catch (IOException e1) {
-				log.error(e1);
-				return false;
-			}
+		try {
+			responseBody = method.getResponseBodyAsString();
+		} catch (IOException e1) {
+			log.error(e1);
+			return false;
+		}
 
-			if (log.isDebugEnabled())
-				log.debug(new String(responseBody));
+		if (log.isDebugEnabled())
+			log.debug(new String(responseBody));
 
-			return true;
-		}
+		return true;
 	}
 
 	private static String removeExtension(String s) {
@@ -1558,46 +1662,51 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 
 	public synchronized boolean reset(int level) {
 		synchronized (lockHacService) {
+			locks.lockExclusive();
+			try {
 
-			if (level == 0) {
-				try {
-					this.clean();
+				if (level == 0) {
+					try {
+						this.clean();
 
-					File configFilesDirectory = bc.getDataFile(SCENARIOS_PATH);
-					log.debug("deleting directory " + configFilesDirectory.getPath());
-					boolean deleted = false;
-					if (configFilesDirectory.isDirectory()) {
-						deleted = deleteDirectory(configFilesDirectory);
-					}
-				} catch (Exception e) {
-					log.error("during reset exception contains '" + e.getMessage() + "'");
-					return false;
-				}
-			} else if (level == 1) {
-				try {
-					int time = 4;
-					log.info("shutdown in " + (time * 60) + " seconds");
-					String osName = System.getProperty("os.name");
-					String shutdownCommand = null;
-					if (osName.equals("Linux")) {
-						shutdownCommand = "/sbin/shutdown now";
+						File configFilesDirectory = bc.getDataFile(SCENARIOS_PATH);
+						log.debug("deleting directory " + configFilesDirectory.getPath());
+						boolean deleted = false;
+						if (configFilesDirectory.isDirectory()) {
+							deleted = deleteDirectory(configFilesDirectory);
+						}
+					} catch (Exception e) {
+						log.error("during reset exception contains '" + e.getMessage() + "'");
+						return false;
 					}
+				} else if (level == 1) {
+					try {
+						int time = 4;
+						log.info("shutdown in " + (time * 60) + " seconds");
+						String osName = System.getProperty("os.name");
+						String shutdownCommand = null;
+						if (osName.equals("Linux")) {
+							shutdownCommand = "/sbin/shutdown now";
+						}
 
-					if (shutdownCommand != null) {
-						Runtime.getRuntime().exec(shutdownCommand);
-						return true;
-					} else {
-						return false;
+						if (shutdownCommand != null) {
+							Runtime.getRuntime().exec(shutdownCommand);
+							return true;
+						} else {
+							return false;
+						}
+					} catch (IOException e) {
+						log.error("exception during shutdown " + e.getMessage());
 					}
-				} catch (IOException e) {
-					log.error("exception during shutdown " + e.getMessage());
+				} else if (level == 2) {
+					this.clean();
 				}
-			} else if (level == 2) {
-				this.clean();
-			}
 
-			// reset successful
-			return true;
+				// reset successful
+				return true;
+			} finally {
+				locks.unlockExclusive();
+			}
 		}
 	}
 
@@ -1668,20 +1777,16 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	}
 
 	protected IManagedAppliance getAppliance(String appliancePid) {
-		synchronized (lockHacService) {
-			IManagedAppliance appliance = (IManagedAppliance) this.pid2appliance.get(appliancePid);
-			return appliance;
-		}
+		return registry.getSnapshot().get(appliancePid);
 	}
 
 	public String[] getInquiredAppliances() {
-		synchronized (lockHacService) {
-			String[] appliancePids = new String[this.installingAppliances.size()];
-			for (int i = 0; i < this.installingAppliances.size(); i++) {
-				appliancePids[i] = ((IManagedAppliance) this.installingAppliances.get(i)).getPid();
-			}
-			return appliancePids;
+		IManagedAppliance[] installing = registry.getSnapshot().getInstalling();
+		String[] appliancePids = new String[installing.length];
+		for (int i = 0; i < installing.length; i++) {
+			appliancePids[i] = installing[i].getPid();
 		}
+		return appliancePids;
 	}
 
 	public void enableAppliance(String appliancePid) throws HacException {
@@ -1689,141 +1794,163 @@ public class HacService implements TimerListener, FrameworkListener, IHacService
 	}
 
 	public void installAppliance(String appliancePid, Dictionary props) throws HacException {
-		synchronized (lockHacService) {
-			IManagedAppliance appliance = (IManagedAppliance) this.pid2appliance.get(appliancePid);
-			if (appliance == null) {
-				throw new HacException("an appliance can be installed only if has been already created");
-			}
+		locks.lockShared();
+		try {
+			synchronized (locks.get(appliancePid)) {
+				ApplianceRegistry.Snapshot snapshot = registry.getSnapshot();
+				IManagedAppliance appliance = snapshot.get(appliancePid);
+				if (appliance == null) {
+					throw new HacException("an appliance can be installed only if has been already created");
+				}
 
-			if (!this.installingAppliances.contains(appliance)) {
-				throw new HacException("an appliance can be installed only if has been already created");
-			}
+				if (!snapshot.isInstalling(appliance)) {
+					throw new HacException("an appliance can be installed only if has been already created");
+				}
 
-			String factoryPid = (String) props.get(IAppliance.APPLIANCE_TYPE_PROPERTY);
-			IApplianceFactory applianceFactory = this.getApplianceFactory(factoryPid);
+				String factoryPid = (String) props.get(IAppliance.APPLIANCE_TYPE_PROPERTY);
+				IApplianceFactory applianceFactory = this.getApplianceFactory(factoryPid);
 
-			if (applianceFactory == null) {
-				throw new HacException("unable to find a factory");
-			}
-			try {
-				Configuration c = this.getApplianceCAConfiguration(appliancePid);
-				if (c == null) {
-					c = this.configAdmin.createFactoryConfiguration(factoryPid, null);
-
-					// FIXME: la seguente riga deve essere scommentata?
-					// overwrite
-					// any property service.pid
-					// props.remove(Constants.SERVICE_PID);
-					props.put("appliance.pid", appliancePid);
-					log.debug("created configuration for appliance.pid " + appliancePid);
+				if (applianceFactory == null) {
+					throw new HacException("unable to find a factory");
 				}
+				try {
+					Configuration c = this.getApplianceCAConfiguration(appliancePid);
+					if (c == null) {
+						c = this.configAdmin.createFactoryConfiguration(factoryPid, null);
+
+						// FIXME: la seguente riga deve essere scommentata?
+						// overwrite
+						// any property service.pid
+						// props.remove(Constants.SERVICE_PID);
+						props.put("appliance.pid", appliancePid);
+						log.debug("created configuration for appliance.pid " + appliancePid);
+					}
 
-				// remove the ah.status properties to force appliance
-				// installation
-				props.remove("ah.status");
-				c.update(props);
+					// remove the ah.status properties to force appliance
+					// installation
+					props.remove("ah.status");
+					c.update(props);
 
-				this.installingAppliances.remove(appliance);
-			} catch (Exception e) {
-				log.error(e);
-				throw new HacException("unable to install appliance");
+					registry.clearInstalling(appliance);
+				} catch (Exception e) {
+					log.error(e);
+					throw new HacException("unable to install appliance");
+				}
 			}
+		} finally {
+			locks.unlockShared();
 		}
 	}
 	
 	public void installAppliance(String appliancePid) throws HacException {
-		synchronized (lockHacService) {
-			IManagedAppliance appliance = (IManagedAppliance) this.pid2appliance.get(appliancePid);
-			if (appliance == null) {
-				throw new HacException("an appliance can be installed only if has been already created");
-			}
-
-			if (!this.installingAppliances.contains(appliance)) {
-				throw new HacException("an appliance can be installed only if has been already created");
-			}
+		locks.lockShared();
+		try {
+			synchronized (locks.get(appliancePid)) {
+				ApplianceRegistry.Snapshot snapshot = registry.getSnapshot();
+				IManagedAppliance appliance = snapshot.get(appliancePid);
+				if (appliance == null) {
+					throw new HacException("an appliance can be installed only if has been already created");
+				}
 
-			try {
-				Configuration c = this.getApplianceCAConfiguration(appliancePid);
-				if (c == null) {
+				if (!snapshot.isInstalling(appliance)) {
 					throw new HacException("an appliance can be installed only if has been already created");
 				}
-				Dictionary props = c.getProperties();
+
+				try {
+					Configuration c = this.getApplianceCAConfiguration(appliancePid);
+					if (c == null) {
+						throw new HacException("an appliance can be installed only if has been already created");
+					}
+					Dictionary props = c.getProperties();
 				
-				// remove the ah.status properties to force appliance
-				// installation
-				props.remove("ah.status");
-				c.update(props);
+					// remove the ah.status properties to force appliance
+					// installation
+					props.remove("ah.status");
+					c.update(props);
 
-				this.installingAppliances.remove(appliance);
-			} catch (Exception e) {
-				log.error(e);
-				throw new HacException("unable to install appliance");
+					registry.clearInstalling(appliance);
+				} catch (Exception e) {
+					log.error(e);
+					throw new HacException("unable to install appliance");
+				}
 			}
+		} finally {
+			locks.unlockShared();
 		}
 	}
 
 	public void updateAppliance(String appliancePid, Dictionary props) throws HacException {
-		synchronized (lockHacService) {
-			IManagedAppliance managedAppliance = (IManagedAppliance) pid2appliance.get(appliancePid);
-			if (managedAppliance == null)
-				throw new HacException("unable to update appliance because it doesn't exist" + appliancePid);
-
-			Configuration c;
-			try {
-				c = this.getApplianceCAConfiguration(appliancePid);
-				if (c == null) {
+		locks.lockShared();
+		try {
+			synchronized (locks.get(appliancePid)) {
+				IManagedAppliance managedAppliance = registry.getSnapshot().get(appliancePid);
+				if (managedAppliance == null)
 					throw new HacException("unable to update appliance because it doesn't exist" + appliancePid);
-				}
-				// don't override the appliance type property. Fatal error if
-				// this
-				// property is not set for the appliance
-				this.doNotOverrideProperty(c, props, IAppliance.APPLIANCE_TYPE_PROPERTY);
-				// Multieps update (restore eps properties)
-				props.put(IAppliance.APPLIANCE_EPS_IDS_PROPERTY, managedAppliance.getEndPointIds());
-				props.put(IAppliance.APPLIANCE_EPS_TYPES_PROPERTY, managedAppliance.getEndPointTypes());
-				Object customConfig = ((ApplianceManager) managedAppliance.getApplianceManager()).getCustomConfiguration();
-				if (customConfig != null)
-					props.put(IAppliance.APPLIANCE_CUSTOM_CONFIG_PROPERTY, customConfig);
 
-				c.update(props);
-			} catch (Exception e) {
-				log.error(e);
-				throw new HacException(e.getMessage());
+				Configuration c;
+				try {
+					c = this.getApplianceCAConfiguration(appliancePid);
+					if (c == null) {
+						throw new HacException("unable to update appliance because it doesn't exist" + appliancePid);
+					}
+					// don't override the appliance type property. Fatal error if
+					// this
+					// property is not set for the appliance
+					this.doNotOverrideProperty(c, props, IAppliance.APPLIANCE_TYPE_PROPERTY);
+					// Multieps update (restore eps properties)
+					props.put(IAppliance.APPLIANCE_EPS_IDS_PROPERTY, managedAppliance.getEndPointIds());
+					props.put(IAppliance.APPLIANCE_EPS_TYPES_PROPERTY, managedAppliance.getEndPointTypes());
+					Object customConfig = ((ApplianceManager) managedAppliance.getApplianceManager()).getCustomConfiguration();
+					if (customConfig != null)
+						props.put(IAppliance.APPLIANCE_CUSTOM_CONFIG_PROPERTY, customConfig);
+
+					c.update(props);
+				} catch (Exception e) {
+					log.error(e);
+					throw new HacException(e.getMessage());
+				}
 			}
+		} finally {
+			locks.unlockShared();
 		}
 	}
 
 	public void createAppliance(String appliancePid, Dictionary props) throws HacException {
 		if (appliancePid.equals(IAppliancesProxy.PROXY_APPLIANCE_PID))
 			throw new IllegalArgumentException("Appliances proxy appliance cannot be created!");
-		synchronized (lockHacService) {
-			IManagedAppliance managedAppliance = (IManagedAppliance) pid2appliance.get(appliancePid);
-			if (managedAppliance != null)
-				throw new HacException("appliance " + appliancePid + " already exists");
-
-			Configuration c;
-			try {
-				c = this.getApplianceCAConfiguration(appliancePid);
-				if (c != null) {
+		locks.lockShared();
+		try {
+			synchronized (locks.get(appliancePid)) {
+				IManagedAppliance managedAppliance = registry.getSnapshot().get(appliancePid);
+				if (managedAppliance != null)
 					throw new HacException("appliance " + appliancePid + " already exists");
-				}
 
-				String factoryPid = (String) props.get(IAppliance.APPLIANCE_TYPE_PROPERTY);
-				if (factoryPid != null) {
-					c = this.configAdmin.createFactoryConfiguration(factoryPid, null);
-					props.put("appliance.pid", appliancePid);
-					log.debug("created factory configuration for appliance.pid " + appliancePid);
-				} else {
-					c = this.configAdmin.getConfiguration(appliancePid);
-					props.put("appliance.pid", appliancePid);
-					log.debug("created factory configuration for appliance.pid " + appliancePid);
-				}
+				Configuration c;
+				try {
+					c = this.getApplianceCAConfiguration(appliancePid);
+					if (c != null) {
+						throw new HacException("appliance " + appliancePid + " already exists");
+					}
 
-				c.update(props);
-			} catch (Exception e) {
-				log.error(e);
-				throw new HacException(e.getMessage());
+					String factoryPid = (String) props.get(IAppliance.APPLIANCE_TYPE_PROPERTY);
+					if (factoryPid != null) {
+						c = this.configAdmin.createFactoryConfiguration(factoryPid, null);
+						props.put("appliance.pid", appliancePid);
+						log.debug("created factory configuration for appliance.pid " + appliancePid);
+					} else {
+						c = this.configAdmin.getConfiguration(appliancePid);
+						props.put("appliance.pid", appliancePid);
+						log.debug("created factory configuration for appliance.pid " + appliancePid);
+					}
+
+					c.update(props);
+				} catch (Exception e) {
+					log.error(e);
+					throw new HacException(e.getMessage());
+				}
 			}
+		} finally {
+			locks.unlockShared();
 		}
 	}
 
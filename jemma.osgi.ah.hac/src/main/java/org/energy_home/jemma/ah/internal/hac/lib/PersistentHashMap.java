@@ -0,0 +1,311 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.hac.lib;
+
+/**
+ * Immutable hash map (a hash array mapped trie). put() and remove() return a
+ * new map that shares everything with the original one but the path to the
+ * changed entry: at most 7 nodes, of at most 32 slots each, are copied,
+ * whatever the size of the map.
+ * <p>
+ * The trie consumes the hash of the keys from the most significant bits, so
+ * the values are returned by values() in ascending order of the hash of
+ * their keys, taken as unsigned: the values of non negative Integer keys are
+ * returned in ascending order of the keys. The keys must not be null.
+ */
+final class PersistentHashMap {
+
+	static final PersistentHashMap EMPTY = new PersistentHashMap(null, 0);
+
+	private static final class Entry {
+		final int hash;
+		final Object key;
+		final Object value;
+
+		Entry(int hash, Object key, Object value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Entries whose keys have the same hash, in insertion order
+	 */
+	private static final class Collision {
+		final int hash;
+		final Entry[] entries;
+
+		Collision(int hash, Entry[] entries) {
+			this.hash = hash;
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * The slots are Nodes, Entries or Collisions, in the order of the bits
+	 * set in the bitmap
+	 */
+	private static final class Node {
+		final int bitmap;
+		final Object[] slots;
+
+		Node(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+	}
+
+	private final Node root;
+	private final int size;
+
+	private PersistentHashMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	Object get(Object key) {
+		int hash = key.hashCode();
+		Object slot = root;
+		for (int level = 0; slot instanceof Node; level++) {
+			Node node = (Node) slot;
+			int bit = 1 << index(hash, level);
+			if ((node.bitmap & bit) == 0)
+				return null;
+			slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+		}
+		if (slot instanceof Entry) {
+			Entry e = (Entry) slot;
+			return ((e.hash == hash) && e.key.equals(key)) ? e.value : null;
+		}
+		if (slot instanceof Collision) {
+			Collision c = (Collision) slot;
+			if (c.hash == hash) {
+				int i = indexOf(c, key);
+				if (i >= 0)
+					return c.entries[i].value;
+			}
+		}
+		return null;
+	}
+
+	boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return A map with the passed entry added or replaced. The value must
+	 *         not be null
+	 */
+	PersistentHashMap put(Object key, Object value) {
+		Entry entry = new Entry(key.hashCode(), key, value);
+		boolean[] added = new boolean[1];
+		Node node = (root == null) ? new Node(0, new Object[0]) : root;
+		return new PersistentHashMap(put(node, 0, entry, added), added[0] ? size + 1 : size);
+	}
+
+	/**
+	 * @return This map if it doesn't contain the key
+	 */
+	PersistentHashMap remove(Object key) {
+		if (root == null)
+			return this;
+		int hash = key.hashCode();
+		Object result = remove(root, 0, hash, key);
+		if (result == root)
+			return this;
+		if (result == null)
+			return EMPTY;
+		if (!(result instanceof Node))
+			result = new Node(1 << index(hash, 0), new Object[] { result });
+		return new PersistentHashMap((Node) result, size - 1);
+	}
+
+	/**
+	 * Copies the values into the passed array, which must have size()
+	 * elements, in ascending order of the hash of their keys
+	 * 
+	 * @return The passed array
+	 */
+	Object[] values(Object[] values) {
+		if (root != null)
+			values(root, values, 0);
+		return values;
+	}
+
+	/**
+	 * Returns the index in the node at the passed level
+	 */
+	private static int index(int hash, int level) {
+		int shift = 27 - 5 * level;
+		if (shift >= 0)
+			return (hash >>> shift) & 31;
+		// the 2 bits left for the last level
+		return hash & ((1 << (shift + 5)) - 1);
+	}
+
+	private static int hash(Object slot) {
+		return (slot instanceof Entry) ? ((Entry) slot).hash : ((Collision) slot).hash;
+	}
+
+	private static int indexOf(Collision c, Object key) {
+		for (int i = 0; i < c.entries.length; i++) {
+			if (c.entries[i].key.equals(key))
+				return i;
+		}
+		return -1;
+	}
+
+	private static Node put(Node node, int level, Entry entry, boolean[] added) {
+		int bit = 1 << index(entry.hash, level);
+		int pos = Integer.bitCount(node.bitmap & (bit - 1));
+		if ((node.bitmap & bit) == 0) {
+			added[0] = true;
+			Object[] slots = new Object[node.slots.length + 1];
+			System.arraycopy(node.slots, 0, slots, 0, pos);
+			slots[pos] = entry;
+			System.arraycopy(node.slots, pos, slots, pos + 1, node.slots.length - pos);
+			return new Node(node.bitmap | bit, slots);
+		}
+
+		Object slot = node.slots[pos];
+		Object replaced;
+		if (slot instanceof Node)
+			replaced = put((Node) slot, level + 1, entry, added);
+		else if (hash(slot) == entry.hash)
+			replaced = putSameHash(slot, entry, added);
+		else {
+			added[0] = true;
+			replaced = pair(slot, entry, level + 1);
+		}
+		Object[] slots = (Object[]) node.slots.clone();
+		slots[pos] = replaced;
+		return new Node(node.bitmap, slots);
+	}
+
+	/**
+	 * Adds an entry to an Entry or a Collision with the same hash
+	 */
+	private static Object putSameHash(Object slot, Entry entry, boolean[] added) {
+		if (slot instanceof Entry) {
+			if (((Entry) slot).key.equals(entry.key))
+				return entry;
+			added[0] = true;
+			return new Collision(entry.hash, new Entry[] { (Entry) slot, entry });
+		}
+		Collision c = (Collision) slot;
+		int i = indexOf(c, entry.key);
+		Entry[] entries;
+		if (i >= 0) {
+			entries = (Entry[]) c.entries.clone();
+		} else {
+			added[0] = true;
+			i = c.entries.length;
+			entries = new Entry[i + 1];
+			System.arraycopy(c.entries, 0, entries, 0, i);
+		}
+		entries[i] = entry;
+		return new Collision(c.hash, entries);
+	}
+
+	/**
+	 * Returns the node at the passed level holding two slots with different
+	 * hashes
+	 */
+	private static Node pair(Object a, Entry b, int level) {
+		int ia = index(hash(a), level);
+		int ib = index(b.hash, level);
+		if (ia == ib)
+			return new Node(1 << ia, new Object[] { pair(a, b, level + 1) });
+		return new Node((1 << ia) | (1 << ib), (ia < ib) ? new Object[] { a, b } : new Object[] { b, a });
+	}
+
+	/**
+	 * @return The passed node if it doesn't contain the key, null if it
+	 *         becomes empty, or its only slot if that is not a Node (it
+	 *         replaces the node in its parent)
+	 */
+	private static Object remove(Node node, int level, int hash, Object key) {
+		int bit = 1 << index(hash, level);
+		if ((node.bitmap & bit) == 0)
+			return node;
+		int pos = Integer.bitCount(node.bitmap & (bit - 1));
+		Object slot = node.slots[pos];
+		Object replaced;
+		if (slot instanceof Node) {
+			replaced = remove((Node) slot, level + 1, hash, key);
+		} else if (hash(slot) != hash) {
+			replaced = slot;
+		} else if (slot instanceof Entry) {
+			replaced = ((Entry) slot).key.equals(key) ? null : slot;
+		} else {
+			Collision c = (Collision) slot;
+			int i = indexOf(c, key);
+			if (i < 0) {
+				replaced = slot;
+			} else if (c.entries.length == 2) {
+				replaced = c.entries[1 - i];
+			} else {
+				Entry[] entries = new Entry[c.entries.length - 1];
+				System.arraycopy(c.entries, 0, entries, 0, i);
+				System.arraycopy(c.entries, i + 1, entries, i, entries.length - i);
+				replaced = new Collision(hash, entries);
+			}
+		}
+		if (replaced == slot)
+			return node;
+
+		if (replaced == null) {
+			if (node.bitmap == bit)
+				return null;
+			Object[] slots = new Object[node.slots.length - 1];
+			System.arraycopy(node.slots, 0, slots, 0, pos);
+			System.arraycopy(node.slots, pos + 1, slots, pos, slots.length - pos);
+			if ((slots.length == 1) && !(slots[0] instanceof Node) && (level > 0))
+				return slots[0];
+			return new Node(node.bitmap & ~bit, slots);
+		}
+		if ((node.slots.length == 1) && !(replaced instanceof Node) && (level > 0))
+			return replaced;
+		Object[] slots = (Object[]) node.slots.clone();
+		slots[pos] = replaced;
+		return new Node(node.bitmap, slots);
+	}
+
+	private static int values(Node node, Object[] values, int next) {
+		for (int i = 0; i < node.slots.length; i++) {
+			Object slot = node.slots[i];
+			if (slot instanceof Node) {
+				next = values((Node) slot, values, next);
+			} else if (slot instanceof Entry) {
+				values[next++] = ((Entry) slot).value;
+			} else {
+				Entry[] entries = ((Collision) slot).entries;
+				for (int k = 0; k < entries.length; k++)
+					values[next++] = entries[k].value;
+			}
+		}
+		return next;
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.hac.lib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.energy_home.jemma.ah.hac.IAppliance;
+import org.energy_home.jemma.ah.hac.IManagedAppliance;
+import org.junit.Test;
+
+public class ApplianceRegistryTest {
+
+	/**
+	 * Appliance answering the calls made by the registry
+	 */
+	private static class Appliance implements InvocationHandler {
+		final String pid;
+		final Dictionary config = new Hashtable();
+		String[] endPointTypes;
+
+		Appliance(String pid, String name, String[] endPointTypes) {
+			this.pid = pid;
+			this.endPointTypes = endPointTypes;
+			config.put(IAppliance.APPLIANCE_NAME_PROPERTY, name);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getPid"))
+				return pid;
+			if (name.equals("getConfiguration"))
+				return config;
+			if (name.equals("getEndPointTypes"))
+				return endPointTypes;
+			if (name.equals("hashCode"))
+				return new Integer(System.identityHashCode(proxy));
+			if (name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if (name.equals("toString"))
+				return pid;
+			return null;
+		}
+	}
+
+	private static IManagedAppliance create(Appliance handler) {
+		return (IManagedAppliance) Proxy.newProxyInstance(ApplianceRegistryTest.class.getClassLoader(),
+				new Class[] { IManagedAppliance.class }, handler);
+	}
+
+	@Test
+	public void installKeepsOrder() {
+		ApplianceRegistry registry = new ApplianceRegistry();
+		IManagedAppliance[] appliances = new IManagedAppliance[100];
+		for (int i = 0; i < appliances.length; i++) {
+			appliances[i] = create(new Appliance("ah.app." + i, "name" + (i % 10), new String[] { "ep" }));
+			registry.register(appliances[i]);
+			registry.setInstalling(appliances[i]);
+		}
+		for (int i = 0; i < appliances.length; i += 2)
+			registry.install(appliances[i]);
+
+		ApplianceRegistry.Snapshot s = registry.getSnapshot();
+		assertEquals(50, s.getInstalled().length);
+		assertEquals(50, s.getInstalling().length);
+		for (int i = 0; i < appliances.length; i++) {
+			assertSame(appliances[i], s.get("ah.app." + i));
+			assertEquals(i % 2 == 0, s.isInstalled(appliances[i]));
+			assertEquals(i % 2 != 0, s.isInstalling(appliances[i]));
+			IManagedAppliance[] array = (i % 2 == 0) ? s.getInstalled() : s.getInstalling();
+			assertSame(appliances[i], array[i / 2]);
+		}
+		assertEquals(10, s.find(ApplianceRegistry.NAME, "name0").length);
+		assertEquals(0, s.find(ApplianceRegistry.NAME, "name1").length);
+		assertEquals(50, s.find(ApplianceRegistry.END_POINT_TYPE, "ep").length);
+		assertSame(s.getInstalled(), s.getInstalled());
+	}
+
+	@Test
+	public void snapshotsAreImmutable() {
+		ApplianceRegistry registry = new ApplianceRegistry();
+		IManagedAppliance a = create(new Appliance("ah.app.a", "a", new String[] { "ep1", "ep2", "ep1" }));
+		IManagedAppliance b = create(new Appliance("ah.app.b", "b", null));
+		registry.register(a);
+		registry.register(b);
+		registry.install(a);
+		registry.install(b);
+		ApplianceRegistry.Snapshot before = registry.getSnapshot();
+
+		assertTrue(registry.uninstall(a));
+		assertFalse(registry.uninstall(a));
+		registry.unregister(b);
+		ApplianceRegistry.Snapshot after = registry.getSnapshot();
+
+		assertArrayEquals(new IManagedAppliance[] { a, b }, before.getInstalled());
+		assertArrayEquals(new IManagedAppliance[] { a }, before.find(ApplianceRegistry.END_POINT_TYPE, "ep1"));
+		assertSame(b, before.get("ah.app.b"));
+		assertEquals(0, after.getInstalled().length);
+		assertEquals(0, after.find(ApplianceRegistry.END_POINT_TYPE, "ep1").length);
+		assertEquals(0, after.find(ApplianceRegistry.NAME, "b").length);
+		assertSame(a, after.get("ah.app.a"));
+		assertNull(after.get("ah.app.b"));
+	}
+
+	@Test
+	public void reindex() {
+		ApplianceRegistry registry = new ApplianceRegistry();
+		Appliance handler = new Appliance("ah.app.a", "old", new String[] { "ep" });
+		IManagedAppliance a = create(handler);
+		registry.register(a);
+		registry.install(a);
+
+		handler.config.put(IAppliance.APPLIANCE_NAME_PROPERTY, "new");
+		handler.endPointTypes = new String[0];
+		// the entries are found with the old keys until reindex() is called
+		assertEquals(1, registry.getSnapshot().find(ApplianceRegistry.NAME, "old").length);
+		registry.reindex(a);
+
+		ApplianceRegistry.Snapshot s = registry.getSnapshot();
+		assertEquals(0, s.find(ApplianceRegistry.NAME, "old").length);
+		assertArrayEquals(new IManagedAppliance[] { a }, s.find(ApplianceRegistry.NAME, "new"));
+		assertEquals(0, s.find(ApplianceRegistry.END_POINT_TYPE, "ep").length);
+		assertTrue(registry.uninstall(a));
+		assertEquals(0, registry.getSnapshot().find(ApplianceRegistry.NAME, "new").length);
+	}
+}
@@ -0,0 +1,589 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.hac.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.energy_home.jemma.ah.hac.ApplianceException;
+import org.energy_home.jemma.ah.hac.HacException;
+import org.energy_home.jemma.ah.hac.IAppliance;
+import org.energy_home.jemma.ah.hac.IApplianceDescriptor;
+import org.energy_home.jemma.ah.hac.lib.Appliance;
+import org.eclipse.equinox.internal.util.timer.Timer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+
+/**
+ * Stress test of the HacService locking. A number of threads concurrently
+ * create appliances with generated names (setManagedAppliance), update,
+ * install and remove them, browse the registry and load or reset the whole
+ * configuration, against an in-memory Configuration Admin that, like the
+ * real one, delivers the configuration changes to the HacService on its own
+ * thread. At the end it checks that the registry and its indexes match the
+ * configurations and that no name has been given to two appliances.
+ */
+public class HacServiceStressTest {
+
+	private static final long DURATION = 3000;
+	private static final int THREADS = 2;
+
+	private static final String TYPE = "org.energy_home.jemma.stress";
+	private static final String FRIENDLY_NAME = "Stress";
+	private static final String PID_PREFIX = "ah.app.stress";
+	private static final String APPLIANCE_PID = "appliance.pid";
+	private static final String STATUS = "ah.status";
+	private static final String INSTALLING = "installing";
+	private static final String DELETED = "configuration deleted";
+	private static final String[] CATEGORIES = new String[] { "1", "2", "3" };
+
+	private static final IApplianceDescriptor DESCRIPTOR = (IApplianceDescriptor) proxy(IApplianceDescriptor.class,
+			new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("getType"))
+						return TYPE;
+					if (method.getName().equals("getFriendlyName"))
+						return FRIENDLY_NAME;
+					return null;
+				}
+			});
+
+	private static Object proxy(Class c, InvocationHandler handler) {
+		return Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c }, handler);
+	}
+
+	private static Dictionary copy(Dictionary props) {
+		Hashtable result = new Hashtable();
+		for (Enumeration keys = props.keys(); keys.hasMoreElements();) {
+			Object key = keys.nextElement();
+			result.put(key, props.get(key));
+		}
+		return result;
+	}
+
+	private static Map toMap(Dictionary props) {
+		Map result = new HashMap();
+		for (Enumeration keys = props.keys(); keys.hasMoreElements();) {
+			Object key = keys.nextElement();
+			result.put(key, props.get(key));
+		}
+		return result;
+	}
+
+	/**
+	 * An appliance whose configuration is the one last delivered by the
+	 * configuration admin
+	 */
+	private static class StressAppliance extends Appliance {
+		private volatile Dictionary config;
+
+		StressAppliance(String pid, Dictionary config) throws ApplianceException {
+			super(pid, null);
+			this.config = config;
+		}
+
+		public IApplianceDescriptor getDescriptor() {
+			return DESCRIPTOR;
+		}
+
+		public Dictionary getConfiguration() {
+			return copy(config);
+		}
+
+		void setConfiguration(Dictionary config) {
+			this.config = config;
+		}
+	}
+
+	/**
+	 * In-memory Configuration Admin. Configurations are looked up by
+	 * appliance.pid and their changes are delivered to the HacService on a
+	 * single thread, in order: the first update of a configuration registers
+	 * a new appliance, the next ones update it and the deletion unregisters
+	 * it. As in the real one, a deleted configuration cannot be updated.
+	 */
+	private static class ConfigStore implements InvocationHandler {
+		private final HacService hacService;
+		// configuration id -> properties, once updated
+		private final Map configurations = new HashMap();
+		private final Map proxies = new HashMap();
+		private final Set deleted = new HashSet();
+		private final ExecutorService dispatcher = Executors.newSingleThreadExecutor();
+		// accessed only by the dispatcher thread
+		private final Map appliances = new HashMap();
+		private final AtomicInteger failures = new AtomicInteger();
+		// changes queued or being delivered
+		private final AtomicInteger pending = new AtomicInteger();
+		private int lastId = 0;
+
+		ConfigStore(HacService hacService) {
+			this.hacService = hacService;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("listConfigurations"))
+				return listConfigurations((String) args[0]);
+			if (name.equals("createFactoryConfiguration"))
+				return createConfiguration();
+			if (name.equals("getConfiguration"))
+				return createConfiguration();
+			throw new UnsupportedOperationException(name);
+		}
+
+		private synchronized Configuration createConfiguration() {
+			final String id = "config." + (++lastId);
+			Configuration configuration = (Configuration) proxy(Configuration.class, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					String name = method.getName();
+					if (name.equals("update")) {
+						update(id, (Dictionary) args[0]);
+						return null;
+					} else if (name.equals("delete")) {
+						delete(id);
+						return null;
+					} else if (name.equals("getProperties")) {
+						return getProperties(id);
+					} else if (name.equals("getPid")) {
+						return id;
+					} else if (name.equals("hashCode")) {
+						return new Integer(id.hashCode());
+					} else if (name.equals("equals")) {
+						return Boolean.valueOf(proxy == args[0]);
+					}
+					throw new UnsupportedOperationException(name);
+				}
+			});
+			proxies.put(id, configuration);
+			return configuration;
+		}
+
+		private synchronized Configuration[] listConfigurations(String filter) {
+			String prefix = "(" + APPLIANCE_PID + "=";
+			if (!filter.startsWith(prefix))
+				return null;
+			String value = filter.substring(prefix.length(), filter.length() - 1);
+			List result = new ArrayList();
+			for (Iterator it = configurations.entrySet().iterator(); it.hasNext();) {
+				Map.Entry entry = (Map.Entry) it.next();
+				Object pid = ((Dictionary) entry.getValue()).get(APPLIANCE_PID);
+				if ((pid != null) && (value.equals("*") || value.equals(pid)))
+					result.add(entry.getKey());
+			}
+			if (result.size() == 0)
+				return null;
+			Configuration[] found = new Configuration[result.size()];
+			for (int i = 0; i < found.length; i++) {
+				found[i] = (Configuration) proxies.get(result.get(i));
+			}
+			return found;
+		}
+
+		private synchronized Dictionary getProperties(String id) {
+			Dictionary props = (Dictionary) configurations.get(id);
+			return (props != null) ? copy(props) : null;
+		}
+
+		private synchronized void update(String id, Dictionary props) {
+			if (deleted.contains(id))
+				throw new IllegalStateException(DELETED);
+			final Dictionary delivered = copy(props);
+			configurations.put(id, delivered);
+			deliver(new Runnable() {
+				public void run() {
+					updated((String) delivered.get(APPLIANCE_PID), delivered);
+				}
+			});
+		}
+
+		private synchronized void delete(String id) {
+			Dictionary props = (Dictionary) configurations.remove(id);
+			if (props == null)
+				return;
+			deleted.add(id);
+			final String appliancePid = (String) props.get(APPLIANCE_PID);
+			deliver(new Runnable() {
+				public void run() {
+					deleted(appliancePid);
+				}
+			});
+		}
+
+		private void deliver(final Runnable change) {
+			pending.incrementAndGet();
+			dispatcher.execute(new Runnable() {
+				public void run() {
+					try {
+						change.run();
+					} finally {
+						pending.decrementAndGet();
+					}
+				}
+			});
+		}
+
+		private void updated(String appliancePid, Dictionary props) {
+			try {
+				StressAppliance appliance = (StressAppliance) appliances.get(appliancePid);
+				if (appliance == null) {
+					appliance = new StressAppliance(appliancePid, props);
+					appliances.put(appliancePid, appliance);
+					hacService.setManagedAppliance(appliance, toMap(props));
+				} else {
+					appliance.setConfiguration(props);
+					hacService.updatedManagedAppliance(appliance, toMap(props));
+				}
+			} catch (IllegalStateException e) {
+				// the name given by setManagedAppliance() to an appliance
+				// whose configuration has been deleted in the meantime
+				if (!DELETED.equals(e.getMessage())) {
+					failures.incrementAndGet();
+					e.printStackTrace();
+				}
+			} catch (Throwable e) {
+				failures.incrementAndGet();
+				e.printStackTrace();
+			}
+		}
+
+		private void deleted(String appliancePid) {
+			try {
+				StressAppliance appliance = (StressAppliance) appliances.remove(appliancePid);
+				if (appliance != null)
+					hacService.unsetManagedAppliance(appliance);
+			} catch (Throwable e) {
+				failures.incrementAndGet();
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Waits until all the changes, including the ones made while
+		 * delivering, have been delivered
+		 */
+		boolean drain(long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while ((pending.get() > 0) && (System.currentTimeMillis() < deadline))
+				Thread.sleep(10);
+			dispatcher.shutdown();
+			return dispatcher.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+					&& (pending.get() == 0);
+		}
+
+		/**
+		 * Returns the configurations by appliance pid. Call after drain().
+		 */
+		synchronized Map getConfigurations() {
+			Map result = new HashMap();
+			for (Iterator it = configurations.values().iterator(); it.hasNext();) {
+				Dictionary props = (Dictionary) it.next();
+				result.put(props.get(APPLIANCE_PID), props);
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the registered appliances by pid. Call after drain().
+		 */
+		Map getAppliances() {
+			return appliances;
+		}
+	}
+
+	private final AtomicInteger operations = new AtomicInteger();
+	private final AtomicInteger rejected = new AtomicInteger();
+	private final AtomicInteger errors = new AtomicInteger();
+	private final AtomicInteger nextPid = new AtomicInteger();
+
+	private File dataDir;
+	private File categoriesFile;
+	private HacService hacService;
+	private ConfigStore store;
+	private ComponentContext ctxt;
+
+	private abstract class Worker extends Thread {
+		private final long end;
+		final Random random;
+
+		Worker(String name, long end, int seed) {
+			super(name);
+			this.end = end;
+			this.random = new Random(seed);
+		}
+
+		public void run() {
+			while (System.currentTimeMillis() < end) {
+				try {
+					operation();
+					operations.incrementAndGet();
+				} catch (HacException e) {
+					// the appliance has been removed in the meantime
+					rejected.incrementAndGet();
+				} catch (Throwable e) {
+					errors.incrementAndGet();
+					e.printStackTrace();
+				}
+			}
+		}
+
+		abstract void operation() throws Exception;
+	}
+
+	private static String pick(Vector pids, Random random) {
+		return (pids.size() > 0) ? (String) pids.get(random.nextInt(pids.size())) : null;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = File.createTempFile("hac", "");
+		dataDir.delete();
+		dataDir.mkdirs();
+		categoriesFile = new File(dataDir, "categories.xml");
+		StringBuffer xml = new StringBuffer("<configuration><categories>");
+		for (int i = 0; i < CATEGORIES.length; i++) {
+			xml.append("<category pid=\"" + CATEGORIES[i] + "\" name=\"c" + CATEGORIES[i] + "\" icon=\"c.png\"/>");
+		}
+		xml.append("</categories></configuration>");
+		FileOutputStream out = new FileOutputStream(categoriesFile);
+		out.write(xml.toString().getBytes());
+		out.close();
+
+		hacService = new HacService();
+		store = new ConfigStore(hacService);
+
+		final Bundle bundle = (Bundle) proxy(Bundle.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return null;
+			}
+		});
+		final BundleContext bc = (BundleContext) proxy(BundleContext.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("getDataFile"))
+					return new File(dataDir, (String) args[0]);
+				if (name.equals("getBundle"))
+					return bundle;
+				if (name.equals("createFilter"))
+					return FrameworkUtil.createFilter((String) args[0]);
+				if (name.equals("registerService")) {
+					return proxy(ServiceRegistration.class, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							return null;
+						}
+					});
+				}
+				return null;
+			}
+		});
+		ctxt = (ComponentContext) proxy(ComponentContext.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getBundleContext"))
+					return bc;
+				return null;
+			}
+		});
+		hacService.setConfigurationAdmin((ConfigurationAdmin) proxy(ConfigurationAdmin.class, store));
+		hacService.setTimer((Timer) proxy(Timer.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return null;
+			}
+		}));
+		hacService.setDocumentBuilderFactory(javax.xml.parsers.DocumentBuilderFactory.newInstance());
+		hacService.activate(ctxt);
+	}
+
+	@After
+	public void tearDown() {
+		hacService.deactivate(ctxt);
+		HacService.deleteDirectory(dataDir);
+	}
+
+	@Test
+	public void concurrentOperations() throws Exception {
+		long end = System.currentTimeMillis() + DURATION;
+		List workers = new ArrayList();
+		int seed = 0;
+		for (int t = 0; t < THREADS; t++) {
+			// creates appliances with no name, the HacService generates it
+			workers.add(new Worker("creator " + t, end, seed++) {
+				void operation() throws Exception {
+					String appliancePid = PID_PREFIX + nextPid.incrementAndGet();
+					Hashtable props = new Hashtable();
+					props.put(IAppliance.APPLIANCE_TYPE_PROPERTY, TYPE);
+					if (random.nextInt(8) == 0)
+						props.put(STATUS, INSTALLING);
+					hacService.createAppliance(appliancePid, props);
+				}
+			});
+			// changes the category of an appliance or installs an inquired one
+			workers.add(new Worker("updater " + t, end, seed++) {
+				void operation() throws Exception {
+					String[] inquired = hacService.getInquiredAppliances();
+					if ((inquired.length > 0) && random.nextBoolean()) {
+						hacService.installAppliance(inquired[random.nextInt(inquired.length)]);
+						return;
+					}
+					String appliancePid = pick(hacService.getAppliances(), random);
+					if (appliancePid == null)
+						return;
+					IAppliance appliance = hacService.getAppliance(appliancePid);
+					if (appliance == null)
+						return;
+					Dictionary props = appliance.getConfiguration();
+					// the generated name has not been delivered yet, the
+					// update would drop it
+					if (props.get(IAppliance.APPLIANCE_NAME_PROPERTY) == null)
+						return;
+					props.put(APPLIANCE_PID, appliancePid);
+					props.put(IAppliance.APPLIANCE_CATEGORY_PID_PROPERTY, CATEGORIES[random.nextInt(CATEGORIES.length)]);
+					hacService.updateAppliance(appliancePid, props);
+				}
+			});
+			workers.add(new Worker("remover " + t, end, seed++) {
+				void operation() throws Exception {
+					String appliancePid = pick(hacService.getAppliances(), random);
+					if ((appliancePid != null) && (random.nextInt(4) == 0))
+						hacService.removeAppliance(appliancePid);
+					Thread.sleep(1);
+				}
+			});
+			// every appliance found by name must have it, names are never
+			// changed once given
+			workers.add(new Worker("browser " + t, end, seed++) {
+				void operation() throws Exception {
+					Vector pids = hacService.getAppliances();
+					for (int i = 0; i < pids.size(); i++) {
+						if (pids.get(i) == null)
+							throw new IllegalStateException("null pid");
+					}
+					String name = FRIENDLY_NAME + " " + (1 + random.nextInt(Math.max(1, nextPid.get())));
+					Vector found = hacService.browseAppliances(IAppliance.APPLIANCE_NAME_PROPERTY_KEY, name);
+					if (found.size() > 1)
+						throw new IllegalStateException(found.size() + " appliances named " + name);
+					for (int i = 0; i < found.size(); i++) {
+						IAppliance appliance = (IAppliance) found.get(i);
+						if (!name.equals(appliance.getConfiguration().get(IAppliance.APPLIANCE_NAME_PROPERTY)))
+							throw new IllegalStateException(appliance.getPid() + " found with name " + name);
+					}
+					hacService.browseAppliances(IAppliance.APPLIANCE_CATEGORY_PID_PROPERTY_KEY,
+							CATEGORIES[random.nextInt(CATEGORIES.length)]);
+				}
+			});
+		}
+		// operations on all the appliances
+		workers.add(new Worker("configuration", end, seed++) {
+			void operation() throws Exception {
+				Thread.sleep(50 + random.nextInt(100));
+				if (random.nextInt(4) == 0) {
+					if (!hacService.reset(2))
+						throw new IllegalStateException("reset failed");
+				} else if (!hacService.loadConfiguration(categoriesFile.getAbsolutePath(), false)) {
+					throw new IllegalStateException("load failed");
+				}
+			}
+		});
+
+		for (int i = 0; i < workers.size(); i++) {
+			((Thread) workers.get(i)).start();
+		}
+		for (int i = 0; i < workers.size(); i++) {
+			Thread worker = (Thread) workers.get(i);
+			worker.join(DURATION + 30000);
+			assertFalse(worker.getName() + " is stuck", worker.isAlive());
+		}
+		assertTrue("configuration changes not delivered", store.drain(30000));
+		assertEquals("unexpected errors", 0, errors.get());
+		assertEquals("delivery errors", 0, store.failures.get());
+		assertTrue("no operation completed", operations.get() > 0);
+
+		Map configurations = store.getConfigurations();
+		Map appliances = store.getAppliances();
+		assertEquals(configurations.keySet(), appliances.keySet());
+
+		Set installed = new HashSet(hacService.getAppliances());
+		Set inquired = new HashSet();
+		String[] inquiredPids = hacService.getInquiredAppliances();
+		for (int i = 0; i < inquiredPids.length; i++) {
+			inquired.add(inquiredPids[i]);
+		}
+		Set expectedInstalled = new HashSet();
+		Set expectedInquired = new HashSet();
+		Map names = new HashMap();
+		for (Iterator it = configurations.entrySet().iterator(); it.hasNext();) {
+			Map.Entry entry = (Map.Entry) it.next();
+			Dictionary props = (Dictionary) entry.getValue();
+			if (INSTALLING.equals(props.get(STATUS)))
+				expectedInquired.add(entry.getKey());
+			else
+				expectedInstalled.add(entry.getKey());
+			String name = (String) props.get(IAppliance.APPLIANCE_NAME_PROPERTY);
+			assertTrue(entry.getKey() + " has no name", name != null);
+			Object other = names.put(name, entry.getKey());
+			assertTrue("name '" + name + "' given to " + entry.getKey() + " and " + other, other == null);
+		}
+		assertEquals(expectedInstalled, installed);
+		assertEquals(expectedInquired, inquired);
+
+		// the indexes
+		for (Iterator it = installed.iterator(); it.hasNext();) {
+			String appliancePid = (String) it.next();
+			Object appliance = appliances.get(appliancePid);
+			Dictionary props = (Dictionary) configurations.get(appliancePid);
+			Vector byPid = hacService.browseAppliances(IAppliance.APPLIANCE_PID_PROPERTY_KEY, appliancePid);
+			Vector byName = hacService.browseAppliances(IAppliance.APPLIANCE_NAME_PROPERTY_KEY,
+					(String) props.get(IAppliance.APPLIANCE_NAME_PROPERTY));
+			String category = (String) props.get(IAppliance.APPLIANCE_CATEGORY_PID_PROPERTY);
+			boolean ok = (byPid.size() == 1) && (byPid.get(0) == appliance) && (byName.size() == 1)
+					&& (byName.get(0) == appliance)
+					&& hacService.browseAppliances(IAppliance.APPLIANCE_TYPE_PROPERTY_KEY, TYPE).contains(appliance);
+			if (category != null)
+				ok &= hacService.browseAppliances(IAppliance.APPLIANCE_CATEGORY_PID_PROPERTY_KEY, category).contains(appliance);
+			assertTrue("appliance " + appliancePid + " not indexed by its configuration", ok);
+		}
+		assertEquals(installed.size(), hacService.browseAppliances(IAppliance.APPLIANCE_NAME_PROPERTY_KEY, "").size());
+	}
+}
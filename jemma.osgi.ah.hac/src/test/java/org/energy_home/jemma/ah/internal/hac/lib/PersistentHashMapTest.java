@@ -0,0 +1,139 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.hac.lib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PersistentHashMapTest {
+
+	/**
+	 * Key with a chosen hash, to force collisions
+	 */
+	private static class Key {
+		private final String name;
+		private final int hash;
+
+		Key(String name, int hash) {
+			this.name = name;
+			this.hash = hash;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			return (o instanceof Key) && ((Key) o).name.equals(name);
+		}
+	}
+
+	@Test
+	public void putIsPersistent() {
+		PersistentHashMap m1 = PersistentHashMap.EMPTY.put("a", "1");
+		PersistentHashMap m2 = m1.put("a", "2").put("b", "3");
+		assertEquals(1, m1.size());
+		assertEquals("1", m1.get("a"));
+		assertNull(m1.get("b"));
+		assertEquals(2, m2.size());
+		assertEquals("2", m2.get("a"));
+		assertEquals("3", m2.get("b"));
+		assertEquals(0, PersistentHashMap.EMPTY.size());
+	}
+
+	@Test
+	public void removeIsPersistent() {
+		PersistentHashMap m1 = PersistentHashMap.EMPTY.put("a", "1").put("b", "2");
+		PersistentHashMap m2 = m1.remove("a");
+		assertEquals(2, m1.size());
+		assertEquals("1", m1.get("a"));
+		assertEquals(1, m2.size());
+		assertNull(m2.get("a"));
+		assertEquals("2", m2.get("b"));
+		assertSame(m2, m2.remove("a"));
+		assertSame(PersistentHashMap.EMPTY, m2.remove("b"));
+	}
+
+	@Test
+	public void collisions() {
+		Key a = new Key("a", 42);
+		Key b = new Key("b", 42);
+		Key c = new Key("c", 42);
+		Key d = new Key("d", 43);
+		PersistentHashMap m = PersistentHashMap.EMPTY.put(a, "a").put(d, "d").put(b, "b").put(c, "c");
+		assertEquals(4, m.size());
+		assertEquals("b", m.get(b));
+		assertNull(m.get(new Key("e", 42)));
+		assertArrayEquals(new Object[] { "a", "b", "c", "d" }, m.values(new Object[4]));
+
+		m = m.put(b, "B").remove(a);
+		assertEquals(3, m.size());
+		assertNull(m.get(a));
+		assertArrayEquals(new Object[] { "B", "c", "d" }, m.values(new Object[3]));
+		m = m.remove(c);
+		assertEquals("B", m.get(b));
+		assertEquals("d", m.get(d));
+		m = m.remove(b).remove(d);
+		assertSame(PersistentHashMap.EMPTY, m);
+	}
+
+	@Test
+	public void valuesInKeyOrder() {
+		PersistentHashMap m = PersistentHashMap.EMPTY;
+		Integer[] expected = new Integer[2000];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = new Integer(i * 7919);
+			m = m.put(expected[i], expected[i]);
+		}
+		assertArrayEquals(expected, m.values(new Object[m.size()]));
+	}
+
+	@Test
+	public void randomOperations() {
+		Random random = new Random(1);
+		Map reference = new HashMap();
+		PersistentHashMap m = PersistentHashMap.EMPTY;
+		for (int i = 0; i < 20000; i++) {
+			// small key space with colliding hashes, to exercise removals
+			int n = random.nextInt(500);
+			Key key = new Key(Integer.toString(n), (n % 300) * 0x01010101);
+			if (random.nextInt(3) == 0) {
+				reference.remove(key);
+				m = m.remove(key);
+			} else {
+				Integer value = new Integer(i);
+				reference.put(key, value);
+				m = m.put(key, value);
+			}
+			assertEquals(reference.size(), m.size());
+		}
+		for (Iterator it = reference.entrySet().iterator(); it.hasNext();) {
+			Map.Entry entry = (Map.Entry) it.next();
+			assertEquals(entry.getValue(), m.get(entry.getKey()));
+			m = m.remove(entry.getKey());
+		}
+		assertSame(PersistentHashMap.EMPTY, m);
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import java.util.Vector;
+
+/**
+ * The listeners of a device, indexed on the clusterId. It replaces an
+ * Hashtable keyed on Short: the lookup done for each incoming frame doesn't
+ * need to box the clusterId. A device has a few clusters, so the entries are
+ * simply scanned.
+ * <p>
+ * The array of the entries is replaced (never modified) when a cluster is
+ * added, so get() can be called without locking. Modifications must be
+ * serialized by the caller.
+ */
+class ClusterListeners {
+
+	private static class Entry {
+		final short clusterId;
+		final Vector listeners;
+
+		Entry(short clusterId, Vector listeners) {
+			this.clusterId = clusterId;
+			this.listeners = listeners;
+		}
+	}
+
+	private volatile Entry[] entries = new Entry[0];
+
+	/**
+	 * Returns the listeners of the passed cluster, or null if no listener has
+	 * ever been added for it
+	 */
+	Vector get(short clusterId) {
+		Entry[] entries = this.entries;
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i].clusterId == clusterId)
+				return entries[i].listeners;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the listeners of the passed cluster, creating an empty Vector if
+	 * needed
+	 */
+	Vector getOrCreate(short clusterId) {
+		Vector listeners = get(clusterId);
+		if (listeners == null) {
+			listeners = new Vector();
+			Entry[] newEntries = new Entry[entries.length + 1];
+			System.arraycopy(entries, 0, newEntries, 0, entries.length);
+			newEntries[entries.length] = new Entry(clusterId, listeners);
+			entries = newEntries;
+		}
+		return listeners;
+	}
+}
@@ -0,0 +1,665 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.energy_home.jemma.zgd.jaxb.Address;
+import org.energy_home.jemma.zgd.jaxb.DescriptorCapability;
+import org.energy_home.jemma.zgd.jaxb.LogicalType;
+import org.energy_home.jemma.zgd.jaxb.MACCapability;
+import org.energy_home.jemma.zgd.jaxb.NodeDescriptor;
+import org.energy_home.jemma.zgd.jaxb.NodeServices;
+import org.energy_home.jemma.zgd.jaxb.ServerMask;
+import org.energy_home.jemma.zgd.jaxb.ServiceDescriptor;
+import org.energy_home.jemma.zgd.jaxb.SimpleDescriptor;
+import org.energy_home.jemma.zgd.jaxb.NodeServices.ActiveEndpoints;
+
+/**
+ * Persistent db of the discovered devices (i.e. of their InstallationStatus).
+ * <p>
+ * The db is an append-only log of records: each update of a device appends a
+ * record that replaces the previous one of the same node, each removal appends
+ * a tombstone. When the log contains too many obsolete records it is compacted
+ * by writing the live records into a temporary file that atomically replaces
+ * the log.
+ * <p>
+ * The file starts with a magic number and a format version. Each record is
+ * made of its length, its type, its payload and the CRC32 of type and
+ * payload. When loading, the log is read up to the first truncated or
+ * corrupted record, i.e. up to the point where the gateway has been powered
+ * off while writing, and is compacted to get rid of the damaged tail.
+ * <p>
+ * The descriptors are encoded field by field, so the format doesn't depend on
+ * the shape of the serialized classes. The file written by the previous
+ * versions with an ObjectOutputStream is imported the first time the db is
+ * loaded.
+ */
+class DiscoveredDevicesStore {
+
+	private static final int MAGIC = 0x4A5A4442; // "JZDB"
+	private static final short VERSION = 1;
+
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+
+	/**
+	 * Upper bound of the size of a record, used to detect a corrupted length
+	 */
+	private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+	/**
+	 * The log is compacted when the obsolete records are more than the live
+	 * ones and more than this threshold
+	 */
+	private static final int COMPACTION_THRESHOLD = 32;
+
+	private static final Log log = LogFactory.getLog(DiscoveredDevicesStore.class);
+
+	private final File file;
+	private final File tmpFile;
+
+	/**
+	 * The payloads of the live records, indexed on the ieee address of the node
+	 */
+	private Map records = new LinkedHashMap();
+	private int logRecords = 0;
+	private DataOutputStream out = null;
+	private FileOutputStream fileOut = null;
+
+	DiscoveredDevicesStore(File file) {
+		this.file = file;
+		this.tmpFile = new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Loads the db. If the db doesn't exist, the devices are imported from the
+	 * passed file written with an ObjectOutputStream, if any.
+	 * 
+	 * @param legacyFile
+	 *            The file written by the previous versions, it can be null
+	 * @return The list of the InstallationStatus read from the db
+	 */
+	synchronized List load(File legacyFile) throws IOException {
+		close();
+		records.clear();
+		logRecords = 0;
+
+		if (!file.exists() && tmpFile.exists()) {
+			// the gateway has been powered off while replacing the log: the
+			// temporary file was complete
+			tmpFile.renameTo(file);
+		}
+		tmpFile.delete();
+
+		if (!file.exists()) {
+			List devices = new ArrayList();
+			if ((legacyFile != null) && legacyFile.exists()) {
+				devices = importLegacyFile(legacyFile);
+				for (Iterator iterator = devices.iterator(); iterator.hasNext();) {
+					InstallationStatus installationStatus = (InstallationStatus) iterator.next();
+					records.put(getKey(installationStatus.getAddress()), encode(installationStatus));
+				}
+			}
+			compact();
+			if ((legacyFile != null) && legacyFile.exists()) {
+				if (!legacyFile.renameTo(new File(legacyFile.getPath() + ".imported")))
+					legacyFile.delete();
+				log.info("imported " + devices.size() + " devices from " + legacyFile.getName());
+			}
+			return devices;
+		}
+
+		boolean damaged = readLog();
+
+		List devices = new ArrayList();
+		for (Iterator iterator = records.values().iterator(); iterator.hasNext();) {
+			try {
+				devices.add(decode((byte[]) iterator.next()));
+			} catch (IOException e) {
+				log.error("unable to decode a discovered device, skipping it", e);
+				iterator.remove();
+				damaged = true;
+			}
+		}
+
+		if (damaged)
+			compact();
+		return devices;
+	}
+
+	/**
+	 * Adds or replaces a device
+	 */
+	synchronized void put(InstallationStatus installationStatus) throws IOException {
+		byte[] payload = encode(installationStatus);
+		records.put(getKey(installationStatus.getAddress()), payload);
+		append(RECORD_PUT, payload);
+	}
+
+	/**
+	 * Removes a device
+	 * 
+	 * @return false if the device was not in the db
+	 */
+	synchronized boolean remove(Address address) throws IOException {
+		Long key = getKey(address);
+		if (records.remove(key) == null)
+			return false;
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(8);
+		new DataOutputStream(buffer).writeLong(key.longValue());
+		append(RECORD_REMOVE, buffer.toByteArray());
+		return true;
+	}
+
+	/**
+	 * Replaces the content of the db with the passed devices
+	 * 
+	 * @param devices
+	 *            A collection of InstallationStatus
+	 */
+	synchronized void replace(Collection devices) throws IOException {
+		records.clear();
+		for (Iterator iterator = devices.iterator(); iterator.hasNext();) {
+			InstallationStatus installationStatus = (InstallationStatus) iterator.next();
+			records.put(getKey(installationStatus.getAddress()), encode(installationStatus));
+		}
+		compact();
+	}
+
+	synchronized int size() {
+		return records.size();
+	}
+
+	synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.error("IOException closing discovered devices db", e);
+			}
+			out = null;
+			fileOut = null;
+		}
+	}
+
+	private void append(byte type, byte[] payload) throws IOException {
+		if ((logRecords - records.size() > records.size()) && (logRecords - records.size() > COMPACTION_THRESHOLD)) {
+			compact();
+			return;
+		}
+
+		if (out == null) {
+			fileOut = new FileOutputStream(file, true);
+			out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		}
+
+		try {
+			writeRecord(out, type, payload);
+			out.flush();
+			fileOut.getFD().sync();
+			logRecords++;
+		} catch (IOException e) {
+			// the tail of the log may be damaged, it will be rewritten
+			close();
+			compact();
+		}
+	}
+
+	/**
+	 * Writes the live records into a temporary file, then replaces the log with
+	 * it.
+	 */
+	private void compact() throws IOException {
+		close();
+
+		FileOutputStream tmpOut = new FileOutputStream(tmpFile);
+		try {
+			DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(tmpOut));
+			dataOut.writeInt(MAGIC);
+			dataOut.writeShort(VERSION);
+			for (Iterator iterator = records.values().iterator(); iterator.hasNext();)
+				writeRecord(dataOut, RECORD_PUT, (byte[]) iterator.next());
+			dataOut.flush();
+			tmpOut.getFD().sync();
+		} finally {
+			tmpOut.close();
+		}
+
+		// File.renameTo() doesn't replace an existing file on every platform
+		if (!tmpFile.renameTo(file)) {
+			file.delete();
+			if (!tmpFile.renameTo(file))
+				throw new IOException("unable to replace " + file.getName());
+		}
+		logRecords = records.size();
+	}
+
+	/**
+	 * Reads the records of the log
+	 * 
+	 * @return true if the log is damaged
+	 */
+	private boolean readLog() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if ((in.readInt() != MAGIC) || (in.readShort() != VERSION)) {
+				// keeps the file, it may have been written by a newer version
+				in.close();
+				log.error(file.getName() + " has an unknown format, renamed to " + file.getName() + ".unknown");
+				file.renameTo(new File(file.getPath() + ".unknown"));
+				return true;
+			}
+
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return false;
+				}
+
+				if ((length < 0) || (length > MAX_RECORD_SIZE)) {
+					log.error(file.getName() + ": corrupted record length after " + logRecords + " records");
+					return true;
+				}
+
+				byte type = in.readByte();
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				crc.reset();
+				crc.update(type);
+				crc.update(payload);
+				if (in.readInt() != (int) crc.getValue()) {
+					log.error(file.getName() + ": bad checksum after " + logRecords + " records");
+					return true;
+				}
+
+				logRecords++;
+				if (type == RECORD_PUT) {
+					records.put(new Long(readKey(payload)), payload);
+				} else if (type == RECORD_REMOVE) {
+					records.remove(new Long(readKey(payload)));
+				} else {
+					log.error(file.getName() + ": unknown record type " + type);
+				}
+			}
+		} catch (EOFException e) {
+			log.error(file.getName() + ": truncated record after " + logRecords + " records");
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, byte type, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		out.writeInt(payload.length);
+		out.writeByte(type);
+		out.write(payload);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private static List importLegacyFile(File legacyFile) {
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new FileInputStream(legacyFile));
+			return (List) in.readObject();
+		} catch (Exception e) {
+			log.error("exception reading " + legacyFile.getName() + ". Wrong format?", e);
+			return new ArrayList();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					log.error("IOException closing " + legacyFile.getName(), e);
+				}
+			}
+		}
+	}
+
+	private static Long getKey(Address address) throws IOException {
+		if ((address == null) || (address.getIeeeAddress() == null))
+			throw new IOException("the ieee address of the device is unknown");
+		return new Long(address.getIeeeAddress().longValue());
+	}
+
+	private static long readKey(byte[] payload) throws IOException {
+		// both the records start with the ieee address
+		if (payload.length < 8)
+			throw new EOFException();
+		long key = 0;
+		for (int i = 0; i < 8; i++)
+			key = (key << 8) | (payload[i] & 0xff);
+		return key;
+	}
+
+	/*
+	 * Encoding of the InstallationStatus. The payload of a PUT record starts
+	 * with the ieee address of the node. Null objects and numbers are preceded
+	 * by a presence flag.
+	 */
+
+	static byte[] encode(InstallationStatus installationStatus) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(buffer);
+
+		Address a = installationStatus.getAddress();
+		out.writeLong(getKey(a).longValue());
+		writeAddress(out, a);
+		out.writeByte(installationStatus.getStatus());
+		out.writeByte(installationStatus.getCurrentService());
+		writeNodeDescriptor(out, installationStatus.getNodeDescriptor());
+
+		NodeServices services = installationStatus.getNodeServices();
+		out.writeBoolean(services != null);
+		if (services != null) {
+			writeAddress(out, services.getAddress());
+			List activeEndpoints = services.getActiveEndpoints();
+			out.writeShort(activeEndpoints.size());
+			for (int i = 0; i < activeEndpoints.size(); i++) {
+				ActiveEndpoints ep = (ActiveEndpoints) activeEndpoints.get(i);
+				out.writeShort(ep.getEndPoint());
+				writeSimpleDescriptor(out, ep.getSimpleDescriptor());
+			}
+
+			// the service descriptors of the active endpoints
+			for (int i = 0; i < activeEndpoints.size(); i++) {
+				ActiveEndpoints ep = (ActiveEndpoints) activeEndpoints.get(i);
+				ServiceDescriptor service = installationStatus.getServiceDescriptor(ep.getEndPoint());
+				out.writeBoolean(service != null);
+				if (service != null) {
+					writeAddress(out, service.getAddress());
+					writeSimpleDescriptor(out, service.getSimpleDescriptor());
+				}
+			}
+		}
+
+		out.flush();
+		return buffer.toByteArray();
+	}
+
+	static InstallationStatus decode(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+		in.readLong();
+		InstallationStatus installationStatus = new InstallationStatus(readAddress(in));
+		installationStatus.setStatus(in.readByte());
+		installationStatus.setCurrentService(in.readByte());
+		installationStatus.setNodeDescriptor(readNodeDescriptor(in));
+
+		if (in.readBoolean()) {
+			NodeServices services = new NodeServices();
+			services.setAddress(readAddress(in));
+			List activeEndpoints = services.getActiveEndpoints();
+			int size = in.readUnsignedShort();
+			for (int i = 0; i < size; i++) {
+				ActiveEndpoints ep = new ActiveEndpoints();
+				ep.setEndPoint(in.readShort());
+				ep.setSimpleDescriptor(readSimpleDescriptor(in));
+				activeEndpoints.add(ep);
+			}
+			installationStatus.setNodeServices(services);
+
+			for (int i = 0; i < size; i++) {
+				if (in.readBoolean()) {
+					ServiceDescriptor service = new ServiceDescriptor();
+					service.setAddress(readAddress(in));
+					service.setEndPoint(((ActiveEndpoints) activeEndpoints.get(i)).getEndPoint());
+					service.setSimpleDescriptor(readSimpleDescriptor(in));
+					installationStatus.putServiceDescriptor(service.getEndPoint(), service);
+				}
+			}
+		}
+
+		return installationStatus;
+	}
+
+	private static void writeAddress(DataOutputStream out, Address a) throws IOException {
+		out.writeBoolean(a != null);
+		if (a == null)
+			return;
+
+		BigInteger ieeeAddress = a.getIeeeAddress();
+		out.writeBoolean(ieeeAddress != null);
+		if (ieeeAddress != null)
+			out.writeLong(ieeeAddress.longValue());
+		writeInteger(out, a.getNetworkAddress());
+		writeString(out, a.getAliasAddress());
+	}
+
+	private static Address readAddress(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+
+		Address a = new Address();
+		if (in.readBoolean()) {
+			// the ieee address is an unsigned 64 bit number
+			a.setIeeeAddress(new BigInteger(Long.toHexString(in.readLong()), 16));
+		}
+		a.setNetworkAddress(readInteger(in));
+		a.setAliasAddress(readString(in));
+		return a;
+	}
+
+	private static void writeNodeDescriptor(DataOutputStream out, NodeDescriptor node) throws IOException {
+		out.writeBoolean(node != null);
+		if (node == null)
+			return;
+
+		writeString(out, (node.getLogicalType() != null) ? node.getLogicalType().value() : null);
+		writeBoolean(out, node.isComplexDescriptorAvailable());
+		writeBoolean(out, node.isUserDescriptorAvailable());
+		writeString(out, node.getFrequencyBand());
+
+		MACCapability mac = node.getMACCapabilityFlag();
+		out.writeBoolean(mac != null);
+		if (mac != null) {
+			out.writeByte(flags(new boolean[] { mac.isAlternatePanCoordinator(), mac.isDeviceIsFFD(), mac.isMainsPowered(),
+					mac.isReceiverOnWhenIdle(), mac.isSecuritySupported(), mac.isAllocateAddress() }));
+		}
+
+		writeInteger(out, node.getManufacturerCode());
+		writeInteger(out, (node.getMaximumBufferSize() != null) ? new Integer(node.getMaximumBufferSize().intValue()) : null);
+		writeInteger(out, node.getMaximumIncomingTransferSize());
+
+		ServerMask serverMask = node.getServerMask();
+		out.writeBoolean(serverMask != null);
+		if (serverMask != null) {
+			out.writeByte(flags(new boolean[] { serverMask.isPrimaryTrustCenter(), serverMask.isBackupTrustCenter(),
+					serverMask.isPrimaryBindingTableCache(), serverMask.isBackupBindingTableCache(),
+					serverMask.isPrimaryDiscoveryCache(), serverMask.isBackupDiscoveryCache(), serverMask.isNetworkManager() }));
+		}
+
+		writeInteger(out, node.getMaximumOutgoingTransferSize());
+
+		DescriptorCapability capability = node.getDescriptorCapabilityField();
+		out.writeBoolean(capability != null);
+		if (capability != null) {
+			out.writeByte(flags(new boolean[] { capability.isExtendedActiveEndpointListAvailable(),
+					capability.isExtendedSimpleDescriptorListAvailable() }));
+		}
+	}
+
+	private static NodeDescriptor readNodeDescriptor(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+
+		NodeDescriptor node = new NodeDescriptor();
+		String logicalType = readString(in);
+		if (logicalType != null) {
+			try {
+				node.setLogicalType(LogicalType.fromValue(logicalType));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("unknown logical type " + logicalType);
+			}
+		}
+		node.setComplexDescriptorAvailable(readBoolean(in));
+		node.setUserDescriptorAvailable(readBoolean(in));
+		node.setFrequencyBand(readString(in));
+
+		if (in.readBoolean()) {
+			int flags = in.readUnsignedByte();
+			MACCapability mac = new MACCapability();
+			mac.setAlternatePanCoordinator((flags & 0x01) != 0);
+			mac.setDeviceIsFFD((flags & 0x02) != 0);
+			mac.setMainsPowered((flags & 0x04) != 0);
+			mac.setReceiverOnWhenIdle((flags & 0x08) != 0);
+			mac.setSecuritySupported((flags & 0x10) != 0);
+			mac.setAllocateAddress((flags & 0x20) != 0);
+			node.setMACCapabilityFlag(mac);
+		}
+
+		node.setManufacturerCode(readInteger(in));
+		Integer maximumBufferSize = readInteger(in);
+		if (maximumBufferSize != null)
+			node.setMaximumBufferSize(new Short(maximumBufferSize.shortValue()));
+		node.setMaximumIncomingTransferSize(readInteger(in));
+
+		if (in.readBoolean()) {
+			int flags = in.readUnsignedByte();
+			ServerMask serverMask = new ServerMask();
+			serverMask.setPrimaryTrustCenter((flags & 0x01) != 0);
+			serverMask.setBackupTrustCenter((flags & 0x02) != 0);
+			serverMask.setPrimaryBindingTableCache((flags & 0x04) != 0);
+			serverMask.setBackupBindingTableCache((flags & 0x08) != 0);
+			serverMask.setPrimaryDiscoveryCache((flags & 0x10) != 0);
+			serverMask.setBackupDiscoveryCache((flags & 0x20) != 0);
+			serverMask.setNetworkManager((flags & 0x40) != 0);
+			node.setServerMask(serverMask);
+		}
+
+		node.setMaximumOutgoingTransferSize(readInteger(in));
+
+		if (in.readBoolean()) {
+			int flags = in.readUnsignedByte();
+			DescriptorCapability capability = new DescriptorCapability();
+			capability.setExtendedActiveEndpointListAvailable((flags & 0x01) != 0);
+			capability.setExtendedSimpleDescriptorListAvailable((flags & 0x02) != 0);
+			node.setDescriptorCapabilityField(capability);
+		}
+
+		return node;
+	}
+
+	private static void writeSimpleDescriptor(DataOutputStream out, SimpleDescriptor sd) throws IOException {
+		out.writeBoolean(sd != null);
+		if (sd == null)
+			return;
+
+		writeInteger(out, (sd.getEndPoint() != null) ? new Integer(sd.getEndPoint().intValue()) : null);
+		writeInteger(out, sd.getApplicationProfileIdentifier());
+		writeInteger(out, sd.getApplicationDeviceIdentifier());
+		writeInteger(out, (sd.getApplicationDeviceVersion() != null) ? new Integer(sd.getApplicationDeviceVersion().intValue())
+				: null);
+		writeClusters(out, sd.getApplicationInputCluster());
+		writeClusters(out, sd.getApplicationOutputCluster());
+	}
+
+	private static SimpleDescriptor readSimpleDescriptor(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+
+		SimpleDescriptor sd = new SimpleDescriptor();
+		Integer endPoint = readInteger(in);
+		if (endPoint != null)
+			sd.setEndPoint(new Short(endPoint.shortValue()));
+		sd.setApplicationProfileIdentifier(readInteger(in));
+		sd.setApplicationDeviceIdentifier(readInteger(in));
+		Integer version = readInteger(in);
+		if (version != null)
+			sd.setApplicationDeviceVersion(new Short(version.shortValue()));
+		readClusters(in, sd.getApplicationInputCluster());
+		readClusters(in, sd.getApplicationOutputCluster());
+		return sd;
+	}
+
+	private static void writeClusters(DataOutputStream out, List clusters) throws IOException {
+		out.writeShort(clusters.size());
+		for (int i = 0; i < clusters.size(); i++)
+			out.writeShort(((Integer) clusters.get(i)).intValue());
+	}
+
+	private static void readClusters(DataInputStream in, List clusters) throws IOException {
+		int size = in.readUnsignedShort();
+		for (int i = 0; i < size; i++)
+			clusters.add(new Integer(in.readUnsignedShort()));
+	}
+
+	private static int flags(boolean[] values) {
+		int flags = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i])
+				flags |= 1 << i;
+		}
+		return flags;
+	}
+
+	private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeInt(value.intValue());
+	}
+
+	private static Integer readInteger(DataInputStream in) throws IOException {
+		return in.readBoolean() ? new Integer(in.readInt()) : null;
+	}
+
+	private static void writeBoolean(DataOutputStream out, Boolean value) throws IOException {
+		out.writeByte((value == null) ? 2 : (value.booleanValue() ? 1 : 0));
+	}
+
+	private static Boolean readBoolean(DataInputStream in) throws IOException {
+		int value = in.readUnsignedByte();
+		return (value == 2) ? null : Boolean.valueOf(value == 1);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import org.energy_home.jemma.ah.zigbee.IZclFrame;
+import org.energy_home.jemma.ah.zigbee.ZclResponseListener;
+import org.energy_home.jemma.ah.zigbee.ZigBeeException;
+
+import edu.emory.mathcs.backport.java.util.concurrent.Executor;
+import edu.emory.mathcs.backport.java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Wraps the listener passed to ZigBeeDevice.invokeAsync(): the outcome of
+ * the request is handed to the response executor of the ZigBeeManagerImpl,
+ * so a slow listener never runs on the thread that receives the messages from
+ * the gateway or on the reply timer thread. If the executor has been shut
+ * down the listener is notified by the calling thread.
+ */
+class DispatchedZclResponseListener implements ZclResponseListener {
+
+	private final ZclResponseListener listener;
+	private final Executor executor;
+
+	DispatchedZclResponseListener(ZclResponseListener listener, Executor executor) {
+		this.listener = listener;
+		this.executor = executor;
+	}
+
+	public void notifyZclResponse(final short clusterId, final IZclFrame zclResponseFrame) {
+		execute(new Runnable() {
+			public void run() {
+				listener.notifyZclResponse(clusterId, zclResponseFrame);
+			}
+		});
+	}
+
+	public void notifyZclResponseError(final short clusterId, final ZigBeeException e) {
+		execute(new Runnable() {
+			public void run() {
+				listener.notifyZclResponseError(clusterId, e);
+			}
+		});
+	}
+
+	private void execute(Runnable notification) {
+		try {
+			executor.execute(notification);
+		} catch (RejectedExecutionException e) {
+			notification.run();
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Index used to route the incoming messages to the device (i.e. the endpoint)
+ * they come from. The devices are indexed both on (IEEE address, endpoint) and
+ * on (network address, endpoint), so the messages that carry only the network
+ * address of the source node can be routed too.
+ * <p>
+ * The lookups are lock-free: the published tables are never modified. The
+ * updates (installation and removal of a node, change of its network address)
+ * are rare, so each of them rebuilds the tables from the list of the indexed
+ * devices and publishes the new ones with a single volatile write.
+ */
+class EndpointRoutingIndex {
+
+	private static final class Entry {
+		final long ieeeAddress;
+		final short endPoint;
+		int networkAddress;
+		final ZigBeeDeviceImpl device;
+
+		Entry(long ieeeAddress, short endPoint, int networkAddress, ZigBeeDeviceImpl device) {
+			this.ieeeAddress = ieeeAddress;
+			this.endPoint = endPoint;
+			this.networkAddress = networkAddress;
+			this.device = device;
+		}
+	}
+
+	/**
+	 * Open addressing tables, at most half full. A null device marks an empty
+	 * slot.
+	 */
+	private static final class Tables {
+		final int mask;
+
+		// (ieee address, endpoint) -> device
+		final long[] ieeeKeys;
+		final short[] ieeeEndPoints;
+		final ZigBeeDeviceImpl[] ieeeDevices;
+
+		// (network address << 8 | endpoint) -> device
+		final long[] nwkKeys;
+		final ZigBeeDeviceImpl[] nwkDevices;
+
+		Tables(int entries) {
+			int size = 4;
+			while (size < entries * 2)
+				size <<= 1;
+
+			mask = size - 1;
+			ieeeKeys = new long[size];
+			ieeeEndPoints = new short[size];
+			ieeeDevices = new ZigBeeDeviceImpl[size];
+			nwkKeys = new long[size];
+			nwkDevices = new ZigBeeDeviceImpl[size];
+		}
+	}
+
+	/**
+	 * Value used for an unknown network address
+	 */
+	static final int UNKNOWN_NETWORK_ADDRESS = -1;
+
+	private final List entries = new ArrayList();
+	private volatile Tables tables = new Tables(0);
+
+	/**
+	 * Returns the device with the passed IEEE address and endpoint, or null
+	 */
+	ZigBeeDeviceImpl get(long ieeeAddress, int endPoint) {
+		Tables t = this.tables;
+		int slot = hash(ieeeAddress ^ ((long) endPoint << 56)) & t.mask;
+		while (true) {
+			ZigBeeDeviceImpl device = t.ieeeDevices[slot];
+			if (device == null)
+				return null;
+			if ((t.ieeeKeys[slot] == ieeeAddress) && (t.ieeeEndPoints[slot] == (short) endPoint))
+				return device;
+			slot = (slot + 1) & t.mask;
+		}
+	}
+
+	/**
+	 * Returns the device with the passed network address and endpoint, or null
+	 */
+	ZigBeeDeviceImpl getByNetworkAddress(int networkAddress, int endPoint) {
+		if (networkAddress == UNKNOWN_NETWORK_ADDRESS)
+			return null;
+
+		long key = nwkKey(networkAddress, endPoint);
+		Tables t = this.tables;
+		int slot = hash(key) & t.mask;
+		while (true) {
+			ZigBeeDeviceImpl device = t.nwkDevices[slot];
+			if (device == null)
+				return null;
+			if (t.nwkKeys[slot] == key)
+				return device;
+			slot = (slot + 1) & t.mask;
+		}
+	}
+
+	/**
+	 * Adds a device. The network address of the other devices of the same
+	 * node is updated.
+	 * 
+	 * @param networkAddress
+	 *            The network address of the node or UNKNOWN_NETWORK_ADDRESS
+	 */
+	synchronized void put(long ieeeAddress, int networkAddress, ZigBeeDeviceImpl device) {
+		short endPoint = device.getEp();
+		for (Iterator iterator = entries.iterator(); iterator.hasNext();) {
+			Entry entry = (Entry) iterator.next();
+			if (entry.ieeeAddress == ieeeAddress) {
+				if (entry.endPoint == endPoint)
+					iterator.remove();
+				else if (networkAddress != UNKNOWN_NETWORK_ADDRESS)
+					entry.networkAddress = networkAddress;
+			} else if ((entry.networkAddress == networkAddress) && (networkAddress != UNKNOWN_NETWORK_ADDRESS)) {
+				// the network address has been reassigned
+				entry.networkAddress = UNKNOWN_NETWORK_ADDRESS;
+			}
+		}
+		entries.add(new Entry(ieeeAddress, endPoint, networkAddress, device));
+		rebuild();
+	}
+
+	/**
+	 * Removes all the devices of a node
+	 * 
+	 * @return false if the node was not indexed
+	 */
+	synchronized boolean removeNode(long ieeeAddress) {
+		boolean removed = false;
+		for (Iterator iterator = entries.iterator(); iterator.hasNext();) {
+			if (((Entry) iterator.next()).ieeeAddress == ieeeAddress) {
+				iterator.remove();
+				removed = true;
+			}
+		}
+		if (removed)
+			rebuild();
+		return removed;
+	}
+
+	/**
+	 * Updates the network address of a node, e.g. after it rejoined the
+	 * network
+	 */
+	synchronized void setNetworkAddress(long ieeeAddress, int networkAddress) {
+		if (networkAddress == UNKNOWN_NETWORK_ADDRESS)
+			return;
+
+		boolean changed = false;
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = (Entry) entries.get(i);
+			if ((entry.ieeeAddress == ieeeAddress) && (entry.networkAddress != networkAddress)) {
+				entry.networkAddress = networkAddress;
+				changed = true;
+			} else if ((entry.ieeeAddress != ieeeAddress) && (entry.networkAddress == networkAddress)) {
+				// the network address has been reassigned
+				entry.networkAddress = UNKNOWN_NETWORK_ADDRESS;
+				changed = true;
+			}
+		}
+		if (changed)
+			rebuild();
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		rebuild();
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	private void rebuild() {
+		Tables t = new Tables(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = (Entry) entries.get(i);
+
+			int slot = hash(entry.ieeeAddress ^ ((long) entry.endPoint << 56)) & t.mask;
+			while (t.ieeeDevices[slot] != null)
+				slot = (slot + 1) & t.mask;
+			t.ieeeKeys[slot] = entry.ieeeAddress;
+			t.ieeeEndPoints[slot] = entry.endPoint;
+			t.ieeeDevices[slot] = entry.device;
+
+			if (entry.networkAddress != UNKNOWN_NETWORK_ADDRESS) {
+				long key = nwkKey(entry.networkAddress, entry.endPoint);
+				slot = hash(key) & t.mask;
+				while ((t.nwkDevices[slot] != null) && (t.nwkKeys[slot] != key))
+					slot = (slot + 1) & t.mask;
+				t.nwkKeys[slot] = key;
+				t.nwkDevices[slot] = entry.device;
+			}
+		}
+		this.tables = t;
+	}
+
+	private static long nwkKey(int networkAddress, int endPoint) {
+		return ((long) (networkAddress & 0xFFFF) << 8) | (endPoint & 0xFF);
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32);
+	}
+}
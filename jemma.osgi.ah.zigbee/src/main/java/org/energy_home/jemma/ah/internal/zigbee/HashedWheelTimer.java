@@ -0,0 +1,290 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.energy_home.jemma.ah.zigbee.ZigBeeTimer;
+
+/**
+ * Timer that serves a large number of timeouts with a single thread. The
+ * timeouts are kept in a wheel of buckets: each tick of the timer advances the
+ * wheel by one bucket and expires the timeouts of that bucket whose deadline
+ * is in the current round. Scheduling and cancelling a timeout are O(1)
+ * operations, while the precision of a timeout is the tick duration.
+ * <p>
+ * The tasks are executed by the timer thread, so they must be short and must
+ * not block. The thread is started by the first schedule() and is stopped by
+ * stop(); the timeouts scheduled after stop() are never executed, so a stopped
+ * timer doesn't start its thread again.
+ */
+public class HashedWheelTimer implements ZigBeeTimer {
+
+	/**
+	 * Handle of a scheduled task
+	 */
+	public static final class Timeout implements ZigBeeTimer.Timeout {
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private long remainingRounds;
+		private int bucket;
+		private int state = WAITING;
+
+		// links of the bucket list
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(HashedWheelTimer timer, Runnable task) {
+			this.timer = timer;
+			this.task = task;
+		}
+
+		/**
+		 * Cancels the task
+		 * 
+		 * @return false if the task has already been executed or cancelled
+		 */
+		public boolean cancel() {
+			synchronized (timer.lock) {
+				if (state != WAITING)
+					return false;
+				state = CANCELLED;
+				timer.unlink(this);
+				return true;
+			}
+		}
+
+		public boolean isExpired() {
+			synchronized (timer.lock) {
+				return state == EXPIRED;
+			}
+		}
+
+		public boolean isCancelled() {
+			synchronized (timer.lock) {
+				return state == CANCELLED;
+			}
+		}
+	}
+
+	private static final Log log = LogFactory.getLog(HashedWheelTimer.class);
+
+	private final String name;
+	private final long tickDuration;
+	private final Timeout[] wheel;
+	private final int mask;
+
+	private final Object lock = new Object();
+	private long tick = 0;
+	private long startTime;
+	private int size = 0;
+	private Thread worker = null;
+	private boolean stopped = false;
+
+	/**
+	 * @param name
+	 *            The name of the timer thread
+	 * @param tickDuration
+	 *            The duration (in ms) of a tick, i.e. the precision of the
+	 *            timeouts
+	 * @param ticksPerWheel
+	 *            The number of buckets of the wheel. It is rounded up to a
+	 *            power of 2
+	 */
+	public HashedWheelTimer(String name, long tickDuration, int ticksPerWheel) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be positive");
+
+		int size = 1;
+		while (size < ticksPerWheel)
+			size <<= 1;
+
+		this.name = name;
+		this.tickDuration = tickDuration;
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Schedules a task
+	 * 
+	 * @param task
+	 *            The task to execute
+	 * @param delay
+	 *            The delay (in ms) after which the task is executed
+	 * @return The handle used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		if (task == null)
+			throw new IllegalArgumentException("null task");
+
+		Timeout timeout = new Timeout(this, task);
+		synchronized (lock) {
+			if (stopped) {
+				timeout.state = Timeout.CANCELLED;
+				return timeout;
+			}
+			if (worker == null)
+				start();
+
+			// the number of ticks from the start of the timer, rounded up
+			long elapsed = now() - startTime;
+			long deadlineTick = (elapsed + Math.max(delay, 0) + tickDuration - 1) / tickDuration;
+			if (deadlineTick <= tick)
+				deadlineTick = tick + 1;
+
+			timeout.remainingRounds = (deadlineTick - tick - 1) / wheel.length;
+			timeout.bucket = (int) (deadlineTick & mask);
+
+			Timeout head = wheel[timeout.bucket];
+			timeout.next = head;
+			if (head != null)
+				head.prev = timeout;
+			wheel[timeout.bucket] = timeout;
+			size++;
+		}
+		return timeout;
+	}
+
+	/**
+	 * Stops the timer thread. The tasks not yet executed are discarded.
+	 */
+	public void stop() {
+		Thread worker;
+		synchronized (lock) {
+			stopped = true;
+			worker = this.worker;
+			if (worker == null)
+				return;
+			this.worker = null;
+
+			for (int i = 0; i < wheel.length; i++) {
+				for (Timeout timeout = wheel[i]; timeout != null; timeout = timeout.next)
+					timeout.state = Timeout.CANCELLED;
+				wheel[i] = null;
+			}
+			size = 0;
+			lock.notifyAll();
+		}
+
+		if (worker != Thread.currentThread()) {
+			try {
+				worker.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of scheduled tasks
+	 */
+	public int size() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+
+	private void start() {
+		startTime = now();
+		tick = 0;
+		worker = new Thread(new Runnable() {
+			public void run() {
+				work(Thread.currentThread());
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Returns the time (in ms) of a monotonic clock. The wall clock is not
+	 * used because it can jump (e.g. at the first NTP synchronization): a
+	 * forward jump would expire many timeouts at once, a backward one would
+	 * stall the wheel.
+	 */
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else if (wheel[timeout.bucket] == timeout)
+			wheel[timeout.bucket] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.next = null;
+		timeout.prev = null;
+		size--;
+	}
+
+	private void work(Thread thread) {
+		while (true) {
+			Timeout expired = null;
+
+			synchronized (lock) {
+				// waits for the next tick
+				while (true) {
+					if (worker != thread)
+						return;
+					long wait = startTime + (tick + 1) * tickDuration - now();
+					if (wait <= 0)
+						break;
+					try {
+						lock.wait(wait);
+					} catch (InterruptedException e) {
+						// checks if the timer has been stopped
+					}
+				}
+
+				tick++;
+
+				// collects the expired timeouts of the current bucket
+				int bucket = (int) (tick & mask);
+				Timeout timeout = wheel[bucket];
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.remainingRounds <= 0) {
+						unlink(timeout);
+						timeout.state = Timeout.EXPIRED;
+						timeout.next = expired;
+						expired = timeout;
+					} else {
+						timeout.remainingRounds--;
+					}
+					timeout = next;
+				}
+			}
+
+			// runs the tasks without holding the lock
+			while (expired != null) {
+				Timeout next = expired.next;
+				expired.next = null;
+				try {
+					expired.task.run();
+				} catch (Throwable e) {
+					log.error("exception in timer task", e);
+				}
+				expired = next;
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.energy_home.jemma.ah.zigbee.ZclFramePool;
+
+import edu.emory.mathcs.backport.java.util.concurrent.LinkedBlockingQueue;
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches the messages received from the ZigBee network on a fixed number
+ * of lanes. Each lane has a bounded queue and a single thread that consumes
+ * it. The messages are assigned to the lanes by hashing the node address, so
+ * the messages of a node are handled in the order they are received, while
+ * the messages of different nodes are handled in parallel.
+ * <p>
+ * Each lane thread has its own ZclFramePool, so the frames of the messages it
+ * handles can be reused.
+ * <p>
+ * When the queue of a lane is full, dispatch() blocks the caller (the thread
+ * that receives the messages from the gateway) for at most maxBlock ms. If
+ * the queue is still full after that time, the message is dropped.
+ */
+class InboundDispatcher {
+
+	private static final Log log = LogFactory.getLog(InboundDispatcher.class);
+
+	private final String name;
+	private final int queueSize;
+	private final long maxBlock;
+	private final Lane[] lanes;
+
+	private final AtomicLong dispatchedCounter = new AtomicLong();
+	private final AtomicLong blockedCounter = new AtomicLong();
+	private final AtomicLong droppedCounter = new AtomicLong();
+	private final AtomicLong failedCounter = new AtomicLong();
+
+	private volatile boolean running = false;
+
+	private class Lane implements Runnable {
+		private final LinkedBlockingQueue queue;
+		private Thread thread = null;
+		private volatile int maxQueueLength = 0;
+		private final ZclFramePool framePool = new ZclFramePool(8);
+
+		Lane() {
+			this.queue = new LinkedBlockingQueue(queueSize);
+		}
+
+		public void run() {
+			framePool.bindToCurrentThread();
+			try {
+				handleMessages();
+			} finally {
+				framePool.unbindFromCurrentThread();
+			}
+		}
+
+		private void handleMessages() {
+			while (running) {
+				Runnable task;
+				try {
+					task = (Runnable) queue.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				try {
+					task.run();
+				} catch (Throwable e) {
+					failedCounter.incrementAndGet();
+					log.error("exception while handling an incoming message", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param name
+	 *            Prefix of the names of the lane threads
+	 * @param lanes
+	 *            The number of lanes (threads)
+	 * @param queueSize
+	 *            The max number of messages waiting in each lane
+	 * @param maxBlock
+	 *            The max time (ms) dispatch() waits when a lane is full
+	 */
+	InboundDispatcher(String name, int lanes, int queueSize, long maxBlock) {
+		this.name = name;
+		this.queueSize = Math.max(queueSize, 1);
+		this.maxBlock = maxBlock;
+		this.lanes = new Lane[Math.max(lanes, 1)];
+		for (int i = 0; i < this.lanes.length; i++)
+			this.lanes[i] = new Lane();
+	}
+
+	synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		for (int i = 0; i < lanes.length; i++) {
+			Thread t = new Thread(lanes[i], name + " " + i);
+			t.setDaemon(true);
+			lanes[i].thread = t;
+			t.start();
+		}
+	}
+
+	/**
+	 * Stops the lane threads. The messages still queued are discarded.
+	 */
+	synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i].thread.interrupt();
+			lanes[i].thread = null;
+			droppedCounter.addAndGet(lanes[i].queue.size());
+			lanes[i].queue.clear();
+		}
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Queues a task on the lane selected by the passed hash
+	 * 
+	 * @param hash
+	 *            The hash of the source node of the message
+	 * @param task
+	 *            The task that handles the message
+	 * @return false if the task has been dropped
+	 */
+	boolean dispatch(int hash, Runnable task) {
+		if (!running) {
+			droppedCounter.incrementAndGet();
+			return false;
+		}
+
+		Lane lane = lanes[(hash & 0x7FFFFFFF) % lanes.length];
+		if (!lane.queue.offer(task)) {
+			blockedCounter.incrementAndGet();
+			boolean queued = false;
+			try {
+				queued = lane.queue.offer(task, maxBlock, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!queued) {
+				droppedCounter.incrementAndGet();
+				return false;
+			}
+		}
+
+		int length = lane.queue.size();
+		if (length > lane.maxQueueLength)
+			lane.maxQueueLength = length;
+
+		dispatchedCounter.incrementAndGet();
+		return true;
+	}
+
+	long getDispatchedCount() {
+		return dispatchedCounter.get();
+	}
+
+	/**
+	 * Returns the number of times dispatch() found a lane full and had to wait
+	 */
+	long getBlockedCount() {
+		return blockedCounter.get();
+	}
+
+	long getDroppedCount() {
+		return droppedCounter.get();
+	}
+
+	long getFailedCount() {
+		return failedCounter.get();
+	}
+
+	/**
+	 * Returns the current length of the queue of each lane, followed by the
+	 * max length reached
+	 */
+	String getQueueLengths() {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < lanes.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(lanes[i].queue.size()).append('/').append(lanes[i].maxQueueLength);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,582 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Schedules the messages sent to the ZigBee network. The messages are queued
+ * per destination node and are transmitted by a fixed number of threads, so
+ * the thread that produces a message does not wait for the gateway.
+ * <p>
+ * A message is in flight from the time it is handed to the Transmitter till
+ * the Transmitter completes its Transmission, possibly from another thread
+ * once the gateway has confirmed it. A message not completed within
+ * confirmTimeout ms is failed.
+ * <p>
+ * Scheduling rules:
+ * <ul>
+ * <li>The messages of a destination are transmitted in submission order,
+ * whatever their priority class, and at most maxPerDestination of them are in
+ * flight at the same time, so a slow node does not hold all the transmitting
+ * threads. With maxPerDestination set to 1 a message is sent only after the
+ * previous one to the same node has been completed.</li>
+ * <li>There are two priority classes: CONTROL (commands, writes and
+ * responses) and READ (attribute reads, usually sent by polling). They
+ * decide which destination is served next: the destinations whose next
+ * message is a CONTROL one are served first, but after controlWeight
+ * consecutive CONTROL messages a READ message, if any, is served, so reads
+ * are not starved. Within a class the destinations are served round
+ * robin.</li>
+ * <li>The number of messages in flight adapts to the gateway: it grows by
+ * one every "window" confirmed messages, up to maxInFlight, and is halved at
+ * each failure or confirm timeout (AIMD).</li>
+ * <li>A read request identical to one still queued (see ReadKey) is not
+ * queued: getQueuedReadOwner() lets the caller decide whether it can share
+ * the response to the queued one.</li>
+ * </ul>
+ * When the queue is full, submit() waits at most maxBlock ms and then drops
+ * the message.
+ */
+class OutboundScheduler {
+
+	private static final Log log = LogFactory.getLog(OutboundScheduler.class);
+
+	static final int CONTROL = 0;
+	static final int READ = 1;
+
+	/**
+	 * Transmits the messages. Both the methods are called without holding any
+	 * lock.
+	 */
+	interface Transmitter {
+		/**
+		 * Sends the message to the gateway. Called by the transmitting
+		 * threads.
+		 * 
+		 * @param transmission
+		 *            To be completed with the outcome of the message, now or
+		 *            later. It needs not be completed if this method throws an
+		 *            exception
+		 * @throws Exception
+		 *             If the gateway did not accept the message
+		 */
+		public void transmit(Object message, Transmission transmission) throws Exception;
+
+		/**
+		 * Notifies that the message submitted by the passed owner has not been
+		 * transmitted, either because the transmission failed or timed out or
+		 * because the scheduler has been stopped
+		 */
+		public void transmitFailed(Object owner, Exception e);
+	}
+
+	/**
+	 * A message in flight
+	 */
+	final class Transmission {
+		private final Entry entry;
+		private final long deadline;
+		// guarded by the scheduler
+		private boolean completed = false;
+
+		private Transmission(Entry entry, long deadline) {
+			this.entry = entry;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Completes the transmission. Only the first call has effect: the
+		 * calls after the confirm timeout are ignored.
+		 * 
+		 * @param failure
+		 *            null if the gateway has confirmed the message
+		 */
+		void completed(Exception failure) {
+			transmissionCompleted(this, failure);
+		}
+	}
+
+	/**
+	 * Identifies a read request regardless of its ZCL sequence number
+	 */
+	static class ReadKey {
+		private final long destination;
+		private final int endpoint;
+		private final int profileId;
+		private final int clusterId;
+		// the ZCL frame, with the sequence number set to 0
+		private final byte[] frame;
+		private final int hash;
+
+		ReadKey(long destination, int endpoint, int profileId, int clusterId, byte[] data, int sequenceOffset) {
+			this.destination = destination;
+			this.endpoint = endpoint;
+			this.profileId = profileId;
+			this.clusterId = clusterId;
+			this.frame = new byte[data.length];
+			System.arraycopy(data, 0, frame, 0, data.length);
+			frame[sequenceOffset] = 0;
+
+			int h = (int) (destination ^ (destination >>> 32));
+			h = 31 * h + endpoint;
+			h = 31 * h + profileId;
+			h = 31 * h + clusterId;
+			this.hash = 31 * h + Arrays.hashCode(frame);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof ReadKey))
+				return false;
+			ReadKey k = (ReadKey) o;
+			return (hash == k.hash) && (destination == k.destination) && (endpoint == k.endpoint)
+					&& (profileId == k.profileId) && (clusterId == k.clusterId) && Arrays.equals(frame, k.frame);
+		}
+	}
+
+	private static class Entry {
+		final Destination destination;
+		final int priority;
+		final Object message;
+		final ReadKey readKey;
+		final Object owner;
+
+		Entry(Destination destination, int priority, Object message, ReadKey readKey, Object owner) {
+			this.destination = destination;
+			this.priority = priority;
+			this.message = message;
+			this.readKey = readKey;
+			this.owner = owner;
+		}
+	}
+
+	private static class Destination {
+		final Long key;
+		// the queued messages, in submission order
+		final LinkedList queue = new LinkedList();
+		// true if the destination is in the ready list of the priority class
+		// of its first message
+		boolean ready = false;
+		int inFlight = 0;
+
+		Destination(Long key) {
+			this.key = key;
+		}
+	}
+
+	private final String name;
+	private final Transmitter transmitter;
+	private final int maxInFlight;
+	private final int maxPerDestination;
+	private final int capacity;
+	private final long maxBlock;
+	private final long confirmTimeout;
+	private final int controlWeight;
+
+	// all the following fields are guarded by this
+	private final Map destinations = new HashMap();
+	// destinations with messages that can be transmitted, by priority class of
+	// their first message. Entries are removed lazily: a destination found not
+	// eligible anymore is simply skipped
+	private final LinkedList[] ready = new LinkedList[] { new LinkedList(), new LinkedList() };
+	private final Map queuedReads = new HashMap();
+	// the messages in flight, oldest first: since the confirm timeout is
+	// fixed, the first one is the next to expire
+	private final LinkedList transmissions = new LinkedList();
+	private int queued = 0;
+	private int inFlight = 0;
+	private double window;
+	private int controlStreak = 0;
+	private boolean running = false;
+	private Thread[] threads = null;
+
+	private long sentCounter = 0;
+	private long failedCounter = 0;
+	private long timedOutCounter = 0;
+	private long droppedCounter = 0;
+	private long blockedCounter = 0;
+	private long coalescedCounter = 0;
+	private int maxQueued = 0;
+
+	/**
+	 * @param name
+	 *            Prefix of the names of the transmitting threads
+	 * @param transmitter
+	 *            Sends the messages
+	 * @param maxInFlight
+	 *            The number of transmitting threads, and the max number of
+	 *            messages in flight
+	 * @param maxPerDestination
+	 *            The max number of messages to the same destination in flight
+	 * @param capacity
+	 *            The max number of queued messages
+	 * @param maxBlock
+	 *            The max time (ms) submit() waits when the queue is full
+	 * @param confirmTimeout
+	 *            The max time (ms) a message stays in flight
+	 */
+	OutboundScheduler(String name, Transmitter transmitter, int maxInFlight, int maxPerDestination, int capacity, long maxBlock,
+			long confirmTimeout) {
+		this.name = name;
+		this.transmitter = transmitter;
+		this.maxInFlight = Math.max(maxInFlight, 1);
+		this.maxPerDestination = Math.max(maxPerDestination, 1);
+		this.capacity = Math.max(capacity, 1);
+		this.maxBlock = maxBlock;
+		this.confirmTimeout = Math.max(confirmTimeout, 1);
+		this.controlWeight = 4;
+		this.window = this.maxInFlight;
+	}
+
+	synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		threads = new Thread[maxInFlight];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					transmitMessages();
+				}
+			}, name + " " + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Stops the transmitting threads. The owners of the messages still queued
+	 * are notified with transmitFailed(), the messages in flight are ignored
+	 * when completed.
+	 */
+	void stop() {
+		List discarded = new LinkedList();
+		synchronized (this) {
+			if (!running)
+				return;
+			running = false;
+			for (int i = 0; i < threads.length; i++)
+				threads[i].interrupt();
+			threads = null;
+
+			for (Iterator i = destinations.values().iterator(); i.hasNext();) {
+				Destination d = (Destination) i.next();
+				discarded.addAll(d.queue);
+			}
+			for (Iterator i = transmissions.iterator(); i.hasNext();)
+				((Transmission) i.next()).completed = true;
+			transmissions.clear();
+			inFlight = 0;
+			destinations.clear();
+			ready[CONTROL].clear();
+			ready[READ].clear();
+			queuedReads.clear();
+			droppedCounter += queued;
+			queued = 0;
+			notifyAll();
+		}
+
+		Exception e = new Exception("outbound scheduler stopped");
+		for (Iterator i = discarded.iterator(); i.hasNext();)
+			notifyFailure((Entry) i.next(), e);
+	}
+
+	/**
+	 * Queues a message.
+	 * 
+	 * @param destination
+	 *            The key of the destination node (e.g. its IEEE address)
+	 * @param priority
+	 *            CONTROL or READ
+	 * @param readKey
+	 *            The key of a read request, used to detect the duplicated
+	 *            ones, or null
+	 * @param owner
+	 *            Passed to Transmitter.transmitFailed() if the message is not
+	 *            transmitted. It can be null
+	 * @return false if the scheduler is not running or the queue is full. If
+	 *         true, the failures are notified to the owner
+	 */
+	synchronized boolean submit(long destination, int priority, Object message, ReadKey readKey, Object owner) {
+		if (!running) {
+			droppedCounter++;
+			return false;
+		}
+
+		if (queued >= capacity) {
+			blockedCounter++;
+			long deadline = System.currentTimeMillis() + maxBlock;
+			try {
+				for (long wait = maxBlock; running && (queued >= capacity) && (wait > 0); wait = deadline
+						- System.currentTimeMillis())
+					wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!running || (queued >= capacity)) {
+				droppedCounter++;
+				return false;
+			}
+		}
+
+		Long key = new Long(destination);
+		Destination d = (Destination) destinations.get(key);
+		if (d == null) {
+			d = new Destination(key);
+			destinations.put(key, d);
+		}
+
+		Entry entry = new Entry(d, priority, message, readKey, owner);
+		d.queue.addLast(entry);
+		queued++;
+		if (queued > maxQueued)
+			maxQueued = queued;
+		if (readKey != null)
+			queuedReads.put(readKey, entry);
+		updateReady(d);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Returns the owner of the queued read request identified by the passed
+	 * key, or null if there is no such request. Once a read request is being
+	 * transmitted it is not returned anymore.
+	 */
+	synchronized Object getQueuedReadOwner(ReadKey readKey) {
+		Entry entry = (Entry) queuedReads.get(readKey);
+		return (entry == null) ? null : entry.owner;
+	}
+
+	/**
+	 * Counts a read request attached to a queued one, see getQueuedReadOwner()
+	 */
+	synchronized void readCoalesced() {
+		coalescedCounter++;
+	}
+
+	private void transmitMessages() {
+		while (true) {
+			Transmission transmission = null;
+			Transmission expired = null;
+			synchronized (this) {
+				try {
+					while (running) {
+						expired = expireTransmission();
+						if (expired != null)
+							break;
+						if (inFlight < (int) window) {
+							Entry entry = poll();
+							if (entry != null) {
+								transmission = new Transmission(entry, System.currentTimeMillis() + confirmTimeout);
+								break;
+							}
+						}
+						if (transmissions.isEmpty()) {
+							wait();
+						} else {
+							long timeout = ((Transmission) transmissions.getFirst()).deadline - System.currentTimeMillis();
+							if (timeout > 0)
+								wait(timeout);
+						}
+					}
+				} catch (InterruptedException e) {
+					// stopped
+				}
+				if (!running)
+					return;
+				if (transmission != null) {
+					inFlight++;
+					transmissions.addLast(transmission);
+					// a slot of the queue is available
+					notifyAll();
+				}
+			}
+
+			if (expired != null) {
+				notifyFailure(expired.entry, new Exception("message not confirmed within " + confirmTimeout + " ms"));
+				continue;
+			}
+
+			try {
+				transmitter.transmit(transmission.entry.message, transmission);
+			} catch (Exception e) {
+				transmission.completed(e);
+			}
+		}
+	}
+
+	/**
+	 * Fails the oldest message in flight, if its confirm timeout has expired
+	 * 
+	 * @return The expired transmission, or null
+	 */
+	private Transmission expireTransmission() {
+		if (transmissions.isEmpty())
+			return null;
+		Transmission transmission = (Transmission) transmissions.getFirst();
+		if (transmission.deadline > System.currentTimeMillis())
+			return null;
+		timedOutCounter++;
+		complete(transmission, false);
+		return transmission;
+	}
+
+	private void transmissionCompleted(Transmission transmission, Exception failure) {
+		synchronized (this) {
+			if (transmission.completed)
+				return;
+			if (failure == null)
+				sentCounter++;
+			else
+				failedCounter++;
+			complete(transmission, failure == null);
+		}
+
+		if (failure != null)
+			notifyFailure(transmission.entry, failure);
+	}
+
+	/**
+	 * Releases the slot of a message in flight and adapts the window to the
+	 * outcome
+	 */
+	private void complete(Transmission transmission, boolean confirmed) {
+		transmission.completed = true;
+		transmissions.remove(transmission);
+		inFlight--;
+		if (confirmed)
+			window = Math.min(maxInFlight, window + 1.0 / window);
+		else
+			window = Math.max(1.0, window / 2);
+
+		Destination d = transmission.entry.destination;
+		d.inFlight--;
+		if (d.queue.isEmpty() && (d.inFlight == 0)) {
+			if (destinations.get(d.key) == d)
+				destinations.remove(d.key);
+		} else {
+			updateReady(d);
+		}
+		notifyAll();
+	}
+
+	private void notifyFailure(Entry entry, Exception e) {
+		try {
+			transmitter.transmitFailed(entry.owner, e);
+		} catch (Throwable t) {
+			log.error("exception while notifying an outbound message failure", t);
+		}
+	}
+
+	/**
+	 * Takes the next message to transmit, if any
+	 */
+	private Entry poll() {
+		int first = (controlStreak >= controlWeight) ? READ : CONTROL;
+		Entry entry = poll(first);
+		if (entry == null)
+			entry = poll(1 - first);
+		if (entry != null)
+			controlStreak = (entry.priority == CONTROL) ? controlStreak + 1 : 0;
+		return entry;
+	}
+
+	private Entry poll(int priority) {
+		LinkedList list = ready[priority];
+		while (!list.isEmpty()) {
+			Destination d = (Destination) list.removeFirst();
+			d.ready = false;
+			if ((d.inFlight >= maxPerDestination) || d.queue.isEmpty())
+				continue;
+
+			Entry entry = (Entry) d.queue.removeFirst();
+			queued--;
+			d.inFlight++;
+			if ((entry.readKey != null) && (queuedReads.get(entry.readKey) == entry))
+				queuedReads.remove(entry.readKey);
+			// back at the end of the list: round robin
+			updateReady(d);
+			return entry;
+		}
+		return null;
+	}
+
+	private void updateReady(Destination d) {
+		if (d.ready || (d.inFlight >= maxPerDestination) || d.queue.isEmpty())
+			return;
+		d.ready = true;
+		ready[((Entry) d.queue.getFirst()).priority].addLast(d);
+	}
+
+	synchronized int getQueuedCount() {
+		return queued;
+	}
+
+	synchronized int getMaxQueuedCount() {
+		return maxQueued;
+	}
+
+	synchronized long getSentCount() {
+		return sentCounter;
+	}
+
+	synchronized long getFailedCount() {
+		return failedCounter;
+	}
+
+	/**
+	 * Returns the number of messages not confirmed within the confirm timeout
+	 */
+	synchronized long getTimedOutCount() {
+		return timedOutCounter;
+	}
+
+	synchronized long getDroppedCount() {
+		return droppedCounter;
+	}
+
+	/**
+	 * Returns the number of times submit() found the queue full and had to
+	 * wait
+	 */
+	synchronized long getBlockedCount() {
+		return blockedCounter;
+	}
+
+	synchronized long getCoalescedCount() {
+		return coalescedCounter;
+	}
+
+	/**
+	 * Returns the current max number of messages in flight
+	 */
+	synchronized int getWindow() {
+		return (int) window;
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.energy_home.jemma.ah.zigbee.IZclFrame;
+import org.energy_home.jemma.ah.zigbee.ZclFrame;
+import org.energy_home.jemma.ah.zigbee.ZclFramePool;
+import org.energy_home.jemma.ah.zigbee.ZclResponseListener;
+import org.energy_home.jemma.ah.zigbee.ZigBeeException;
+
+/**
+ * A ZCL request waiting for its response. A pending reply is completed exactly
+ * once: by the matching incoming frame, by the expiration of its timeout
+ * (detected by the reply timer that periodically sweeps the transaction table
+ * of the ZigBeeManagerImpl) or by an explicit abort. The listener is notified
+ * on the thread that completes it, so it must not block: the listeners of the
+ * asynchronous requests are wrapped by a DispatchedZclResponseListener, that
+ * moves the notification to the response executor.
+ * <p>
+ * Identical read requests issued while this one is still waiting to be
+ * transmitted are not sent: their listeners are added as followers (see
+ * addFollower()) and are completed together with this request, each one with
+ * its own copy of the response.
+ */
+class PendingZclReply {
+
+	private final ZigBeeDeviceImpl device;
+	private final long key;
+	private final short profileId;
+	private final short clusterId;
+	private final ZclResponseListener listener;
+
+	private boolean completed = false;
+	private List followers = null;
+
+	PendingZclReply(ZigBeeDeviceImpl device, long key, short profileId, short clusterId, ZclResponseListener listener) {
+		this.device = device;
+		this.key = key;
+		this.profileId = profileId;
+		this.clusterId = clusterId;
+		this.listener = listener;
+	}
+
+	long getKey() {
+		return key;
+	}
+
+	long getHash() {
+		return key & ZigBeeDeviceImpl.TX_RX_HASH_MASK;
+	}
+
+	short getProfileId() {
+		return profileId;
+	}
+
+	short getClusterId() {
+		return clusterId;
+	}
+
+	/**
+	 * Completes the request with the received response frame. The frame is
+	 * detached from its pool, if any, because the listener can keep it.
+	 *
+	 * @return false if the request was already completed
+	 */
+	boolean complete(IZclFrame zclResponseFrame) {
+		if (!markCompleted())
+			return false;
+		if (followers != null) {
+			// the frames are copied before the listener parses the response
+			IZclFrame[] copies = new IZclFrame[followers.size()];
+			for (int i = 0; i < copies.length; i++) {
+				byte[] data = new byte[zclResponseFrame.getData().length];
+				System.arraycopy(zclResponseFrame.getData(), 0, data, 0, data.length);
+				copies[i] = new ZclFrame(data);
+			}
+			listener.notifyZclResponse(clusterId, ZclFramePool.detach(zclResponseFrame));
+			for (int i = 0; i < copies.length; i++)
+				((ZclResponseListener) followers.get(i)).notifyZclResponse(clusterId, copies[i]);
+		} else {
+			listener.notifyZclResponse(clusterId, ZclFramePool.detach(zclResponseFrame));
+		}
+		return true;
+	}
+
+	/**
+	 * Completes the request with an error.
+	 *
+	 * @return false if the request was already completed
+	 */
+	boolean fail(ZigBeeException e) {
+		if (!markCompleted())
+			return false;
+		notifyError(e);
+		return true;
+	}
+
+	/**
+	 * Called by the reply timer when the timeout expires. The pending reply
+	 * has already been removed from the transaction table.
+	 */
+	void expired() {
+		if (!markCompleted())
+			return;
+		device.replyTimedOut(this);
+		notifyError(new ZigBeeException("timeout"));
+	}
+
+	/**
+	 * Adds a listener that is notified when this request completes, with the
+	 * same outcome. The listener is not added if the request is already
+	 * completed.
+	 * 
+	 * @return false if the request is already completed
+	 */
+	synchronized boolean addFollower(ZclResponseListener follower) {
+		if (completed)
+			return false;
+		if (followers == null)
+			followers = new ArrayList(2);
+		followers.add(follower);
+		return true;
+	}
+
+	private void notifyError(ZigBeeException e) {
+		listener.notifyZclResponseError(clusterId, e);
+		if (followers != null) {
+			for (int i = 0; i < followers.size(); i++)
+				((ZclResponseListener) followers.get(i)).notifyZclResponseError(clusterId, e);
+		}
+	}
+
+	private synchronized boolean markCompleted() {
+		if (completed)
+			return false;
+		completed = true;
+		return true;
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import org.energy_home.jemma.ah.zigbee.IZclFrame;
+import org.energy_home.jemma.ah.zigbee.ZclResponseListener;
+import org.energy_home.jemma.ah.zigbee.ZigBeeException;
+
+/**
+ * ZclResponseListener used to implement the synchronous invoke on top of the
+ * asynchronous one: the caller blocks in waitResponse() until the response or
+ * the timeout is notified.
+ */
+class ZclResponseWaiter implements ZclResponseListener {
+
+	private IZclFrame zclResponseFrame = null;
+	private ZigBeeException exception = null;
+	private boolean done = false;
+
+	public synchronized void notifyZclResponse(short clusterId, IZclFrame zclResponseFrame) {
+		this.zclResponseFrame = zclResponseFrame;
+		this.done = true;
+		notifyAll();
+	}
+
+	public synchronized void notifyZclResponseError(short clusterId, ZigBeeException e) {
+		this.exception = e;
+		this.done = true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the outcome of the request.
+	 *
+	 * @param maxWait
+	 *            Upper bound (in ms) of the wait. It is only a safety net in
+	 *            case the reply timer is not running, the request timeout is
+	 *            normally notified before.
+	 * @return The response frame
+	 * @throws ZigBeeException
+	 *             In case of timeout or if the request failed
+	 */
+	synchronized IZclFrame waitResponse(long maxWait) throws ZigBeeException {
+		long deadline = System.currentTimeMillis() + maxWait;
+		try {
+			while (!done) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					throw new ZigBeeException("timeout");
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			throw new ZigBeeException("interrupted system call during post");
+		}
+
+		if (exception != null)
+			throw exception;
+		return zclResponseFrame;
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLongArray;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent table used to match the ZCL responses with the pending requests.
+ * Keys are primitive non negative longs (see
+ * ZigBeeDeviceImpl.getTransactionKey()),
+ * so nothing is boxed or allocated to insert or remove an entry.
+ * <p>
+ * The table uses open addressing with linear probing over a fixed window of
+ * slots. Slots are claimed and released with CAS operations, so no lock is
+ * taken by put(), remove() and expire(). Each entry carries a deadline: the
+ * entries whose response never arrived are removed by expire(), which is
+ * periodically called by the reply timer and notifies them to an
+ * ExpiryListener.
+ * <p>
+ * Inserting twice the same key is not forbidden: the caller is expected to
+ * remove() the key before putting it again. Should two threads insert
+ * concurrently the same key, the entry that is not matched simply expires.
+ */
+class ZclTransactionTable {
+
+	/**
+	 * Notified by expire() for each entry whose deadline is passed
+	 */
+	interface ExpiryListener {
+		public void expired(long key, Object value);
+	}
+
+	private static final long EMPTY = -1;
+
+	private final int mask;
+	private final int maxProbes;
+
+	private final AtomicLongArray keys;
+	private final AtomicLongArray deadlines;
+	private final AtomicReferenceArray values;
+
+	private final AtomicLong expiredCounter = new AtomicLong();
+	private final AtomicLong overflowCounter = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            The number of slots. It is rounded up to a power of 2
+	 * @param maxProbes
+	 *            The max number of slots examined when looking for a key. It
+	 *            bounds the cost of a lookup, including the lookup of a
+	 *            missing key (i.e. of any unsolicited frame)
+	 */
+	ZclTransactionTable(int capacity, int maxProbes) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+
+		this.mask = size - 1;
+		this.maxProbes = Math.min(maxProbes, size);
+		this.keys = new AtomicLongArray(size);
+		this.deadlines = new AtomicLongArray(size);
+		this.values = new AtomicReferenceArray(size);
+
+		for (int i = 0; i < size; i++)
+			keys.set(i, EMPTY);
+	}
+
+	/**
+	 * Inserts a new entry.
+	 *
+	 * @param key
+	 *            The key, it must be a non negative number
+	 * @param value
+	 *            The value, it cannot be null
+	 * @param deadline
+	 *            The time (System.currentTimeMillis() based) after which the
+	 *            entry is removed by expire()
+	 * @return false if there is no free slot in the probing window of the key
+	 */
+	boolean put(long key, Object value, long deadline) {
+		if (key < 0)
+			throw new IllegalArgumentException("negative key");
+		if (value == null)
+			throw new IllegalArgumentException("null value");
+
+		int index = indexOf(key);
+		for (int i = 0; i < maxProbes; i++) {
+			int slot = (index + i) & mask;
+			if ((keys.get(slot) == EMPTY) && keys.compareAndSet(slot, EMPTY, key)) {
+				deadlines.set(slot, deadline);
+				// publishes the entry
+				values.set(slot, value);
+				return true;
+			}
+		}
+
+		overflowCounter.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Removes the entry associated to the passed key.
+	 *
+	 * @return The removed value or null if the key is not in the table
+	 */
+	Object remove(long key) {
+		int index = indexOf(key);
+		for (int i = 0; i < maxProbes; i++) {
+			int slot = (index + i) & mask;
+			if (keys.get(slot) == key) {
+				Object value = values.get(slot);
+				if ((value != null) && values.compareAndSet(slot, value, null)) {
+					keys.set(slot, EMPTY);
+					return value;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the entry associated to the passed key only if its value is the
+	 * passed one.
+	 *
+	 * @return false if the entry is not in the table
+	 */
+	boolean remove(long key, Object value) {
+		if (value == null)
+			return false;
+
+		int index = indexOf(key);
+		for (int i = 0; i < maxProbes; i++) {
+			int slot = (index + i) & mask;
+			if ((keys.get(slot) == key) && values.compareAndSet(slot, value, null)) {
+				keys.set(slot, EMPTY);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the value associated to the passed key, without removing it.
+	 */
+	Object get(long key) {
+		int index = indexOf(key);
+		for (int i = 0; i < maxProbes; i++) {
+			int slot = (index + i) & mask;
+			if (keys.get(slot) == key) {
+				Object value = values.get(slot);
+				if ((value != null) && (keys.get(slot) == key))
+					return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes all the entries whose deadline is before the passed time and
+	 * notifies them to the listener.
+	 *
+	 * @return The number of expired entries
+	 */
+	int expire(long now, ExpiryListener listener) {
+		int expired = 0;
+		for (int slot = 0; slot <= mask; slot++) {
+			Object value = values.get(slot);
+			if ((value != null) && (deadlines.get(slot) <= now)) {
+				long key = keys.get(slot);
+				if (values.compareAndSet(slot, value, null)) {
+					keys.set(slot, EMPTY);
+					expired++;
+					if (listener != null)
+						listener.expired(key, value);
+				}
+			}
+		}
+
+		if (expired > 0)
+			expiredCounter.addAndGet(expired);
+		return expired;
+	}
+
+	/**
+	 * Returns the number of entries currently in the table. The value is
+	 * computed scanning the table, so it is meant for diagnostics only.
+	 */
+	int size() {
+		int size = 0;
+		for (int slot = 0; slot <= mask; slot++) {
+			if (values.get(slot) != null)
+				size++;
+		}
+		return size;
+	}
+
+	long getExpiredCount() {
+		return expiredCounter.get();
+	}
+
+	long getOverflowCount() {
+		return overflowCounter.get();
+	}
+
+	private int indexOf(long key) {
+		// Fibonacci hashing spreads the sequence numbers (low bits) and the
+		// device ids (high bits) over the whole table
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+}
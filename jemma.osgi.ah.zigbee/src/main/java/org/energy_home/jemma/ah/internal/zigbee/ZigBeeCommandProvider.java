@@ -78,6 +78,20 @@ public class ZigBeeCommandProvider implements CommandProvider {
 		}
 	}
 
+	public void _stats(CommandInterpreter ci) {
+		synchronized (this) {
+			if (!this.checkZbMngrService(ci))
+				return;
+
+			try {
+				Dictionary stats = ((ZigBeeManagerImpl) this.zbMngr).getStatistics();
+				ci.printDictionary(stats, "Statistics");
+			} catch (Exception e) {
+				System.out.println("Error in stats: " + e.getMessage());
+			}
+		}
+	}
+
 	public void _disablenvm(CommandInterpreter ci) {
 		synchronized (this) {
 			if (!this.checkZbMngrService(ci))
@@ -247,6 +261,7 @@ public class ZigBeeCommandProvider implements CommandProvider {
 		help += "\tzb getusenvm - returns true if the NVM-usage is enabled, false otherwise\n";
 		help += "\tzb status - true if zgd is running, false otherwise\n";
 		help += "\tzb config - print the current service configuration (configadmin)\n";
+		help += "\tzb stats - print the counters of the pending requests and of the inbound dispatcher\n";
 		help += "\tzb lsdevs - list currently discovered devices\n";
 		help += "\tzb bind add <node IEEE addr> <ep> <clusterId>  - add a bind from the local node with the remote device cluster\n";
 		help += "\tzb bind remove <node IEEE addr> [<ep> <clusterId>]  - remove binds the local node with the remote device cluster\n";
@@ -24,7 +24,6 @@ import org.energy_home.jemma.ah.hac.ServiceClusterException;
 import org.energy_home.jemma.ah.hac.UnsupportedClusterAttributeException;
 import org.energy_home.jemma.ah.hac.UnsupportedClusterOperationException;
 
-import java.util.Hashtable;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -33,9 +32,12 @@ import org.eclipse.equinox.internal.util.timer.Timer;
 import org.eclipse.equinox.internal.util.timer.TimerListener;
 import org.energy_home.jemma.ah.zigbee.IZclFrame;
 import org.energy_home.jemma.ah.zigbee.ZCL;
+import org.energy_home.jemma.ah.zigbee.ZclFrame;
 import org.energy_home.jemma.ah.zigbee.ZigBeeDevice;
+import org.energy_home.jemma.ah.zigbee.ZclResponseListener;
 import org.energy_home.jemma.ah.zigbee.ZigBeeDeviceListener;
 import org.energy_home.jemma.ah.zigbee.ZigBeeException;
+import org.energy_home.jemma.ah.zigbee.ZigBeeTimer;
 import org.energy_home.jemma.ah.zigbee.zcl.ZclException;
 import org.energy_home.jemma.ah.zigbee.zcl.cluster.general.ZclPartitionServer;
 import org.energy_home.jemma.ah.zigbee.zcl.lib.ZclServiceCluster;
@@ -44,10 +46,7 @@ import org.energy_home.jemma.zgd.jaxb.NodeServices;
 import org.energy_home.jemma.zgd.jaxb.ServiceDescriptor;
 import org.osgi.framework.ServiceReference;
 
-import edu.emory.mathcs.backport.java.util.concurrent.SynchronousQueue;
-import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
-import edu.emory.mathcs.backport.java.util.concurrent.locks.Lock;
-import edu.emory.mathcs.backport.java.util.concurrent.locks.ReentrantLock;
+import edu.emory.mathcs.backport.java.util.concurrent.Executor;
 
 /**
  * The ZigBeeDeviceImpl class implements the ZigBeeDevice interface. The purpose
@@ -93,11 +92,17 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 
 	boolean warnings = false;
 
-	private Hashtable pendingReplies = new Hashtable();
-	private Hashtable listenersListClientSide = new Hashtable();
-	private Hashtable listenersListServerSide = new Hashtable();
+	/**
+	 * Mask of the bits of a transaction key used by the hash of the frame
+	 * (clusterId and sequence number). The remaining bits identify the device.
+	 */
+	static final long TX_RX_HASH_MASK = 0xFFFFFF;
+
+	private final long transactionKeyBase;
+
+	private ClusterListeners listenersListClientSide = new ClusterListeners();
+	private ClusterListeners listenersListServerSide = new ClusterListeners();
 
-	private Lock messagesLock = new ReentrantLock();
 	private Object lock = new Object();
 
 	protected Log log = LogFactory.getLog(this.getClass());
@@ -110,6 +115,7 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 		this.zigbeeManager = zigbeeManager;
 		this.timer = timer;
 		this.service = service;
+		this.transactionKeyBase = zigbeeManager.newTransactionKeyBase();
 	}
 
 	public ZigBeeDeviceImpl(ZigBeeManagerImpl zigbeeManager, Timer timer, NodeServices nodeServices, NodeDescriptor node, ServiceDescriptor service) {
@@ -118,6 +124,7 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 		this.service = service;
 		this.node = node;
 		this.nodeServices = nodeServices;
+		this.transactionKeyBase = zigbeeManager.newTransactionKeyBase();
 	}
 
 	/**
@@ -180,57 +187,95 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 	}
 
 	public IZclFrame invoke(short profileId, short clusterId, IZclFrame zclFrame) throws ZigBeeException {
-		// check if the message contains requires a default answer
+		// the waiter only wakes up this thread, it is notified directly by the
+		// thread that completes the request
+		ZclResponseWaiter waiter = new ZclResponseWaiter();
+		send(profileId, clusterId, zclFrame, waiter);
+		// here it blocks till the matching response is received or the reply
+		// timer notifies the timeout.
+		return waiter.waitResponse((getReplyTimeout(clusterId) + timeout) * 1000L);
+	}
+
+	public void invokeAsync(short clusterId, IZclFrame zclFrame, ZclResponseListener listener) throws ZigBeeException {
+		invokeAsync((short) this.service.getSimpleDescriptor().getApplicationProfileIdentifier().intValue(), clusterId, zclFrame,
+				listener);
+	}
+
+	public void invokeAsync(short profileId, short clusterId, IZclFrame zclFrame, ZclResponseListener listener)
+			throws ZigBeeException {
+		send(profileId, clusterId, zclFrame, zigbeeManager.getDispatchedListener(listener));
+	}
+
+	/**
+	 * Sends the request. The listener is notified by the thread that
+	 * completes the request: the one receiving the response, the reply timer
+	 * or the one aborting the request.
+	 */
+	private void send(short profileId, short clusterId, IZclFrame zclFrame, ZclResponseListener listener) throws ZigBeeException {
+		// an identical read that is still queued answers this request too
+		if (zigbeeManager.coalesceRead(this, profileId, clusterId, zclFrame, listener))
+			return;
 
 		long hash = calculateTxRxHash(clusterId, zclFrame);
+		long key = getTransactionKey(hash);
 
-		SynchronousQueue sq = new SynchronousQueue();
+		PendingZclReply pendingReply = new PendingZclReply(this, key, profileId, clusterId, listener);
+
+		PendingZclReply previousReply = zigbeeManager.removePendingReply(key);
+		if (previousReply != null) {
+			// a request with the same cluster and sequence number is still
+			// waiting: its response can't be matched anymore.
+			previousReply.fail(new ZigBeeException("request superseded by a new one with the same sequence number"));
+		}
 
-		messagesLock.lock();
-		pendingReplies.put(new Long(hash), sq);
-		messagesLock.unlock();
+		// throws an exception if the reply timer is not running or the
+		// transaction table is full
+		zigbeeManager.addPendingReply(pendingReply, getReplyTimeout(clusterId) * 1000L);
 
 		if (log.isDebugEnabled() && zigbeeManager.isRxTxLogEnabled())
 			this.logZclMessage(true, hash, profileId, clusterId, zclFrame);
 
-		synchronized (lock) {
-			// TODO: do we need to synchronize here?
-			boolean res = zigbeeManager.post(this, profileId, clusterId, zclFrame);
-			if (!res)
-				throw new ZigBeeException("error sending message to ZigBee device");
+		// not holding the lock: the post can wait for room in the outbound
+		// queue
+		boolean res = zigbeeManager.post(this, profileId, clusterId, zclFrame, pendingReply);
+
+		if (!res) {
+			// a newer request could have reused the same key
+			zigbeeManager.removePendingReply(pendingReply);
+			pendingReply.fail(new ZigBeeException("error sending message to ZigBee device"));
+			throw new ZigBeeException("error sending message to ZigBee device");
 		}
-		try {
-			// here it should block till the matching response is received
-			// or a timeout has occurred.
+	}
 
-			timeout = 4;
+	/**
+	 * Returns the time (in seconds) to wait for the response of a request sent
+	 * to the passed cluster
+	 */
+	private int getReplyTimeout(short clusterId) {
+		if (clusterId == 2819)
+			return 100;
+		return 4;
+	}
 
-			if (clusterId == 2819)
-				timeout = 100;
+	/**
+	 * Returns the key used in the transaction table of the ZigBeeManagerImpl
+	 * for the passed hash: the hash is unique only within a device.
+	 */
+	private long getTransactionKey(long hash) {
+		return transactionKeyBase | (hash & TX_RX_HASH_MASK);
+	}
 
-			IZclFrame zclResponseFrame = (IZclFrame) sq.poll(timeout, TimeUnit.SECONDS);
-			if (zclResponseFrame == null) {
-				this.logZclMessage(false, hash, profileId, clusterId, null);
+	/**
+	 * Called by the reply timer when a pending request expires
+	 */
+	void replyTimedOut(PendingZclReply pendingReply) {
+		this.logZclMessage(false, pendingReply.getHash(), pendingReply.getProfileId(), pendingReply.getClusterId(), null);
 
-				if (trackNode) {
-					synchronized (lock) {
-						this.transmissionFailed();
-					}
-				}
-				messagesLock.lock();
-				pendingReplies.remove(new Long(hash));
-				messagesLock.unlock();
-				throw new ZigBeeException("timeout");
+		if (trackNode) {
+			synchronized (lock) {
+				this.transmissionFailed();
 			}
-
-			if (log.isDebugEnabled() && zigbeeManager.isRxTxLogEnabled())
-				this.logZclMessage(false, hash, profileId, clusterId, zclFrame);
-
-			return zclResponseFrame;
-		} catch (InterruptedException e) {
-			throw new ZigBeeException("interrupted system call during post");
 		}
-
 	}
 
 	private void logZclMessage(boolean outgoing, long hash, short profileId, short clusterId, IZclFrame zclFrame) {
@@ -290,29 +335,55 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 			}
 		}
 
-		messagesLock.lock();
-		SynchronousQueue sq = (SynchronousQueue) pendingReplies.remove(new Long(hash));
-		messagesLock.unlock();
+		PendingZclReply pendingReply = zigbeeManager.removePendingReply(getTransactionKey(hash));
 
-		if (sq == null) {
+		if ((pendingReply == null) || !pendingReply.complete(zclFrame)) {
 			// simply sends the message to the upper layer. If any exception
 			// arises this exception is decoded and sent back to the source
 			// ZigBee device
 			notifyListeners(clusterId, zclFrame);
-		} else {
-			try {
-				sq.put(zclFrame);
-			} catch (InterruptedException e) {
-				if (log.isErrorEnabled())
-					log.error("exception", e);
-
-				return false;
-			}
 		}
 
 		return true;
 	}
 
+	/**
+	 * Called by the ZigBee Manager on the thread that receives the messages
+	 * from the gateway, before the message is queued for notifyZclFrame().
+	 * If the frame is the response to a pending request, the request is
+	 * completed immediately. This way a request issued (and waited for) by a
+	 * thread that handles the incoming messages of the same node cannot
+	 * block waiting for a response queued behind itself.
+	 * 
+	 * The frame is read directly from the APS payload: a ZclFrame is created
+	 * only if the frame is a response.
+	 * 
+	 * @return true if the frame has been consumed as a response
+	 */
+	boolean notifyZclResponse(short clusterId, byte[] data) {
+		// short frames (e.g. a manufacturer specific frame without its
+		// sequence number) follow the normal delivery path
+		if ((data == null) || (data.length < 3) || (data.length < ZclFrame.getZclHeaderSize(data))
+				|| isPartitioningCluster(clusterId))
+			return false;
+
+		long hash = calculateTxRxHash(clusterId, ZclFrame.getSequenceNumber(data));
+		PendingZclReply pendingReply = zigbeeManager.removePendingReply(getTransactionKey(hash));
+		if (pendingReply == null)
+			return false;
+
+		IZclFrame zclFrame = new ZclFrame(data);
+
+		if (log.isDebugEnabled() && zigbeeManager.isRxTxLogEnabled())
+			this.logZclMessage(false, hash, pendingReply.getProfileId(), clusterId, zclFrame);
+
+		if (trackNode) {
+			deviceAlive();
+		}
+
+		return pendingReply.complete(zclFrame);
+	}
+
 	private void notifyListeners(short clusterId, IZclFrame zclFrame) throws ZclException {
 		
 		if (log.isDebugEnabled() && zigbeeManager.isNotifyFrameLogEnabled())
@@ -320,10 +391,10 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 		Vector listeners = null;
 
 		if (zclFrame.isClientToServer()) {
-			listeners = (Vector) listenersListClientSide.get(new Short(clusterId));
+			listeners = listenersListClientSide.get(clusterId);
 		}
 		else {
-			listeners = (Vector) listenersListServerSide.get(new Short(clusterId));
+			listeners = listenersListServerSide.get(clusterId);
 		}
 
 		if ((listeners != null) && (listeners.size() > 0)) {			
@@ -430,8 +501,19 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 		if (log.isDebugEnabled() && zigbeeManager.isRxTxLogEnabled())
 			this.logZclMessage(true, -1, profileId, clusterId, zclFrame);
 
-		synchronized (lock) {
-			return zigbeeManager.post(this, profileId, clusterId, zclFrame);
+		return zigbeeManager.post(this, profileId, clusterId, zclFrame);
+	}
+
+	/**
+	 * Called when a frame passed to post() has been queued, but not confirmed
+	 * by the gateway
+	 */
+	void postFailed(Exception e) {
+		log.error(getPid() + ": message not sent: " + e.getMessage());
+		if (trackNode) {
+			synchronized (lock) {
+				this.transmissionFailed();
+			}
 		}
 	}
 
@@ -489,9 +571,13 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 	}
 
 	private long calculateTxRxHash(short clusterId, IZclFrame zclFrame) {
+		return calculateTxRxHash(clusterId, zclFrame.getSequenceNumber());
+	}
+
+	private long calculateTxRxHash(short clusterId, byte sequenceNumber) {
 		long hash = clusterId;
 		hash = hash << 8;
-		return zclFrame.getSequenceNumber() & 0xFF | hash;
+		return sequenceNumber & 0xFF | hash;
 	}
 
 	protected void announce() {
@@ -504,7 +590,7 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 
 	public boolean setListener(short clusterId, int side, ZigBeeDeviceListener listener) {
 		synchronized (lock) {
-			Hashtable listenersList = null;
+			ClusterListeners listenersList = null;
 			if (side == ZclServiceCluster.CLIENT_SIDE) {
 				listenersList = listenersListClientSide;
 			} 
@@ -515,12 +601,7 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 				return false;
 			}
 
-			Vector listeners = (Vector) listenersList.get(new Short(clusterId));
-			if (listeners == null) {
-				listeners = new Vector();
-				listenersList.put(new Short(clusterId), listeners);
-			}
-
+			Vector listeners = listenersList.getOrCreate(clusterId);
 			listeners.add(listener);
 			return true;
 		}
@@ -528,14 +609,14 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 
 	protected Vector getListeners(short clusterId) {
 		synchronized (lock) {
-			Vector listeners = (Vector) listenersListClientSide.get(new Short(clusterId));
+			Vector listeners = listenersListClientSide.get(clusterId);
 			return listeners;
 		}
 	}
 
 	public boolean removeListener(short clusterId, int side, ZigBeeDeviceListener listener) {
 		synchronized (lock) {
-			Hashtable listenersList = null;
+			ClusterListeners listenersList = null;
 			if (side == ZclServiceCluster.CLIENT_SIDE) {
 				listenersList = listenersListClientSide;
 			}
@@ -545,7 +626,7 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 				return false;
 			}
 
-			Vector listeners = (Vector) listenersList.get(new Short(clusterId));
+			Vector listeners = listenersList.get(clusterId);
 			if (listeners != null) {
 				return listeners.remove(listener);
 			}
@@ -590,8 +671,14 @@ public class ZigBeeDeviceImpl implements ZigBeeDevice, TimerListener {
 
 	public boolean enablePartitionServer(short clusterId, short commandId) {
 		if (partitionFsmServer == null) {
+			ZigBeeTimer timer = zigbeeManager.getPartitionTimer();
+			Executor sender = zigbeeManager.getPartitionSender();
+			if (timer == null || sender == null) {
+				log.debug("ZigBee manager not active, partition server not created");
+				return false;
+			}
 			try {
-				partitionFsmServer = new ZclPartitionServer((ZigBeeDevice) this);
+				partitionFsmServer = new ZclPartitionServer((ZigBeeDevice) this, timer, sender);
 				partitionFsmServer.zclAttach(this);
 
 			} catch (ApplianceException e) {
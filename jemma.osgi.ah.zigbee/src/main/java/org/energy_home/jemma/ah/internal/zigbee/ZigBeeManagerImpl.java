@@ -20,11 +20,8 @@ import org.energy_home.jemma.ah.hac.lib.ext.INetworkManager;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.net.URL;
@@ -39,7 +36,6 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
@@ -51,9 +47,13 @@ import org.eclipse.equinox.internal.util.timer.TimerListener;
 import org.energy_home.jemma.ah.zigbee.IZclFrame;
 import org.energy_home.jemma.ah.zigbee.ZCL;
 import org.energy_home.jemma.ah.zigbee.ZclFrame;
+import org.energy_home.jemma.ah.zigbee.ZclFramePool;
+import org.energy_home.jemma.ah.zigbee.ZclResponseListener;
 import org.energy_home.jemma.ah.zigbee.ZigBeeDevice;
 import org.energy_home.jemma.ah.zigbee.ZigBeeDeviceListener;
+import org.energy_home.jemma.ah.zigbee.ZigBeeException;
 import org.energy_home.jemma.ah.zigbee.ZigBeeMngrService;
+import org.energy_home.jemma.ah.zigbee.ZigBeeTimer;
 import org.energy_home.jemma.ah.zigbee.zcl.ZclException;
 import org.energy_home.jemma.ah.zigbee.zcl.ZclValidationException;
 import org.energy_home.jemma.ah.zigbee.zcl.cluster.eh.ZclApplianceControlClient;
@@ -79,6 +79,8 @@ import org.energy_home.jemma.ah.zigbee.zcl.cluster.metering.ZclSimpleMeteringCli
 import org.energy_home.jemma.ah.zigbee.zcl.cluster.metering.ZclSimpleMeteringServer;
 import org.energy_home.jemma.ah.zigbee.zcl.cluster.security.ZclIASZoneClient;
 import org.energy_home.jemma.ah.zigbee.zcl.cluster.zll.ZclLightLinkColorControlClient;
+import org.energy_home.jemma.ah.zigbee.zcl.lib.ZclServiceCluster;
+import org.energy_home.jemma.zgd.APSMessageConfirmListener;
 import org.energy_home.jemma.zgd.APSMessageListener;
 import org.energy_home.jemma.zgd.GatewayConstants;
 import org.energy_home.jemma.zgd.GatewayEventListener;
@@ -104,6 +106,15 @@ import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 
+import edu.emory.mathcs.backport.java.util.concurrent.Executor;
+import edu.emory.mathcs.backport.java.util.concurrent.LinkedBlockingQueue;
+import edu.emory.mathcs.backport.java.util.concurrent.RejectedExecutionException;
+import edu.emory.mathcs.backport.java.util.concurrent.ScheduledFuture;
+import edu.emory.mathcs.backport.java.util.concurrent.ScheduledThreadPoolExecutor;
+import edu.emory.mathcs.backport.java.util.concurrent.ThreadFactory;
+import edu.emory.mathcs.backport.java.util.concurrent.ThreadPoolExecutor;
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
 import edu.emory.mathcs.backport.java.util.concurrent.locks.ReentrantReadWriteLock;
 
 class InstallationStatus implements Serializable {
@@ -126,6 +137,14 @@ class InstallationStatus implements Serializable {
 	private HashMap activeEpsMap = new HashMap();
 	private NodeServices services;
 
+	// state of the discovery process, not persisted
+	private transient int failures = 0;
+	private transient long requestSequence = 0;
+	private transient boolean waitingForResponse = false;
+	private transient long notBefore = 0;
+	private transient boolean known = false;
+	private transient ScheduledFuture discoveryTask = null;
+
 	public InstallationStatus(Address a) {
 		this.address = a;
 	}
@@ -143,11 +162,83 @@ class InstallationStatus implements Serializable {
 	}
 
 	public int getRetryCounter() {
+		failures++;
 		return retryCounter--;
 	}
 
 	public void resetRetryCounter() {
 		retryCounter = 4;
+		failures = 0;
+	}
+
+	/**
+	 * Returns the delay before retrying the current discovery request. It is
+	 * doubled at each failure of the request.
+	 */
+	public long getRetryDelay(long backoff) {
+		int shift = (failures > 0) ? Math.min(failures - 1, 5) : 0;
+		return backoff << shift;
+	}
+
+	/**
+	 * Called when a discovery request has been sent to the gateway for this
+	 * node
+	 * 
+	 * @param requestSequence
+	 *            The sequence number of the request, used to tell the
+	 *            timeouts and the retries of an older request apart
+	 */
+	public void requestSent(long requestSequence) {
+		this.requestSequence = requestSequence;
+		this.waitingForResponse = true;
+	}
+
+	public void responseReceived() {
+		this.waitingForResponse = false;
+	}
+
+	public long getRequestSequence() {
+		return requestSequence;
+	}
+
+	public boolean isWaitingForResponse() {
+		return waitingForResponse;
+	}
+
+	/**
+	 * Returns the time before which the discovery of the node cannot be
+	 * (re)started
+	 */
+	public long getNotBefore() {
+		return notBefore;
+	}
+
+	public void setNotBefore(long notBefore) {
+		this.notBefore = notBefore;
+	}
+
+	/**
+	 * Returns true if the node was already in the db of the discovered devices
+	 * when it has been announced
+	 */
+	public boolean isKnown() {
+		return known;
+	}
+
+	public void setKnown(boolean known) {
+		this.known = known;
+	}
+
+	/**
+	 * Returns the timeout of the outstanding request or the retry of the
+	 * failed one, if any
+	 */
+	public ScheduledFuture getDiscoveryTask() {
+		return discoveryTask;
+	}
+
+	public void setDiscoveryTask(ScheduledFuture discoveryTask) {
+		this.discoveryTask = discoveryTask;
 	}
 
 	public void setStatus(int status) {
@@ -217,6 +308,12 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 	private Hashtable ieee2devices = new Hashtable();
 	private Hashtable ieee2sr = new Hashtable();
 
+	/**
+	 * Routes the incoming messages to the installed devices. It is updated
+	 * together with ieee2devices.
+	 */
+	private EndpointRoutingIndex routingIndex = new EndpointRoutingIndex();
+
 	/**
 	 * Used to track the status of a ZigBee device installation phase. This is a
 	 * dictionary indexed on ieee address { String ieeeAddress,
@@ -228,6 +325,38 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 	private LinkedList inProcessNode = new LinkedList();
 	private Hashtable installedDevices = new Hashtable();
 
+	/**
+	 * The node waiting for the node descriptor. The nodeDescriptorRetrieved()
+	 * callback doesn't carry the address of the node, so only one node at a
+	 * time can wait for it. The other discovery steps of the nodes in
+	 * inProcessNode proceed concurrently.
+	 */
+	private InstallationStatus nodeDescriptorRequest = null;
+
+	/**
+	 * The nodes waiting for the services and for a service descriptor. When
+	 * these requests fail the gateway doesn't return the address of the node,
+	 * so only one node at a time can have one of them outstanding: a failure is
+	 * always charged to the node that sent the request. The other nodes wait
+	 * in the queues below and send their request when the current one is
+	 * completed.
+	 */
+	private InstallationStatus servicesRequest = null;
+	private InstallationStatus serviceDescriptorRequest = null;
+	private LinkedList queuedServicesRequests = new LinkedList();
+	private LinkedList queuedServiceDescriptorRequests = new LinkedList();
+
+	/**
+	 * Sequence number of the discovery requests sent to the gateway. It tells
+	 * the timeouts and the retries of a superseded request apart.
+	 */
+	private long discoveryRequestSequence = 0;
+
+	/**
+	 * Restarts the discovery when all the queued nodes are waiting for a retry
+	 */
+	private ScheduledFuture discoveryWakeup = null;
+
 	private boolean enableRxTxLogs = true;
 	private boolean enableLockingLogs = false;
 	private boolean enableNotifyFrameLogs = false;
@@ -237,9 +366,8 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 	private static final int JGalReconnectTimer = 2;
 	private static final int discoveryTimer = 3;
 	private static final int permitJoinAllTimer = 4;
-	private static final int galCommandTimer = 5;
 
-	private GatewayInterface gateway;
+	private volatile GatewayInterface gateway;
 
 	// FIXME: currently we use EP 8 because of a problem in the GAL
 	private short localEndpoint = 1;
@@ -253,6 +381,58 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 	private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
 
 	private Object sLock = new Object(); // for DS bind and unbind methods
+
+	/**
+	 * Shared timer used to expire the ZCL requests waiting for a response and
+	 * the discovery requests sent to the gateway, and to schedule the retries
+	 * of the failed discovery requests. A single thread serves all the devices.
+	 */
+	private volatile ScheduledThreadPoolExecutor replyTimer = null;
+
+	/**
+	 * Period (in ms) of the sweep of the transaction table done by the reply
+	 * timer. It is the resolution of the ZCL request timeouts.
+	 */
+	private static final long replyTimerPeriod = 250;
+
+	/**
+	 * Pending ZCL requests of all the devices, indexed on the transaction key
+	 * computed by each ZigBeeDeviceImpl. It is sized in activate(), according
+	 * to the configuration (see ZigBeeManagerProperties.getTransactionsSize())
+	 */
+	private volatile ZclTransactionTable pendingReplies = new ZclTransactionTable(ZigBeeManagerProperties.DEFAULT_TRANSACTIONS_SIZE,
+			ZigBeeManagerProperties.DEFAULT_TRANSACTIONS_PROBES);
+
+	private final AtomicLong transactionKeyBases = new AtomicLong();
+
+	/**
+	 * Notifies the listeners of the asynchronous ZCL requests (see
+	 * getDispatchedListener()). Its queue is not bounded, but it never holds
+	 * more notifications than the requests in the transaction table.
+	 */
+	private volatile ThreadPoolExecutor responseExecutor = null;
+
+	/**
+	 * Timer and sender used by the partition servers of all the devices (see
+	 * ZigBeeDeviceImpl.enablePartitionServer()). The sender transmits the
+	 * frames requested by the timer tasks, that must not block the timer
+	 * thread.
+	 */
+	private volatile HashedWheelTimer partitionTimer = null;
+
+	private volatile ThreadPoolExecutor partitionSender = null;
+
+	/**
+	 * Lanes handling the incoming messages. If null, the messages are handled
+	 * by the thread that receives them from the gateway.
+	 */
+	private volatile InboundDispatcher inboundDispatcher = null;
+
+	/**
+	 * Queues and transmits the outgoing messages. If null, the messages are
+	 * sent by the thread that produces them.
+	 */
+	private volatile OutboundScheduler outboundScheduler = null;
 	private ComponentContext ctxt;
 
 	/** 
@@ -286,16 +466,38 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 
 	private static final Log log = LogFactory.getLog(ZigBeeManagerImpl.class);
 
+	/**
+	 * Transmit options of all the APS messages sent by the manager. The
+	 * instance is shared, so it must never be modified: the gateway only reads
+	 * it while sendAPSMessage() marshals the message.
+	 */
+	private static final TxOptions txOptions = new TxOptions();
+	static {
+		txOptions.setAcknowledged(true);
+		txOptions.setPermitFragmentation(false);
+		txOptions.setSecurityEnabled(false);
+		txOptions.setUseNetworkKey(true);
+	}
+
+	private static final Long extendedAddressMode = new Long(GatewayConstants.EXTENDED_ADDRESS_MODE);
+
 	public static final String propertyFilename = "it.telecomitalia.ah.zigbee.properties";
 	private String propertiesFilename = ".";
 	private ZigBeeManagerProperties cmProps = new ZigBeeManagerProperties();
 
 	/**
-	 * The name of the file used to store the cache of discovered devices.
+	 * The name of the file used by the previous versions to store the cache of
+	 * discovered devices. It is imported into the db of the discovered devices.
 	 */
 	private String cacheFilename = "cache.dump";
 	private File cacheFile = null;
 
+	/**
+	 * The name of the file used to store the db of the discovered devices.
+	 */
+	private String devicesDbFilename = "devices.db";
+	private DiscoveredDevicesStore devicesStore = null;
+
 	protected void activate(ComponentContext ctxt, Map props) {
 		rwLock.writeLock().lock();
 		try {
@@ -305,8 +507,17 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 
 			this.propertiesFilename = this.ctxt.getBundleContext().getProperty("osgi.instance.area") + propertyFilename;
 			this.cacheFile = this.ctxt.getBundleContext().getDataFile(cacheFilename);
+			File devicesDbFile = this.ctxt.getBundleContext().getDataFile(devicesDbFilename);
+			if (devicesDbFile != null)
+				this.devicesStore = new DiscoveredDevicesStore(devicesDbFile);
 
 			update(props);
+			pendingReplies = new ZclTransactionTable(cmProps.getTransactionsSize(), cmProps.getTransactionsProbes());
+			startReplyTimer();
+			startResponseExecutor();
+			startPartitionServices();
+			startInboundDispatcher();
+			startOutboundScheduler();
 			handleBundleUpgrade();
 
 			if (cacheDiscoveryInfos) {
@@ -363,11 +574,320 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 			if (cacheDiscoveryInfos) {
 				dumpDiscoveredDevicesDb(false);
 			}
+
+			if (devicesStore != null)
+				devicesStore.close();
+
+			stopOutboundScheduler();
+			stopInboundDispatcher();
+			stopReplyTimer();
+			// after the reply timer, that notifies the requests still pending
+			stopResponseExecutor();
+			stopPartitionServices();
 		} finally {
 			rwLock.writeLock().unlock();
 		}
 	}
 
+	private void startReplyTimer() {
+		synchronized (sLock) {
+			if (replyTimer != null)
+				return;
+			replyTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ZigBee reply timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			replyTimer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					expirePendingReplies();
+				}
+			}, replyTimerPeriod, replyTimerPeriod, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Starts the executor that notifies the listeners of the asynchronous ZCL
+	 * requests. Its configuration is read only here.
+	 */
+	private void startResponseExecutor() {
+		synchronized (sLock) {
+			if (responseExecutor != null)
+				return;
+			final int threads = cmProps.getResponseThreads();
+			responseExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue(),
+					new ThreadFactory() {
+						private int count = 0;
+
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "ZigBee response " + (count++));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+	}
+
+	/**
+	 * Stops the response executor once the notifications already queued have
+	 * been delivered
+	 */
+	private void stopResponseExecutor() {
+		ThreadPoolExecutor executor;
+		synchronized (sLock) {
+			executor = responseExecutor;
+			responseExecutor = null;
+		}
+		if (executor == null)
+			return;
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(1000, TimeUnit.MILLISECONDS))
+				log.warn("ZCL response listeners still running");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void startPartitionServices() {
+		synchronized (sLock) {
+			if (partitionTimer != null)
+				return;
+			partitionTimer = new HashedWheelTimer("ZigBee partition timer", 20, 512);
+			partitionSender = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ZigBee partition sender");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops the partition timer and sender. The timeouts still pending are
+	 * discarded, the frames already queued on the sender are transmitted.
+	 */
+	private void stopPartitionServices() {
+		HashedWheelTimer timer;
+		ThreadPoolExecutor sender;
+		synchronized (sLock) {
+			timer = partitionTimer;
+			sender = partitionSender;
+			partitionTimer = null;
+			partitionSender = null;
+		}
+		if (timer != null)
+			timer.stop();
+		if (sender == null)
+			return;
+		sender.shutdown();
+		try {
+			if (!sender.awaitTermination(1000, TimeUnit.MILLISECONDS))
+				log.warn("ZigBee partition sender still running");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the timer used by the partition servers, or null if the
+	 * component is not active
+	 */
+	protected ZigBeeTimer getPartitionTimer() {
+		return partitionTimer;
+	}
+
+	/**
+	 * Returns the executor used by the partition servers to send the frames
+	 * requested by their timeouts, or null if the component is not active
+	 */
+	protected Executor getPartitionSender() {
+		return partitionSender;
+	}
+
+	/**
+	 * Returns the listener that notifies the passed one on the response
+	 * executor. The listeners passed to ZigBeeDevice.invokeAsync() are
+	 * wrapped, so they never run on the thread that receives the messages
+	 * from the gateway (a slow listener would stall the incoming messages).
+	 */
+	protected ZclResponseListener getDispatchedListener(ZclResponseListener listener) {
+		ThreadPoolExecutor executor = responseExecutor;
+		if (executor == null)
+			return listener;
+		return new DispatchedZclResponseListener(listener, executor);
+	}
+
+	/**
+	 * Starts the inbound dispatcher. Its configuration is read only here, the
+	 * changes are applied the next time the component is activated.
+	 */
+	private void startInboundDispatcher() {
+		synchronized (sLock) {
+			if (inboundDispatcher != null)
+				return;
+			int lanes = cmProps.getDispatchLanes();
+			if (lanes <= 0)
+				return;
+			InboundDispatcher dispatcher = new InboundDispatcher("ZigBee inbound", lanes, cmProps.getDispatchQueueSize(),
+					cmProps.getDispatchMaxBlock());
+			dispatcher.start();
+			inboundDispatcher = dispatcher;
+		}
+	}
+
+	private void stopInboundDispatcher() {
+		synchronized (sLock) {
+			if (inboundDispatcher != null) {
+				inboundDispatcher.stop();
+				inboundDispatcher = null;
+			}
+		}
+	}
+
+	/**
+	 * Starts the outbound scheduler. Like the inbound dispatcher, its
+	 * configuration is read only here.
+	 */
+	private void startOutboundScheduler() {
+		synchronized (sLock) {
+			if (outboundScheduler != null)
+				return;
+			int inFlight = cmProps.getTxInFlight();
+			if (inFlight <= 0)
+				return;
+			OutboundScheduler scheduler = new OutboundScheduler("ZigBee outbound", transmitter, inFlight,
+					cmProps.getTxPerDestination(), cmProps.getTxQueueSize(), cmProps.getTxMaxBlock(), cmProps.getTxConfirmTimeout());
+			scheduler.start();
+			outboundScheduler = scheduler;
+		}
+	}
+
+	private void stopOutboundScheduler() {
+		OutboundScheduler scheduler;
+		synchronized (sLock) {
+			scheduler = outboundScheduler;
+			outboundScheduler = null;
+		}
+		// the owners of the queued messages are notified outside the lock
+		if (scheduler != null)
+			scheduler.stop();
+	}
+
+	/**
+	 * The owner of a queued message is the request waiting for its response,
+	 * the device that posted it without waiting for a response, or null for
+	 * the responses to the messages received from the network.
+	 */
+	private final OutboundScheduler.Transmitter transmitter = new OutboundScheduler.Transmitter() {
+		public void transmit(Object message, final OutboundScheduler.Transmission transmission) throws Exception {
+			GatewayInterface gateway = ZigBeeManagerImpl.this.gateway;
+			if (gateway == null)
+				throw new ZigBeeException("jgal not bound");
+			// the transmission stays in flight till the gateway confirms the
+			// message, so the window follows the real outcome even when the
+			// gateway confirms the messages asynchronously
+			gateway.sendAPSMessage((APSMessage) message, new APSMessageConfirmListener() {
+				public void apsMessageConfirmed() {
+					transmission.completed(null);
+				}
+
+				public void apsMessageNotConfirmed(Exception e) {
+					transmission.completed(e);
+				}
+			});
+		}
+
+		public void transmitFailed(Object owner, Exception e) {
+			if (owner instanceof PendingZclReply) {
+				log.error("message not sent: " + e.getMessage());
+				PendingZclReply pendingReply = (PendingZclReply) owner;
+				removePendingReply(pendingReply);
+				pendingReply.fail(new ZigBeeException("error sending message to ZigBee device"));
+			} else if (owner instanceof ZigBeeDeviceImpl) {
+				((ZigBeeDeviceImpl) owner).postFailed(e);
+			} else {
+				log.error("message not sent: " + e.getMessage());
+			}
+		}
+	};
+
+	private void stopReplyTimer() {
+		synchronized (sLock) {
+			if (replyTimer != null) {
+				replyTimer.shutdownNow();
+				replyTimer = null;
+			}
+			// the requests still pending will never receive their response
+			pendingReplies.expire(Long.MAX_VALUE, replyExpiryListener);
+		}
+	}
+
+	private final ZclTransactionTable.ExpiryListener replyExpiryListener = new ZclTransactionTable.ExpiryListener() {
+		public void expired(long key, Object value) {
+			try {
+				((PendingZclReply) value).expired();
+			} catch (Throwable e) {
+				log.error("exception while notifying the timeout of a ZCL request", e);
+			}
+		}
+	};
+
+	/**
+	 * Called periodically by the reply timer
+	 */
+	private void expirePendingReplies() {
+		pendingReplies.expire(System.currentTimeMillis(), replyExpiryListener);
+	}
+
+	/**
+	 * Returns the base of the transaction keys of a new ZigBeeDeviceImpl: the
+	 * low 24 bits of the key are left to the hash of the ZCL frame.
+	 */
+	protected long newTransactionKeyBase() {
+		return (transactionKeyBases.incrementAndGet() & 0x7FFFFFFFFFL) << 24;
+	}
+
+	/**
+	 * Adds a ZCL request waiting for its response to the transaction table.
+	 * The request expires on the shared reply timer if no response is
+	 * received.
+	 * 
+	 * @param pendingReply
+	 *            The pending request
+	 * @param timeout
+	 *            The timeout in milliseconds
+	 * @throws ZigBeeException
+	 *             if the timer is not running or there is no free slot in
+	 *             the probing window of the request key
+	 */
+	protected void addPendingReply(PendingZclReply pendingReply, long timeout) throws ZigBeeException {
+		if (replyTimer == null)
+			throw new ZigBeeException("reply timer not available");
+		if (!pendingReplies.put(pendingReply.getKey(), pendingReply, System.currentTimeMillis() + timeout))
+			throw new ZigBeeException("too many pending requests (see " + ZigBeeManagerProperties.PROP_TRANSACTIONS_SIZE + ")");
+	}
+
+	/**
+	 * Removes from the transaction table the request matching the passed key
+	 * 
+	 * @return The pending request or null if there isn't any
+	 */
+	protected PendingZclReply removePendingReply(long key) {
+		return (PendingZclReply) pendingReplies.remove(key);
+	}
+
+	/**
+	 * Removes the passed request from the transaction table, only if it is
+	 * still there
+	 */
+	protected boolean removePendingReply(PendingZclReply pendingReply) {
+		return pendingReplies.remove(pendingReply.getKey(), pendingReply);
+	}
+
 	protected void modified(ComponentContext ctxt, Map props) {
 		rwLock.writeLock().lock();
 		try {
@@ -424,7 +944,6 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 		timerCancel(discoveryTimer);
 		timerCancel(JGalReconnectTimer);
 		timerCancel(permitJoinAllTimer);
-		timerCancel(galCommandTimer);
 	}
 
 	private void printAPSMessageEvent(APSMessageEvent msg) {
@@ -481,19 +1000,38 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 	}
 
 	/**
-	 * Called when a message has been received from ZigBee
+	 * Called when a message has been received from ZigBee. The source device
+	 * is looked up in the routing index, without taking any lock. The
+	 * responses to pending requests are matched here, while the other messages
+	 * are queued on the inbound dispatcher lane of the source node.
 	 */
-	public void notifyAPSMessage(APSMessageEvent msg) {
+	public void notifyAPSMessage(final APSMessageEvent msg) {
 		if (enableNotifyFrameLogs)
 			this.printAPSMessageEvent(msg);
 
 		// forward the message to the peer device
 		Address srcAddress = msg.getSourceAddress();
-		String nodePid = getNodePid(srcAddress);
+		final ZigBeeDeviceImpl device;
+		long ieeeAddress;
 
-		if (nodePid == null) {
-			log.debug("message discarded because the src node ieee address is not present");
-			return;
+		if ((srcAddress != null) && (srcAddress.getIeeeAddress() != null)) {
+			ieeeAddress = srcAddress.getIeeeAddress().longValue();
+			device = routingIndex.get(ieeeAddress, msg.getSourceEndpoint());
+		} else {
+			// only the network address is present: the node must be installed
+			if ((srcAddress != null) && (srcAddress.getNetworkAddress() != null)) {
+				device = routingIndex.getByNetworkAddress(srcAddress.getNetworkAddress().intValue(), msg.getSourceEndpoint());
+			} else {
+				device = null;
+			}
+
+			if (device == null) {
+				log.debug("message discarded because the src node ieee address is not present");
+				return;
+			}
+
+			srcAddress.setIeeeAddress(device.getServiceDescriptor().getAddress().getIeeeAddress());
+			ieeeAddress = srcAddress.getIeeeAddress().longValue();
 		}
 
 		if ((log != null) && (enableNotifyFrameLogs)) {
@@ -504,83 +1042,96 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 			handleBroadcastMessages(msg);
 			return;
 		}
-		
-		rwLock.readLock().lock();
-		
-		if (enableLockingLogs) {
-			if (rwLock.getReadLockCount() > 1) {
-				log.debug("Thr: " + Thread.currentThread().getId() + ": There are multiple read lock" + rwLock.getReadLockCount());
-			}
-		}
 
-		if (enableNotifyFrameLogs)
-			this.printAPSMessageEvent(msg);
+		// completes the pending request matching the frame, if any
+		if ((device != null) && device.notifyZclResponse((short) msg.getClusterID(), msg.getData()))
+			return;
 
-		try {
-			Vector devices = (Vector) ieee2devices.get(nodePid);
+		InboundDispatcher inboundDispatcher = this.inboundDispatcher;
+		if (inboundDispatcher == null) {
+			deliverAPSMessage(device, msg);
+			return;
+		}
 
-			ZclFrame zclFrame = new ZclFrame(msg.getData());
-
-			if (devices != null) {
-				Iterator it = devices.iterator();
-				boolean epFound = false;
-				while (it.hasNext()) {
-					ZigBeeDeviceImpl device = (ZigBeeDeviceImpl) it.next();
-					if (device.getEp() == msg.getSourceEndpoint()) {
-						if (enableNotifyFrameLogs) {
-							log.debug("notifyZclFrame() : Thr " + Thread.currentThread().getId() + " " + msg.getClusterID()
-									+ " message to ep " + device.getEp());
-						}
-						try {
-							device.notifyZclFrame((short) msg.getClusterID(), zclFrame);
-						} catch (ZclException e) {
-							// if (!zclFrame.isDefaultResponseDisabled()) {
-							IZclFrame zclResponseFrame = this.getDefaultResponse(zclFrame, e.getStatusCode());
-							this.post(msg, zclResponseFrame);
-							log.error(getIeeeAddressHex(srcAddress)
-									+ ": messageReceived(): Sent to device a default response with status code "
-									+ e.getStatusCode());
-							// }
-						}
+		boolean queued = inboundDispatcher.dispatch((int) (ieeeAddress ^ (ieeeAddress >>> 32)), new Runnable() {
+			public void run() {
+				deliverAPSMessage(device, msg);
+			}
+		});
 
-						if (enableNotifyFrameLogs) {
-							log.debug("after notifyZclFrame() : Thr " + Thread.currentThread().getId() + " " + msg.getClusterID()
-									+ " message to ep " + device.getEp());
-						}
-						epFound = true;
+		if (!queued && log.isDebugEnabled())
+			log.debug(getIeeeAddressHex(srcAddress) + ": incoming message dropped, inbound dispatcher queue full");
+	}
 
-						break;
-					}
-				}
-				if (!epFound && log.isDebugEnabled())
-					log.error("not found any matching ep for the incoming message");
+	/**
+	 * Delivers the message to the device it comes from. Called by the inbound
+	 * dispatcher lane of the source node, so the messages of a node are
+	 * delivered in order. On the lanes the frame comes from the lane pool and it
+	 * is released once delivered.
+	 * 
+	 * @param device
+	 *            The source device or null if the source endpoint is unknown
+	 */
+	private void deliverAPSMessage(ZigBeeDeviceImpl device, APSMessageEvent msg) {
+		ZclFramePool framePool = ZclFramePool.getCurrent();
+		if (framePool == null) {
+			deliverAPSMessage(device, msg, new ZclFrame(msg.getData()));
+			return;
+		}
 
-			} else {
-				IZclFrame zclResponseFrame;
-				InstallationStatus installationStatus = this.getInstallingDevice(srcAddress);
-				if (installationStatus != null) {
-					log.error(getIeeeAddressHex(srcAddress)
-							+ ": received a message from a node that is not installed. Reply with TIMEOUT");
-					zclResponseFrame = this.getDefaultResponse(zclFrame, 0x94);
-				} else {
-					log.error("received a message from an unknown node " + getIeeeAddressHex(srcAddress) + " . Reply with TIMEOUT");
+		IZclFrame zclFrame = framePool.wrap(msg.getData());
+		try {
+			deliverAPSMessage(device, msg, zclFrame);
+		} finally {
+			framePool.release(zclFrame);
+		}
+	}
 
-					zclResponseFrame = this.getDefaultResponse(zclFrame, 0x94);
-				}
+	private void deliverAPSMessage(ZigBeeDeviceImpl device, APSMessageEvent msg, IZclFrame zclFrame) {
+		Address srcAddress = msg.getSourceAddress();
 
+		if (device != null) {
+			if (enableNotifyFrameLogs) {
+				log.debug("notifyZclFrame() : Thr " + Thread.currentThread().getId() + " " + msg.getClusterID()
+						+ " message to ep " + device.getEp());
+			}
+			try {
+				device.notifyZclFrame((short) msg.getClusterID(), zclFrame);
+			} catch (ZclException e) {
+				// if (!zclFrame.isDefaultResponseDisabled()) {
+				IZclFrame zclResponseFrame = this.getDefaultResponse(zclFrame, e.getStatusCode());
 				this.post(msg, zclResponseFrame);
+				log.error(getIeeeAddressHex(srcAddress) + ": messageReceived(): Sent to device a default response with status code "
+						+ e.getStatusCode());
+				// }
 			}
-		} finally {
-			if (enableLockingLogs) {
-				log.debug("Thr: " + Thread.currentThread().getId() + ": unlocking and read lock count is: "
-						+ rwLock.getReadLockCount());
+
+			if (enableNotifyFrameLogs) {
+				log.debug("after notifyZclFrame() : Thr " + Thread.currentThread().getId() + " " + msg.getClusterID()
+						+ " message to ep " + device.getEp());
 			}
-			rwLock.readLock().unlock();
+		} else if (this.getDevices(getNodePid(srcAddress)) != null) {
+			if (log.isDebugEnabled())
+				log.error("not found any matching ep for the incoming message");
+		} else {
+			IZclFrame zclResponseFrame;
+			InstallationStatus installationStatus = this.getInstallingDevice(srcAddress);
+			if (installationStatus != null) {
+				log.error(getIeeeAddressHex(srcAddress)
+						+ ": received a message from a node that is not installed. Reply with TIMEOUT");
+				zclResponseFrame = this.getDefaultResponse(zclFrame, 0x94);
+			} else {
+				log.error("received a message from an unknown node " + getIeeeAddressHex(srcAddress) + " . Reply with TIMEOUT");
+
+				zclResponseFrame = this.getDefaultResponse(zclFrame, 0x94);
+			}
+
+			this.post(msg, zclResponseFrame);
 		}
 
 		if (enableNotifyFrameLogs) {
 			log.debug(getIeeeAddressHex(msg.getSourceAddress()) + ": " + " Thr " + Thread.currentThread().getId()
-					+ ": leave notifyAPSMessage()");
+					+ ": leave deliverAPSMessage()");
 		}
 	}
 
@@ -643,7 +1194,8 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 				installationStatus = this.addInstallingDevice(a);
 				installationStatus.refreshTime();
 				installationStatus.setStatus(InstallationStatus.ANNOUNCEMENT_RECEIVED);
-				this.discoveredNodesQueue.addLast(installationStatus);
+				installationStatus.setKnown(this.installedDevices.containsKey(getIeeeAddressHex(a)));
+				this.queueDiscoveredNode(installationStatus);
 			} else {
 				if (installationStatus.getStatus() == InstallationStatus.ANNOUNCEMENT_RECEIVED) {
 					if (enableDiscoveryLogs)
@@ -655,7 +1207,7 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 					
 					if (age > 20000) {
 						if (!this.discoveredNodesQueue.contains(installationStatus)) {
-							this.discoveredNodesQueue.addLast(installationStatus);
+							this.queueDiscoveredNode(installationStatus);
 						} else {
 							log.error(getIeeeAddressHex(a) + ": restartarting discovery");
 						}
@@ -670,6 +1222,8 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 		} else {
 			if (enableDiscoveryLogs)
 				log.info(getIeeeAddressHex(a) + ": received announcement from an already known node");
+			// the node may have rejoined with a new network address
+			routingIndex.setNetworkAddress(a.getIeeeAddress().longValue(), getNetworkAddress(a));
 			// notifies all devices
 			Iterator it = devices.iterator();
 			while (it.hasNext()) {
@@ -724,211 +1278,415 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 		Address a = installationStatus.getAddress();
 		String nodePid = getNodePid(installationStatus.getAddress());
 		Vector devices = (Vector) this.getDevices(nodePid);
-		if (devices == null) {
-			try {
-				if (enableDiscoveryLogs) {
-					log.debug(getIeeeAddressHex(a) + ": beginning device discovery");
-				}
-				installationStatus.setStatus(InstallationStatus.WAITING_FOR_NODE_DESCRIPTOR);
-				gateway.getNodeDescriptor(timeout, a);
-				timerStart(galCommandTimer, (int) (timeout / 1000) + timeoutOffset);
-				if (enableDiscoveryLogs) {
-					log.debug(getIeeeAddressHex(a) + ": called getNodeDescriptor()");
-				}
-			} catch (Exception e) {
-				this.terminateDeviceDiscovery(installationStatus);
-				this.handleNextDiscoveredNode();
+		if (devices != null) {
+			// the node has been installed while it was queued
+			this.terminateDeviceDiscovery(installationStatus);
+			return;
+		}
+
+		try {
+			if (enableDiscoveryLogs) {
+				log.debug(getIeeeAddressHex(a) + ": beginning device discovery");
+			}
+			installationStatus.setStatus(InstallationStatus.WAITING_FOR_NODE_DESCRIPTOR);
+			this.nodeDescriptorRequest = installationStatus;
+			this.startDiscoveryTimeout(installationStatus);
+			gateway.getNodeDescriptor(timeout, a);
+			if (enableDiscoveryLogs) {
+				log.debug(getIeeeAddressHex(a) + ": called getNodeDescriptor()");
 			}
+		} catch (Exception e) {
+			this.terminateDeviceDiscovery(installationStatus);
+		}
+	}
+
+	private void sendServicesRequest(InstallationStatus installingDevice) {
+		Address a = installingDevice.getAddress();
+		installingDevice.setStatus(InstallationStatus.WAITING_FOR_SERVICES);
+		if ((this.servicesRequest != null) && (this.servicesRequest != installingDevice)) {
+			// sent when the outstanding request is completed
+			if (!this.queuedServicesRequests.contains(installingDevice))
+				this.queuedServicesRequests.addLast(installingDevice);
+			return;
 		}
 
+		try {
+			if (enableDiscoveryLogs)
+				log.debug(getIeeeAddressHex(a) + ": startServiceDiscovery()");
+			this.servicesRequest = installingDevice;
+			this.startDiscoveryTimeout(installingDevice);
+			gateway.startServiceDiscovery(timeout, a);
+		} catch (Exception e) {
+			log.error(getIeeeAddressHex(a) + ": exception in startServiceDiscovery(). Abort installation of this node", e);
+			this.terminateDeviceDiscovery(installingDevice);
+			this.handleNextDiscoveredNode();
+		}
 	}
 
-	public void servicesDiscovered(Status status, NodeServices services) {
-		if (status.getCode() != GatewayConstants.SUCCESS) {
-			rwLock.writeLock().lock();
-			try {
-				this.timerCancel(galCommandTimer);
+	private void sendServiceDescriptorRequest(InstallationStatus installingDevice) {
+		Address a = installingDevice.getAddress();
+		int i = installingDevice.getCurrentService();
+		List activeEndpoints = installingDevice.getNodeServices().getActiveEndpoints();
+		if ((i < 0) || (i >= activeEndpoints.size())) {
+			log.fatal(getIeeeAddressHex(a) + ": wrong ep index stored into InstallationStatus. Abort installation of this node");
+			this.terminateDeviceDiscovery(installingDevice);
+			this.handleNextDiscoveredNode();
+			return;
+		}
 
-				// in case of failure services is null and there is no way to
-				// retrieve the Address so try to guess it.
-				InstallationStatus installingDevice = this.getInstallingDevice(InstallationStatus.WAITING_FOR_SERVICES);
-				Address a = installingDevice.getAddress();
-				if (installingDevice != null) {
-					log.error(getIeeeAddressHex(a) + ": servicesDiscovered callback returned error code " + status.getCode()
-							+ "'. Guessed address '" + getIeeeAddressHex(a));
-
-					// retries until retry counter goes to 0
-					if (installingDevice.getRetryCounter() > 0) {
-						try {
-							log.debug(getIeeeAddressHex(a) + ": retry startServiceDiscovery()");
-							gateway.startServiceDiscovery(timeout, a);
-							timerStart(galCommandTimer, (int) (timeout / 1000) + timeoutOffset);
-							return;
-						} catch (Exception e) {
-							log.error("exception in startServiceDiscovery() ", e);
-						}
-					}
+		ActiveEndpoints ep = (ActiveEndpoints) activeEndpoints.get(i);
+		installingDevice.setStatus(InstallationStatus.WAITING_FOR_SERVICE_DESCRIPTOR);
+		if ((this.serviceDescriptorRequest != null) && (this.serviceDescriptorRequest != installingDevice)) {
+			// sent when the outstanding request is completed
+			if (!this.queuedServiceDescriptorRequests.contains(installingDevice))
+				this.queuedServiceDescriptorRequests.addLast(installingDevice);
+			return;
+		}
 
-					// abort installation of this node
-					log.error(getIeeeAddressHex(a) + ": too many retries for getting services");
-					this.terminateDeviceDiscovery(installingDevice);
-					this.handleNextDiscoveredNode();
+		try {
+			if (enableDiscoveryLogs)
+				log.debug(getIeeeAddressHex(a) + ": getting Service Descriptor for EP " + ep.getEndPoint());
+			this.serviceDescriptorRequest = installingDevice;
+			this.startDiscoveryTimeout(installingDevice);
+			gateway.getServiceDescriptor(timeout, a, ep.getEndPoint());
+		} catch (Exception e) {
+			log.error(getIeeeAddressHex(a) + ": exception in getServiceDescriptor(). Abort installation of this node", e);
+			this.terminateDeviceDiscovery(installingDevice);
+			this.handleNextDiscoveredNode();
+		}
+	}
+
+	public void servicesDiscovered(Status status, NodeServices services) {
+		rwLock.writeLock().lock();
+		try {
+			if (status.getCode() != GatewayConstants.SUCCESS) {
+				// in case of failure services is null, but only one node at
+				// a time waits for its services
+				InstallationStatus installingDevice = this.servicesRequest;
+				if (installingDevice == null) {
+					log.error("servicesDiscovered callback returned error code " + status.getCode()
+							+ " but no node is waiting for its services");
 					return;
 				}
-			} finally {
-				rwLock.writeLock().unlock();
+
+				log.error(getIeeeAddressHex(installingDevice.getAddress()) + ": servicesDiscovered callback returned error code "
+						+ status.getCode());
+				this.discoveryRequestCompleted(installingDevice);
+				this.servicesFailed(installingDevice);
+				return;
 			}
-			return;
+
+			Address a = services.getAddress();
+			InstallationStatus installingDevice = this.getInstallingDevice(a);
+			if ((installingDevice == null) || (installingDevice.getStatus() != InstallationStatus.WAITING_FOR_SERVICES)) {
+				log.error(getIeeeAddressHex(a) + ": unsolicited serviceDiscovered()");
+				return;
+			}
+
+			this.discoveryRequestCompleted(installingDevice);
+
+			if (enableDiscoveryLogs)
+				log.debug(getIeeeAddressHex(installingDevice.getAddress()) + ": discovered " + services.getActiveEndpoints().size()
+					+ " endpoint(s)");
+
+			if ((services.getActiveEndpoints().size() > 1) && (!handleMultipleEps)) {
+				log.warn("sorry but currently (in this version) we handle only the first one!");
+			}
+
+			installingDevice.setNodeServices(services);
+			installingDevice.setStatus(InstallationStatus.ACTIVE_ENDPOINTS_RETRIEVED);
+			installingDevice.resetRetryCounter();
+
+			if (services.getActiveEndpoints().size() == 0) {
+				log.error(getIeeeAddressHex(a) + ": no active endpoints. Abort installation of this node");
+				this.terminateDeviceDiscovery(installingDevice);
+				this.handleNextDiscoveredNode();
+				return;
+			}
+
+			installingDevice.setCurrentService(0);
+			this.sendServiceDescriptorRequest(installingDevice);
+		} finally {
+			this.sendQueuedDiscoveryRequests();
+			rwLock.writeLock().unlock();
 		}
+	}
 
-		Address a = services.getAddress();
+	public void serviceDescriptorRetrieved(Status status, ServiceDescriptor service) {
 
-		synchronized (rwLock) {
-			this.timerCancel(galCommandTimer);
+		rwLock.writeLock().lock();
+		try {
+			if (status.getCode() != GatewayConstants.SUCCESS) {
+				// in case of failure service is null, but only one node at a
+				// time waits for a service descriptor
+				InstallationStatus installingDevice = this.serviceDescriptorRequest;
+				if (installingDevice != null) {
+					log.error(getIeeeAddressHex(installingDevice.getAddress())
+							+ ": serviceDescriptorRetrieved callback returned error code " + status.getCode());
+					this.discoveryRequestCompleted(installingDevice);
+					this.serviceDescriptorFailed(installingDevice);
+				} else {
+					log.fatal("unable to find an associated installation status: unsolicited serviceDescriptorRetrieved()");
+				}
+				return;
+			}
+
+			Address a = service.getAddress();
+			String ieeeAddress = getIeeeAddressHex(a);
 			InstallationStatus installingDevice = this.getInstallingDevice(a);
-			if (installingDevice == null) {
-				log.error(getIeeeAddressHex(a) + ": unsolicited serviceDiscovered()");
+			if ((installingDevice == null) || (installingDevice.getStatus() != InstallationStatus.WAITING_FOR_SERVICE_DESCRIPTOR)) {
+				log.error(ieeeAddress + ": unsolicited serviceDescriptorRetrieved()");
+				return;
+			}
+
+			this.discoveryRequestCompleted(installingDevice);
+			installingDevice.addServiceDescriptor(service.getEndPoint(), service);
+
+			if (handleMultipleEps) {
+				int retrievedServiceIndex = installingDevice.getCurrentService();
+				installingDevice.resetRetryCounter();
+				List activeEndpoints = installingDevice.getNodeServices().getActiveEndpoints();
+				retrievedServiceIndex++;
+				if (retrievedServiceIndex < activeEndpoints.size()) {
+					installingDevice.setCurrentService(retrievedServiceIndex);
+					this.sendServiceDescriptorRequest(installingDevice);
+					return;
+				}
+			}
+
+			installingDevice.setStatus(InstallationStatus.INSTALLED);
+			try {
+				this.finalizeNode(installingDevice);
+			} catch (Exception e) {
+				log.error("exception", e);
+				if (cacheDiscoveryInfos) {
+					// dump to file the currently discovered devices descriptors
+					this.updateDiscoveredDevicesDb(ieeeAddress, installingDevice);
+				}
 				this.terminateDeviceDiscovery(installingDevice);
 				this.handleNextDiscoveredNode();
 				return;
 			}
-			
+
+			if (cacheDiscoveryInfos) {
+				// dump to file the currently discovered devices descriptors
+				this.updateDiscoveredDevicesDb(ieeeAddress, installingDevice);
+			}
+
+			this.terminateDeviceDiscovery(installingDevice);
+			this.handleNextDiscoveredNode();
+		} finally {
+			this.sendQueuedDiscoveryRequests();
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Called when the node descriptor request failed or timed out. The node
+	 * releases the node descriptor request and is queued again, so that the
+	 * other nodes can proceed while it waits for the retry.
+	 */
+	private void nodeDescriptorFailed(InstallationStatus installingDevice) {
+		if (this.nodeDescriptorRequest == installingDevice)
+			this.nodeDescriptorRequest = null;
+
+		String nodeIeeeAddressHex = getIeeeAddressHex(installingDevice.getAddress());
+		if (installingDevice.getRetryCounter() > 0) {
+			long delay = installingDevice.getRetryDelay(cmProps.getDiscoveryBackoff());
 			if (enableDiscoveryLogs)
-				log.debug(getIeeeAddressHex(installingDevice.getAddress()) + ": discovered " + services.getActiveEndpoints().size()
-					+ " endpoint(s)");
+				log.debug(nodeIeeeAddressHex + ": retry getNodeDescriptor() in " + delay + " ms");
+			this.inProcessNode.remove(installingDevice);
+			installingDevice.setStatus(InstallationStatus.ANNOUNCEMENT_RECEIVED);
+			installingDevice.setNotBefore(System.currentTimeMillis() + delay);
+			this.discoveredNodesQueue.addFirst(installingDevice);
+		} else {
+			// abort installation of this node
+			log.error(nodeIeeeAddressHex + ": too many retries for getting node descriptor");
+			this.terminateDeviceDiscovery(installingDevice);
+		}
+		this.handleNextDiscoveredNode();
+	}
+
+	private void servicesFailed(InstallationStatus installingDevice) {
+		// retries until retry counter goes to 0
+		if (installingDevice.getRetryCounter() > 0) {
+			if (this.scheduleDiscoveryRetry(installingDevice))
+				return;
+		}
+
+		// abort installation of this node
+		log.error(getIeeeAddressHex(installingDevice.getAddress()) + ": too many retries for getting services");
+		this.terminateDeviceDiscovery(installingDevice);
+		this.handleNextDiscoveredNode();
+	}
+
+	private void serviceDescriptorFailed(InstallationStatus installingDevice) {
+		// retries until retry counter goes to 0
+		if (installingDevice.getRetryCounter() > 0) {
+			if (this.scheduleDiscoveryRetry(installingDevice))
+				return;
+		}
+
+		int i = installingDevice.getCurrentService();
+		if (i >= 0) {
+			NodeServices services = installingDevice.getNodeServices();
+			ActiveEndpoints ep = (ActiveEndpoints) services.getActiveEndpoints().get(i);
+			log.error(getIeeeAddressHex(installingDevice.getAddress()) + ": too many retries for serviceDescriptor for ep "
+					+ ep.getEndPoint() + ". Abort installation of this node");
+		}
+
+		this.terminateDeviceDiscovery(installingDevice);
+		this.handleNextDiscoveredNode();
+	}
+
+	/**
+	 * Starts the timeout of the request just sent to the gateway for the
+	 * passed node. If the gateway doesn't call back in time, the request fails
+	 * as if the gateway returned a TIMEOUT error.
+	 */
+	private void startDiscoveryTimeout(final InstallationStatus installingDevice) {
+		this.cancelDiscoveryTask(installingDevice);
+		final long requestSequence = ++discoveryRequestSequence;
+		installingDevice.requestSent(requestSequence);
+		installingDevice.setDiscoveryTask(this.scheduleDiscoveryTask(new Runnable() {
+			public void run() {
+				discoveryTimedOut(installingDevice, requestSequence);
+			}
+		}, timeout + timeoutOffset * 1000));
+	}
+
+	/**
+	 * Schedules the retry of the failed discovery request of the passed node,
+	 * after a delay that doubles at each failure.
+	 * 
+	 * @return false if the retry cannot be scheduled
+	 */
+	private boolean scheduleDiscoveryRetry(final InstallationStatus installingDevice) {
+		final long requestSequence = installingDevice.getRequestSequence();
+		long delay = installingDevice.getRetryDelay(cmProps.getDiscoveryBackoff());
+		ScheduledFuture retry = this.scheduleDiscoveryTask(new Runnable() {
+			public void run() {
+				retryDiscoveryRequest(installingDevice, requestSequence);
+			}
+		}, delay);
+
+		if (retry == null)
+			return false;
+
+		if (enableDiscoveryLogs)
+			log.debug(getIeeeAddressHex(installingDevice.getAddress()) + ": retry in " + delay + " ms");
+		installingDevice.setDiscoveryTask(retry);
+		return true;
+	}
+
+	private void cancelDiscoveryTask(InstallationStatus installingDevice) {
+		installingDevice.responseReceived();
+		ScheduledFuture discoveryTask = installingDevice.getDiscoveryTask();
+		if (discoveryTask != null) {
+			discoveryTask.cancel(false);
+			installingDevice.setDiscoveryTask(null);
+		}
+	}
+
+	/**
+	 * Called when the outstanding request of the node is completed (or the
+	 * node is no longer discovered), so that the next queued node can send the
+	 * same request (see sendQueuedDiscoveryRequests())
+	 */
+	private void discoveryRequestCompleted(InstallationStatus installingDevice) {
+		this.cancelDiscoveryTask(installingDevice);
+		this.queuedServicesRequests.remove(installingDevice);
+		this.queuedServiceDescriptorRequests.remove(installingDevice);
+		if (this.servicesRequest == installingDevice)
+			this.servicesRequest = null;
+		if (this.serviceDescriptorRequest == installingDevice)
+			this.serviceDescriptorRequest = null;
+	}
+
+	/**
+	 * Sends the queued services and service descriptor requests whose previous
+	 * request has been completed
+	 */
+	private void sendQueuedDiscoveryRequests() {
+		while ((this.servicesRequest == null) && !this.queuedServicesRequests.isEmpty())
+			this.sendServicesRequest((InstallationStatus) this.queuedServicesRequests.removeFirst());
+		while ((this.serviceDescriptorRequest == null) && !this.queuedServiceDescriptorRequests.isEmpty())
+			this.sendServiceDescriptorRequest((InstallationStatus) this.queuedServiceDescriptorRequests.removeFirst());
+	}
 
-			if ((services.getActiveEndpoints().size() > 1) && (!handleMultipleEps)) {
-				log.warn("sorry but currently (in this version) we handle only the first one!");
+	private ScheduledFuture scheduleDiscoveryTask(Runnable task, long delay) {
+		ScheduledThreadPoolExecutor replyTimer = this.replyTimer;
+		if (replyTimer == null)
+			return null;
+		try {
+			return replyTimer.schedule(task, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the timer is being stopped
+			return null;
+		}
+	}
+
+	private void discoveryTimedOut(InstallationStatus installingDevice, long requestSequence) {
+		rwLock.writeLock().lock();
+		try {
+			if (!this.inProcessNode.contains(installingDevice) || !installingDevice.isWaitingForResponse()
+					|| (installingDevice.getRequestSequence() != requestSequence)) {
+				// the response arrived in the meantime
+				return;
 			}
 
-			installingDevice.setNodeServices(services);
-			installingDevice.setStatus(InstallationStatus.ACTIVE_ENDPOINTS_RETRIEVED);
-			installingDevice.resetRetryCounter();
+			log.error(getIeeeAddressHex(installingDevice.getAddress()) + ": no response from jgal. Try to recover.");
+			installingDevice.setDiscoveryTask(null);
+			this.discoveryRequestCompleted(installingDevice);
 
-			List activeEndpoints = services.getActiveEndpoints();
+			switch (installingDevice.getStatus()) {
+			case InstallationStatus.WAITING_FOR_NODE_DESCRIPTOR:
+				this.nodeDescriptorFailed(installingDevice);
+				break;
 
-			for (int i = 0; i < activeEndpoints.size(); i++) {
-				installingDevice.setCurrentService(i);
-				ActiveEndpoints ep = (ActiveEndpoints) activeEndpoints.get(i);
+			case InstallationStatus.WAITING_FOR_SERVICES:
+				this.servicesFailed(installingDevice);
+				break;
 
-				try {
-					installingDevice.setStatus(InstallationStatus.WAITING_FOR_SERVICE_DESCRIPTOR);
-					if (enableDiscoveryLogs)
-						log.debug(getIeeeAddressHex(a) + ": getting Service Descriptor for EP " + ep.getEndPoint());
-					gateway.getServiceDescriptor(timeout, a, ep.getEndPoint());
-					timerStart(galCommandTimer, (int) (timeout / 1000) + timeoutOffset);
-				} catch (Exception e) {
-					this.terminateDeviceDiscovery(installingDevice);
-					this.handleNextDiscoveredNode();
-				}
+			case InstallationStatus.WAITING_FOR_SERVICE_DESCRIPTOR:
+				this.serviceDescriptorFailed(installingDevice);
 				break;
+
+			default:
+				log.debug("no actions to recover!");
+				this.terminateDeviceDiscovery(installingDevice);
+				this.handleNextDiscoveredNode();
 			}
+		} finally {
+			this.sendQueuedDiscoveryRequests();
+			rwLock.writeLock().unlock();
 		}
 	}
 
-	public void serviceDescriptorRetrieved(Status status, ServiceDescriptor service) {
-
+	private void retryDiscoveryRequest(InstallationStatus installingDevice, long requestSequence) {
 		rwLock.writeLock().lock();
 		try {
-			this.timerCancel(galCommandTimer);
-
-			if (status.getCode() != GatewayConstants.SUCCESS) {
-				// in case of failure services is null and there is no way to
-				// retrieve the Address so try to guess it.
-
-				InstallationStatus installingDevice = this.getInstallingDevice(InstallationStatus.WAITING_FOR_SERVICE_DESCRIPTOR);
-				if (installingDevice != null) {
-					Address a = installingDevice.getAddress();
-					log.error(getIeeeAddressHex(a) + ": serviceDescriptorRetrieved callback returned error code "
-							+ status.getCode() + "'. Guessed address '" + getIeeeAddressHex(a));
-
-					// retries until retry counter goes to 0
-					if (installingDevice.getRetryCounter() > 0) {
-						try {
-							int i = installingDevice.getCurrentService();
-							if (i >= 0) {
-								NodeServices services = installingDevice.getNodeServices();
-								ActiveEndpoints ep = (ActiveEndpoints) services.getActiveEndpoints().get(i);
-								if (enableDiscoveryLogs)
-									log.debug(getIeeeAddressHex(a) + ": getting Service Descriptor for EP " + ep.getEndPoint());
-								gateway.getServiceDescriptor(timeout, a, ep.getEndPoint());
-								timerStart(galCommandTimer, (int) (timeout / 1000) + timeoutOffset);
-								return;
-							} else {
-								log.fatal(getIeeeAddressHex(a)
-										+ ": wrong ep index stored into InstallationStatus. Abort installation of this node");
-							}
-						} catch (Exception e) {
-							log.error(getIeeeAddressHex(a)
-									+ ": exception in startServiceDiscovery(). Abort installation of this node", e);
-						}
-					} else {
-						int i = installingDevice.getCurrentService();
-						if (i >= 0) {
-							NodeServices services = installingDevice.getNodeServices();
-							ActiveEndpoints ep = (ActiveEndpoints) services.getActiveEndpoints().get(i);
-							log.error(getIeeeAddressHex(a) + ": too many retries for serviceDescriptor for ep " + ep.getEndPoint()
-									+ ". Abort installation of this node");
-						}
-					}
-
-					this.terminateDeviceDiscovery(installingDevice);
-					this.handleNextDiscoveredNode();
-					return;
-				} else {
-					log.fatal("unable to find an associated installation status: unsolicited serviceDescriptorRetrieved()");
-				}
+			if (!this.inProcessNode.contains(installingDevice) || installingDevice.isWaitingForResponse()
+					|| (installingDevice.getRequestSequence() != requestSequence)) {
+				// a late response arrived in the meantime
 				return;
 			}
 
-			Address a = service.getAddress();
-			String ieeeAddress = getIeeeAddressHex(a);
-			InstallationStatus installingDevice = this.getInstallingDevice(a);
-			installingDevice.addServiceDescriptor(service.getEndPoint(), service);
+			installingDevice.setDiscoveryTask(null);
 
-			if (handleMultipleEps) {
-				int retrievedServiceIndex = installingDevice.getCurrentService();
-				installingDevice.resetRetryCounter();
-				List activeEndpoints = installingDevice.getNodeServices().getActiveEndpoints();
-				retrievedServiceIndex++;
-				if (retrievedServiceIndex < activeEndpoints.size()) {
-					try {
-						installingDevice.setCurrentService(retrievedServiceIndex);
-						installingDevice.setStatus(InstallationStatus.WAITING_FOR_SERVICE_DESCRIPTOR);
-						ActiveEndpoints ep = (ActiveEndpoints) activeEndpoints.get(retrievedServiceIndex);
-						if (enableDiscoveryLogs)
-							log.debug(getIeeeAddressHex(a) + ": getting Service Descriptor for EP " + ep.getEndPoint());
-						gateway.getServiceDescriptor(timeout, a, ep.getEndPoint());
-						timerStart(galCommandTimer, (int) (timeout / 1000) + timeoutOffset);
-						return;
-					} catch (Exception e) {
-						this.terminateDeviceDiscovery(installingDevice);
-						this.handleNextDiscoveredNode();
-					}
-				}
-			}
+			switch (installingDevice.getStatus()) {
+			case InstallationStatus.WAITING_FOR_SERVICES:
+				this.sendServicesRequest(installingDevice);
+				break;
 
-			installingDevice.setStatus(InstallationStatus.INSTALLED);
-			try {
-				this.finalizeNode(installingDevice);
-			} catch (Exception e) {
-				log.error("exception", e);
-				if (cacheDiscoveryInfos) {
-					// dump to file the currently discovered devices descriptors
-					this.updateDiscoveredDevicesDb(ieeeAddress, installingDevice);
-				}
+			case InstallationStatus.WAITING_FOR_SERVICE_DESCRIPTOR:
+				this.sendServiceDescriptorRequest(installingDevice);
+				break;
+
+			default:
 				this.terminateDeviceDiscovery(installingDevice);
 				this.handleNextDiscoveredNode();
-				return;
-			}
-
-			if (cacheDiscoveryInfos) {
-				// dump to file the currently discovered devices descriptors
-				this.updateDiscoveredDevicesDb(ieeeAddress, installingDevice);
 			}
-
-			this.terminateDeviceDiscovery(installingDevice);
-			this.handleNextDiscoveredNode();
 		} finally {
 			rwLock.writeLock().unlock();
 		}
@@ -946,7 +1704,7 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 			this.installedDevices.put(ieeeAddress, installingDevice);
 			if (dumpDiscoveryInfos) {
 				// dump on filesystem only the sleeping end devices.
-				dumpDiscoveredDevicesDb(dumpAllDevices);
+				storeDiscoveredDevice(installingDevice, dumpAllDevices);
 			}
 		}
 	}
@@ -986,26 +1744,96 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 				}
 
 				devices.add(device);
+				routingIndex.put(a.getIeeeAddress().longValue(), getNetworkAddress(installingDevice.getAddress()), (ZigBeeDeviceImpl) device);
 			}
 		}
 	}
 
+	private static int getNetworkAddress(Address a) {
+		if ((a == null) || (a.getNetworkAddress() == null))
+			return EndpointRoutingIndex.UNKNOWN_NETWORK_ADDRESS;
+		return a.getNetworkAddress().intValue();
+	}
+
+	/**
+	 * Starts the discovery of the queued nodes, up to the configured number of
+	 * nodes discovered at the same time.
+	 */
 	private void handleNextDiscoveredNode() {
-		if (inProcessNode.size() > 0) {
-			// still discovering node properties
-			return;
-		}
+		this.sendQueuedDiscoveryRequests();
+		while ((this.nodeDescriptorRequest == null) && (inProcessNode.size() < cmProps.getDiscoveryConcurrency())) {
+			InstallationStatus is = this.pollDiscoveredNode();
+			if (is == null)
+				return;
 
-		InstallationStatus is = null;
-		try {
-			is = (InstallationStatus) this.discoveredNodesQueue.removeFirst();
 			inProcessNode.addLast(is);
 			this.startNodeDiscoveryProcess(is);
-		} catch (NoSuchElementException e) {
-			if (enableDiscoveryLogs)
-				log.debug("installation queue is empty");
+		}
+	}
+
+	/**
+	 * Queues a node waiting to be discovered. The nodes found in the db of the
+	 * discovered devices are queued before the unknown ones, so that the
+	 * devices already installed come back first (e.g. when the whole network
+	 * re-joins after a reset of the coordinator).
+	 */
+	private void queueDiscoveredNode(InstallationStatus installationStatus) {
+		if (!installationStatus.isKnown()) {
+			this.discoveredNodesQueue.addLast(installationStatus);
 			return;
 		}
+
+		int index = 0;
+		for (Iterator iterator = discoveredNodesQueue.iterator(); iterator.hasNext(); index++) {
+			if (!((InstallationStatus) iterator.next()).isKnown())
+				break;
+		}
+		this.discoveredNodesQueue.add(index, installationStatus);
+	}
+
+	/**
+	 * Removes from the queue the first node whose discovery can start now. If
+	 * all the queued nodes are waiting for a retry, the discovery is restarted
+	 * when the first of them is ready.
+	 */
+	private InstallationStatus pollDiscoveredNode() {
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		for (Iterator iterator = discoveredNodesQueue.iterator(); iterator.hasNext();) {
+			InstallationStatus is = (InstallationStatus) iterator.next();
+			if (is.getNotBefore() <= now) {
+				iterator.remove();
+				return is;
+			}
+			next = Math.min(next, is.getNotBefore());
+		}
+
+		if (next != Long.MAX_VALUE) {
+			this.scheduleDiscoveryWakeup(next - now);
+		} else if (enableDiscoveryLogs) {
+			log.debug("installation queue is empty");
+		}
+		return null;
+	}
+
+	private void scheduleDiscoveryWakeup(long delay) {
+		if (discoveryWakeup != null) {
+			if (!discoveryWakeup.isDone() && (discoveryWakeup.getDelay(TimeUnit.MILLISECONDS) <= delay))
+				return;
+			discoveryWakeup.cancel(false);
+		}
+
+		discoveryWakeup = this.scheduleDiscoveryTask(new Runnable() {
+			public void run() {
+				rwLock.writeLock().lock();
+				try {
+					discoveryWakeup = null;
+					handleNextDiscoveredNode();
+				} finally {
+					rwLock.writeLock().unlock();
+				}
+			}
+		}, delay);
 	}
 
 	private Vector getDevices(String nodePid) {
@@ -1083,6 +1911,21 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 	}
 
 	protected boolean post(ZigBeeDevice device, short profileId, short clusterId, IZclFrame zclFrame) {
+		return post(device, profileId, clusterId, zclFrame, null);
+	}
+
+	/**
+	 * Sends a ZCL frame to a device. It must not be called holding a lock of
+	 * the device, since it can wait for room in the outbound queue.
+	 * 
+	 * @param pendingReply
+	 *            The request waiting for the response to the frame, failed if
+	 *            the frame is queued and its transmission fails. If null, the
+	 *            failure is notified to the device (see
+	 *            ZigBeeDeviceImpl.postFailed())
+	 * @return false if the frame has not been sent (or queued)
+	 */
+	protected boolean post(ZigBeeDevice device, short profileId, short clusterId, IZclFrame zclFrame, PendingZclReply pendingReply) {
 		if (gateway == null) {
 			log.error("post(): jgal not bound");
 			return false;
@@ -1103,23 +1946,103 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 		if (enableRxTxLogs)
 			log.debug(getIeeeAddressHex(a) + ": sending message");
 
-		msg.setDestinationAddressMode(new Long(GatewayConstants.EXTENDED_ADDRESS_MODE));
+		msg.setDestinationAddressMode(extendedAddressMode);
 		msg.setDestinationAddress(service.getAddress());
 		msg.setDestinationEndpoint(service.getEndPoint());
 		msg.setSourceEndpoint(localEndpoint);
 
 		msg.setClusterID(clusterId & 0xffff);
 		msg.setProfileID(new Integer(profileId & 0xffff));
-		msg.setData(zclFrame.getData());
-
-		TxOptions tx = new TxOptions();
-		tx.setAcknowledged(true);
-		tx.setPermitFragmentation(false);
-		tx.setSecurityEnabled(false);
-		tx.setUseNetworkKey(true);
-		msg.setTxOptions(tx);
+		msg.setTxOptions(txOptions);
 		msg.setRadius((short) 10);
 
+		OutboundScheduler scheduler = this.outboundScheduler;
+		if (scheduler == null) {
+			msg.setData(zclFrame.getData());
+			return sendAPSMessage(msg);
+		}
+
+		OutboundScheduler.ReadKey readKey = getReadKey(service, profileId, clusterId, zclFrame);
+		if ((readKey != null) && (pendingReply == null) && (scheduler.getQueuedReadOwner(readKey) == device)) {
+			// the response to the identical read already queued is delivered
+			// to the device anyway. The response to a read queued with a
+			// pending reply is delivered to that reply only, so it cannot be
+			// shared
+			scheduler.readCoalesced();
+			return true;
+		}
+
+		// the frame can be released as soon as this method returns
+		msg.setData(ZclFramePool.detach(zclFrame).getData());
+		Object owner = (pendingReply != null) ? (Object) pendingReply : device;
+		if (!scheduler.submit(getDestinationKey(a), getPriority(zclFrame), msg, readKey, owner)) {
+			log.error(getIeeeAddressHex(a) + ": outbound queue full, message not sent");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Attaches a read request to an identical one that is still waiting to be
+	 * transmitted: the listener is notified with the outcome of the queued
+	 * request, so the new request is not sent.
+	 * 
+	 * @return false if there is no such request: the request must be sent
+	 */
+	protected boolean coalesceRead(ZigBeeDevice device, short profileId, short clusterId, IZclFrame zclFrame,
+			ZclResponseListener listener) {
+		OutboundScheduler scheduler = this.outboundScheduler;
+		if (scheduler == null)
+			return false;
+		OutboundScheduler.ReadKey readKey = getReadKey(device.getServiceDescriptor(), profileId, clusterId, zclFrame);
+		if (readKey == null)
+			return false;
+		Object owner = scheduler.getQueuedReadOwner(readKey);
+		if (!(owner instanceof PendingZclReply) || !((PendingZclReply) owner).addFollower(listener))
+			return false;
+		scheduler.readCoalesced();
+		return true;
+	}
+
+	/**
+	 * @return The key used to detect the duplicated Read Attributes requests,
+	 *         or null if the frame is not a Read Attributes request
+	 */
+	private static OutboundScheduler.ReadKey getReadKey(ServiceDescriptor service, short profileId, short clusterId,
+			IZclFrame zclFrame) {
+		if ((zclFrame.getFrameType() != IZclFrame.GENERAL_COMMAND) || !zclFrame.isClientToServer()
+				|| (zclFrame.getCommandId() != ZCL.ZclReadAttrs))
+			return null;
+		Address a = service.getAddress();
+		if ((a == null) || (a.getIeeeAddress() == null))
+			return null;
+		return new OutboundScheduler.ReadKey(a.getIeeeAddress().longValue(), service.getEndPoint(), profileId & 0xffff,
+				clusterId & 0xffff, zclFrame.getData(), zclFrame.isManufacturerSpecific() ? 3 : 1);
+	}
+
+	/**
+	 * The attribute reads, usually sent by polling, give way to the commands
+	 * and to the responses
+	 */
+	private static int getPriority(IZclFrame zclFrame) {
+		if ((zclFrame.getFrameType() == IZclFrame.GENERAL_COMMAND) && zclFrame.isClientToServer()) {
+			int commandId = zclFrame.getCommandId();
+			if ((commandId == ZCL.ZclReadAttrs) || (commandId == ZCL.ZclRepConf) || (commandId == ZCL.ZclDiscoverAttrs))
+				return OutboundScheduler.READ;
+		}
+		return OutboundScheduler.CONTROL;
+	}
+
+	private static long getDestinationKey(Address a) {
+		if (a.getIeeeAddress() != null)
+			return a.getIeeeAddress().longValue();
+		return (a.getNetworkAddress() != null) ? a.getNetworkAddress().intValue() : 0;
+	}
+
+	/**
+	 * Sends the message with the thread of the caller
+	 */
+	private boolean sendAPSMessage(APSMessage msg) {
 		try {
 			gateway.sendAPSMessage(msg);
 		} catch (IOException e) {
@@ -1144,34 +2067,29 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 
 		APSMessage msg = new APSMessage();
 
-		msg.setDestinationAddressMode(new Long(GatewayConstants.EXTENDED_ADDRESS_MODE));
+		msg.setDestinationAddressMode(extendedAddressMode);
 		msg.setDestinationAddress(srcMsgEvent.getSourceAddress());
 		msg.setDestinationEndpoint(srcMsgEvent.getSourceEndpoint());
 		msg.setSourceEndpoint(localEndpoint);
 
 		msg.setClusterID(srcMsgEvent.getClusterID() & 0xffff);
 		msg.setProfileID(srcMsgEvent.getProfileID());
-		msg.setData(zclFrame.getData());
-
-		TxOptions tx = new TxOptions();
-		tx.setAcknowledged(true);
-		tx.setPermitFragmentation(false);
-		tx.setSecurityEnabled(false);
-		tx.setUseNetworkKey(true);
-		msg.setTxOptions(tx);
+		msg.setTxOptions(txOptions);
 		msg.setRadius((short) 10);
 
-		try {
-			gateway.sendAPSMessage(msg);
-		} catch (IOException e) {
-			log.error("IOException, message not sent :" + e.getMessage());
-			return false;
-		} catch (GatewayException e) {
-			log.error("GatewayException, message not sent :" + e.getMessage());
-			return false;
-		} catch (Exception e) {
-			log.error("Exception, message not sent :" + e.getMessage(), e);
-			return false;
+		OutboundScheduler scheduler = this.outboundScheduler;
+		if (scheduler == null) {
+			msg.setData(zclFrame.getData());
+			if (!sendAPSMessage(msg))
+				return false;
+		} else {
+			// the response frame usually comes from the pool of the inbound
+			// lane, that reuses it as soon as this method returns
+			msg.setData(ZclFramePool.detach(zclFrame).getData());
+			if (!scheduler.submit(getDestinationKey(srcMsgEvent.getSourceAddress()), OutboundScheduler.CONTROL, msg, null, null)) {
+				log.error(getIeeeAddressHex(srcMsgEvent.getSourceAddress()) + ": outbound queue full, message not sent");
+				return false;
+			}
 		}
 
 		log.debug("Thread " + Thread.currentThread().getId() + ": message sent");
@@ -1238,57 +2156,6 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 				rwLock.writeLock().unlock();
 			}
 			break;
-
-		case galCommandTimer:
-			rwLock.writeLock().lock();
-
-			log.warn("galCommandTimer expired");
-			// if this timer expires, it means that the GAL was not sending a
-			// calback for node descriptor or service discriptor or active
-			// endpoints
-
-			try {
-				if (this.inProcessNode.size() == 0) {
-					log.fatal("galCommandTimer expired but no nodes are in the inProcessNode queue");
-					// TESTME: we start the discovery process on a new node.
-					this.handleNextDiscoveredNode();
-					break;
-				}
-
-				// try to recover
-				InstallationStatus installingDevice = (InstallationStatus) this.inProcessNode.getFirst();
-				log.error(getIeeeAddressHex(installingDevice.getAddress()) + ": no response from jgal. Try to recover.");
-				Status status = new Status();
-
-				switch (installingDevice.getStatus()) {
-				
-				case InstallationStatus.WAITING_FOR_NODE_DESCRIPTOR:				
-					// Simulates the callback with GatewayConstants.TIMEOUT error
-					status.setCode((short) GatewayConstants.TIMEOUT);
-					this.nodeDescriptorRetrieved(status, null);
-					break;
-
-				case InstallationStatus.WAITING_FOR_SERVICES:
-					// Simulates the callback with GatewayConstants.TIMEOUT error
-					status.setCode((short) GatewayConstants.TIMEOUT);
-					this.servicesDiscovered(status, null);
-					break;
-
-				case InstallationStatus.WAITING_FOR_SERVICE_DESCRIPTOR:
-					// Simulates the callback with GatewayConstants.TIMEOUT error
-					status.setCode((short) GatewayConstants.TIMEOUT);
-					this.serviceDescriptorRetrieved(status, null);
-					break;
-
-				default:
-					log.debug("no actions to recover!");
-					this.terminateDeviceDiscovery(installingDevice);
-					this.handleNextDiscoveredNode();
-				}
-			} finally {
-				rwLock.writeLock().unlock();
-			}
-			break;
 		}
 	}
 
@@ -1530,47 +2397,36 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 			}
 		}
 		ieee2sr.clear();
+		routingIndex.clear();
 	}
 
 	public void nodeDescriptorRetrieved(Status status, NodeDescriptor node) {
-		// guess the installing device because the node descriptor doesn't
-		// contain the address of the device
 		rwLock.writeLock().lock();
 		try {
-			this.timerCancel(galCommandTimer);
 			if (gateway == null) {
 				log.warn("in nodeDescriptorRetrieved() detected that gateway has been removed");
 				return;
 			}
 
-			InstallationStatus installingDevice = this.getInstallingDevice(InstallationStatus.WAITING_FOR_NODE_DESCRIPTOR);
+			// the node descriptor doesn't contain the address of the device,
+			// but only one node at a time waits for it
+			InstallationStatus installingDevice = this.nodeDescriptorRequest;
 			if (installingDevice == null) {
 				log.warn("received a node descriptor from an unsolicited node");
 				this.handleNextDiscoveredNode();
 				return;
 			}
 
+			this.nodeDescriptorRequest = null;
+			this.cancelDiscoveryTask(installingDevice);
+
 			String nodePid = getNodePid(installingDevice.getAddress());
 			String nodeIeeeAddressHex = getIeeeAddressHex(installingDevice.getAddress());
 
 			if (status.getCode() != 0) {
 				log.error(nodeIeeeAddressHex + ": nodeDescriptorRetrieved callback returned error code " + status.getCode()
 						+ "'. Guessed pid '" + nodePid);
-				if (installingDevice.getRetryCounter() > 0) {
-					try {
-						gateway.getNodeDescriptor(timeout, installingDevice.getAddress());
-						log.debug(nodeIeeeAddressHex + ": called getNodeDescriptor()");
-						timerStart(galCommandTimer, (int) (timeout / 1000) + timeoutOffset);
-						return;
-					} catch (Exception e) {
-						log.error(e);
-					}
-				}
-
-				// abort installation of this node
-				log.error(nodeIeeeAddressHex + ": too many retries for getting node descriptor");
-				this.terminateDeviceDiscovery(installingDevice);
-				this.handleNextDiscoveredNode();
+				this.nodeDescriptorFailed(installingDevice);
 				return;
 			}
 
@@ -1578,30 +2434,67 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 				log.debug(nodeIeeeAddressHex + ": retrieved node descriptor");
 
 			// update the state
-			installingDevice.setStatus(InstallationStatus.WAITING_FOR_SERVICES);
 			installingDevice.resetRetryCounter();
 			installingDevice.setNodeDescriptor(node);
 
-			try {
-				if (enableDiscoveryLogs)
-					log.debug(nodeIeeeAddressHex + ": startServiceDiscovery()");
-				gateway.startServiceDiscovery(timeout, installingDevice.getAddress());
-				timerStart(galCommandTimer, (int) (timeout / 1000) + timeoutOffset);
-			} catch (Exception e) {
-				this.terminateDeviceDiscovery(installingDevice);
-				this.handleNextDiscoveredNode();
-			}
+			this.sendServicesRequest(installingDevice);
+
+			// the node descriptor request is available for the next node
+			this.handleNextDiscoveredNode();
 		} finally {
 			rwLock.writeLock().unlock();
 		}
 	}
 
+	protected Dictionary getStatistics() {
+		Dictionary stats = new Hashtable();
+		stats.put("pending requests", pendingReplies.size() + "");
+		stats.put("expired requests", pendingReplies.getExpiredCount() + "");
+		stats.put("rejected requests (table full)", pendingReplies.getOverflowCount() + "");
+		stats.put("malformed attribute frames", ZclServiceCluster.getMalformedFrameCount() + "");
+
+		InboundDispatcher inboundDispatcher = this.inboundDispatcher;
+		if (inboundDispatcher != null) {
+			stats.put("inbound dispatched", inboundDispatcher.getDispatchedCount() + "");
+			stats.put("inbound blocked", inboundDispatcher.getBlockedCount() + "");
+			stats.put("inbound dropped", inboundDispatcher.getDroppedCount() + "");
+			stats.put("inbound failed", inboundDispatcher.getFailedCount() + "");
+			stats.put("inbound queues (current/max)", inboundDispatcher.getQueueLengths());
+		}
+
+		OutboundScheduler outboundScheduler = this.outboundScheduler;
+		if (outboundScheduler != null) {
+			stats.put("outbound sent", outboundScheduler.getSentCount() + "");
+			stats.put("outbound failed", outboundScheduler.getFailedCount() + "");
+			stats.put("outbound timed out", outboundScheduler.getTimedOutCount() + "");
+			stats.put("outbound dropped", outboundScheduler.getDroppedCount() + "");
+			stats.put("outbound blocked", outboundScheduler.getBlockedCount() + "");
+			stats.put("outbound coalesced reads", outboundScheduler.getCoalescedCount() + "");
+			stats.put("outbound queue (current/max)", outboundScheduler.getQueuedCount() + "/"
+					+ outboundScheduler.getMaxQueuedCount());
+			stats.put("outbound window", outboundScheduler.getWindow() + "");
+		}
+
+		stats.put("discovery in progress", inProcessNode.size() + "");
+		stats.put("discovery queue", discoveredNodesQueue.size() + "");
+		return stats;
+	}
+
 	protected Dictionary getConfiguration() {
 		Dictionary config = new Hashtable();
 		config.put("it.telecomitalia.ah.adapter.zigbee.lqi", cmProps.isLqiEnabled() + "");
 		config.put("it.telecomitalia.ah.adapter.zigbee.reconnect", cmProps.getReconnectToJGalDelay() + "");
 		config.put("it.telecomitalia.ah.adapter.zigbee.discovery.delay", cmProps.getDiscoveryDelay() + "");
 		config.put("it.telecomitalia.ah.adapter.zigbee.discovery.initialdelay", cmProps.getInitialDiscoveryDelay() + "");
+		config.put(ZigBeeManagerProperties.PROP_DISPATCH_LANES, cmProps.getDispatchLanes() + "");
+		config.put(ZigBeeManagerProperties.PROP_DISPATCH_QUEUE_SIZE, cmProps.getDispatchQueueSize() + "");
+		config.put(ZigBeeManagerProperties.PROP_DISPATCH_MAX_BLOCK, cmProps.getDispatchMaxBlock() + "");
+		config.put(ZigBeeManagerProperties.PROP_DISCOVERY_CONCURRENCY, cmProps.getDiscoveryConcurrency() + "");
+		config.put(ZigBeeManagerProperties.PROP_DISCOVERY_BACKOFF, cmProps.getDiscoveryBackoff() + "");
+		config.put(ZigBeeManagerProperties.PROP_TX_IN_FLIGHT, cmProps.getTxInFlight() + "");
+		config.put(ZigBeeManagerProperties.PROP_TX_PER_DESTINATION, cmProps.getTxPerDestination() + "");
+		config.put(ZigBeeManagerProperties.PROP_TX_QUEUE_SIZE, cmProps.getTxQueueSize() + "");
+		config.put(ZigBeeManagerProperties.PROP_TX_MAX_BLOCK, cmProps.getTxMaxBlock() + "");
 		return config;
 	}
 
@@ -1618,6 +2511,7 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 					log.debug(getIeeeAddressHex(node.getAddress()) + ": node has been removed");
 					this.ieee2sr.remove(nodePid);
 					this.ieee2devices.remove(nodePid);
+					this.routingIndex.removeNode(node.getAddress().getIeeeAddress().longValue());
 					for (Iterator iterator = deviceRegs.iterator(); iterator.hasNext();) {
 						ServiceRegistration deviceReg = (ServiceRegistration) iterator.next();
 						deviceReg.unregister();
@@ -1627,9 +2521,9 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 				}
 
 				if (cacheDiscoveryInfos) {
-					this.installedDevices.remove(nodePid);
-					if (dumpDiscoveryInfos) {
-						this.dumpDiscoveredDevicesDb(dumpAllDevices);
+					InstallationStatus installationStatus = (InstallationStatus) this.installedDevices.remove(nodePid);
+					if (dumpDiscoveryInfos && (installationStatus != null)) {
+						this.removeDiscoveredDevice(installationStatus);
 					}
 				}
 			}
@@ -1674,19 +2568,16 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 
 	private void terminateDeviceDiscoveryAll() {
 		// send leave to any new node under processing
-		for (Iterator iterator = this.inProcessNode.iterator(); iterator.hasNext();) {
-			InstallationStatus installationStatus = (InstallationStatus) iterator.next();
-
+		Object[] nodes = this.inProcessNode.toArray();
+		for (int i = 0; i < nodes.length; i++) {
 			// FIXME: Devo farlo per tutti?
-
-			this.timerCancel(galCommandTimer);
-			this.terminateDeviceDiscovery(installationStatus);
+			this.terminateDeviceDiscovery((InstallationStatus) nodes[i]);
 		}
 
 		// the following device are not under processing
-		for (Iterator iterator = this.discoveredNodesQueue.iterator(); iterator.hasNext();) {
-			InstallationStatus installationStatus = (InstallationStatus) iterator.next();
-			this.terminateDeviceDiscovery(installationStatus);
+		nodes = this.discoveredNodesQueue.toArray();
+		for (int i = 0; i < nodes.length; i++) {
+			this.terminateDeviceDiscovery((InstallationStatus) nodes[i]);
 		}
 
 		if (inProcessNode.size() > 0) {
@@ -1704,24 +2595,29 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 		this.inProcessNode.clear();
 		this.discoveredNodesQueue.clear();
 		this.devicesUnderInstallation.clear();
+		this.nodeDescriptorRequest = null;
+		this.servicesRequest = null;
+		this.serviceDescriptorRequest = null;
+		this.queuedServicesRequests.clear();
+		this.queuedServiceDescriptorRequests.clear();
 	}
 
 	// remove from our list (and send a leave) only those devices just entered
 	// because the network has been opened
 	private void terminateDeviceDiscoveryForJoinedDevices() {
 		// send leave to any new node under processing
-		for (Iterator iterator = this.inProcessNode.iterator(); iterator.hasNext();) {
-			InstallationStatus installationStatus = (InstallationStatus) iterator.next();
+		Object[] nodes = this.inProcessNode.toArray();
+		for (int i = 0; i < nodes.length; i++) {
+			InstallationStatus installationStatus = (InstallationStatus) nodes[i];
 			if (this.hasJoined(installationStatus)) {
-				this.timerCancel(galCommandTimer);
 				this.terminateDeviceDiscovery(installationStatus);
 			}
 		}
 
 		// the following device are not under processing.
-		for (Iterator iterator = this.discoveredNodesQueue.iterator(); iterator.hasNext();) {
-			InstallationStatus installationStatus = (InstallationStatus) iterator.next();
-
+		nodes = this.discoveredNodesQueue.toArray();
+		for (int i = 0; i < nodes.length; i++) {
+			InstallationStatus installationStatus = (InstallationStatus) nodes[i];
 			if (this.hasJoined(installationStatus)) {
 				this.terminateDeviceDiscovery(installationStatus);
 			}
@@ -1744,6 +2640,9 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 				log.error(e);
 			}
 		}
+		this.discoveryRequestCompleted(installationStatus);
+		if (this.nodeDescriptorRequest == installationStatus)
+			this.nodeDescriptorRequest = null;
 		this.devicesUnderInstallation.remove(nodePid);
 		this.discoveredNodesQueue.remove(installationStatus);
 		this.inProcessNode.remove(installationStatus);
@@ -1772,21 +2671,6 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 		}
 	}
 
-	private InstallationStatus getInstallingDevice(int deviceStatus) {
-		Enumeration keys = this.devicesUnderInstallation.keys();
-		while (keys.hasMoreElements()) {
-			String nodePid = (String) keys.nextElement();
-			InstallationStatus installationStatus = (InstallationStatus) this.devicesUnderInstallation.get(nodePid);
-			if (installationStatus.getStatus() == deviceStatus) {
-				// this.devicesUnderInstallation.remove(nodeIeeeAddress);
-				// log.debug("error in getting EPs, removing node '" +
-				// nodeIeeeAddress + "' from installing devices");
-				return installationStatus;
-			}
-		}
-		return null;
-	}
-
 	/**
 	 * The following method is called when a broadcast message arrives. It
 	 * handles the IdentifyQuery message. FIXME: this must not be here but the
@@ -1841,23 +2725,14 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 			responseMsg.setProfileID(msg.getProfileID() & 0xffff);
 			responseMsg.setData(zclResponseFrame.getData());
 
-			TxOptions tx = new TxOptions();
-			tx.setAcknowledged(true);
-			tx.setPermitFragmentation(false);
-			tx.setSecurityEnabled(false);
-			tx.setUseNetworkKey(true);
-			responseMsg.setTxOptions(tx);
+			responseMsg.setTxOptions(txOptions);
 			responseMsg.setRadius((short) 10);
 
-			try {
-				gateway.sendAPSMessage(responseMsg);
-			} catch (IOException e) {
-				log.error("IOException, message not sent :" + e.getMessage());
-			} catch (GatewayException e) {
-				log.error("GatewayException, message not sent :" + e.getMessage());
-			} catch (Exception e) {
-				log.error("Exception, message not sent :" + e.getMessage(), e);
-			}
+			OutboundScheduler scheduler = this.outboundScheduler;
+			if (scheduler == null)
+				sendAPSMessage(responseMsg);
+			else if (!scheduler.submit(getDestinationKey(msg.getSourceAddress()), OutboundScheduler.CONTROL, responseMsg, null, null))
+				log.error(getIeeeAddressHex(msg.getSourceAddress()) + ": outbound queue full, message not sent");
 		}
 	}
 
@@ -1866,6 +2741,7 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 		if (deviceRegs != null) {
 			this.ieee2sr.remove(nodePid);
 			this.ieee2devices.remove(nodePid);
+			this.routingIndex.removeNode(new BigInteger(nodePid, 16).longValue());
 			for (Iterator iterator = deviceRegs.iterator(); iterator.hasNext();) {
 				ServiceRegistration deviceReg = (ServiceRegistration) iterator.next();
 				deviceReg.unregister();
@@ -1878,7 +2754,7 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 				log.debug(nodePid + ": removed Node from installedDevices table");
 		
 			if (dumpDiscoveryInfos && (installationStatus != null)) {
-				this.dumpDiscoveredDevicesDb(dumpAllDevices);
+				this.removeDiscoveredDevice(installationStatus);
 			}
 		}
 	}
@@ -1939,39 +2815,30 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 	private boolean useDataFileDir = false;
 
 	private void loadDiscoveredDevicesDb() {
-		List sleepingEndDevices = new ArrayList();
+		if (devicesStore == null)
+			return;
 
-		ObjectInputStream in = null;
 		try {
-			in = new ObjectInputStream(new FileInputStream(cacheFile));
-			sleepingEndDevices = (ArrayList) in.readObject();
-			in.close();
+			List devices = devicesStore.load(cacheFile);
 
-			for (Iterator iterator = sleepingEndDevices.iterator(); iterator.hasNext();) {
+			for (Iterator iterator = devices.iterator(); iterator.hasNext();) {
 				InstallationStatus installationStatus = (InstallationStatus) iterator.next();
 				Address a = installationStatus.getAddress();
 				String ieeeAddress = getIeeeAddressHex(a);
 				installedDevices.put(ieeeAddress, installationStatus);
 			}
-		} catch (FileNotFoundException e) {
-			log.error("cache file not found");
+
+			if (enableDiscoveryLogs)
+				log.debug("loaded " + devices.size() + " discovered devices");
 		} catch (Exception e) {
-			log.error("exeption reading cache dump. Wrong format?", e);
-		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException e) {
-					log.error("IOException closing cache dump", e);
-				}
-			}
+			log.error("exception reading the discovered devices db", e);
 		}
 	}
 
 	/**
 	 * Dump to the filesystem the set of devices that have been discovered since
 	 * now If the saveAll flag is false, only sleeping end devices are actually
-	 * stored.
+	 * stored. The db is rewritten and compacted.
 	 */
 
 	private void dumpDiscoveredDevicesDb(boolean saveAll) {
@@ -1982,37 +2849,63 @@ public class ZigBeeManagerImpl implements TimerListener, APSMessageListener, Gat
 			else
 				log.debug("Dump persistently SLEEPING discovered devices");
 		}
-			
-		ObjectOutputStream out = null;
+
+		if (devicesStore == null)
+			return;
+
 		List devicesToDump = new ArrayList();
 
 		try {
 			for (Iterator iterator = this.installedDevices.values().iterator(); iterator.hasNext();) {
 				InstallationStatus installationStatus = (InstallationStatus) iterator.next();
-				if (installationStatus.getStatus() == InstallationStatus.INSTALLED) {
-					if (!installationStatus.getNodeDescriptor().getMACCapabilityFlag().isReceiverOnWhenIdle() || saveAll) {
-						devicesToDump.add(installationStatus);
-					}
+				if (isDeviceToDump(installationStatus, saveAll)) {
+					devicesToDump.add(installationStatus);
 				}
 			}
 
-			out = new ObjectOutputStream(new FileOutputStream(cacheFile));
-			out.writeObject(devicesToDump);
-			out.close();
+			devicesStore.replace(devicesToDump);
 		} catch (IOException e) {
-			log.error("IOException writing cache dump", e);
+			log.error("IOException writing the discovered devices db", e);
 		} catch (Exception e) {
-			log.error("exception writing cache dump", e);
-		} finally {
-			if (out != null) {
-				try {
-					out.close();
-				} catch (IOException e) {
-					log.error("IOException closing cache dump", e);
-				}
-			}
+			log.error("exception writing the discovered devices db", e);
+		}
+	}
+
+	/**
+	 * Appends a newly discovered device to the db, if it has to be stored. If
+	 * the saveAll flag is false, only sleeping end devices are actually stored.
+	 */
+	private void storeDiscoveredDevice(InstallationStatus installationStatus, boolean saveAll) {
+		if ((devicesStore == null) || !isDeviceToDump(installationStatus, saveAll))
+			return;
+
+		try {
+			devicesStore.put(installationStatus);
+		} catch (IOException e) {
+			log.error("IOException writing the discovered devices db", e);
+		}
+	}
+
+	private void removeDiscoveredDevice(InstallationStatus installationStatus) {
+		if (devicesStore == null)
+			return;
+
+		try {
+			devicesStore.remove(installationStatus.getAddress());
+		} catch (IOException e) {
+			log.error("IOException writing the discovered devices db", e);
 		}
 	}
+
+	private boolean isDeviceToDump(InstallationStatus installationStatus, boolean saveAll) {
+		if (installationStatus.getStatus() != InstallationStatus.INSTALLED)
+			return false;
+		if (saveAll)
+			return true;
+
+		NodeDescriptor node = installationStatus.getNodeDescriptor();
+		return (node != null) && (node.getMACCapabilityFlag() != null) && !node.getMACCapabilityFlag().isReceiverOnWhenIdle();
+	}
 	
 	private void finalizeNodes() {
 		Iterator it = installedDevices.values().iterator();
@@ -21,12 +21,40 @@ public class ZigBeeManagerProperties extends ConfigurationAdminProperties {
 	public static final String PROP_DISCOVERY_INITIAL_DELAY = "it.telecomitalia.ah.adapter.zigbee.discovery.initialdelay";
 	public static final String PROP_ZGD_RECONNECT_DELAY = "it.telecomitalia.ah.adapter.zigbee.reconnect";
 	public static final String PROP_TIMEOUTS = "it.telecomitalia.ah.adapter.zigbee.timeouts";
+	public static final String PROP_DISPATCH_LANES = "it.telecomitalia.ah.adapter.zigbee.dispatch.lanes";
+	public static final String PROP_DISPATCH_QUEUE_SIZE = "it.telecomitalia.ah.adapter.zigbee.dispatch.queuesize";
+	public static final String PROP_DISPATCH_MAX_BLOCK = "it.telecomitalia.ah.adapter.zigbee.dispatch.maxblock";
+	public static final String PROP_DISCOVERY_CONCURRENCY = "it.telecomitalia.ah.adapter.zigbee.discovery.concurrency";
+	public static final String PROP_DISCOVERY_BACKOFF = "it.telecomitalia.ah.adapter.zigbee.discovery.backoff";
+	public static final String PROP_TX_IN_FLIGHT = "it.telecomitalia.ah.adapter.zigbee.tx.inflight";
+	public static final String PROP_TX_PER_DESTINATION = "it.telecomitalia.ah.adapter.zigbee.tx.perdestination";
+	public static final String PROP_TX_QUEUE_SIZE = "it.telecomitalia.ah.adapter.zigbee.tx.queuesize";
+	public static final String PROP_TX_MAX_BLOCK = "it.telecomitalia.ah.adapter.zigbee.tx.maxblock";
+	public static final String PROP_TX_CONFIRM_TIMEOUT = "it.telecomitalia.ah.adapter.zigbee.tx.confirmtimeout";
+	public static final String PROP_RESPONSE_THREADS = "it.telecomitalia.ah.adapter.zigbee.response.threads";
+	public static final String PROP_TRANSACTIONS_SIZE = "it.telecomitalia.ah.adapter.zigbee.transactions.size";
+	public static final String PROP_TRANSACTIONS_PROBES = "it.telecomitalia.ah.adapter.zigbee.transactions.probes";
 
 	static final boolean DEFAULT_ENABLE_LQI = false;
 	static final int DEFAULT_DISCOVERY_DELAY = 0;
 	static final int DEFAULT_DISCOVERY_INITIAL_DELAY = 15;
 	static final int DEFAULT_ZGD_RECONNECT_DELAY = 5;
 	static final int DEFAULT_TIMEOUTS = 7000;
+	static final int DEFAULT_DISPATCH_LANES = 4;
+	static final int DEFAULT_DISPATCH_QUEUE_SIZE = 256;
+	static final int DEFAULT_DISPATCH_MAX_BLOCK = 100;
+	static final int DEFAULT_DISCOVERY_CONCURRENCY = 4;
+	static final int DEFAULT_DISCOVERY_BACKOFF = 1000;
+	static final int DEFAULT_TX_IN_FLIGHT = 4;
+	// more than 1 lets the messages to the same node reach the gateway out of
+	// order
+	static final int DEFAULT_TX_PER_DESTINATION = 1;
+	static final int DEFAULT_TX_QUEUE_SIZE = 512;
+	static final int DEFAULT_TX_MAX_BLOCK = 100;
+	static final int DEFAULT_TX_CONFIRM_TIMEOUT = 5000;
+	static final int DEFAULT_RESPONSE_THREADS = 2;
+	static final int DEFAULT_TRANSACTIONS_SIZE = 2048;
+	static final int DEFAULT_TRANSACTIONS_PROBES = 32;
 
 	public int getReconnectToJGalDelay() {
 		return this.getProperty(PROP_ZGD_RECONNECT_DELAY, DEFAULT_ZGD_RECONNECT_DELAY);
@@ -43,4 +71,101 @@ public class ZigBeeManagerProperties extends ConfigurationAdminProperties {
 	public boolean isLqiEnabled() {
 		return this.getProperty(PROP_ENABLE_LQI, DEFAULT_ENABLE_LQI);
 	}
+
+	/**
+	 * Number of threads handling the incoming messages. If zero, the messages
+	 * are handled by the thread that receives them from the gateway.
+	 */
+	public int getDispatchLanes() {
+		return this.getProperty(PROP_DISPATCH_LANES, DEFAULT_DISPATCH_LANES);
+	}
+
+	public int getDispatchQueueSize() {
+		return this.getProperty(PROP_DISPATCH_QUEUE_SIZE, DEFAULT_DISPATCH_QUEUE_SIZE);
+	}
+
+	public int getDispatchMaxBlock() {
+		return this.getProperty(PROP_DISPATCH_MAX_BLOCK, DEFAULT_DISPATCH_MAX_BLOCK);
+	}
+
+	/**
+	 * Max number of nodes whose descriptors are retrieved at the same time
+	 */
+	public int getDiscoveryConcurrency() {
+		int concurrency = this.getProperty(PROP_DISCOVERY_CONCURRENCY, DEFAULT_DISCOVERY_CONCURRENCY);
+		return (concurrency > 0) ? concurrency : 1;
+	}
+
+	/**
+	 * Delay (in ms) before retrying a failed discovery request. It doubles at
+	 * each failure of the same request.
+	 */
+	public int getDiscoveryBackoff() {
+		return this.getProperty(PROP_DISCOVERY_BACKOFF, DEFAULT_DISCOVERY_BACKOFF);
+	}
+
+	/**
+	 * Max number of messages sent to the gateway at the same time. If zero,
+	 * the messages are sent by the thread that produces them.
+	 */
+	public int getTxInFlight() {
+		return this.getProperty(PROP_TX_IN_FLIGHT, DEFAULT_TX_IN_FLIGHT);
+	}
+
+	/**
+	 * Max number of messages to the same node sent to the gateway at the same
+	 * time
+	 */
+	public int getTxPerDestination() {
+		return this.getProperty(PROP_TX_PER_DESTINATION, DEFAULT_TX_PER_DESTINATION);
+	}
+
+	public int getTxQueueSize() {
+		return this.getProperty(PROP_TX_QUEUE_SIZE, DEFAULT_TX_QUEUE_SIZE);
+	}
+
+	public int getTxMaxBlock() {
+		return this.getProperty(PROP_TX_MAX_BLOCK, DEFAULT_TX_MAX_BLOCK);
+	}
+
+	/**
+	 * Time (in ms) after which a message not yet confirmed by the gateway is
+	 * considered failed, and stops counting among the ones in flight
+	 */
+	public int getTxConfirmTimeout() {
+		return this.getProperty(PROP_TX_CONFIRM_TIMEOUT, DEFAULT_TX_CONFIRM_TIMEOUT);
+	}
+
+	/**
+	 * Number of threads notifying the listeners of the asynchronous ZCL
+	 * requests
+	 */
+	public int getResponseThreads() {
+		int threads = this.getProperty(PROP_RESPONSE_THREADS, DEFAULT_RESPONSE_THREADS);
+		return (threads > 0) ? threads : 1;
+	}
+
+	/**
+	 * Number of slots of the table holding the pending ZCL requests. The table
+	 * does not grow: a request is rejected when the probing window of its key
+	 * has no free slot, which starts happening well before all the slots are
+	 * taken. With the default size and probes no request is rejected up to
+	 * about 768 pending requests, so the size should be at least 3 times the
+	 * expected number of pending requests. Read only when the bundle is
+	 * activated.
+	 */
+	public int getTransactionsSize() {
+		int size = this.getProperty(PROP_TRANSACTIONS_SIZE, DEFAULT_TRANSACTIONS_SIZE);
+		return (size >= 64) ? size : 64;
+	}
+
+	/**
+	 * Max number of slots examined to insert or look up a pending ZCL request.
+	 * Higher values reject less requests, but make slower the lookup of the
+	 * unsolicited frames. Read only when the bundle is activated.
+	 */
+	public int getTransactionsProbes() {
+		int probes = this.getProperty(PROP_TRANSACTIONS_PROBES, DEFAULT_TRANSACTIONS_PROBES);
+		return (probes > 0) ? probes : 1;
+	}
 }
@@ -114,5 +114,22 @@ public interface IZclFrame {
 
 	public short getPayloadSize();
 
+	/**
+	 * Returns the number of bytes between the current position and the end of
+	 * the frame
+	 */
+	public int getRemainingPayloadSize();
+
+	/**
+	 * Returns the byte at the passed offset from the current position, without
+	 * moving the position
+	 */
+	public short peekUInt8(int offset);
+
+	/**
+	 * Moves the current position forward by the passed number of bytes
+	 */
+	public void skip(int size);
+
 	public void shrink();
 }
@@ -23,6 +23,31 @@ public class ZclFrame implements IZclFrame {
 
 	int pos = 0;
 
+	/**
+	 * The pool this frame belongs to, null if the frame has not been created by
+	 * a ZclFramePool
+	 */
+	ZclFramePool pool = null;
+
+	/**
+	 * true while a pooled frame is owned by someone, false once it has been
+	 * released to its pool
+	 */
+	boolean inUse = false;
+
+	/**
+	 * true if the buffer has been passed to wrap(), so it is not owned by
+	 * this frame
+	 */
+	boolean wrapped = false;
+
+	/**
+	 * Used by ZclFramePool: the frame is initialized by wrap() or
+	 * initResponse()
+	 */
+	ZclFrame() {
+	}
+
 	public ZclFrame(int fcf, int payloadSize) {
 		this((byte) fcf, payloadSize);
 	}
@@ -47,7 +72,16 @@ public class ZclFrame implements IZclFrame {
 	}
 
 	public ZclFrame(byte[] data) {
+		wrap(data);
+	}
+
+	/**
+	 * Makes this frame a view over the passed buffer, that is not copied. The
+	 * position is moved past the ZCL header.
+	 */
+	void wrap(byte[] data) {
 		this.data = data;
+		this.wrapped = true;
 		if (data.length < 3)
 			System.out.println("FIXME: check size, NOW IS INCORRECT!!!");
 		// throw new ZclException("Frame too short");
@@ -58,6 +92,55 @@ public class ZclFrame implements IZclFrame {
 			pos = 3;
 	}
 
+	/**
+	 * Initializes this frame as the response to the passed frame. The current
+	 * buffer is reused if it has exactly the needed size, so a pooled frame
+	 * used for responses of the same size does not allocate anything.
+	 */
+	void initResponse(IZclFrame zclFrame, int payloadSize) {
+		int size = zclFrame.isManufacturerSpecific() ? 5 : 3;
+		int length = size + payloadSize;
+		if (wrapped || (data == null) || (data.length != length)) {
+			data = new byte[length];
+		} else {
+			for (int i = size; i < length; i++)
+				data[i] = 0;
+		}
+		System.arraycopy(zclFrame.getData(), 0, data, 0, size);
+		data[0] = (byte) (data[0] ^ DIRECTION_MASK);
+		data[0] = (byte) (data[0] | DISABLE_DEFAULT_RESPONSE_MASK);
+		pos = size;
+		wrapped = false;
+	}
+
+	/**
+	 * Returns the size of the ZCL header of the frame contained in the passed
+	 * buffer (5 if the frame is manufacturer specific, 3 otherwise), or 0 if
+	 * the buffer is empty.
+	 */
+	public static int getZclHeaderSize(byte[] data) {
+		if ((data == null) || (data.length == 0))
+			return 0;
+		return ((data[0] & MANUFACTURER_SPECIFIC_MASK) > 0) ? 5 : 3;
+	}
+
+	/**
+	 * Returns the sequence number of the ZCL frame contained in the passed
+	 * buffer, without creating a ZclFrame.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the buffer is shorter than the ZCL header
+	 */
+	public static byte getSequenceNumber(byte[] data) {
+		int headerSize = getZclHeaderSize(data);
+		if ((headerSize == 0) || (data.length < headerSize))
+			throw new IllegalArgumentException("ZCL frame shorter than its header");
+		if (headerSize == 5)
+			return data[3];
+		else
+			return data[1];
+	}
+
 	public short getZclHeaderSize() {
 		if (isManufacturerSpecific())
 			return 5;
@@ -73,12 +156,8 @@ public class ZclFrame implements IZclFrame {
 	}
 
 	public IZclFrame createResponseFrame(int payloadSize) {
-		short size = getZclHeaderSize();
-		byte[] responseData = new byte[size + payloadSize];
-		System.arraycopy(this.data, 0, responseData, 0, size);
-		IZclFrame zclResponseFrame = new ZclFrame(responseData);
-		responseData[0] = (byte) (responseData[0] ^ DIRECTION_MASK);
-		responseData[0] = (byte) (responseData[0] | DISABLE_DEFAULT_RESPONSE_MASK);
+		ZclFrame zclResponseFrame = new ZclFrame();
+		zclResponseFrame.initResponse(this, payloadSize);
 		return zclResponseFrame;
 	}
 
@@ -387,6 +466,18 @@ public class ZclFrame implements IZclFrame {
 		return (short) (data.length - this.getZclHeaderSize());
 	}
 
+	public int getRemainingPayloadSize() {
+		return data.length - pos;
+	}
+
+	public short peekUInt8(int offset) {
+		return (short) (data[pos + offset] & 0xFF);
+	}
+
+	public void skip(int size) {
+		pos += size;
+	}
+
 	public void shrink() {
 		if (pos != data.length) {
 			byte[] d = new byte[pos];
@@ -0,0 +1,175 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.zigbee;
+
+/**
+ * A pool of reusable ZclFrame objects, used to handle the incoming frames and
+ * their responses without allocating a ZclFrame (and its buffer) for each of
+ * them.
+ * <p>
+ * A pool is not thread safe: it must be used only by the thread it is bound
+ * to (see bindToCurrentThread()). The threads that handle the incoming
+ * messages bind a pool, the other threads don't have any, so the code that
+ * can run on both must check getCurrent() against null.
+ * <p>
+ * Ownership rules:
+ * <ul>
+ * <li>A frame returned by wrap() or createResponseFrame() is owned by the
+ * caller, that must give it back with release() when it is not needed
+ * anymore.</li>
+ * <li>A released frame must not be used anymore: its buffer is reused.</li>
+ * <li>A frame passed to ZigBeeDeviceListener.notifyZclFrame() is owned by
+ * the caller of notifyZclFrame(): the listener must not keep a reference to
+ * it after returning. If it needs to, it must call detach().</li>
+ * <li>A frame can be released as soon as the post() used to send it
+ * returns.</li>
+ * </ul>
+ */
+public class ZclFramePool {
+
+	private static final ThreadLocal currentPool = new ThreadLocal();
+
+	private final ZclFrame[] frames;
+	private int count = 0;
+
+	private long created = 0;
+	private long reused = 0;
+
+	/**
+	 * @param maxFrames
+	 *            The max number of released frames kept by the pool
+	 */
+	public ZclFramePool(int maxFrames) {
+		this.frames = new ZclFrame[maxFrames];
+	}
+
+	/**
+	 * Returns the pool bound to the current thread, or null if the thread has
+	 * no pool
+	 */
+	public static ZclFramePool getCurrent() {
+		return (ZclFramePool) currentPool.get();
+	}
+
+	/**
+	 * Binds this pool to the current thread. The thread must call
+	 * unbindFromCurrentThread() before terminating.
+	 */
+	public void bindToCurrentThread() {
+		currentPool.set(this);
+	}
+
+	public void unbindFromCurrentThread() {
+		if (currentPool.get() == this)
+			currentPool.remove();
+	}
+
+	/**
+	 * Returns a frame that is a view over the passed buffer. The buffer is not
+	 * copied.
+	 */
+	public IZclFrame wrap(byte[] data) {
+		ZclFrame zclFrame = acquire(false);
+		zclFrame.wrap(data);
+		return zclFrame;
+	}
+
+	/**
+	 * Returns a frame initialized as the response to the passed frame (see
+	 * IZclFrame.createResponseFrame())
+	 */
+	public IZclFrame createResponseFrame(IZclFrame zclFrame, int payloadSize) {
+		ZclFrame zclResponseFrame = acquire(true);
+		zclResponseFrame.initResponse(zclFrame, payloadSize);
+		return zclResponseFrame;
+	}
+
+	/**
+	 * Gives back a frame to the pool. Frames that don't come from a pool, or
+	 * that have already been released, are ignored.
+	 */
+	public void release(IZclFrame zclFrame) {
+		if (!(zclFrame instanceof ZclFrame))
+			return;
+
+		ZclFrame frame = (ZclFrame) zclFrame;
+		if ((frame.pool == null) || !frame.inUse)
+			return;
+
+		frame.inUse = false;
+		if (count < frames.length) {
+			// a wrapped buffer belongs to someone else, only the buffers
+			// allocated for the responses are reused
+			if (frame.wrapped)
+				frame.data = null;
+			frames[count++] = frame;
+		}
+	}
+
+	/**
+	 * Returns a frame that can be kept after the passed one is released: a copy
+	 * if the frame belongs to a pool, the frame itself otherwise.
+	 */
+	public static IZclFrame detach(IZclFrame zclFrame) {
+		if (!(zclFrame instanceof ZclFrame) || (((ZclFrame) zclFrame).pool == null))
+			return zclFrame;
+
+		ZclFrame frame = (ZclFrame) zclFrame;
+		byte[] data = new byte[frame.data.length];
+		System.arraycopy(frame.data, 0, data, 0, data.length);
+		ZclFrame copy = new ZclFrame(data);
+		copy.pos = frame.pos;
+		return copy;
+	}
+
+	public long getCreatedCount() {
+		return created;
+	}
+
+	public long getReusedCount() {
+		return reused;
+	}
+
+	/**
+	 * Takes a frame from the pool
+	 * 
+	 * @param withBuffer
+	 *            true to prefer a frame that still has its own buffer (that
+	 *            is going to be reused), false to prefer a frame without
+	 */
+	private ZclFrame acquire(boolean withBuffer) {
+		ZclFrame frame;
+		if (count > 0) {
+			int index = count - 1;
+			for (int i = index; i >= 0; i--) {
+				if ((frames[i].data != null) == withBuffer) {
+					index = i;
+					break;
+				}
+			}
+			frame = frames[index];
+			frames[index] = frames[--count];
+			frames[count] = null;
+			reused++;
+		} else {
+			frame = new ZclFrame();
+			frame.pool = this;
+			created++;
+		}
+		frame.inUse = true;
+		return frame;
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.zigbee;
+
+/**
+ * Callback interface used by {@link ZigBeeDevice#invokeAsync} to deliver the
+ * outcome of a ZCL request. Exactly one of the two methods is called for each
+ * request. The methods are called by one of the few threads of the ZigBee
+ * manager dedicated to this task, never by the thread that receives the
+ * incoming ZigBee messages: an implementation that takes long delays the
+ * notification of the other responses, but not the incoming traffic.
+ */
+public interface ZclResponseListener {
+
+	/**
+	 * Called when the response matching the request has been received.
+	 *
+	 * @param clusterId
+	 *            The clusterId of the request
+	 * @param zclResponseFrame
+	 *            The ZCL frame containing the response from the remote node
+	 */
+	public void notifyZclResponse(short clusterId, IZclFrame zclResponseFrame);
+
+	/**
+	 * Called when no response has been received before the request timeout
+	 * expired, or when the request has been aborted.
+	 *
+	 * @param clusterId
+	 *            The clusterId of the request
+	 * @param e
+	 *            The exception describing the failure
+	 */
+	public void notifyZclResponseError(short clusterId, ZigBeeException e);
+}
@@ -75,6 +75,48 @@ public interface ZigBeeDevice extends IHacDevice {
 	 */
 	public IZclFrame invoke(short profileId, short clusterId, IZclFrame zclFrame) throws ZigBeeException;
 
+	/**
+	 * The invokeAsync method sends the passed frame and returns immediately.
+	 * The answer from the destination zigbee node (or the timeout) is notified
+	 * later to the passed listener. A ZigBeeException exception is raised only
+	 * if the frame cannot be sent.
+	 *
+	 * @param clusterId
+	 *            The clusterId of the zcl frame
+	 *
+	 * @param zclFrame
+	 *            The ZCL frame
+	 *
+	 * @param listener
+	 *            The listener that receives the response
+	 *
+	 * @throws ZigBeeException
+	 */
+	public void invokeAsync(short clusterId, IZclFrame zclFrame, ZclResponseListener listener) throws ZigBeeException;
+
+	/**
+	 * The invokeAsync method sends the passed frame and returns immediately.
+	 * The answer from the destination zigbee node (or the timeout) is notified
+	 * later to the passed listener. A ZigBeeException exception is raised only
+	 * if the frame cannot be sent.
+	 *
+	 * @param profileId
+	 *            The profileId of the zcl frame
+	 *
+	 * @param clusterId
+	 *            The clusterId of the zcl frame
+	 *
+	 * @param zclFrame
+	 *            The ZCL frame
+	 *
+	 * @param listener
+	 *            The listener that receives the response
+	 *
+	 * @throws ZigBeeException
+	 */
+	public void invokeAsync(short profileId, short clusterId, IZclFrame zclFrame, ZclResponseListener listener)
+			throws ZigBeeException;
+
 	/**
 	 * This method sends the frame and don't wait for the answer. The response
 	 * will be notified to the caller by means of the listener.
@@ -0,0 +1,50 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.zigbee;
+
+/**
+ * Timer provided by the ZigBee manager to the clusters that need timeouts
+ * (e.g. the Partition cluster). The tasks are executed by the timer thread,
+ * so they must be short and must not block. The timer is stopped when the
+ * manager is deactivated: the tasks not yet executed are discarded and the
+ * tasks scheduled afterwards are never executed.
+ */
+public interface ZigBeeTimer {
+
+	/**
+	 * Handle of a scheduled task
+	 */
+	public interface Timeout {
+
+		/**
+		 * Cancels the task
+		 * 
+		 * @return false if the task has already been executed or cancelled
+		 */
+		public boolean cancel();
+	}
+
+	/**
+	 * Schedules a task
+	 * 
+	 * @param task
+	 *            The task to execute
+	 * @param delay
+	 *            The delay (in ms) after which the task is executed
+	 * @return The handle used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay);
+}
@@ -22,12 +22,9 @@ import org.energy_home.jemma.ah.hac.ApplianceException;
 import org.energy_home.jemma.ah.hac.ServiceClusterException;
 
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,6 +33,7 @@ import org.energy_home.jemma.ah.zigbee.IZclFrame;
 import org.energy_home.jemma.ah.zigbee.ZCL;
 import org.energy_home.jemma.ah.zigbee.ZclFrame;
 import org.energy_home.jemma.ah.zigbee.ZigBeeDevice;
+import org.energy_home.jemma.ah.zigbee.ZigBeeTimer;
 import org.energy_home.jemma.ah.zigbee.zcl.IZclAttributeDescriptor;
 import org.energy_home.jemma.ah.zigbee.zcl.ZclException;
 import org.energy_home.jemma.ah.zigbee.zcl.ZclValidationException;
@@ -46,6 +44,10 @@ import org.energy_home.jemma.ah.zigbee.zcl.lib.types.ZclDataTypeClusterID;
 import org.energy_home.jemma.ah.zigbee.zcl.lib.types.ZclDataTypeUI16;
 import org.energy_home.jemma.ah.zigbee.zcl.lib.types.ZclDataTypeUI8;
 
+import edu.emory.mathcs.backport.java.util.concurrent.Executor;
+import edu.emory.mathcs.backport.java.util.concurrent.RejectedExecutionException;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicReferenceArray;
+
 class PartitionClusterAttributes {
 	public static int PartitionedFrameSize = 0x40;
 	public static int LargeFrameSize = 0x0500;
@@ -129,8 +131,21 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 	private static final int RECEIVER_TIMEOUT = 0x03;
 	private static final int NACK_TIMEOUT = 0x04;
 
-	private Hashtable states = new Hashtable();
-	private Hashtable statesBySequenceNumber = new Hashtable();
+	/**
+	 * The receiving states, indexed on the sequence number of the
+	 * WriteHandshakeParam command that started the transfer
+	 */
+	private AtomicReferenceArray statesBySequenceNumber = new AtomicReferenceArray(256);
+
+	/**
+	 * The timer shared by the transfers of all the devices, owned by the
+	 * ZigBee manager
+	 */
+	private ZigBeeTimer timer;
+
+	// sends the frames requested by the timer tasks, that must not block the
+	// shared timer thread. Owned by the ZigBee manager as well
+	private Executor sender;
 
 	private class State {
 		public State(int clusterId, short sequenceNumber) {
@@ -151,9 +166,8 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 		public PartitionedFrame[] partitionedFrames;
 		public int sequenceNumber = 0;
 
-		private PartitionTimerTask _timeoutTimerReceiverTask = null;
-		private PartitionTimerTask _timeoutTimerNACKTask = null;
-		private Timer _receiverTimerThread = new Timer();
+		private ZigBeeTimer.Timeout _timeoutTimerReceiverTask = null;
+		private ZigBeeTimer.Timeout _timeoutTimerNACKTask = null;
 
 		// Attributes
 		public int MaximumIncomingTransferSize = 0x0500;
@@ -177,7 +191,7 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 		}
 	}
 
-	private class PartitionTimerTask extends TimerTask {
+	private class PartitionTimerTask implements Runnable {
 		private State state;
 		private int eventType;
 
@@ -195,17 +209,17 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 		}
 	}
 
-	private Thread thread;
-
-	public ZclPartitionServer(ZigBeeDevice device) throws ApplianceException {
+	/**
+	 * @param timer
+	 *            The timer running the receiver and NACK timeouts
+	 * @param sender
+	 *            The executor sending the frames requested by the timeouts
+	 */
+	public ZclPartitionServer(ZigBeeDevice device, ZigBeeTimer timer, Executor sender) throws ApplianceException {
 		super();
-
-		// FIXME: a che serve il thread?
-
-		thread = new Thread();
-		thread.setName("ZclReceiverPartition");
-		thread.start();
 		this.device = device;
+		this.timer = timer;
+		this.sender = sender;
 	}
 
 	protected int getClusterId() {
@@ -264,6 +278,11 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 
 	protected void execMultipleNACK(State state, short ACKOptions, int FirstFrameID, int[] ackList) throws ApplianceException,
 			ServiceClusterException {
+		postMultipleNACK(createMultipleNACK(state, ACKOptions, FirstFrameID, ackList));
+	}
+
+	private ZclFrame createMultipleNACK(State state, short ACKOptions, int FirstFrameID, int[] ackList)
+			throws ServiceClusterException {
 		boolean NACKIDLength16 = false;
 		int size = 0;
 
@@ -296,12 +315,15 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 				ZclDataTypeUI8.zclSerialize(zclFrame, (short) ackList[i]);
 		}
 
+		zclFrame.setDirection(IZclFrame.SERVER_TO_CLIENT_DIRECTION);
+		return zclFrame;
+	}
+
+	private void postMultipleNACK(ZclFrame zclFrame) throws ApplianceException {
 		ZigBeeDevice device = getZigBeeDevice();
 		if (device == null)
 			throw new ApplianceException("Not attached");
 
-		zclFrame.setDirection(IZclFrame.SERVER_TO_CLIENT_DIRECTION);
-
 		boolean res = false;
 		try {
 			res = device.post((short) getClusterId(), zclFrame);
@@ -313,7 +335,12 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 		}
 	}
 
-	private void sendMultipleNACK(State state) {
+	/**
+	 * Sends the MultipleACK command for the current set of partitioned frames.
+	 * If async is true, the frame is built by the calling thread and posted
+	 * by the sender thread (used by the timer tasks).
+	 */
+	private void sendMultipleNACK(State state, boolean async) {
 		int FirstFrameID = state.firstPartitionedFrameInSet;
 		PartitionedFrame[] partitionedFrames = state.partitionedFrames;
 
@@ -343,6 +370,34 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 		// NACKIds)
 		short ACKOptions = 0x00;
 
+		if (async) {
+			final ZclFrame zclFrame;
+			try {
+				zclFrame = createMultipleNACK(state, ACKOptions, FirstFrameID, nackList);
+			} catch (Exception e) {
+				log.error("Exception returned by execMultipleACK", e);
+				return;
+			}
+			final int setId = FirstFrameID;
+			try {
+				sender.execute(new Runnable() {
+					public void run() {
+						try {
+							log.debug("Sending MultipleACK for set = " + setId);
+							postMultipleNACK(zclFrame);
+							log.debug("MultipleACK sent");
+						} catch (Exception e) {
+							log.error("Exception returned by execMultipleACK", e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the ZigBee manager is being deactivated
+				log.debug("MultipleACK for set = " + setId + " not sent: sender stopped");
+			}
+			return;
+		}
+
 		try {
 			log.debug("Sending MultipleACK for set = " + FirstFrameID);
 			execMultipleNACK(state, ACKOptions, FirstFrameID, nackList);
@@ -403,7 +458,13 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 			case NACK_TIMEOUT:
 				log.error("NACK Timeout");
 				state = (State) data;
-				sendMultipleNACK(state);
+				if (this.statesBySequenceNumber.get(state.sequenceNumber) != state) {
+					// the transfer has been completed or aborted meanwhile
+					break;
+				}
+				// runs on the wheel timer thread: the frame is posted by the
+				// sender thread
+				sendMultipleNACK(state, true);
 				break;
 
 			case RECEIVER_TIMEOUT:
@@ -521,7 +582,7 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 				// TODO: ottimizzare. Qui si manda sempre un MultipleNACK
 				// vuoto!!!
 				stopReceiverNACKTimer(rcvrState);
-				sendMultipleNACK(rcvrState);
+				sendMultipleNACK(rcvrState, false);
 				rcvrState.firstPartitionedFrameInSet += PartitionClusterAttributes.NumberOfACKFrame;
 				rcvrState.remainingPartitionedFramesToReceiveInSet = PartitionClusterAttributes.NumberOfACKFrame;
 
@@ -548,33 +609,29 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 		}
 	}
 
-	private long calculateTxRxHash(int clusterId, IZclFrame zclFrame) {
-		long hash = clusterId;
-		hash = hash << 8;
-		return zclFrame.getSequenceNumber() & 0xFF | hash;
-	}
-
 	private State getState(int clusterId, IZclFrame zclFrame) {
-		long hash = calculateTxRxHash(clusterId, zclFrame);
-		return (State) this.states.get(new Long(hash));
+		State state = (State) this.statesBySequenceNumber.get(zclFrame.getSequenceNumber() & 0xFF);
+		if ((state != null) && (state.clusterId == clusterId))
+			return state;
+		return null;
 	}
 
 	private State getState(byte sequenceNumber) {
-		return (State) this.statesBySequenceNumber.get(new Integer(sequenceNumber & 0xFF));
+		return (State) this.statesBySequenceNumber.get(sequenceNumber & 0xFF);
 	}
 
 	private State createState(int clusterId, IZclFrame zclFrame) {
-		long hash = calculateTxRxHash(clusterId, zclFrame);
-		Long h = new Long(hash);
 		State state = new State(clusterId, zclFrame.getSequenceNumber());
-		this.states.put(h, state);
 		state.sequenceNumber = zclFrame.getSequenceNumber() & 0xFF;
-		this.statesBySequenceNumber.put(new Integer(state.sequenceNumber), state);
+		State previous = (State) this.statesBySequenceNumber.getAndSet(state.sequenceNumber, state);
+		if (previous != null)
+			stopTimers(previous);
 		return state;
 	}
 
 	private void deleteState(State state) {
-		this.statesBySequenceNumber.remove(state.sequenceNumber);
+		stopTimers(state);
+		this.statesBySequenceNumber.compareAndSet(state.sequenceNumber, state, null);
 	}
 
 	protected IZclFrame handleReadHandshakeParam(int ClusterID, IZclFrame zclFrame) throws ZclValidationException {
@@ -688,10 +745,9 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 	private void startReceiverTimeoutTimer(State state) {
 		log.debug("Starting Receiver Timeout Timer of " + state.ReceiverTimeout + " ms");
 		stopReceiverTimeoutTimer(state);
-		if (state._timeoutTimerReceiverTask == null) {
-			state._timeoutTimerReceiverTask = new PartitionTimerTask(RECEIVER_TIMEOUT, state);
+		synchronized (state) {
+			state._timeoutTimerReceiverTask = timer.schedule(new PartitionTimerTask(RECEIVER_TIMEOUT, state), state.ReceiverTimeout);
 		}
-		state._receiverTimerThread.schedule(state._timeoutTimerReceiverTask, state.ReceiverTimeout);
 	}
 
 	private void stopReceiverTimeoutTimer(State state) {
@@ -699,7 +755,6 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 		synchronized (state) {
 			if (state._timeoutTimerReceiverTask != null) {
 				state._timeoutTimerReceiverTask.cancel();
-				state._receiverTimerThread.purge();
 				state._timeoutTimerReceiverTask = null;
 			}
 		}
@@ -708,10 +763,9 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 	private void startReceiverNACKTimer(State state) {
 		log.debug("Starting Receiver NACK Timer of " + state.NACKTimeout + " ms");
 		stopReceiverNACKTimer(state);
-		if (state._timeoutTimerNACKTask == null) {
-			state._timeoutTimerNACKTask = new PartitionTimerTask(NACK_TIMEOUT, state);
+		synchronized (state) {
+			state._timeoutTimerNACKTask = timer.schedule(new PartitionTimerTask(NACK_TIMEOUT, state), state.NACKTimeout);
 		}
-		state._receiverTimerThread.schedule(state._timeoutTimerNACKTask, state.NACKTimeout);
 	}
 
 	private void stopReceiverNACKTimer(State state) {
@@ -719,12 +773,16 @@ public class ZclPartitionServer extends ZclServiceCluster implements Runnable, P
 			log.debug("Stopping Receiver NACK Timer");
 			if (state._timeoutTimerNACKTask != null) {
 				state._timeoutTimerNACKTask.cancel();
-				state._receiverTimerThread.purge();
 				state._timeoutTimerNACKTask = null;
 			}
 		}
 	}
 
+	private void stopTimers(State state) {
+		stopReceiverNACKTimer(state);
+		stopReceiverTimeoutTimer(state);
+	}
+
 	private void restartReceiverTimeoutTimer(State state) {
 		stopReceiverTimeoutTimer(state);
 		startReceiverTimeoutTimer(state);
@@ -66,6 +66,12 @@ public class ZclSimpleMeteringServer extends ZclServiceCluster implements Simple
 				ZclSimpleMeteringServer.ATTR_IstantaneousDemand_NAME, new ZclDataTypeI24(), null, true, 1));
 	}
 
+	/**
+	 * The formatting attributes, needed to interpret any other metering
+	 * attribute: they are read together
+	 */
+	final static int[] FORMATTING_ATTR_IDS = new int[] { 768, 769, 770, 771, 772, 774 };
+
 	public ZclSimpleMeteringServer() throws ApplianceException {
 		super();
 	}
@@ -153,10 +159,7 @@ public class ZclSimpleMeteringServer extends ZclServiceCluster implements Simple
 				return objectResult.shortValue();
 			}
 		}
-		IZclFrame zclFrame = readAttribute(768, context);
-		short v = ZclDataTypeEnum8.zclParse(zclFrame);
-		setCachedAttributeObject(768, new Short(v));
-		return v;
+		return ((Short) readAttributeObject(768, FORMATTING_ATTR_IDS, context)).shortValue();
 	}
 
 	public int getMultiplier(IEndPointRequestContext context) throws ApplianceException, ServiceClusterException {
@@ -167,10 +170,7 @@ public class ZclSimpleMeteringServer extends ZclServiceCluster implements Simple
 				return objectResult.intValue();
 			}
 		}
-		IZclFrame zclFrame = readAttribute(769, context);
-		int v = ZclDataTypeUI24.zclParse(zclFrame);
-		setCachedAttributeObject(769, new Integer(v));
-		return v;
+		return ((Integer) readAttributeObject(769, FORMATTING_ATTR_IDS, context)).intValue();
 	}
 
 	public int getDivisor(IEndPointRequestContext context) throws ApplianceException, ServiceClusterException {
@@ -181,10 +181,7 @@ public class ZclSimpleMeteringServer extends ZclServiceCluster implements Simple
 				return objectResult.intValue();
 			}
 		}
-		IZclFrame zclFrame = readAttribute(770, context);
-		int v = ZclDataTypeUI24.zclParse(zclFrame);
-		setCachedAttributeObject(770, new Integer(v));
-		return v;
+		return ((Integer) readAttributeObject(770, FORMATTING_ATTR_IDS, context)).intValue();
 	}
 
 	public short getSummationFormatting(IEndPointRequestContext context) throws ApplianceException, ServiceClusterException {
@@ -195,10 +192,7 @@ public class ZclSimpleMeteringServer extends ZclServiceCluster implements Simple
 				return objectResult.shortValue();
 			}
 		}
-		IZclFrame zclFrame = readAttribute(771, context);
-		short v = ZclDataTypeBitmap8.zclParse(zclFrame);
-		setCachedAttributeObject(771, new Short(v));
-		return v;
+		return ((Short) readAttributeObject(771, FORMATTING_ATTR_IDS, context)).shortValue();
 	}
 
 	public short getDemandFormatting(IEndPointRequestContext context) throws ApplianceException, ServiceClusterException {
@@ -209,10 +203,7 @@ public class ZclSimpleMeteringServer extends ZclServiceCluster implements Simple
 				return objectResult.shortValue();
 			}
 		}
-		IZclFrame zclFrame = readAttribute(772, context);
-		short v = ZclDataTypeBitmap8.zclParse(zclFrame);
-		setCachedAttributeObject(772, new Short(v));
-		return v;
+		return ((Short) readAttributeObject(772, FORMATTING_ATTR_IDS, context)).shortValue();
 	}
 
 	public short getMeteringDeviceType(IEndPointRequestContext context) throws ApplianceException, ServiceClusterException {
@@ -223,10 +214,7 @@ public class ZclSimpleMeteringServer extends ZclServiceCluster implements Simple
 				return objectResult.shortValue();
 			}
 		}
-		IZclFrame zclFrame = readAttribute(774, context);
-		short v = ZclDataTypeBitmap8.zclParse(zclFrame);
-		setCachedAttributeObject(774, new Short(v));
-		return v;
+		return ((Short) readAttributeObject(774, FORMATTING_ATTR_IDS, context)).shortValue();
 	}
 
 	public int getIstantaneousDemand(IEndPointRequestContext context) throws ApplianceException, ServiceClusterException {
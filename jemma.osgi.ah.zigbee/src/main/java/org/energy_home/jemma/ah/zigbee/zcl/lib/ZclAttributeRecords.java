@@ -0,0 +1,139 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.zigbee.zcl.lib;
+
+import org.energy_home.jemma.ah.zigbee.zcl.IZclAttributeDescriptor;
+
+/**
+ * The attribute records decoded from a Report Attributes or from a Read
+ * Attributes Response frame by ZclServiceCluster.parseAttributeRecords(), or
+ * collected by ZclServiceCluster.readAttributeRecords(). The records are stored
+ * in parallel arrays, in the order in which they have been received. Only the
+ * records whose status is ZCL.SUCCESS have a value: the status of the records
+ * that couldn't be decoded is set by the parser (e.g.
+ * ZCL.UNSUPPORTED_ATTRIBUTE for the attributes unknown by the cluster).
+ */
+public class ZclAttributeRecords {
+
+	private int[] attrIds;
+	private short[] statuses;
+	private IZclAttributeDescriptor[] descriptors;
+	private Object[] values;
+	private int count = 0;
+
+	private boolean malformed = false;
+	private boolean invalidDataType = false;
+
+	ZclAttributeRecords(int capacity) {
+		if (capacity < 1)
+			capacity = 1;
+		attrIds = new int[capacity];
+		statuses = new short[capacity];
+		descriptors = new IZclAttributeDescriptor[capacity];
+		values = new Object[capacity];
+	}
+
+	void add(int attrId, short status, IZclAttributeDescriptor descriptor, Object value) {
+		if (count == attrIds.length) {
+			int capacity = count * 2;
+			int[] newAttrIds = new int[capacity];
+			short[] newStatuses = new short[capacity];
+			IZclAttributeDescriptor[] newDescriptors = new IZclAttributeDescriptor[capacity];
+			Object[] newValues = new Object[capacity];
+			System.arraycopy(attrIds, 0, newAttrIds, 0, count);
+			System.arraycopy(statuses, 0, newStatuses, 0, count);
+			System.arraycopy(descriptors, 0, newDescriptors, 0, count);
+			System.arraycopy(values, 0, newValues, 0, count);
+			attrIds = newAttrIds;
+			statuses = newStatuses;
+			descriptors = newDescriptors;
+			values = newValues;
+		}
+		attrIds[count] = attrId;
+		statuses[count] = status;
+		descriptors[count] = descriptor;
+		values[count] = value;
+		count++;
+	}
+
+	void setMalformed() {
+		this.malformed = true;
+	}
+
+	void setInvalidDataType() {
+		this.invalidDataType = true;
+	}
+
+	/**
+	 * Returns the number of decoded records
+	 */
+	public int size() {
+		return count;
+	}
+
+	public int getAttributeId(int index) {
+		return attrIds[index];
+	}
+
+	/**
+	 * Returns the ZCL status of the record. If it is not ZCL.SUCCESS the record
+	 * has no value.
+	 */
+	public short getStatus(int index) {
+		return statuses[index];
+	}
+
+	/**
+	 * Returns the descriptor of the attribute, or null if the attribute is not
+	 * known by the cluster (only for records whose status is not ZCL.SUCCESS)
+	 */
+	public IZclAttributeDescriptor getAttributeDescriptor(int index) {
+		return descriptors[index];
+	}
+
+	public Object getValue(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Returns the index of the record of the passed attribute, or -1 if the
+	 * frame didn't contain it
+	 */
+	public int indexOf(int attrId) {
+		for (int i = 0; i < count; i++) {
+			if (attrIds[i] == attrId)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if the parser stopped before the end of the frame because a
+	 * record was truncated or had a data type whose size is unknown. The
+	 * records decoded before that point are still available.
+	 */
+	public boolean isMalformed() {
+		return malformed;
+	}
+
+	/**
+	 * Returns true if at least one record has been skipped because its data
+	 * type didn't match the one of the attribute descriptor
+	 */
+	public boolean hasInvalidDataType() {
+		return invalidDataType;
+	}
+}
@@ -31,13 +31,19 @@ import org.energy_home.jemma.ah.hac.lib.AttributeValue;
 import org.energy_home.jemma.ah.hac.lib.EndPoint;
 import org.energy_home.jemma.ah.hac.lib.ServiceCluster;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.energy_home.jemma.ah.zigbee.IZclFrame;
 import org.energy_home.jemma.ah.zigbee.ZCL;
 import org.energy_home.jemma.ah.zigbee.ZclFrame;
+import org.energy_home.jemma.ah.zigbee.ZclFramePool;
+import org.energy_home.jemma.ah.zigbee.ZclResponseListener;
 import org.energy_home.jemma.ah.zigbee.ZigBeeDevice;
 import org.energy_home.jemma.ah.zigbee.ZigBeeDeviceListener;
 import org.energy_home.jemma.ah.zigbee.ZigBeeException;
@@ -49,6 +55,7 @@ import org.energy_home.jemma.ah.zigbee.zcl.ZclWriteAttributeRecord;
 import org.energy_home.jemma.ah.zigbee.zcl.lib.types.ZclAbstractDataType;
 import org.energy_home.jemma.ah.zigbee.zcl.lib.types.ZclDataTypeUI16;
 import org.energy_home.jemma.ah.zigbee.zcl.lib.types.ZclDataTypeUI8;
+import org.energy_home.jemma.ah.zigbee.zcl.lib.types.ZclTypes;
 
 // TODO consider also the differences between general and cluster specific commands
 
@@ -66,6 +73,29 @@ public class ZclServiceCluster extends ServiceCluster implements IZclServiceClus
 
 	private boolean checkDirection = false;
 
+	/**
+	 * Max size of an APS payload, as used to split the batched reads. It is
+	 * the max payload of an unfragmented APS frame with network security.
+	 */
+	protected static final int MAX_APS_PAYLOAD_SIZE = 82;
+
+	/**
+	 * Size used to estimate the read attribute response records of the
+	 * attributes whose values have a variable size (e.g. strings)
+	 */
+	private static final int VARIABLE_VALUE_SIZE_ESTIMATE = 16;
+
+	private static final AtomicLong malformedFrames = new AtomicLong();
+
+	/**
+	 * Returns the number of Report Attributes and Read Attributes Response
+	 * frames, received by any cluster, that were truncated or contained
+	 * records that could not be decoded.
+	 */
+	public static long getMalformedFrameCount() {
+		return malformedFrames.get();
+	}
+
 	private IZclFrame deviceInvoke(short clusterId, IZclFrame zclFrame) throws ZigBeeException {
 		int profileId = getProfileId();
 		IZclFrame zclResponseFrame;
@@ -76,6 +106,18 @@ public class ZclServiceCluster extends ServiceCluster implements IZclServiceClus
 		return zclResponseFrame;
 	}
 
+	/**
+	 * Sends the passed frame without waiting for the answer. The response (or
+	 * the timeout) is notified to the passed listener.
+	 */
+	protected void deviceInvokeAsync(short clusterId, IZclFrame zclFrame, ZclResponseListener listener) throws ZigBeeException {
+		int profileId = getProfileId();
+		if (profileId == -1)
+			device.invokeAsync(clusterId, zclFrame, listener);
+		else
+			device.invokeAsync((short) profileId, clusterId, zclFrame, listener);
+	}
+
 	private boolean devicePost(short clusterId, IZclFrame zclFrame) {
 		int profileId = getProfileId();
 		if (profileId == -1)
@@ -137,6 +179,140 @@ public class ZclServiceCluster extends ServiceCluster implements IZclServiceClus
 		return zclFrame;
 	}
 
+	/**
+	 * Decodes the attribute records of a Report Attributes or of a Read
+	 * Attributes Response frame, starting from the current position of the
+	 * frame. The remaining length of the frame is checked before reading each
+	 * field, so the parser never reads past the end of the frame: a truncated
+	 * record, or a record of an attribute that is not known and whose data type
+	 * has no known size, stops the parsing and the frame is counted as
+	 * malformed (see getMalformedFrameCount()). The values of the attributes
+	 * that are not known by the cluster, or whose data type doesn't match the
+	 * one of their descriptor, are skipped and their records are returned with
+	 * the UNSUPPORTED_ATTRIBUTE and INVALID_DATA_TYPE status.
+	 * 
+	 * @param zclFrame
+	 *            The received frame
+	 * @param withStatus
+	 *            true for Read Attributes Response frames, whose records
+	 *            contain the status field
+	 * @return The decoded records
+	 */
+	protected ZclAttributeRecords parseAttributeRecords(IZclFrame zclFrame, boolean withStatus) {
+		// the shortest record is 3 bytes long (an error status or a 1 byte value)
+		ZclAttributeRecords records = new ZclAttributeRecords(zclFrame.getRemainingPayloadSize() / 3);
+
+		while (zclFrame.getRemainingPayloadSize() > 0) {
+			if (zclFrame.getRemainingPayloadSize() < 3) {
+				records.setMalformed();
+				break;
+			}
+
+			int attrId = zclFrame.parseUInt16();
+			IZclAttributeDescriptor zclAttributeDescriptor = getAttributeDescriptor(attrId);
+
+			if (withStatus) {
+				short status = zclFrame.parseUInt8();
+				if (status != ZCL.SUCCESS) {
+					records.add(attrId, status, zclAttributeDescriptor, null);
+					continue;
+				}
+				if (zclFrame.getRemainingPayloadSize() < 1) {
+					records.setMalformed();
+					break;
+				}
+			}
+
+			short attrDataType = zclFrame.parseUInt8();
+			int size = ZclTypes.zclValueSize(attrDataType, zclFrame);
+			if (size < 0) {
+				// the value is truncated or its size is unknown: the following
+				// records cannot be located
+				records.setMalformed();
+				break;
+			}
+
+			if (zclAttributeDescriptor == null) {
+				records.add(attrId, ZCL.UNSUPPORTED_ATTRIBUTE, null, null);
+				zclFrame.skip(size);
+				continue;
+			}
+
+			ZclAbstractDataType zclDataTypeObject = zclAttributeDescriptor.zclGetDataType();
+			if (zclDataTypeObject.zclGetDataType() != attrDataType) {
+				records.setInvalidDataType();
+				records.add(attrId, ZCL.INVALID_DATA_TYPE, zclAttributeDescriptor, null);
+				zclFrame.skip(size);
+				continue;
+			}
+
+			int remaining = zclFrame.getRemainingPayloadSize();
+			Object objectValue;
+			try {
+				objectValue = zclDataTypeObject.zclParseToObject(zclFrame);
+			} catch (ZclValidationException e) {
+				objectValue = null;
+			}
+
+			// realigns the frame on the next record, whatever the data type
+			// object has consumed
+			int consumed = remaining - zclFrame.getRemainingPayloadSize();
+			if (consumed != size) {
+				if (consumed > size) {
+					records.setMalformed();
+					break;
+				}
+				zclFrame.skip(size - consumed);
+			}
+
+			if (objectValue != null)
+				records.add(attrId, ZCL.SUCCESS, zclAttributeDescriptor, objectValue);
+			else
+				records.add(attrId, ZCL.INVALID_VALUE, zclAttributeDescriptor, null);
+		}
+
+		if (records.isMalformed()) {
+			malformedFrames.incrementAndGet();
+			if (log.isDebugEnabled())
+				log.debug("malformed attribute records in frame " + zclFrame.toString());
+		}
+
+		return records;
+	}
+
+	/**
+	 * Called with all the records of a received Report Attributes frame. The
+	 * default implementation updates the cache with all the reported values,
+	 * all with the same timestamp, before notifying them to the peer clusters.
+	 * The records whose status is not ZCL.SUCCESS are ignored. Override to
+	 * handle the report as a whole.
+	 * 
+	 * @param records
+	 *            The decoded records
+	 * @param timestamp
+	 *            The reception time of the report
+	 */
+	protected void notifyAttributeRecords(ZclAttributeRecords records, long timestamp) {
+		int size = records.size();
+		AttributeValue[] attrValues = new AttributeValue[size];
+		for (int i = 0; i < size; i++) {
+			if (records.getStatus(i) != ZCL.SUCCESS)
+				continue;
+			attrValues[i] = new AttributeValue(records.getValue(i), timestamp);
+			setCachedAttributeValue(records.getAttributeId(i), attrValues[i]);
+		}
+
+		for (int i = 0; i < size; i++) {
+			if (attrValues[i] == null)
+				continue;
+			try {
+				notifyAttributeValue(records.getAttributeDescriptor(i).getName(), attrValues[i]);
+			} catch (Exception e) {
+				log.error("error notifying attribute " + records.getAttributeId(i), e);
+			}
+		}
+	}
+
 	protected IServiceCluster getSinglePeerCluster(String name) throws ServiceClusterException {
 		IServiceCluster[] serviceClusters = ((EndPoint) endPoint).getPeerServiceClusters(name);
 
@@ -450,6 +626,225 @@ public class ZclServiceCluster extends ServiceCluster implements IZclServiceClus
 		}
 	}
 
+	/**
+	 * Reads many attributes of the peer cluster with the minimum number of
+	 * Read Attributes requests. The attribute ids are packed in as few requests
+	 * as possible, so that the expected responses fit in an APS frame (see
+	 * getMaxApsPayloadSize()). The attributes that the remote device omits
+	 * from a response, because they didn't fit in it, are requested again.
+	 * The values read are stored in the cache of the cluster, all with the
+	 * same timestamp.
+	 * 
+	 * @param attrIds
+	 *            The ids of the attributes to read
+	 * @param context
+	 *            The request context
+	 * @return A record for each requested attribute. The records whose status
+	 *         is not ZCL.SUCCESS contain the error returned by the remote
+	 *         device for that attribute (ZCL.FAILURE if the device didn't
+	 *         return any record for it).
+	 * @throws ApplianceException
+	 *             If the cluster is not attached or a request fails
+	 * @throws ServiceClusterException
+	 *             If the remote device rejected a whole request
+	 */
+	protected ZclAttributeRecords readAttributeRecords(int[] attrIds, IEndPointRequestContext context)
+			throws ApplianceException, ServiceClusterException {
+
+		ZigBeeDevice device = getZigBeeDevice();
+
+		if (device == null)
+			throw new ApplianceException("Not attached");
+
+		ZclAttributeRecords result = new ZclAttributeRecords(attrIds.length);
+
+		// ids still to be read, in request order
+		int[] pending = new int[attrIds.length];
+		System.arraycopy(attrIds, 0, pending, 0, attrIds.length);
+		int pendingCount = pending.length;
+
+		while (pendingCount > 0) {
+			int requested = getReadAttributesBatchSize(pending, pendingCount);
+			ZclAttributeRecords records = issueReadAttributes(pending, requested, context);
+
+			// keeps the ids the response didn't contain at the head of the
+			// pending ids
+			int missing = 0;
+			for (int i = 0; i < requested; i++) {
+				int index = records.indexOf(pending[i]);
+				if (index >= 0) {
+					result.add(pending[i], records.getStatus(index), records.getAttributeDescriptor(index),
+							records.getValue(index));
+				} else {
+					pending[missing++] = pending[i];
+				}
+			}
+
+			if (missing == requested) {
+				// no progress: the device doesn't return these attributes
+				for (int i = 0; i < missing; i++)
+					result.add(pending[i], ZCL.FAILURE, getAttributeDescriptor(pending[i]), null);
+				missing = 0;
+			}
+
+			System.arraycopy(pending, requested, pending, missing, pendingCount - requested);
+			pendingCount = pendingCount - requested + missing;
+		}
+
+		long timestamp = System.currentTimeMillis();
+		for (int i = 0; i < result.size(); i++) {
+			if (result.getStatus(i) == ZCL.SUCCESS)
+				setCachedAttributeValue(result.getAttributeId(i), new AttributeValue(result.getValue(i), timestamp));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reads an attribute together with other attributes of the peer cluster
+	 * (see readAttributeRecords()), typically the attributes that are always
+	 * used together with it. All the values are stored in the cache.
+	 * 
+	 * @param attrId
+	 *            The id of the attribute whose value is returned. It must be
+	 *            contained in attrIds
+	 * @param attrIds
+	 *            The ids of all the attributes to read
+	 * @param context
+	 *            The request context
+	 * @return The value of the attribute
+	 */
+	protected Object readAttributeObject(int attrId, int[] attrIds, IEndPointRequestContext context)
+			throws ApplianceException, ServiceClusterException {
+		ZclAttributeRecords records = readAttributeRecords(attrIds, context);
+		int index = records.indexOf(attrId);
+		if (index < 0)
+			throw new ApplianceException("Attribute " + attrId + " not requested");
+
+		short status = records.getStatus(index);
+		if (status != ZCL.SUCCESS)
+			this.raiseServiceClusterException(status);
+		return records.getValue(index);
+	}
+
+	/**
+	 * Returns the max size of the APS payload of the frames exchanged by this
+	 * cluster. Override if the device supports bigger (or only smaller)
+	 * frames.
+	 */
+	protected int getMaxApsPayloadSize() {
+		return MAX_APS_PAYLOAD_SIZE;
+	}
+
+	/**
+	 * Returns how many of the passed attribute ids can be requested by a
+	 * single Read Attributes command, estimating the size of the response
+	 * records from the attribute descriptors.
+	 */
+	private int getReadAttributesBatchSize(int[] attrIds, int count) {
+		// the response has the same ZCL header as the request
+		int available = getMaxApsPayloadSize() - 3;
+		int size = 0;
+		int i = 0;
+		for (; i < count; i++) {
+			// attribute id, status and data type
+			int recordSize = 4;
+			IZclAttributeDescriptor zclAttributeDescriptor = getAttributeDescriptor(attrIds[i]);
+			if (zclAttributeDescriptor != null) {
+				int valueSize = ZclTypes.zclFixedValueSize(zclAttributeDescriptor.zclGetDataType().zclGetDataType());
+				recordSize += (valueSize >= 0) ? valueSize : VARIABLE_VALUE_SIZE_ESTIMATE;
+			}
+			if ((i > 0) && (size + recordSize > available))
+				break;
+			size += recordSize;
+		}
+		return i;
+	}
+
+	/**
+	 * Sends a Read Attributes command with the first count ids of the passed
+	 * array and parses the response
+	 */
+	private ZclAttributeRecords issueReadAttributes(int[] attrIds, int count, IEndPointRequestContext context)
+			throws ApplianceException, ServiceClusterException {
+		IZclFrame zclFrame = this.createOutgoingZclFrame(ZCL.ZclReadAttrs, count * 2);
+		for (int i = 0; i < count; i++)
+			zclFrame.appendUInt16(attrIds[i]);
+
+		if ((context != null) && (!context.isConfirmationRequired()))
+			zclFrame.disableDefaultResponse(true);
+
+		IZclFrame zclResponseFrame = deviceInvoke((short) getClusterId(), zclFrame);
+		if (zclResponseFrame == null)
+			throw new ApplianceException("Timeout");
+
+		if (this.checkDirection && (zclFrame.getDirection() == zclResponseFrame.getDirection())) {
+			log.error(BAD_DIRECTION_MESSAGE);
+			throw new ServiceClusterException("bad direction field in incoming packet");
+		}
+
+		int responseCommandId = zclResponseFrame.getCommandId();
+		if (responseCommandId == ZCL.ZclReadAttrsRsp) {
+			return parseAttributeRecords(zclResponseFrame, true);
+		} else if (responseCommandId == ZCL.ZclDefaultRsp) {
+			if (zclResponseFrame.getRemainingPayloadSize() < 2)
+				this.raiseServiceClusterException(ZCL.MALFORMED_COMMAND);
+
+			short commandId = zclResponseFrame.parseUInt8();
+			if (commandId != ZCL.ZclReadAttrs)
+				throw new ServiceClusterException("Expected default response for ReadAttributes, received " + commandId);
+
+			short status = zclResponseFrame.parseUInt8();
+			this.raiseServiceClusterException((status != ZCL.SUCCESS) ? status : ZCL.MALFORMED_COMMAND);
+		}
+		throw new ApplianceException("Response command doesn't match the request command");
+	}
+
+	/**
+	 * Reads the values of the passed attributes with readAttributeRecords().
+	 * The values still valid in the cache according to the request context are
+	 * not read again. It implements the batched reads of the HAC
+	 * IServiceCluster.getAttributeValues() method.
+	 */
+	protected Map readAttributeValues(String[] attributeNames, IEndPointRequestContext context) throws ApplianceException,
+			ServiceClusterException {
+		Map result = new HashMap();
+		int[] attrIds = new int[attributeNames.length];
+		String[] names = new String[attributeNames.length];
+		int count = 0;
+
+		for (int i = 0; i < attributeNames.length; i++) {
+			IZclAttributeDescriptor zclAttributeDescriptor = getAttributeDescriptor(attributeNames[i]);
+			if (zclAttributeDescriptor == null)
+				continue;
+
+			int attrId = zclAttributeDescriptor.zclGetId();
+			IAttributeValue attributeValue = checkCache((short) getClusterId(), attrId, context);
+			if (attributeValue != null) {
+				result.put(attributeNames[i], attributeValue);
+			} else {
+				attrIds[count] = attrId;
+				names[count] = attributeNames[i];
+				count++;
+			}
+		}
+
+		if (count > 0) {
+			int[] requestedIds = new int[count];
+			System.arraycopy(attrIds, 0, requestedIds, 0, count);
+			ZclAttributeRecords records = readAttributeRecords(requestedIds, context);
+			for (int i = 0; i < count; i++) {
+				int index = records.indexOf(requestedIds[i]);
+				if ((index >= 0) && (records.getStatus(index) == ZCL.SUCCESS))
+					result.put(names[i], cachedAttributeValues.get(new Integer(requestedIds[i])));
+				else
+					result.put(names[i], null);
+			}
+		}
+
+		return result;
+	}
+
 	public void writeAttribute(int myattribute) throws ApplianceException, ServiceClusterException {
 
 		if (device == null)
@@ -486,13 +881,49 @@ public class ZclServiceCluster extends ServiceCluster implements IZclServiceClus
 
 	protected IZclFrame getDefaultResponse(IZclFrame zclFrame, int statusCode) {
 		IZclFrame responseZclFrame = zclFrame.createResponseFrame(2);
+		fillDefaultResponse(zclFrame, responseZclFrame, statusCode);
+		return responseZclFrame;
+	}
+
+	private void fillDefaultResponse(IZclFrame zclFrame, IZclFrame responseZclFrame, int statusCode) {
 		responseZclFrame.setCommandId(ZCL.ZclDefaultRsp);
 		responseZclFrame.appendUInt8(zclFrame.getCommandId());
 		responseZclFrame.setFrameType(IZclFrame.GENERAL_COMMAND);
 		responseZclFrame.appendUInt8(statusCode);
+	}
+
+	/**
+	 * Creates a response frame that must be given back with releaseFrame() once
+	 * posted. If the current thread has a ZclFramePool (i.e. it is handling an
+	 * incoming message) the frame comes from the pool, otherwise it is a
+	 * normal frame.
+	 */
+	protected IZclFrame createTransientResponseFrame(IZclFrame zclFrame, int payloadSize) {
+		ZclFramePool framePool = ZclFramePool.getCurrent();
+		if (framePool != null)
+			return framePool.createResponseFrame(zclFrame, payloadSize);
+		return zclFrame.createResponseFrame(payloadSize);
+	}
+
+	/**
+	 * Same as getDefaultResponse() but the frame is created by
+	 * createTransientResponseFrame()
+	 */
+	protected IZclFrame getTransientDefaultResponse(IZclFrame zclFrame, int statusCode) {
+		IZclFrame responseZclFrame = createTransientResponseFrame(zclFrame, 2);
+		fillDefaultResponse(zclFrame, responseZclFrame, statusCode);
 		return responseZclFrame;
 	}
 
+	/**
+	 * Gives back a frame created by createTransientResponseFrame()
+	 */
+	protected void releaseFrame(IZclFrame zclFrame) {
+		ZclFramePool framePool = ZclFramePool.getCurrent();
+		if (framePool != null)
+			framePool.release(zclFrame);
+	}
+
 	public void zclAttach(ZigBeeDevice device) {
 		device.setListener((short) this.getClusterId(), this.getSide(), this);
 		this.device = device;
@@ -676,38 +1107,14 @@ public class ZclServiceCluster extends ServiceCluster implements IZclServiceClus
 		case ZCL.ZclReportAttrs: {
 			// Handles an incoming Report Attributes ZCL Command
 			short statusCode = ZCL.SUCCESS;
-			while (true) {
-
-				try {
-					int attrId = ZclDataTypeUI16.zclParse(zclFrame);
-					short attrDataType = ZclDataTypeUI8.zclParse(zclFrame);
-					IZclAttributeDescriptor zclAttributeDescriptor = getAttributeDescriptor(attrId);
-					if (zclAttributeDescriptor == null)
-						continue;
-
-					ZclAbstractDataType zclDataTypeObject = zclAttributeDescriptor.zclGetDataType();
-					if (zclDataTypeObject.zclGetDataType() == attrDataType) {
-						Object objectValue = zclDataTypeObject.zclParseToObject(zclFrame);
-						try {
-							AttributeValue attrValue = new AttributeValue(objectValue, System.currentTimeMillis());
-							setCachedAttributeValue(attrId, attrValue);
-							notifyAttributeValue(zclAttributeDescriptor.getName(), attrValue);
-						} catch (Exception e) {
-							continue;
-						}
-					} else {
-						statusCode = ZCL.INVALID_DATA_TYPE;
-					}
-				} catch (Throwable e) {
-					// probably an array out of band.
-					break;
-				}
-			}
+			ZclAttributeRecords records = parseAttributeRecords(zclFrame, false);
+			if (records.size() > 0)
+				notifyAttributeRecords(records, System.currentTimeMillis());
 
 			// generates the default response, if required
 			if (!zclFrame.isDefaultResponseDisabled()) {
 				statusCode = ZCL.SUCCESS;
-				IZclFrame zclResponseFrame = this.getDefaultResponse(zclFrame, statusCode);
+				IZclFrame zclResponseFrame = this.getTransientDefaultResponse(zclFrame, statusCode);
 				// try {
 				// device = getZigBeeDevice();
 				// } catch (ApplianceException e) {
@@ -715,7 +1122,11 @@ public class ZclServiceCluster extends ServiceCluster implements IZclServiceClus
 				// e);
 				// }
 
-				devicePost(clusterId, zclResponseFrame);
+				try {
+					devicePost(clusterId, zclResponseFrame);
+				} finally {
+					releaseFrame(zclResponseFrame);
+				}
 			}
 			break;
 		}
@@ -972,6 +1383,34 @@ public class ZclServiceCluster extends ServiceCluster implements IZclServiceClus
 		return zclResponseFrame;
 	}
 
+	/**
+	 * Asynchronous version of issueExec: the frame is sent and the method
+	 * returns immediately, without blocking the calling thread till the
+	 * response arrives. The response frame (or the error) is notified to the
+	 * passed listener, which is responsible for checking the response command
+	 * id.
+	 * 
+	 * @param zclFrame
+	 *            The outgoing ZclFrame
+	 * @param listener
+	 *            The listener that receives the response
+	 * @throws ApplianceException
+	 *             If the frame cannot be sent
+	 */
+	protected void issueExecAsync(IZclFrame zclFrame, ZclResponseListener listener) throws ApplianceException {
+		ZigBeeDevice device = getZigBeeDevice();
+		if (device == null)
+			throw new ApplianceException("Not attached");
+
+		zclFrame.setSequence(sequence++);
+
+		try {
+			deviceInvokeAsync((short) getClusterId(), zclFrame, listener);
+		} catch (ZigBeeException _x) {
+			throw new ApplianceException((INVOKE_ERROR_MESSAGE));
+		}
+	}
+
 	/**
 	 * @deprecated Use the other issueExec
 	 * @param clusterId
@@ -1093,7 +1532,7 @@ public class ZclServiceCluster extends ServiceCluster implements IZclServiceClus
 		this.cachedAttributeValues.put(new Integer(attrId), av);
 	}
 
-	private HashMap cachedAttributeValues = new HashMap();
+	private Map cachedAttributeValues = Collections.synchronizedMap(new HashMap());
 
 	protected void setCachedAttributeObject(int attributeId, Object attributeObjectValue) {
 		this.cachedAttributeValues.put(new Integer(attributeId), new AttributeValue(attributeObjectValue));
@@ -52,6 +52,6 @@ public class ZclDataTypeBitmap16 extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Integer(ZclDataTypeBitmap16.zclParse(zclFrame));
+		return Integer.valueOf(ZclDataTypeBitmap16.zclParse(zclFrame));
 	}
 }
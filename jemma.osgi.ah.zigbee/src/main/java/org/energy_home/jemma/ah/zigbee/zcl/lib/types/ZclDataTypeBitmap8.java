@@ -105,6 +105,6 @@ public class ZclDataTypeBitmap8 extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Short(ZclDataTypeBitmap8.zclParse(zclFrame));
+		return Short.valueOf(ZclDataTypeBitmap8.zclParse(zclFrame));
 	}
 }
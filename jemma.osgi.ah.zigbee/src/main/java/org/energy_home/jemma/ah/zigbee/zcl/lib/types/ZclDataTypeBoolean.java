@@ -52,6 +52,6 @@ public class ZclDataTypeBoolean extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Boolean(ZclDataTypeBoolean.zclParse(zclFrame));
+		return Boolean.valueOf(ZclDataTypeBoolean.zclParse(zclFrame));
 	}
 }
@@ -106,6 +106,6 @@ public class ZclDataTypeClusterID extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Integer(ZclDataTypeClusterID.zclParse(zclFrame));
+		return Integer.valueOf(ZclDataTypeClusterID.zclParse(zclFrame));
 	}
 }
@@ -44,7 +44,7 @@ public class ZclDataTypeEnum16 extends ZclAbstractDataType {
 	}
 	
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Short(ZclDataTypeEnum16.zclParse(zclFrame));
+		return Short.valueOf(ZclDataTypeEnum16.zclParse(zclFrame));
 	}
 
 	public short zclGetDataType() {
@@ -44,7 +44,7 @@ public class ZclDataTypeEnum8 extends ZclAbstractDataType {
 	}
 	
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Short(ZclDataTypeEnum8.zclParse(zclFrame));
+		return Short.valueOf(ZclDataTypeEnum8.zclParse(zclFrame));
 	}
 
 	public short zclGetDataType() {
@@ -106,6 +106,6 @@ public class ZclDataTypeI16 extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Integer(ZclDataTypeI16.zclParse(zclFrame));
+		return Integer.valueOf(ZclDataTypeI16.zclParse(zclFrame));
 	}
 }
@@ -52,6 +52,6 @@ public class ZclDataTypeI24 extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Integer(ZclDataTypeI24.zclParse(zclFrame));
+		return Integer.valueOf(ZclDataTypeI24.zclParse(zclFrame));
 	}
 }
@@ -105,6 +105,6 @@ public class ZclDataTypeI32 extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Long(ZclDataTypeI32.zclParse(zclFrame));
+		return Long.valueOf(ZclDataTypeI32.zclParse(zclFrame));
 	}
 }
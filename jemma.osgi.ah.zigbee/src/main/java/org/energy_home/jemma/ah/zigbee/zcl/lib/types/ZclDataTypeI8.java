@@ -97,7 +97,7 @@ public class ZclDataTypeI8 extends ZclAbstractDataType {
 	}
 	
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Short(ZclDataTypeI8.zclParse(zclFrame));
+		return Short.valueOf(ZclDataTypeI8.zclParse(zclFrame));
 	}
 
 	public short zclGetDataType() {
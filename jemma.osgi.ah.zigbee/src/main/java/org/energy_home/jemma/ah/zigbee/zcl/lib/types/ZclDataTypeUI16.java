@@ -106,6 +106,6 @@ public class ZclDataTypeUI16 extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Integer(ZclDataTypeUI16.zclParse(zclFrame));
+		return Integer.valueOf(ZclDataTypeUI16.zclParse(zclFrame));
 	}
 }
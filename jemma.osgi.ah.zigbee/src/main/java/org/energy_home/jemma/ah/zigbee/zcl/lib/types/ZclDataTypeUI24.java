@@ -107,6 +107,6 @@ public class ZclDataTypeUI24 extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Integer(ZclDataTypeUI24.zclParse(zclFrame));
+		return Integer.valueOf(ZclDataTypeUI24.zclParse(zclFrame));
 	}
 }
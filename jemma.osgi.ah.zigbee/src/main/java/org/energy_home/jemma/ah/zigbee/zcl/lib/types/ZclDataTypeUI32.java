@@ -105,6 +105,6 @@ public class ZclDataTypeUI32 extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Long(ZclDataTypeUI32.zclParse(zclFrame));
+		return Long.valueOf(ZclDataTypeUI32.zclParse(zclFrame));
 	}
 }
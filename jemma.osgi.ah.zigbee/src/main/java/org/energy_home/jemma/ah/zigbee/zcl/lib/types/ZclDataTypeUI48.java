@@ -52,6 +52,6 @@ public class ZclDataTypeUI48 extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Long(ZclDataTypeUI48.zclParse(zclFrame));
+		return Long.valueOf(ZclDataTypeUI48.zclParse(zclFrame));
 	}
 }
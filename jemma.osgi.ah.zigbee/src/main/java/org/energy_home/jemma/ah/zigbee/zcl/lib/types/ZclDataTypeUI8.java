@@ -97,7 +97,7 @@ public class ZclDataTypeUI8 extends ZclAbstractDataType {
 	}
 	
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Short(ZclDataTypeUI8.zclParse(zclFrame));
+		return Short.valueOf(ZclDataTypeUI8.zclParse(zclFrame));
 	}
 
 	public short zclGetDataType() {
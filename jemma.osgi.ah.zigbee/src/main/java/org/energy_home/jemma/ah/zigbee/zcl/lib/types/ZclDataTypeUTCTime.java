@@ -105,7 +105,7 @@ public class ZclDataTypeUTCTime extends ZclAbstractDataType {
 	}
 
 	public Object zclParseToObject(IZclFrame zclFrame) throws ZclValidationException {
-		return new Long(ZclDataTypeUI32.zclParse(zclFrame));
+		return Long.valueOf(ZclDataTypeUI32.zclParse(zclFrame));
 	}
 
 }
@@ -15,6 +15,7 @@
  */
 package org.energy_home.jemma.ah.zigbee.zcl.lib.types;
 
+import org.energy_home.jemma.ah.zigbee.IZclFrame;
 
 
 /**
@@ -59,4 +60,104 @@ public class ZclTypes {
 	public static final short ZclFloatType = 0x99; // FIXME: put the right value
 													// from specs!!!
 	public static final short ZclUTCTime = 0xe2; // From Smart Energy Profile
-}
\ No newline at end of file
+
+	/**
+	 * Returns the size of the values of the passed ZCL data type, if it is a
+	 * fixed size data type.
+	 * 
+	 * @param dataType
+	 *            The ZCL data type identifier
+	 * @return The size of the values, or -1 if the data type has a variable
+	 *         size or is not supported
+	 */
+	public static int zclFixedValueSize(short dataType) {
+		if ((dataType >= 0x08) && (dataType <= 0x0f)) {
+			// 8 to 64 bit data
+			return dataType - 0x07;
+		} else if ((dataType >= 0x18) && (dataType <= 0x1f)) {
+			// 8 to 64 bit bitmaps
+			return dataType - 0x17;
+		} else if ((dataType >= 0x20) && (dataType <= 0x27)) {
+			// 8 to 64 bit unsigned integers
+			return dataType - 0x1f;
+		} else if ((dataType >= 0x28) && (dataType <= 0x2f)) {
+			// 8 to 64 bit signed integers
+			return dataType - 0x27;
+		}
+
+		switch (dataType) {
+		case ZclBooleanType:
+		case ZclEnum8Type:
+			return 1;
+
+		case ZclEnum16Type:
+		case 0x38: // semi precision
+		case ZclClusterIDType:
+		case 0xe9: // attribute id
+			return 2;
+
+		case 0x39: // single precision
+		case 0xe0: // time of day
+		case 0xe1: // date
+		case ZclUTCTime:
+		case 0xea: // BACnet OID
+			return 4;
+
+		case 0x3a: // double precision
+		case 0xf0: // IEEE address
+			return 8;
+
+		case 0xf1: // 128 bit security key
+			return 16;
+
+		default:
+			// strings, arrays, structures, sets, bags and unknown types
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the size of the value of the passed ZCL data type that starts at
+	 * the current position of the frame. The frame position is not moved.
+	 * 
+	 * @param dataType
+	 *            The ZCL data type identifier, as found in the frame
+	 * @param zclFrame
+	 *            The frame
+	 * @return The size of the value, or -1 if the data type is not supported or
+	 *         the value doesn't fit in the remaining bytes of the frame
+	 */
+	public static int zclValueSize(short dataType, IZclFrame zclFrame) {
+		int remaining = zclFrame.getRemainingPayloadSize();
+		int size = zclFixedValueSize(dataType);
+
+		if (size < 0) {
+			switch (dataType) {
+			case ZclOctetsType:
+			case ZclStringType:
+				if (remaining < 1)
+					return -1;
+				size = zclFrame.peekUInt8(0);
+				// 0xff is the invalid value, without any following byte
+				size = (size == 0xff) ? 1 : size + 1;
+				break;
+
+			case 0x43: // long octet string
+			case 0x44: // long character string
+				if (remaining < 2)
+					return -1;
+				size = zclFrame.peekUInt8(0) | (zclFrame.peekUInt8(1) << 8);
+				size = (size == 0xffff) ? 2 : size + 2;
+				break;
+
+			default:
+				// arrays, structures, sets, bags and unknown types
+				return -1;
+			}
+		}
+
+		if (size > remaining)
+			return -1;
+		return size;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.energy_home.jemma.ah.zigbee.ZigBeeTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.emory.mathcs.backport.java.util.concurrent.CountDownLatch;
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
+
+public class HashedWheelTimerTest {
+
+	private HashedWheelTimer timer;
+
+	@Before
+	public void setUp() {
+		timer = new HashedWheelTimer("test wheel timer", 10, 16);
+	}
+
+	@After
+	public void tearDown() {
+		timer.stop();
+	}
+
+	@Test(timeout = 5000)
+	public void runsTheScheduledTasks() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(3);
+		Runnable task = new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		};
+		timer.schedule(task, 0);
+		timer.schedule(task, 30);
+		// more than a round of the wheel
+		timer.schedule(task, 250);
+
+		assertTrue(done.await(2000, TimeUnit.MILLISECONDS));
+		assertEquals(0, timer.size());
+	}
+
+	@Test(timeout = 5000)
+	public void cancelledTasksAreNotRun() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+		ZigBeeTimer.Timeout timeout = timer.schedule(new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 50);
+
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		Thread.sleep(150);
+		assertEquals(0, runs.get());
+	}
+
+	@Test(timeout = 5000)
+	public void stoppedTimerDiscardsTheTasks() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		timer.schedule(task, 50);
+		timer.stop();
+
+		// a stopped timer is not restarted by the tasks scheduled later
+		ZigBeeTimer.Timeout late = timer.schedule(task, 0);
+		assertFalse(late.cancel());
+		assertEquals(0, timer.size());
+
+		Thread.sleep(150);
+		assertEquals(0, runs.get());
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.emory.mathcs.backport.java.util.concurrent.LinkedBlockingQueue;
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+
+public class OutboundSchedulerTest {
+
+	private static final long WAIT = 2000;
+	private static final long QUIET = 100;
+
+	/**
+	 * Keeps the transmissions in flight till the test completes them, like a
+	 * gateway that confirms the messages asynchronously
+	 */
+	private static class AsyncTransmitter implements OutboundScheduler.Transmitter {
+		final LinkedBlockingQueue transmitted = new LinkedBlockingQueue();
+		final LinkedBlockingQueue failedOwners = new LinkedBlockingQueue();
+
+		public void transmit(Object message, OutboundScheduler.Transmission transmission) {
+			transmitted.offer(new Object[] { message, transmission });
+		}
+
+		public void transmitFailed(Object owner, Exception e) {
+			failedOwners.offer(owner);
+		}
+
+		Object[] next() throws InterruptedException {
+			Object[] t = (Object[]) transmitted.poll(WAIT, TimeUnit.MILLISECONDS);
+			assertNotNull("message not transmitted", t);
+			return t;
+		}
+
+		void assertNothingTransmitted() throws InterruptedException {
+			assertNull(transmitted.poll(QUIET, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	private final AsyncTransmitter transmitter = new AsyncTransmitter();
+	private OutboundScheduler scheduler;
+
+	private OutboundScheduler start(int maxInFlight, long confirmTimeout) {
+		scheduler = new OutboundScheduler("test outbound", transmitter, maxInFlight, 1, 64, 0, confirmTimeout);
+		scheduler.start();
+		return scheduler;
+	}
+
+	@After
+	public void tearDown() {
+		if (scheduler != null)
+			scheduler.stop();
+	}
+
+	private static OutboundScheduler.Transmission transmission(Object[] t) {
+		return (OutboundScheduler.Transmission) t[1];
+	}
+
+	@Test(timeout = 10000)
+	public void messagesStayInFlightTillConfirmed() throws InterruptedException {
+		start(2, 60000);
+		for (int i = 0; i < 3; i++)
+			assertTrue(scheduler.submit(i, OutboundScheduler.CONTROL, "m" + i, null, null));
+
+		Object[] first = transmitter.next();
+		transmitter.next();
+		// both the threads are free, but the window is full
+		transmitter.assertNothingTransmitted();
+
+		transmission(first).completed(null);
+		assertEquals("m2", transmitter.next()[0]);
+		assertEquals(1, scheduler.getSentCount());
+		assertEquals(2, scheduler.getWindow());
+	}
+
+	@Test(timeout = 10000)
+	public void messagesToADestinationWaitForTheConfirmOfThePreviousOne() throws InterruptedException {
+		start(4, 60000);
+		for (int i = 0; i < 3; i++)
+			assertTrue(scheduler.submit(7, OutboundScheduler.CONTROL, "m" + i, null, null));
+
+		for (int i = 0; i < 3; i++) {
+			Object[] t = transmitter.next();
+			assertEquals("m" + i, t[0]);
+			transmitter.assertNothingTransmitted();
+			transmission(t).completed(null);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void failuresShrinkTheWindowAndAreNotifiedToTheOwner() throws InterruptedException {
+		start(4, 60000);
+		Object owner = new Object();
+		assertTrue(scheduler.submit(1, OutboundScheduler.CONTROL, "m", null, owner));
+
+		transmission(transmitter.next()).completed(new Exception("not confirmed"));
+		assertSame(owner, transmitter.failedOwners.poll(WAIT, TimeUnit.MILLISECONDS));
+		assertEquals(1, scheduler.getFailedCount());
+		assertEquals(2, scheduler.getWindow());
+	}
+
+	@Test(timeout = 10000)
+	public void unconfirmedMessagesTimeOut() throws InterruptedException {
+		start(4, 100);
+		Object owner = new Object();
+		assertTrue(scheduler.submit(1, OutboundScheduler.CONTROL, "m", null, owner));
+		OutboundScheduler.Transmission transmission = transmission(transmitter.next());
+
+		assertSame(owner, transmitter.failedOwners.poll(WAIT, TimeUnit.MILLISECONDS));
+		assertEquals(1, scheduler.getTimedOutCount());
+		assertEquals(2, scheduler.getWindow());
+
+		// a late confirm is ignored
+		transmission.completed(null);
+		assertEquals(0, scheduler.getSentCount());
+		assertEquals(2, scheduler.getWindow());
+
+		// the slot has been released
+		assertTrue(scheduler.submit(1, OutboundScheduler.CONTROL, "m", null, owner));
+		transmission(transmitter.next()).completed(null);
+		assertEquals(1, scheduler.getSentCount());
+	}
+
+	@Test(timeout = 10000)
+	public void queuedMessagesAreFailedWhenStopped() throws InterruptedException {
+		start(1, 60000);
+		Object owner = new Object();
+		assertTrue(scheduler.submit(1, OutboundScheduler.CONTROL, "m0", null, null));
+		assertTrue(scheduler.submit(2, OutboundScheduler.CONTROL, "m1", null, owner));
+		OutboundScheduler.Transmission transmission = transmission(transmitter.next());
+
+		scheduler.stop();
+		assertSame(owner, transmitter.failedOwners.poll(WAIT, TimeUnit.MILLISECONDS));
+		// the confirm of a message in flight is ignored
+		transmission.completed(null);
+		assertEquals(0, scheduler.getSentCount());
+		assertTrue(!scheduler.submit(1, OutboundScheduler.CONTROL, "m2", null, null));
+	}
+}
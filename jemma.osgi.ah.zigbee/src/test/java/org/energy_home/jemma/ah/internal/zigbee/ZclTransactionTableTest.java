@@ -0,0 +1,155 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ZclTransactionTableTest {
+
+	private static final int UNSOLICITED_PER_REQUEST = 2;
+	private static final int INFLIGHT = 8;
+
+	@Test
+	public void removeReturnsTheInsertedValue() {
+		ZclTransactionTable table = new ZclTransactionTable(64, 8);
+		Object value = new Object();
+
+		assertTrue(table.put(0x1234, value, Long.MAX_VALUE));
+		assertSame(value, table.get(0x1234));
+		assertEquals(1, table.size());
+		assertSame(value, table.remove(0x1234));
+		assertNull(table.remove(0x1234));
+		assertNull(table.get(0x1234));
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void removeChecksTheValue() {
+		ZclTransactionTable table = new ZclTransactionTable(64, 8);
+		Object value = new Object();
+
+		assertTrue(table.put(7, value, Long.MAX_VALUE));
+		assertFalse(table.remove(7, new Object()));
+		assertFalse(table.remove(7, null));
+		assertTrue(table.remove(7, value));
+		assertFalse(table.remove(7, value));
+	}
+
+	@Test
+	public void expireNotifiesTheEntriesPastTheirDeadline() {
+		ZclTransactionTable table = new ZclTransactionTable(64, 8);
+		final List expired = new ArrayList();
+		Object late = new Object();
+		Object alive = new Object();
+
+		table.put(1, late, 100);
+		table.put(2, alive, 300);
+
+		assertEquals(1, table.expire(200, new ZclTransactionTable.ExpiryListener() {
+			public void expired(long key, Object value) {
+				expired.add(value);
+			}
+		}));
+		assertEquals(1, expired.size());
+		assertSame(late, expired.get(0));
+		assertNull(table.get(1));
+		assertSame(alive, table.get(2));
+		assertEquals(1, table.getExpiredCount());
+	}
+
+	@Test
+	public void putFailsWhenTheProbingWindowIsFull() {
+		// a single window covers the whole table
+		ZclTransactionTable table = new ZclTransactionTable(4, 4);
+		for (long key = 0; key < 4; key++)
+			assertTrue(table.put(key, new Object(), Long.MAX_VALUE));
+
+		assertFalse(table.put(4, new Object(), Long.MAX_VALUE));
+		assertEquals(1, table.getOverflowCount());
+
+		table.remove(2);
+		assertTrue(table.put(4, new Object(), Long.MAX_VALUE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeKeysAreRejected() {
+		new ZclTransactionTable(64, 8).put(-1, new Object(), Long.MAX_VALUE);
+	}
+
+	/**
+	 * Each thread simulates a device that sends requests and receives their
+	 * responses, plus a number of unsolicited frames (lookups of missing keys),
+	 * with the default size and probes of ZigBeeManagerProperties.
+	 */
+	@Test(timeout = 60000)
+	public void concurrentDevicesMatchTheirResponses() throws InterruptedException {
+		final ZclTransactionTable table = new ZclTransactionTable(ZigBeeManagerProperties.DEFAULT_TRANSACTIONS_SIZE,
+				ZigBeeManagerProperties.DEFAULT_TRANSACTIONS_PROBES);
+		final int operations = 100000;
+		final int[] errors = new int[1];
+
+		Thread[] workers = new Thread[8];
+		for (int i = 0; i < workers.length; i++) {
+			final long keyBase = ((long) i + 1) << 24;
+			workers[i] = new Thread() {
+				public void run() {
+					Object value = new Object();
+					int failures = 0;
+					for (int n = 0; n < operations; n++) {
+						// clusterId and sequence number of the request
+						if (!table.put(key(keyBase, n), value, Long.MAX_VALUE))
+							failures++;
+						for (int u = 0; u < UNSOLICITED_PER_REQUEST; u++) {
+							if (table.remove(keyBase | 0xFF0000 | u) != null)
+								failures++;
+						}
+						if ((n >= INFLIGHT) && (table.remove(key(keyBase, n - INFLIGHT)) != value))
+							failures++;
+					}
+					for (int n = Math.max(operations - INFLIGHT, 0); n < operations; n++) {
+						if (table.remove(key(keyBase, n)) != value)
+							failures++;
+					}
+					synchronized (errors) {
+						errors[0] += failures;
+					}
+				}
+			};
+		}
+
+		for (int i = 0; i < workers.length; i++)
+			workers[i].start();
+		for (int i = 0; i < workers.length; i++)
+			workers[i].join();
+
+		assertEquals(0, errors[0]);
+		assertEquals(0, table.size());
+		assertEquals(0, table.getOverflowCount());
+	}
+
+	private static long key(long keyBase, int n) {
+		return keyBase | ((n & 0x07) << 8) | (n & 0xFF);
+	}
+}
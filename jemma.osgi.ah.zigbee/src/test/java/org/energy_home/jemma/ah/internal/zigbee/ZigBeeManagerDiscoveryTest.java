@@ -0,0 +1,362 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.ah.internal.zigbee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimerTask;
+
+import org.eclipse.equinox.internal.util.timer.Timer;
+import org.eclipse.equinox.internal.util.timer.TimerListener;
+import org.energy_home.jemma.zgd.GatewayConstants;
+import org.energy_home.jemma.zgd.GatewayEventListener;
+import org.energy_home.jemma.zgd.GatewayInterface;
+import org.energy_home.jemma.zgd.GatewayProperties;
+import org.energy_home.jemma.zgd.jaxb.Address;
+import org.energy_home.jemma.zgd.jaxb.Status;
+import org.energy_home.jemma.zgd.simulator.SimulatedGateway;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.device.Constants;
+
+/**
+ * Runs the discovery of the ZigBeeManagerImpl against the SimulatedGateway,
+ * with several nodes discovered at the same time. The failures of the
+ * services and service descriptor requests are injected in front of the
+ * simulator: the gateway notifies them without the address of the node, and
+ * well before the responses to the requests sent earlier by the other nodes.
+ */
+public class ZigBeeManagerDiscoveryTest {
+
+	private static final int NODES = 12;
+	private static final long DISCOVERY_TIMEOUT = 30000;
+
+	/**
+	 * Max delay between a failed request and its retry. It is well below the
+	 * timeout of the discovery requests (9 s): a failure charged to the wrong
+	 * node is only recovered when the request of the failed node times out.
+	 */
+	private static final long MAX_RETRY_DELAY = 3000;
+
+	private SimulatedGateway simulator;
+	private FaultyGateway faultyGateway;
+	private ZigBeeManagerImpl manager;
+	private ComponentContext context;
+	private java.util.Timer timer;
+	private File dataDir;
+
+	/**
+	 * The serial numbers of the registered ZigBee devices
+	 */
+	private final Set devices = Collections.synchronizedSet(new HashSet());
+
+	@Before
+	public void setUp() throws IOException {
+		dataDir = File.createTempFile("zigbee", "");
+		dataDir.delete();
+		dataDir.mkdirs();
+		timer = new java.util.Timer(true);
+
+		Properties properties = new Properties();
+		properties.setProperty(GatewayProperties.SIMULATOR_NODES, Integer.toString(NODES));
+		properties.setProperty(GatewayProperties.SIMULATOR_LATENCY, "40");
+		properties.setProperty(GatewayProperties.SIMULATOR_JITTER, "40");
+		properties.setProperty(GatewayProperties.SIMULATOR_JOIN_INTERVAL, "0");
+		properties.setProperty(GatewayProperties.SIMULATOR_REPORT_INTERVAL, "0");
+		simulator = new SimulatedGateway(properties);
+		faultyGateway = new FaultyGateway(simulator);
+		context = createContext();
+	}
+
+	@After
+	public void tearDown() {
+		if (manager != null)
+			manager.deactivate(context);
+		simulator.close();
+		timer.cancel();
+
+		File[] files = dataDir.listFiles();
+		for (int i = 0; (files != null) && (i < files.length); i++)
+			files[i].delete();
+		dataDir.delete();
+	}
+
+	@Test(timeout = 60000)
+	public void allTheNodesAreInstalled() throws InterruptedException {
+		startManager();
+		waitForDevices(NODES);
+
+		assertEquals(NODES, devices.size());
+		assertEquals(NODES, faultyGateway.getRequestedNodes("startServiceDiscovery").size());
+	}
+
+	@Test(timeout = 60000)
+	public void servicesFailuresAreChargedToTheirNode() throws InterruptedException {
+		Set failing = new HashSet();
+		failing.add(getIeeeAddress(2));
+		failing.add(getIeeeAddress(5));
+		failing.add(getIeeeAddress(9));
+		faultyGateway.failOnce("startServiceDiscovery", failing);
+
+		startManager();
+		waitForDevices(NODES);
+
+		// only the nodes whose request failed retried it
+		assertRequests("startServiceDiscovery", failing);
+	}
+
+	@Test(timeout = 60000)
+	public void serviceDescriptorFailuresAreChargedToTheirNode() throws InterruptedException {
+		Set failing = new HashSet();
+		failing.add(getIeeeAddress(0));
+		failing.add(getIeeeAddress(7));
+		faultyGateway.failOnce("getServiceDescriptor", failing);
+
+		startManager();
+		waitForDevices(NODES);
+
+		assertRequests("getServiceDescriptor", failing);
+	}
+
+	private void startManager() {
+		Map props = new HashMap();
+		props.put(ZigBeeManagerProperties.PROP_DISCOVERY_CONCURRENCY, new Integer(4));
+		props.put(ZigBeeManagerProperties.PROP_DISCOVERY_BACKOFF, new Integer(50));
+
+		manager = new ZigBeeManagerImpl();
+		manager.setTimer(createTimer());
+		manager.setGatewayInterface(faultyGateway.getGateway());
+		manager.activate(context, props);
+	}
+
+	private void waitForDevices(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DISCOVERY_TIMEOUT;
+		while (devices.size() < count) {
+			if (System.currentTimeMillis() > deadline)
+				fail("only " + devices.size() + " nodes out of " + count + " installed");
+			Thread.sleep(20);
+		}
+	}
+
+	private void assertRequests(String method, Set failing) {
+		Map requests = faultyGateway.getRequests(method);
+		assertEquals(NODES, requests.size());
+		for (int i = 0; i < NODES; i++) {
+			BigInteger ieeeAddress = getIeeeAddress(i);
+			List times = (List) requests.get(ieeeAddress);
+			if (!failing.contains(ieeeAddress)) {
+				assertEquals("requests of node " + i, 1, times.size());
+				continue;
+			}
+
+			assertEquals("requests of node " + i, 2, times.size());
+			long retryDelay = ((Long) times.get(1)).longValue() - ((Long) times.get(0)).longValue();
+			assertTrue("node " + i + " retried after " + retryDelay + " ms", retryDelay < MAX_RETRY_DELAY);
+		}
+	}
+
+	private static BigInteger getIeeeAddress(int node) {
+		// see SimulatedGateway
+		return BigInteger.valueOf(0x00137A0000010000L + node);
+	}
+
+	private Timer createTimer() {
+		final Map tasks = new HashMap();
+		return (Timer) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Timer.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final TimerListener listener = (TimerListener) args[0];
+				final int event = ((Integer) args[args.length - 1]).intValue();
+				String key = System.identityHashCode(listener) + "." + event;
+				synchronized (tasks) {
+					TimerTask task = (TimerTask) tasks.remove(key);
+					if (task != null)
+						task.cancel();
+					if (method.getName().equals("removeListener"))
+						return null;
+
+					long delay = ((Number) args[1]).longValue();
+					if (method.getName().equals("notifyAfter"))
+						delay *= 1000;
+					task = new TimerTask() {
+						public void run() {
+							listener.timer(event);
+						}
+					};
+					tasks.put(key, task);
+					timer.schedule(task, delay);
+				}
+				return null;
+			}
+		});
+	}
+
+	private ComponentContext createContext() {
+		final BundleContext bundleContext = (BundleContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class[] { BundleContext.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("getProperty"))
+							return "osgi.instance.area".equals(args[0]) ? dataDir.toURI().toString() : null;
+						if (name.equals("getDataFile"))
+							return new File(dataDir, (String) args[0]);
+						if (name.equals("registerService"))
+							return register((Dictionary) args[2]);
+						return null;
+					}
+				});
+
+		return (ComponentContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ComponentContext.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getBundleContext"))
+							return bundleContext;
+						return null;
+					}
+				});
+	}
+
+	private ServiceRegistration register(Dictionary props) {
+		final Object serial = props.get(Constants.DEVICE_SERIAL);
+		assertTrue("device " + serial + " registered twice", devices.add(serial));
+		return (ServiceRegistration) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ServiceRegistration.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("unregister"))
+							devices.remove(serial);
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Forwards the calls to the simulator, counts the discovery requests of
+	 * each node and fails the first request of the selected nodes. The
+	 * failures are notified as the GAL does: with an error status and without
+	 * the address of the node.
+	 */
+	private static class FaultyGateway implements InvocationHandler {
+		private final GatewayInterface target;
+		private final GatewayInterface gateway;
+		private volatile GatewayEventListener listener;
+		private final Map requests = new HashMap();
+		private final Map failing = new HashMap();
+		private final java.util.Timer failures = new java.util.Timer(true);
+
+		FaultyGateway(GatewayInterface target) {
+			this.target = target;
+			this.gateway = (GatewayInterface) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class[] { GatewayInterface.class }, this);
+		}
+
+		GatewayInterface getGateway() {
+			return gateway;
+		}
+
+		synchronized void failOnce(String method, Set nodes) {
+			failing.put(method, new HashSet(nodes));
+		}
+
+		/**
+		 * Returns the times of the requests of each node
+		 */
+		synchronized Map getRequests(String method) {
+			Map methodRequests = (Map) requests.get(method);
+			return (methodRequests != null) ? new HashMap(methodRequests) : new HashMap();
+		}
+
+		Set getRequestedNodes(String method) {
+			return getRequests(method).keySet();
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("setGatewayEventListener"))
+				listener = (GatewayEventListener) args[0];
+
+			if (name.equals("startServiceDiscovery") || name.equals("getServiceDescriptor")) {
+				BigInteger ieeeAddress = ((Address) args[1]).getIeeeAddress();
+				if (request(name, ieeeAddress)) {
+					notifyFailure(name);
+					return null;
+				}
+			}
+
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		/**
+		 * @return true if the request has to fail
+		 */
+		private synchronized boolean request(String method, BigInteger ieeeAddress) {
+			Map methodRequests = (Map) requests.get(method);
+			if (methodRequests == null) {
+				methodRequests = new HashMap();
+				requests.put(method, methodRequests);
+			}
+			List times = (List) methodRequests.get(ieeeAddress);
+			if (times == null) {
+				times = new ArrayList();
+				methodRequests.put(ieeeAddress, times);
+			}
+			times.add(new Long(System.currentTimeMillis()));
+
+			Set nodes = (Set) failing.get(method);
+			return (nodes != null) && nodes.remove(ieeeAddress);
+		}
+
+		private void notifyFailure(final String method) {
+			failures.schedule(new TimerTask() {
+				public void run() {
+					GatewayEventListener l = listener;
+					if (l == null)
+						return;
+					Status status = new Status();
+					status.setCode((short) GatewayConstants.GENERAL_ERROR);
+					if (method.equals("startServiceDiscovery"))
+						l.servicesDiscovered(status, null);
+					else
+						l.serviceDescriptorRetrieved(status, null);
+				}
+			}, 1);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.internal.device.zgd;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Keeps the last lines written by the gal on its stdout and stderr and
+ * forwards them to the log at a bounded rate. The lines exceeding the rate are
+ * only kept in the buffer: a single line reporting how many of them have been
+ * suppressed is logged when the next period begins, or earlier by
+ * flushSuppressed() (called when the gal exits and by getLastLines()).
+ */
+class GalOutputBuffer {
+
+	private final Log log;
+	private final String[] lines;
+	private final int maxLinesPerSecond;
+	private final boolean forward;
+
+	// all the following fields are guarded by this
+	private int next = 0;
+	private int count = 0;
+	private long periodStart = 0;
+	private int forwarded = 0;
+	private int suppressed = 0;
+	private long totalLines = 0;
+	private long totalSuppressed = 0;
+
+	/**
+	 * @param log
+	 *            The log the lines are forwarded to, with debug level
+	 * @param capacity
+	 *            The number of lines kept
+	 * @param maxLinesPerSecond
+	 *            The max number of lines forwarded to the log every second
+	 * @param forward
+	 *            If false the lines are only kept in the buffer
+	 */
+	GalOutputBuffer(Log log, int capacity, int maxLinesPerSecond, boolean forward) {
+		this.log = log;
+		this.lines = new String[Math.max(capacity, 1)];
+		this.maxLinesPerSecond = Math.max(maxLinesPerSecond, 0);
+		this.forward = forward;
+	}
+
+	void append(String type, String line) {
+		String entry = type + " >" + line;
+		boolean logLine = false;
+		int previouslySuppressed = 0;
+
+		synchronized (this) {
+			lines[next] = entry;
+			next = (next + 1) % lines.length;
+			if (count < lines.length)
+				count++;
+			totalLines++;
+
+			if (forward) {
+				long now = System.currentTimeMillis();
+				if (now - periodStart >= 1000) {
+					periodStart = now;
+					forwarded = 0;
+					previouslySuppressed = suppressed;
+					suppressed = 0;
+				}
+				if (forwarded < maxLinesPerSecond) {
+					forwarded++;
+					logLine = true;
+				} else {
+					suppressed++;
+					totalSuppressed++;
+				}
+			}
+		}
+
+		// the log is written outside the lock, the readers of the two streams
+		// are not serialized by a slow appender
+		logSuppressed(previouslySuppressed);
+		if (logLine)
+			log.debug(entry);
+	}
+
+	/**
+	 * Logs the number of lines suppressed in the current period, if any,
+	 * without waiting for the next line
+	 */
+	void flushSuppressed() {
+		int previouslySuppressed;
+		synchronized (this) {
+			previouslySuppressed = suppressed;
+			suppressed = 0;
+		}
+		logSuppressed(previouslySuppressed);
+	}
+
+	private void logSuppressed(int n) {
+		if (n > 0)
+			log.debug("gal output: " + n + " lines not logged (see zgd.log.rate)");
+	}
+
+	/**
+	 * Returns the last lines written by the gal, the oldest first. The count
+	 * of the lines not logged is flushed first, so the log accounts for all
+	 * the lines returned.
+	 * 
+	 * @param max
+	 *            The max number of lines returned
+	 */
+	String[] getLastLines(int max) {
+		flushSuppressed();
+		synchronized (this) {
+			int n = Math.min(Math.max(max, 0), count);
+			String[] result = new String[n];
+			int start = next - n;
+			if (start < 0)
+				start += lines.length;
+			for (int i = 0; i < n; i++)
+				result[i] = lines[(start + i) % lines.length];
+			return result;
+		}
+	}
+
+	synchronized void clear() {
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = null;
+		next = 0;
+		count = 0;
+	}
+
+	synchronized long getTotalLines() {
+		return totalLines;
+	}
+
+	synchronized long getSuppressedLines() {
+		return totalSuppressed;
+	}
+}
@@ -24,6 +24,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -49,33 +50,6 @@ import org.osgi.util.tracker.BundleTrackerCustomizer;
 /**
  * Spawn the gal process and control it
  */
-class StreamGobbler extends Thread {
-	InputStream is;
-	String type;
-	boolean show;
-
-	private static final Log log = LogFactory.getLog(GalProcess.class);
-
-	StreamGobbler(InputStream is, String type, boolean show) {
-		this.is = is;
-		this.type = type;
-		this.show = show;
-	}
-
-	public void run() {
-		try {
-			InputStreamReader isr = new InputStreamReader(is);
-			BufferedReader br = new BufferedReader(isr);
-			String line = null;
-			while ((line = br.readLine()) != null)
-				if (show)
-					log.debug(type + " >" + line);
-		} catch (IOException ioe) {
-
-		}
-	}
-}
-
 public class GalProcess implements Runnable, IGal, IGalAdmin, BundleTrackerCustomizer {
 
 	public static final String ZGD_WSNC_URL_PROP_NAME = "zgd.wsnc.uri";
@@ -90,12 +64,15 @@ public class GalProcess implements Runnable, IGal, IGalAdmin, BundleTrackerCusto
 	public static final String PROP_ZGD_PORT = "zgd.port";
 	public static final String PROP_ZGD_CHANNEL = "zgd.channel";
 	public static final String PROP_ZGD_AUTODISCOVERY = "zgd.autodiscovery";
+	public static final String ZGD_READY_TIMEOUT_PROP_NAME = "zgd.ready.timeout";
+	public static final String ZGD_LOG_BUFFER_PROP_NAME = "zgd.log.buffer";
+	public static final String ZGD_LOG_RATE_PROP_NAME = "zgd.log.rate";
 
 	protected static final String FRAGMENT_BUNDLES_PREFIX = "org.energy_home.jemma.osgi.zgd";
 
 	private static final Log log = LogFactory.getLog(GalProcess.class);
 
-	Process p = null;
+	private volatile GalSupervisor supervisor = null;
 	private BundleContext bc;
 
 	private boolean logDebug = true;
@@ -105,6 +82,9 @@ public class GalProcess implements Runnable, IGal, IGalAdmin, BundleTrackerCusto
 	private static final int DEFAULT_ZGD_DONGLE_SPEED_PROP = 115200;
 	private static final boolean DEFAULT_ZGD_SECURITY = true;
 	private static final boolean DEFAULT_ZGD_AUTODISCOVERY = true;
+	private static final int DEFAULT_ZGD_READY_TIMEOUT = 30000;
+	private static final int DEFAULT_ZGD_LOG_BUFFER = 200;
+	private static final int DEFAULT_ZGD_LOG_RATE = 50;
 
 	private int zgdPort = 9000;
 	private URI dongleUri = null;
@@ -117,6 +97,9 @@ public class GalProcess implements Runnable, IGal, IGalAdmin, BundleTrackerCusto
 	String exeName = "gal";
 
 	private int watchdogTime;
+	private int readyTimeout;
+	private int logBufferSize;
+	private int logRate;
 	private String zgdId = null;
 	private int channel;
 	private ServiceRegistration registration = null;
@@ -160,6 +143,9 @@ public class GalProcess implements Runnable, IGal, IGalAdmin, BundleTrackerCusto
 
 				zgdPort = getProperty(PROP_ZGD_PORT, 9000);
 				watchdogTime = getProperty(ZGD_SECURITY_WATCHDOG_TIME_NAME, 10000);
+				readyTimeout = getProperty(ZGD_READY_TIMEOUT_PROP_NAME, DEFAULT_ZGD_READY_TIMEOUT);
+				logBufferSize = getProperty(ZGD_LOG_BUFFER_PROP_NAME, DEFAULT_ZGD_LOG_BUFFER);
+				logRate = getProperty(ZGD_LOG_RATE_PROP_NAME, DEFAULT_ZGD_LOG_RATE);
 				first = false;
 			}
 
@@ -179,6 +165,9 @@ public class GalProcess implements Runnable, IGal, IGalAdmin, BundleTrackerCusto
 			}
 			zgdPort = this.getProperty(props, PROP_ZGD_PORT, zgdPort);
 			watchdogTime = getProperty(props, ZGD_SECURITY_WATCHDOG_TIME_NAME, watchdogTime);
+			readyTimeout = getProperty(props, ZGD_READY_TIMEOUT_PROP_NAME, readyTimeout);
+			logBufferSize = getProperty(props, ZGD_LOG_BUFFER_PROP_NAME, logBufferSize);
+			logRate = getProperty(props, ZGD_LOG_RATE_PROP_NAME, logRate);
 
 			if (logDebug)
 				dumpProperties(props);
@@ -396,93 +385,60 @@ public class GalProcess implements Runnable, IGal, IGalAdmin, BundleTrackerCusto
 		String[] cmdArray = new String[cmd.size()];
 		cmd.toArray(cmdArray);
 
-		while (!Thread.currentThread().isInterrupted()) {
-			String cmdline = "";
-			for (int i = 0; i < cmdArray.length; i++) {
-				cmdline += cmdArray[i] + " ";
-			}
-
-			log.debug("exec gal with command line: " + cmdline);
-
-			// pace time to avoid to too close gal startups
-			try {
-				Thread.sleep(2000);
-			} catch (InterruptedException e) {
-				break;
-			}
-
-			String[] envp = null;
-
-			if (!useAbsolutePath)
-				envp = new String[] { "LD_LIBRARY_PATH=." };
-
-			try {
-				if (useAbsolutePath)
-					p = Runtime.getRuntime().exec(cmdArray);
-				else
-					p = Runtime.getRuntime().exec(cmdArray, envp, new File(path + File.separator));
-			} catch (IOException e) {
-				log.debug("Exception", e);
-				continue;
-			}
-
-			StreamGobbler errorGobbler = new StreamGobbler(p.getErrorStream(), "ERROR", logDebug);
-			StreamGobbler outputGobbler = new StreamGobbler(p.getInputStream(), "OUTPUT", logDebug);
-
-			// kick them off
-			errorGobbler.start();
-			outputGobbler.start();
-
-			synchronized (registrationLock) {
-				this.register();
-			}
+		String[] envp = null;
+		File dir = null;
+		if (!useAbsolutePath) {
+			envp = new String[] { "LD_LIBRARY_PATH=." };
+			dir = new File(path + File.separator);
+		}
 
-			int exitVal;
+		URL readinessUrl = null;
+		try {
+			readinessUrl = new URL("http://127.0.0.1:" + zgdPort + "/version");
+		} catch (MalformedURLException e) {
+			log.error("invalid gal readiness url: " + e.getMessage());
+		}
 
-			try {
-				exitVal = p.waitFor();
-			} catch (InterruptedException e) {
-				break;
+		GalOutputBuffer output = new GalOutputBuffer(log, logBufferSize, logRate, logDebug);
+		GalSupervisor supervisor = new GalSupervisor(cmdArray, envp, dir, readinessUrl, output, new GalSupervisor.Listener() {
+			public void galReady() {
+				synchronized (registrationLock) {
+					register();
+				}
 			}
 
-			p = null;
-			errorGobbler = null;
-			outputGobbler = null;
-
-			if (log != null) {
+			public void galExited(int exitVal) {
 				switch (exitVal) {
 				case 0:
 					log.debug("gal exited successfully");
 					break;
 
 				case 1:
-					log.error("exit code: adapter not found. The adapter uri was '" + this.dongleUri + "'");
+					log.error("exit code: adapter not found. The adapter uri was '" + dongleUri + "'");
 					break;
 
 				default:
 					log.error("gal exited with exit code = " + exitVal);
 				}
-			}
-
-			synchronized (registrationLock) {
-				unregister();
-			}
 
-			// force restart after 'watchdogTime'
-			if (watchdogTime > 1) {
-				try {
-					Thread.sleep(watchdogTime);
-				} catch (InterruptedException e) {
-					break;
+				synchronized (registrationLock) {
+					unregister();
 				}
-			} else {
-				break;
 			}
-		}
+		});
+		// the restart delay doubles up to 'watchdogTime'
+		supervisor.setBackoff(1000, watchdogTime);
+		supervisor.setReadyTimeout(readyTimeout);
+		this.supervisor = supervisor;
+
+		// returns when processThread is interrupted
+		supervisor.run();
 
+		this.supervisor = null;
+		synchronized (registrationLock) {
 			this.unregister();
-			this.kill();
 		}
+	}
 
 	private void register() {
 		if (registration == null)
@@ -731,9 +687,9 @@ public class GalProcess implements Runnable, IGal, IGalAdmin, BundleTrackerCusto
 	}
 
 	protected void kill() {
-		if (p != null) {
-			log.debug("killing gal");
-			p.destroy();
+		GalSupervisor supervisor = this.supervisor;
+		if (supervisor != null) {
+			supervisor.kill();
 		} else {
 			log.debug("gal is not currently running");
 		}
@@ -0,0 +1,278 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.internal.device.zgd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs the gal process and restarts it when it exits.
+ * <p>
+ * The exit of the process is detected as soon as it happens (the supervisor
+ * thread waits for it) and the process is restarted after a delay that starts
+ * from minBackoff and doubles at each consecutive failure, up to maxBackoff.
+ * The delay is reset when the process has been running for at least
+ * stablePeriod. The process is considered ready when its REST interface
+ * answers to an HTTP request (any status code will do), or anyway after
+ * readyTimeout.
+ * <p>
+ * The supervisor does not depend on the OSGi framework: the command is any
+ * executable, so it can be exercised with a dummy child process.
+ */
+class GalSupervisor implements Runnable {
+
+	/**
+	 * Notified by the supervisor thread
+	 */
+	interface Listener {
+		/**
+		 * The process answers to the readiness probe (or the readiness timeout
+		 * expired)
+		 */
+		public void galReady();
+
+		/**
+		 * The process exited. It is restarted after this method returns, unless
+		 * the supervisor is stopped or restarts are disabled
+		 */
+		public void galExited(int exitValue);
+	}
+
+	private static final Log log = LogFactory.getLog(GalSupervisor.class);
+
+	private static final long PROBE_INTERVAL = 250;
+	private static final int PROBE_TIMEOUT = 1000;
+
+	private final String[] cmdArray;
+	private final String[] envp;
+	private final File dir;
+	private final URL readinessUrl;
+	private final GalOutputBuffer output;
+	private final Listener listener;
+
+	private long minBackoff = 1000;
+	private long maxBackoff = 10000;
+	private long readyTimeout = 30000;
+	private long stablePeriod = 60000;
+	private boolean restart = true;
+
+	private volatile Process process = null;
+	private volatile int restartCount = 0;
+
+	/**
+	 * @param envp
+	 *            The environment of the process, or null to inherit the one of
+	 *            the JVM
+	 * @param dir
+	 *            The working directory of the process, or null
+	 * @param readinessUrl
+	 *            The URL probed to check that the process is ready, or null to
+	 *            consider the process ready as soon as it is started
+	 */
+	GalSupervisor(String[] cmdArray, String[] envp, File dir, URL readinessUrl, GalOutputBuffer output, Listener listener) {
+		this.cmdArray = cmdArray;
+		this.envp = envp;
+		this.dir = dir;
+		this.readinessUrl = readinessUrl;
+		this.output = output;
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the min and max delay (ms) before restarting the process. If
+	 * maxBackoff is not greater than 1 the process is not restarted
+	 */
+	void setBackoff(long minBackoff, long maxBackoff) {
+		this.restart = maxBackoff > 1;
+		this.maxBackoff = Math.max(maxBackoff, 1);
+		this.minBackoff = Math.max(Math.min(minBackoff, this.maxBackoff), 1);
+	}
+
+	void setReadyTimeout(long readyTimeout) {
+		this.readyTimeout = readyTimeout;
+	}
+
+	void setStablePeriod(long stablePeriod) {
+		this.stablePeriod = stablePeriod;
+	}
+
+	int getRestartCount() {
+		return restartCount;
+	}
+
+	/**
+	 * Runs the process until the calling thread is interrupted
+	 */
+	public void run() {
+		long backoff = minBackoff;
+		String cmdline = "";
+		for (int i = 0; i < cmdArray.length; i++)
+			cmdline += cmdArray[i] + " ";
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				log.debug("exec gal with command line: " + cmdline);
+				long startTime = System.currentTimeMillis();
+				Process p;
+				try {
+					p = Runtime.getRuntime().exec(cmdArray, envp, dir);
+				} catch (IOException e) {
+					log.error("unable to exec gal: " + e.getMessage());
+					p = null;
+				}
+
+				if (p != null) {
+					process = p;
+					output.clear();
+					new StreamGobbler(p.getErrorStream(), "ERROR", output).start();
+					new StreamGobbler(p.getInputStream(), "OUTPUT", output).start();
+
+					if (waitReady(p, startTime))
+						listener.galReady();
+					int exitValue = p.waitFor();
+					process = null;
+
+					if (exitValue != 0) {
+						String[] lines = output.getLastLines(10);
+						for (int i = 0; i < lines.length; i++)
+							log.error(lines[i]);
+					} else {
+						output.flushSuppressed();
+					}
+					listener.galExited(exitValue);
+
+					// a process that ran long enough is not failing
+					// repeatedly
+					if (System.currentTimeMillis() - startTime >= stablePeriod)
+						backoff = minBackoff;
+				}
+
+				if (!restart)
+					break;
+
+				log.debug("restarting gal in " + backoff + " ms");
+				Thread.sleep(backoff);
+				backoff = Math.min(backoff * 2, maxBackoff);
+				restartCount++;
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} finally {
+			kill();
+		}
+	}
+
+	/**
+	 * Waits until the process is ready.
+	 * 
+	 * @return false if the process exited in the meanwhile
+	 */
+	private boolean waitReady(Process p, long startTime) throws InterruptedException {
+		if (readinessUrl == null)
+			return true;
+
+		while (true) {
+			if (probe())
+				return true;
+			if (hasExited(p))
+				return false;
+			if (System.currentTimeMillis() - startTime >= readyTimeout) {
+				log.warn("gal not answering on " + readinessUrl + " after " + readyTimeout + " ms, assuming it is ready");
+				return true;
+			}
+			Thread.sleep(PROBE_INTERVAL);
+		}
+	}
+
+	private boolean probe() {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) readinessUrl.openConnection();
+			connection.setConnectTimeout(PROBE_TIMEOUT);
+			connection.setReadTimeout(PROBE_TIMEOUT);
+			connection.setUseCaches(false);
+			// any status code means the rest server is up
+			connection.getResponseCode();
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (connection != null)
+				connection.disconnect();
+		}
+	}
+
+	private static boolean hasExited(Process p) {
+		try {
+			p.exitValue();
+			return true;
+		} catch (IllegalThreadStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Destroys the process, if running. The supervisor restarts it unless it
+	 * has been stopped.
+	 */
+	void kill() {
+		Process p = process;
+		if (p != null) {
+			log.debug("killing gal");
+			p.destroy();
+		} else {
+			log.debug("gal is not currently running");
+		}
+	}
+}
+
+/**
+ * Drains a stream of the gal process into the output buffer
+ */
+class StreamGobbler extends Thread {
+	private final InputStream is;
+	private final String type;
+	private final GalOutputBuffer output;
+
+	StreamGobbler(InputStream is, String type, GalOutputBuffer output) {
+		super("Zgd " + type + " Reader");
+		this.is = is;
+		this.type = type;
+		this.output = output;
+		setDaemon(true);
+	}
+
+	public void run() {
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(is));
+			String line = null;
+			while ((line = br.readLine()) != null)
+				output.append(type, line);
+		} catch (IOException ioe) {
+			// the process exited
+		}
+		// the lines read after the exit of the process was detected
+		output.flushSuppressed();
+	}
+}
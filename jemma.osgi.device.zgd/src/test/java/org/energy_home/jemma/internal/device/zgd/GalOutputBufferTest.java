@@ -0,0 +1,65 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.internal.device.zgd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class GalOutputBufferTest {
+
+	@Test
+	public void keepsTheLastLinesOldestFirst() {
+		GalOutputBuffer output = new GalOutputBuffer(new RecordingLog(), 3, 100, false);
+		for (int i = 0; i < 5; i++)
+			output.append("OUTPUT", "line " + i);
+
+		assertArrayEquals(new String[] { "OUTPUT >line 2", "OUTPUT >line 3", "OUTPUT >line 4" }, output.getLastLines(10));
+		assertArrayEquals(new String[] { "OUTPUT >line 4" }, output.getLastLines(1));
+		assertEquals(5, output.getTotalLines());
+
+		output.clear();
+		assertEquals(0, output.getLastLines(10).length);
+	}
+
+	@Test
+	public void linesAreNotForwardedIfDisabled() {
+		RecordingLog log = new RecordingLog();
+		GalOutputBuffer output = new GalOutputBuffer(log, 10, 100, false);
+		output.append("OUTPUT", "line");
+		output.flushSuppressed();
+
+		assertEquals(0, log.getDebug().length);
+		assertEquals(0, output.getSuppressedLines());
+	}
+
+	@Test
+	public void linesOverTheRateAreCountedOnce() {
+		RecordingLog log = new RecordingLog();
+		GalOutputBuffer output = new GalOutputBuffer(log, 10, 5, true);
+		for (int i = 0; i < 20; i++)
+			output.append((i % 2 == 0) ? "OUTPUT" : "ERROR", "line " + i);
+		output.getLastLines(10);
+		// nothing left to report
+		output.flushSuppressed();
+
+		// the lines can span two periods of the rate
+		int forwarded = log.getForwardedLines();
+		assertEquals(20, forwarded + output.getSuppressedLines());
+		assertEquals(output.getSuppressedLines(), log.getReportedSuppressedLines());
+	}
+}
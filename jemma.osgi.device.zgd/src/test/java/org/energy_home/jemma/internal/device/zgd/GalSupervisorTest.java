@@ -0,0 +1,132 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.internal.device.zgd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the GalSupervisor and the GalOutputBuffer against a dummy gal (see
+ * Child, started in a new JVM) that writes a burst of lines faster than the
+ * forwarding rate and then exits with a non zero value.
+ */
+public class GalSupervisorTest {
+
+	private static final int LINES = 500;
+	private static final int LINES_PER_SECOND = 10;
+	private static final int CAPACITY = 50;
+	private static final int EXIT_VALUE = 3;
+
+	/**
+	 * The dummy gal
+	 */
+	public static class Child {
+		public static void main(String[] args) {
+			int n = Integer.parseInt(args[0]);
+			for (int i = 0; i < n; i++)
+				System.out.println(line(i));
+			System.out.flush();
+			System.exit(EXIT_VALUE);
+		}
+	}
+
+	private static String line(int i) {
+		return "line " + i;
+	}
+
+	private RecordingLog log;
+	private GalOutputBuffer output;
+	private int ready;
+	private int exitValue;
+	private Thread thread;
+
+	@Before
+	public void runSupervisor() throws InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String[] cmdArray = new String[] { java, "-cp", System.getProperty("java.class.path"), Child.class.getName(),
+				Integer.toString(LINES) };
+
+		log = new RecordingLog();
+		output = new GalOutputBuffer(log, CAPACITY, LINES_PER_SECOND, true);
+		ready = 0;
+		exitValue = -1;
+		GalSupervisor supervisor = new GalSupervisor(cmdArray, null, null, null, output, new GalSupervisor.Listener() {
+			public void galReady() {
+				synchronized (GalSupervisorTest.this) {
+					ready++;
+				}
+			}
+
+			public void galExited(int value) {
+				synchronized (GalSupervisorTest.this) {
+					exitValue = value;
+				}
+			}
+		});
+		// not restarted
+		supervisor.setBackoff(0, 0);
+
+		thread = new Thread(supervisor, "gal supervisor");
+		thread.start();
+		thread.join(30000);
+
+		// the readers may still be draining the pipes
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((output.getTotalLines() < LINES) && (System.currentTimeMillis() < deadline))
+			Thread.sleep(10);
+		Thread.sleep(200);
+	}
+
+	@After
+	public void stopSupervisor() {
+		thread.interrupt();
+	}
+
+	@Test
+	public void exitIsReported() {
+		assertFalse("supervisor still running", thread.isAlive());
+		synchronized (this) {
+			assertEquals(1, ready);
+			assertEquals(EXIT_VALUE, exitValue);
+		}
+	}
+
+	@Test
+	public void lastLinesAreKept() {
+		assertEquals(LINES, output.getTotalLines());
+		String[] last = output.getLastLines(LINES);
+		assertEquals(CAPACITY, last.length);
+		for (int i = 0; i < last.length; i++)
+			assertEquals("OUTPUT >" + line(LINES - CAPACITY + i), last[i]);
+	}
+
+	@Test
+	public void everyLineIsForwardedOrCounted() {
+		// getLastLines() flushes the count of the current period
+		output.getLastLines(0);
+		int forwarded = log.getForwardedLines();
+		assertTrue(forwarded < LINES);
+		assertEquals(output.getSuppressedLines(), log.getReportedSuppressedLines());
+		assertEquals(LINES, forwarded + output.getSuppressedLines());
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.internal.device.zgd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Collects the debug messages
+ */
+class RecordingLog implements Log {
+	private final List debug = new ArrayList();
+
+	public boolean isDebugEnabled() {
+		return true;
+	}
+
+	public boolean isErrorEnabled() {
+		return true;
+	}
+
+	public boolean isFatalEnabled() {
+		return true;
+	}
+
+	public boolean isInfoEnabled() {
+		return false;
+	}
+
+	public boolean isTraceEnabled() {
+		return false;
+	}
+
+	public boolean isWarnEnabled() {
+		return true;
+	}
+
+	public void trace(Object m) {
+	}
+
+	public void trace(Object m, Throwable t) {
+	}
+
+	public synchronized void debug(Object m) {
+		debug.add(String.valueOf(m));
+	}
+
+	public void debug(Object m, Throwable t) {
+		debug(m);
+	}
+
+	public void info(Object m) {
+	}
+
+	public void info(Object m, Throwable t) {
+	}
+
+	public void warn(Object m) {
+		System.err.println("WARN " + m);
+	}
+
+	public void warn(Object m, Throwable t) {
+		warn(m);
+	}
+
+	public void error(Object m) {
+		System.err.println("ERROR " + m);
+	}
+
+	public void error(Object m, Throwable t) {
+		error(m);
+	}
+
+	public void fatal(Object m) {
+		error(m);
+	}
+
+	public void fatal(Object m, Throwable t) {
+		error(m);
+	}
+
+	synchronized String[] getDebug() {
+		return (String[]) debug.toArray(new String[debug.size()]);
+	}
+
+	/**
+	 * Returns the number of lines forwarded by a GalOutputBuffer
+	 */
+	synchronized int getForwardedLines() {
+		int forwarded = 0;
+		for (int i = 0; i < debug.size(); i++) {
+			String m = (String) debug.get(i);
+			if (m.startsWith("OUTPUT >") || m.startsWith("ERROR >"))
+				forwarded++;
+		}
+		return forwarded;
+	}
+
+	/**
+	 * Returns the sum of the lines reported as suppressed by a GalOutputBuffer
+	 */
+	synchronized long getReportedSuppressedLines() {
+		String prefix = "gal output: ";
+		long reported = 0;
+		for (int i = 0; i < debug.size(); i++) {
+			String m = (String) debug.get(i);
+			if (m.startsWith(prefix))
+				reported += Long.parseLong(m.substring(prefix.length(), m.indexOf(' ', prefix.length())));
+		}
+		return reported;
+	}
+}
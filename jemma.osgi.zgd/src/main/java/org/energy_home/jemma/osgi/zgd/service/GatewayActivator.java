@@ -28,6 +28,7 @@ import org.energy_home.jemma.zgd.Trace;
 import org.energy_home.jemma.zgd.impl.GatewayFactoryImpl;
 import org.energy_home.jemma.zgd.jaxb.ObjectFactory;
 import org.energy_home.jemma.zgd.jaxb.Version;
+import org.energy_home.jemma.zgd.simulator.SimulatedGateway;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
@@ -55,6 +56,15 @@ public class GatewayActivator implements BundleActivator, Runnable {
 
 	private Map galProps = null;
 
+	private final GatewayProperties properties = new GatewayProperties() {
+		public String getProperty(String key) {
+			String value = GatewayActivator.this.getProperty(key);
+			if (value == null)
+				value = super.getProperty(key);
+			return value;
+		}
+	};
+
 	public void start(final BundleContext bc) throws Exception {
 		synchronized (lock) {
 			this.bc = bc;
@@ -100,6 +110,10 @@ public class GatewayActivator implements BundleActivator, Runnable {
 	private void bindGal(Map props) {
 		if (getProperty("jgal.debug", false)) {
 			Trace.setTrace(new Trace() {
+				protected boolean isEnabled() {
+					return log.isDebugEnabled();
+				}
+
 				protected void print0(String s) {
 					log.debug(s);
 				}
@@ -114,21 +128,24 @@ public class GatewayActivator implements BundleActivator, Runnable {
 			this.zgdPort = (String) props.get("zgd.port");
 
 		try {
-			if (gatewayFactory == null) {
-				GatewayProperties osgiProperties = new GatewayProperties() {
-					public String getProperty(String key) {
-						String value = GatewayActivator.this.getProperty(key);
-						if (value == null)
-							value = super.getProperty(key);
-						return value;
-					}
-				};
-				gatewayFactory = new GatewayFactoryImpl(osgiProperties);
+			String nodes = properties.getProperty(GatewayProperties.SIMULATOR_NODES);
+			if (Integer.parseInt(nodes) > 0) {
+				log.info("using the zgd simulator with " + nodes + " nodes");
+				gatewayInterface = new SimulatedGateway(properties);
+				this.startPollingTask();
+				return;
 			}
 		} catch (Exception e) {
 			log.error("", e);
 		}
 
+		try {
+			if (gatewayFactory == null)
+				gatewayFactory = new GatewayFactoryImpl(properties);
+		} catch (Exception e) {
+			log.error("", e);
+		}
+
 		try {
 			gatewayInterface = gatewayFactory.createGatewayObject();
 		} catch (Exception e) {
@@ -149,6 +166,8 @@ public class GatewayActivator implements BundleActivator, Runnable {
 			log.error("error unregistering gatewayInterface", e);
 		}
 		
+		if (gatewayInterface instanceof SimulatedGateway)
+			((SimulatedGateway) gatewayInterface).close();
 		gatewayInterface = null;
 		
 		if (gatewayFactory != null) {
@@ -0,0 +1,39 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd;
+
+/**
+ * Notified of the outcome of an APS message sent with
+ * GatewayInterface.sendAPSMessage(APSMessage, APSMessageConfirmListener).
+ * Exactly one of the methods is called for each message, by the thread that
+ * received the confirm from the gateway: the implementations must not block.
+ */
+public interface APSMessageConfirmListener {
+	/**
+	 * The gateway has confirmed the message
+	 */
+	void apsMessageConfirmed();
+
+	/**
+	 * The gateway has not confirmed the message
+	 * 
+	 * @param e
+	 *            The GatewayException with the status returned by the
+	 *            gateway, or the error that prevented the delivery of the
+	 *            message to the gateway
+	 */
+	void apsMessageNotConfirmed(Exception e);
+}
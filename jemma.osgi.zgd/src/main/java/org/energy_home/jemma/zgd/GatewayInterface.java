@@ -372,6 +372,20 @@ public interface GatewayInterface {
 	 * @throws GatewayException
 	 */
 	void sendAPSMessage(long timeout, APSMessage message) throws IOException, Exception, GatewayException;
+
+	/**
+	 * Sends an APS message to a node and notifies the listener of its
+	 * outcome. In asynchronous confirm mode (see
+	 * GatewayProperties.APS_ASYNC_CONFIRM) this method returns before the
+	 * gateway has confirmed the message, otherwise the listener is notified
+	 * before it returns.
+	 * @param message
+	 * @param listener notified once if this method does not throw an exception
+	 * @throws IOException
+	 * @throws Exception
+	 * @throws GatewayException if the message has not been sent
+	 */
+	void sendAPSMessage(APSMessage message, APSMessageConfirmListener listener) throws IOException, Exception, GatewayException;
 	
 	/**
 	 * Resets the GAl with the ability to set whether to delete the NonVolatileMemory to the next reboot 
@@ -32,6 +32,27 @@ public class GatewayProperties extends Properties {
 	public static final String FACTORY_IMPLEMENTATION_CLASS = "it.telecomitalia.zgd.factory-implementation-class";
 	public static final String ENABLE_RESTLET_CONSOLE = "it.telecomitalia.zgd.enable-restlet-console";
 	public static final String CONNECTION_TIMEOUT = "it.telecomitalia.zgd.connection-timeout";
+	public static final String MAX_IN_FLIGHT_REQUESTS = "it.telecomitalia.zgd.max-in-flight-requests";
+	public static final String MAX_CONNECTIONS_PER_ROUTE = "it.telecomitalia.zgd.max-connections-per-route";
+	public static final String DATA_REQUESTS_WEIGHT = "it.telecomitalia.zgd.data-requests-weight";
+	public static final String USE_STREAMING_CODEC = "it.telecomitalia.zgd.use-streaming-codec";
+	public static final String FORMATTED_OUTPUT = "it.telecomitalia.zgd.formatted-output";
+	public static final String MARSHALLER_POOL_SIZE = "it.telecomitalia.zgd.marshaller-pool-size";
+	public static final String TRACE_PAYLOADS = "it.telecomitalia.zgd.trace-payloads";
+	public static final String EVENT_THREADS = "it.telecomitalia.zgd.event-threads";
+	public static final String EVENT_LANES = "it.telecomitalia.zgd.event-lanes";
+	public static final String EVENT_LANE_CAPACITY = "it.telecomitalia.zgd.event-lane-capacity";
+	public static final String EVENT_QUEUE_CAPACITY = "it.telecomitalia.zgd.event-queue-capacity";
+	public static final String EVENT_OVERFLOW_POLICY = "it.telecomitalia.zgd.event-overflow-policy";
+	public static final String APS_ASYNC_CONFIRM = "it.telecomitalia.zgd.aps-async-confirm";
+	public static final String APS_CONFIRM_QUEUE_CAPACITY = "it.telecomitalia.zgd.aps-confirm-queue-capacity";
+	public static final String SIMULATOR_NODES = "it.telecomitalia.zgd.simulator.nodes";
+	public static final String SIMULATOR_LATENCY = "it.telecomitalia.zgd.simulator.latency";
+	public static final String SIMULATOR_JITTER = "it.telecomitalia.zgd.simulator.jitter";
+	public static final String SIMULATOR_LOSS = "it.telecomitalia.zgd.simulator.loss";
+	public static final String SIMULATOR_REORDER = "it.telecomitalia.zgd.simulator.reorder";
+	public static final String SIMULATOR_REPORT_INTERVAL = "it.telecomitalia.zgd.simulator.report-interval";
+	public static final String SIMULATOR_JOIN_INTERVAL = "it.telecomitalia.zgd.simulator.join-interval";
 	
 	public GatewayProperties() {
 		// set default values
@@ -48,5 +69,46 @@ public class GatewayProperties extends Properties {
 		setProperty(USE_PUBLIC_ADDRESS_RESOLUTION, "false");
 		setProperty(ENABLE_RESTLET_CONSOLE, "false");
 		setProperty(CONNECTION_TIMEOUT, "3000");
+		// 1 sends the requests to the gateway one at a time
+		setProperty(MAX_IN_FLIGHT_REQUESTS, "4");
+		// The JDK HTTP connector used by Restlet keeps alive at most
+		// http.maxConnections idle connections per destination (5 by default):
+		// with a higher value the JVM has to be started with
+		// -Dhttp.maxConnections set at least to it, or the extra connections
+		// are closed after each request
+		setProperty(MAX_CONNECTIONS_PER_ROUTE, "4");
+		// APS data requests served for each management request
+		setProperty(DATA_REQUESTS_WEIGHT, "4");
+		// false marshals all the messages with JAXB
+		setProperty(USE_STREAMING_CODEC, "true");
+		setProperty(FORMATTED_OUTPUT, "false");
+		setProperty(MARSHALLER_POOL_SIZE, "4");
+		// the XML documents are traced only if a Trace is set (see jgal.debug)
+		setProperty(TRACE_PAYLOADS, "true");
+		setProperty(EVENT_THREADS, "4");
+		setProperty(EVENT_LANES, "32");
+		setProperty(EVENT_LANE_CAPACITY, "200");
+		setProperty(EVENT_QUEUE_CAPACITY, "1000");
+		// drop-oldest, drop-newest or block
+		setProperty(EVENT_OVERFLOW_POLICY, "drop-oldest");
+		// true returns from sendAPSMessage() before the gateway has confirmed
+		// the message: it is sent by a pool of MAX_IN_FLIGHT_REQUESTS threads,
+		// in order for each destination. The outcome is notified to the
+		// APSMessageConfirmListener passed to sendAPSMessage(), if any, and
+		// is only traced otherwise
+		setProperty(APS_ASYNC_CONFIRM, "false");
+		setProperty(APS_CONFIRM_QUEUE_CAPACITY, "200");
+		// a value greater than 0 replaces the GAL with an in-JVM simulator
+		// (see org.energy_home.jemma.zgd.simulator.SimulatedGateway)
+		setProperty(SIMULATOR_NODES, "0");
+		// one way delay of the simulated radio (ms)
+		setProperty(SIMULATOR_LATENCY, "20");
+		setProperty(SIMULATOR_JITTER, "5");
+		// percentage of the messages lost or reordered on each way
+		setProperty(SIMULATOR_LOSS, "0");
+		setProperty(SIMULATOR_REORDER, "0");
+		// 0 disables the periodic attribute reports (ms)
+		setProperty(SIMULATOR_REPORT_INTERVAL, "0");
+		setProperty(SIMULATOR_JOIN_INTERVAL, "10");
 	}
 }
@@ -19,15 +19,18 @@ public class Trace {
 	protected static Trace instance;
 
 	public static void println(String s) {
-		if (isTrace()) instance.print0(s + '\n');
+		Trace t = instance;
+		if (t != null && t.isEnabled()) t.print0(s + '\n');
 	}
 	
 	public static void print(String s) {
-		if (isTrace()) instance.print0(s);
+		Trace t = instance;
+		if (t != null && t.isEnabled()) t.print0(s);
 	}
 
 	public static void printf(String s, Object... args) {
-		if (isTrace()) instance.printf0(s, args);
+		Trace t = instance;
+		if (t != null && t.isEnabled()) t.printf0(s, args);
 	}
 	
 	public static void setTrace(Trace t) {
@@ -35,7 +38,16 @@ public class Trace {
 	}
 	
 	public static boolean isTrace() {
-		return instance != null;
+		Trace t = instance;
+		return t != null && t.isEnabled();
+	}
+	
+	/**
+	 * Tells whether the output is actually written somewhere. Subclasses
+	 * override it, so that nothing is formatted when the output is discarded.
+	 */
+	protected boolean isEnabled() {
+		return true;
 	}
 	
 	protected void print0(String s) {
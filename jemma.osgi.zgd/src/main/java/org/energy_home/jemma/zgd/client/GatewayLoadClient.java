@@ -0,0 +1,504 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd.client;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.energy_home.jemma.zgd.APSMessageListener;
+import org.energy_home.jemma.zgd.GatewayConstants;
+import org.energy_home.jemma.zgd.GatewayEventListener;
+import org.energy_home.jemma.zgd.GatewayFactory;
+import org.energy_home.jemma.zgd.GatewayInterface;
+import org.energy_home.jemma.zgd.GatewayProperties;
+import org.energy_home.jemma.zgd.jaxb.APSMessage;
+import org.energy_home.jemma.zgd.jaxb.APSMessageEvent;
+import org.energy_home.jemma.zgd.jaxb.Address;
+import org.energy_home.jemma.zgd.jaxb.BindingList;
+import org.energy_home.jemma.zgd.jaxb.NodeDescriptor;
+import org.energy_home.jemma.zgd.jaxb.NodeServices;
+import org.energy_home.jemma.zgd.jaxb.ServiceDescriptor;
+import org.energy_home.jemma.zgd.jaxb.SimpleDescriptor;
+import org.energy_home.jemma.zgd.jaxb.Status;
+import org.energy_home.jemma.zgd.jaxb.WSNNode;
+import org.energy_home.jemma.zgd.simulator.SimulatedGateway;
+
+/**
+ * Drives the operations of a GatewayInterface at a configured rate and
+ * concurrency and measures their latency and error rate.
+ * <p>
+ * The operations are picked at random according to the weights of the mix:
+ * <ul>
+ * <li>send: sendAPSMessage() of a ZCL Read Attributes request (On/Off
+ * cluster), round robin over the nodes in the node cache</li>
+ * <li>read: readNodeCache()</li>
+ * <li>version: getVersion()</li>
+ * <li>callback: createAPSCallback() followed by deleteCallback()</li>
+ * </ul>
+ * Each worker thread issues its share of the rate on a fixed schedule and the
+ * latency of an operation is measured from the time it was scheduled, not
+ * from the time it actually started: when the gateway falls behind, the
+ * queueing delay shows up in the latency instead of silently lowering the
+ * rate. A rate of 0 runs the workers back to back.
+ * <p>
+ * The main() takes key=value arguments: rate (operations/s, default 0),
+ * threads (4), duration (s, 10), warmup (s, 2), mix (e.g.
+ * "send:8,read:1,callback:1", default "send:1"), endpoint (1) and output (the
+ * JSON file where the results are written, none by default). The gateway is
+ * configured with the system properties (see GatewayProperties): the in-JVM
+ * SimulatedGateway is used as a local stub when SIMULATOR_NODES is greater than
+ * 0, otherwise the REST client connects to GATEWAY_ROOT_URI.
+ */
+public class GatewayLoadClient {
+	public static final String OP_SEND = "send";
+	public static final String OP_READ = "read";
+	public static final String OP_VERSION = "version";
+	public static final String OP_CALLBACK = "callback";
+
+	private static final int ON_OFF = 0x0006;
+
+	private final GatewayInterface gateway;
+	private final Address[] targets;
+	private final short endpoint;
+
+	private final String[] ops;
+	private final int[] cumulativeWeights;
+
+	private final Map<String, OpStats> results = new LinkedHashMap<String, OpStats>();
+	private final AtomicLong apsReceived = new AtomicLong();
+	private final AtomicLong targetIndex = new AtomicLong();
+	private long elapsed;
+	private double rate;
+	private int threads;
+
+	private final APSMessageListener nullListener = new APSMessageListener() {
+		public void notifyAPSMessage(APSMessageEvent message) {
+		}
+	};
+
+	/**
+	 * Per thread statistics of an operation, merged at the end of the run
+	 */
+	private static class OpStats {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		long errors = 0;
+		// exception class -> count
+		final Map<String, Long> errorTypes = new LinkedHashMap<String, Long>();
+
+		void add(OpStats other) {
+			latencies.add(other.latencies);
+			errors += other.errors;
+			for (Iterator<Map.Entry<String, Long>> i = other.errorTypes.entrySet().iterator(); i.hasNext();) {
+				Map.Entry<String, Long> entry = i.next();
+				addError(entry.getKey(), entry.getValue().longValue());
+			}
+		}
+
+		void addError(String type, long n) {
+			Long previous = errorTypes.get(type);
+			errorTypes.put(type, new Long(((previous == null) ? 0 : previous.longValue()) + n));
+		}
+	}
+
+	/**
+	 * @param targets
+	 *            The addresses the send operations are sent to. It can be
+	 *            empty if the mix has no send operation
+	 * @param mix
+	 *            The operations and their weights, e.g. "send:8,read:2"
+	 */
+	public GatewayLoadClient(GatewayInterface gateway, Address[] targets, short endpoint, String mix) {
+		this.gateway = gateway;
+		this.targets = targets;
+		this.endpoint = endpoint;
+
+		List<String> names = new ArrayList<String>();
+		List<Integer> weights = new ArrayList<Integer>();
+		int total = 0;
+		String[] items = mix.split(",");
+		for (int i = 0; i < items.length; i++) {
+			String item = items[i].trim();
+			if (item.length() == 0)
+				continue;
+			int colon = item.indexOf(':');
+			String name = getOperation((colon < 0) ? item : item.substring(0, colon).trim());
+			int weight = (colon < 0) ? 1 : Integer.parseInt(item.substring(colon + 1).trim());
+			if (weight <= 0)
+				continue;
+			if ((name == OP_SEND) && (targets.length == 0))
+				throw new IllegalArgumentException("no nodes to send messages to");
+			total += weight;
+			names.add(name);
+			weights.add(new Integer(total));
+		}
+		if (names.isEmpty())
+			throw new IllegalArgumentException("empty operation mix");
+
+		ops = names.toArray(new String[names.size()]);
+		cumulativeWeights = new int[ops.length];
+		for (int i = 0; i < ops.length; i++) {
+			cumulativeWeights[i] = weights.get(i).intValue();
+			results.put(ops[i], new OpStats());
+		}
+	}
+
+	/**
+	 * Returns the constant naming the passed operation: execute() compares
+	 * the names by reference
+	 */
+	private static String getOperation(String name) {
+		String[] names = new String[] { OP_SEND, OP_READ, OP_VERSION, OP_CALLBACK };
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name))
+				return names[i];
+		}
+		throw new IllegalArgumentException("unknown operation " + name);
+	}
+
+	/**
+	 * Counts the APS messages received by the local endpoint during the run
+	 */
+	public APSMessageListener getAPSMessageListener() {
+		return new APSMessageListener() {
+			public void notifyAPSMessage(APSMessageEvent message) {
+				apsReceived.incrementAndGet();
+			}
+		};
+	}
+
+	/**
+	 * Runs the workers for warmup + duration ms. The operations completed
+	 * during the warmup are not recorded.
+	 * 
+	 * @param rate
+	 *            The total number of operations per second, 0 for no limit
+	 */
+	public void run(double rate, int threads, long warmup, long duration) throws InterruptedException {
+		this.rate = rate;
+		this.threads = threads;
+
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+		final long recordFrom = start + TimeUnit.MILLISECONDS.toNanos(warmup);
+		final long end = recordFrom + TimeUnit.MILLISECONDS.toNanos(duration);
+		final long interval = (rate > 0) ? (long) (threads * 1e9 / rate) : 0;
+
+		final List<Map<String, OpStats>> partials = new ArrayList<Map<String, OpStats>>();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final Map<String, OpStats> stats = new LinkedHashMap<String, OpStats>();
+			for (int i = 0; i < ops.length; i++)
+				stats.put(ops[i], new OpStats());
+			partials.add(stats);
+
+			// the workers are staggered so that the operations are evenly
+			// spread over time
+			final long offset = (interval * t) / threads;
+			final long seed = System.nanoTime() + t;
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					try {
+						work(stats, new Random(seed), start + offset, interval, recordFrom, end);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "Load Client Worker " + t);
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		done.await();
+		elapsed = end - recordFrom;
+		for (int t = 0; t < partials.size(); t++) {
+			for (Iterator<Map.Entry<String, OpStats>> i = partials.get(t).entrySet().iterator(); i.hasNext();) {
+				Map.Entry<String, OpStats> entry = i.next();
+				results.get(entry.getKey()).add(entry.getValue());
+			}
+		}
+	}
+
+	private void work(Map<String, OpStats> stats, Random random, long next, long interval, long recordFrom, long end) {
+		while (true) {
+			// without a rate the workers still wait for the start time, the
+			// operations issued before it would not be recorded
+			long now = System.nanoTime();
+			while (now < next) {
+				LockSupport.parkNanos(next - now);
+				now = System.nanoTime();
+			}
+			if (interval == 0)
+				next = now;
+			if (next >= end)
+				return;
+
+			String op = pick(random);
+			Exception error = null;
+			try {
+				execute(op);
+			} catch (Exception e) {
+				error = e;
+			}
+
+			if (next >= recordFrom) {
+				OpStats opStats = stats.get(op);
+				if (error == null) {
+					opStats.latencies.record((System.nanoTime() - next) / 1000);
+				} else {
+					opStats.errors++;
+					opStats.addError(error.getClass().getName(), 1);
+				}
+			}
+			next += interval;
+		}
+	}
+
+	private String pick(Random random) {
+		if (ops.length == 1)
+			return ops[0];
+		int r = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (r < cumulativeWeights[i])
+				return ops[i];
+		}
+		return ops[ops.length - 1];
+	}
+
+	private void execute(String op) throws Exception {
+		if (op == OP_SEND) {
+			long n = targetIndex.getAndIncrement();
+			Address target = targets[(int) (n % targets.length)];
+			APSMessage message = new APSMessage();
+			message.setDestinationAddressMode(new Long(GatewayConstants.SHORT_ADDRESS_MODE));
+			message.setDestinationAddress(target);
+			message.setDestinationEndpoint(endpoint);
+			message.setSourceEndpoint(endpoint);
+			message.setProfileID(new Integer(0x0104));
+			message.setClusterID(ON_OFF);
+			message.setData(new byte[] { 0x00, (byte) (n / targets.length), 0x00, 0x00, 0x00 });
+			message.setRadius((short) 10);
+			gateway.sendAPSMessage(message);
+		} else if (op == OP_READ) {
+			gateway.readNodeCache();
+		} else if (op == OP_VERSION) {
+			gateway.getVersion();
+		} else if (op == OP_CALLBACK) {
+			long id = gateway.createAPSCallback(endpoint, nullListener);
+			gateway.deleteCallback(id);
+		}
+	}
+
+	/**
+	 * Returns a one line summary of each operation
+	 */
+	public String getReport() {
+		double seconds = elapsed / 1e9;
+		StringBuilder sb = new StringBuilder();
+		for (Iterator<Map.Entry<String, OpStats>> i = results.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, OpStats> entry = i.next();
+			OpStats stats = entry.getValue();
+			LatencyHistogram h = stats.latencies;
+			long total = h.getCount() + stats.errors;
+			sb.append(String.format("%-8s ok=%d errors=%d (%.2f%%) throughput=%.1f/s latency (ms): p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+					entry.getKey(), h.getCount(), stats.errors, (total > 0) ? 100.0 * stats.errors / total : 0.0,
+					(seconds > 0) ? h.getCount() / seconds : 0.0, h.getValueAtPercentile(50) / 1000.0,
+					h.getValueAtPercentile(90) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+					h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+		}
+		sb.append("aps messages received=" + apsReceived.get());
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the results as a JSON document. Latencies are in microseconds;
+	 * the histogram lists the non empty buckets as [lower bound, upper bound,
+	 * count].
+	 */
+	public void writeResults(Writer writer) throws IOException {
+		double seconds = elapsed / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"rate\": ").append(rate).append(",\n");
+		sb.append("  \"threads\": ").append(threads).append(",\n");
+		sb.append("  \"duration_s\": ").append(String.format("%.3f", seconds)).append(",\n");
+		sb.append("  \"aps_received\": ").append(apsReceived.get()).append(",\n");
+		sb.append("  \"operations\": {");
+		for (Iterator<Map.Entry<String, OpStats>> i = results.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, OpStats> entry = i.next();
+			OpStats stats = entry.getValue();
+			LatencyHistogram h = stats.latencies;
+			long total = h.getCount() + stats.errors;
+			sb.append("\n    \"").append(entry.getKey()).append("\": {\n");
+			sb.append("      \"ok\": ").append(h.getCount()).append(",\n");
+			sb.append("      \"errors\": ").append(stats.errors).append(",\n");
+			sb.append("      \"error_rate\": ").append(String.format("%.6f", (total > 0) ? (double) stats.errors / total : 0.0)).append(",\n");
+			sb.append("      \"throughput\": ").append(String.format("%.3f", (seconds > 0) ? h.getCount() / seconds : 0.0)).append(",\n");
+			sb.append("      \"error_types\": {");
+			for (Iterator<Map.Entry<String, Long>> j = stats.errorTypes.entrySet().iterator(); j.hasNext();) {
+				Map.Entry<String, Long> error = j.next();
+				sb.append("\"").append(error.getKey()).append("\": ").append(error.getValue());
+				if (j.hasNext())
+					sb.append(", ");
+			}
+			sb.append("},\n");
+			sb.append("      \"latency_us\": {\"min\": ").append(h.getMin());
+			sb.append(", \"mean\": ").append(String.format("%.1f", h.getMean()));
+			sb.append(", \"p50\": ").append(h.getValueAtPercentile(50));
+			sb.append(", \"p90\": ").append(h.getValueAtPercentile(90));
+			sb.append(", \"p99\": ").append(h.getValueAtPercentile(99));
+			sb.append(", \"p99.9\": ").append(h.getValueAtPercentile(99.9));
+			sb.append(", \"max\": ").append(h.getMax()).append("},\n");
+			sb.append("      \"histogram\": [");
+			int[] buckets = h.getBuckets();
+			for (int b = 0; b < buckets.length; b++) {
+				if (b > 0)
+					sb.append(", ");
+				sb.append("[").append(LatencyHistogram.getLowerBound(buckets[b])).append(", ")
+						.append(LatencyHistogram.getUpperBound(buckets[b])).append(", ").append(h.getCount(buckets[b])).append("]");
+			}
+			sb.append("]\n    }");
+			if (i.hasNext())
+				sb.append(",");
+		}
+		sb.append("\n  }\n}\n");
+		writer.write(sb.toString());
+		writer.flush();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties arguments = new Properties();
+		for (int i = 0; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq < 0) {
+				System.err.println("invalid argument " + args[i] + ", expected key=value");
+				return;
+			}
+			arguments.setProperty(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		double rate = Double.parseDouble(arguments.getProperty("rate", "0"));
+		int threads = Integer.parseInt(arguments.getProperty("threads", "4"));
+		long duration = Long.parseLong(arguments.getProperty("duration", "10")) * 1000;
+		long warmup = Long.parseLong(arguments.getProperty("warmup", "2")) * 1000;
+		String mix = arguments.getProperty("mix", OP_SEND);
+		short endpoint = Short.parseShort(arguments.getProperty("endpoint", "1"));
+		String output = arguments.getProperty("output");
+
+		GatewayProperties properties = new GatewayProperties();
+		properties.putAll(System.getProperties());
+
+		GatewayFactory factory = null;
+		GatewayInterface gateway;
+		SimulatedGateway simulator = null;
+		if (Integer.parseInt(properties.getProperty(GatewayProperties.SIMULATOR_NODES, "0")) > 0) {
+			gateway = simulator = new SimulatedGateway(properties);
+		} else {
+			factory = GatewayFactory.getInstance(properties);
+			gateway = factory.createGatewayObject();
+		}
+
+		try {
+			if (simulator != null)
+				startSimulator(simulator, endpoint);
+
+			GatewayLoadClient client = new GatewayLoadClient(gateway, getTargets(gateway), endpoint, mix);
+			long callbackId = gateway.createAPSCallback(endpoint, client.getAPSMessageListener());
+			try {
+				client.run(rate, threads, warmup, duration);
+			} finally {
+				gateway.deleteCallback(callbackId);
+			}
+
+			System.out.println(client.getReport());
+			if (output != null) {
+				Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+				try {
+					client.writeResults(writer);
+				} finally {
+					writer.close();
+				}
+			}
+		} finally {
+			if (simulator != null)
+				simulator.close();
+			if (factory != null)
+				factory.close();
+		}
+	}
+
+	/**
+	 * Returns the network addresses of the nodes in the node cache
+	 */
+	static Address[] getTargets(GatewayInterface gateway) throws Exception {
+		List<WSNNode> cache = gateway.readNodeCache().getWSNNode();
+		List<Address> targets = new ArrayList<Address>();
+		for (Iterator<WSNNode> i = cache.iterator(); i.hasNext();) {
+			WSNNode node = i.next();
+			if ((node.getAddress() != null) && (node.getAddress().getNetworkAddress() != null)) {
+				Address address = new Address();
+				address.setNetworkAddress(node.getAddress().getNetworkAddress());
+				targets.add(address);
+			}
+		}
+		return targets.toArray(new Address[targets.size()]);
+	}
+
+	/**
+	 * Forms the simulated network and waits until all the nodes have joined
+	 */
+	static void startSimulator(SimulatedGateway simulator, short endpoint) throws Exception {
+		final Semaphore discovered = new Semaphore(0);
+		simulator.setGatewayEventListener(new GatewayEventListener() {
+			public void nodeDiscovered(Status status, WSNNode node) {
+				discovered.release();
+			}
+
+			public void gatewayStartResult(Status status) {}
+			public void nodeRemoved(Status status, WSNNode node) {}
+			public void servicesDiscovered(Status status, NodeServices services) {}
+			public void serviceDescriptorRetrieved(Status status, ServiceDescriptor service) {}
+			public void nodeDescriptorRetrieved(Status status, NodeDescriptor node) {}
+			public void dongleResetResult(Status status) {}
+			public void bindingResult(Status status) {}
+			public void unbindingResult(Status status) {}
+			public void nodeBindingsRetrieved(Status status, BindingList bindings) {}
+		});
+
+		simulator.resetDongle(0, (short) 0);
+		SimpleDescriptor sd = new SimpleDescriptor();
+		sd.setEndPoint(new Short(endpoint));
+		sd.setApplicationProfileIdentifier(new Integer(0x0104));
+		simulator.configureEndpoint(0, sd);
+		simulator.startNodeDiscovery(0, GatewayConstants.DISCOVERY_ANNOUNCEMENTS);
+		simulator.startGatewayDevice(0);
+
+		int nodes = simulator.getNodesCount();
+		if (!discovered.tryAcquire(nodes, 60, TimeUnit.SECONDS))
+			throw new IllegalStateException("only " + simulator.getJoinedNodesCount() + " of " + nodes + " nodes joined");
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd.client;
+
+/**
+ * Histogram of latencies (or of any non negative value) with a bounded
+ * relative error. The values below 16 have their own bucket; above, each
+ * power of 2 is split into 16 buckets, so a value is reported with an error
+ * lower than 1/16 of it. The memory footprint is fixed (less than 8 KB)
+ * whatever the number and the range of the recorded values.
+ * <p>
+ * A histogram is not thread safe: each thread records into its own one and
+ * the histograms are merged with add() at the end.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts[indexOf(value)]++;
+		count++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		if (other.min < min)
+			min = other.min;
+		if (other.max > max)
+			max = other.max;
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	long getMin() {
+		return (count == 0) ? 0 : min;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	double getMean() {
+		return (count == 0) ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Returns the value below which the passed percentage of the recorded
+	 * values falls, i.e. the upper bound of the bucket holding it
+	 */
+	long getValueAtPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(percentile / 100.0 * count);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(getUpperBound(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the indexes of the non empty buckets, see getLowerBound(),
+	 * getUpperBound() and getCount(int)
+	 */
+	int[] getBuckets() {
+		int n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (counts[i] != 0)
+				n++;
+		}
+		int[] buckets = new int[n];
+		n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (counts[i] != 0)
+				buckets[n++] = i;
+		}
+		return buckets;
+	}
+
+	long getCount(int bucket) {
+		return counts[bucket];
+	}
+
+	static long getLowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long mantissa = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return mantissa << shift;
+	}
+
+	static long getUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long mantissa = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		int mantissa = (int) (value >>> shift);
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+	}
+}
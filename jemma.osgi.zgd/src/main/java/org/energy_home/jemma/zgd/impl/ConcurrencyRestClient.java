@@ -15,36 +15,221 @@
  */
 package org.energy_home.jemma.zgd.impl;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
 import org.restlet.Client;
 import org.restlet.data.Method;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
 import org.restlet.resource.Representation;
 
+/**
+ * Front end of the Restlet client used to send the requests to the GAL. It is
+ * shared by all the gateway objects created by a GatewayFactoryImpl.
+ * <p>
+ * The requests are not serialized: up to maxInFlight exchanges run at the same
+ * time over the keep-alive connections of the HTTP connector, and at most
+ * maxPerRoute of them address the same host and port. The requests exceeding
+ * these limits wait in two FIFO queues, one for the APS data path and one for
+ * the management calls (discovery, binding, permit join, ...). A free slot is
+ * assigned alternating between the two queues, up to dataWeight data requests
+ * for each management request. Moreover, the management requests never take
+ * the last free slot, so slow management calls cannot delay the APS traffic.
+ * <p>
+ * With maxInFlight set to 1 the requests are sent one at a time, as done by
+ * the former implementation.
+ */
 class ConcurrencyRestClient {
+	static final int DATA = 0;
+	static final int MANAGEMENT = 1;
+
+	private static class Waiter {
+		final int priority;
+		final String route;
+		boolean granted = false;
+
+		Waiter(int priority, String route) {
+			this.priority = priority;
+			this.route = route;
+		}
+	}
+
 	private Client restClient;
-	
+
+	private final int maxInFlight;
+	private final int maxPerRoute;
+	private final int dataWeight;
+	private final int reservedForData;
+
+	private final LinkedList<Waiter> dataQueue = new LinkedList<Waiter>();
+	private final LinkedList<Waiter> managementQueue = new LinkedList<Waiter>();
+	private final Map<String, int[]> inFlightByRoute = new HashMap<String, int[]>();
+	private int inFlight = 0;
+	private int dataGrants = 0;
+
 	ConcurrencyRestClient(Client client) {
+		this(client, 1, 1, 1);
+	}
+
+	ConcurrencyRestClient(Client client, int maxInFlight, int maxPerRoute, int dataWeight) {
 		restClient = client;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.maxPerRoute = Math.max(1, maxPerRoute);
+		this.dataWeight = Math.max(1, dataWeight);
+		this.reservedForData = (this.maxInFlight > 1) ? 1 : 0;
 	}
-	
-	synchronized Response get(String uri) {
-		return restClient.get(uri);
+
+	Response get(String uri) {
+		return handle(MANAGEMENT, new Request(Method.GET, uri));
 	}
-	
-	synchronized Response put(String uri, Representation rep) {
-		return restClient.put(uri, rep);
+
+	Response put(String uri, Representation rep) {
+		return handle(MANAGEMENT, new Request(Method.PUT, uri, rep));
 	}
-	
-	synchronized Response post(String uri, Representation rep) {
-		return restClient.post(uri, rep);
+
+	Response post(String uri, Representation rep) {
+		return handle(MANAGEMENT, new Request(Method.POST, uri, rep));
+	}
+
+	/**
+	 * Posts a request belonging to the APS data path
+	 */
+	Response postData(String uri, Representation rep) {
+		return handle(DATA, new Request(Method.POST, uri, rep));
+	}
+
+	Response delete(String uri) {
+		return handle(MANAGEMENT, new Request(Method.DELETE, uri));
 	}
-	
-	synchronized Response delete(String uri) {
-		return restClient.delete(uri);
+
+	Response handle(Method action, String uri, Representation rep) {
+		return handle(MANAGEMENT, new Request(action, uri, rep));
+	}
+
+	synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	synchronized int getQueued() {
+		return dataQueue.size() + managementQueue.size();
+	}
+
+	private Response handle(int priority, Request request) {
+		Waiter w = acquire(priority, getRoute(request.getResourceRef().toString()));
+		try {
+			return restClient.handle(request);
+		} finally {
+			release(w);
+		}
+	}
+
+	private synchronized Waiter acquire(int priority, String route) {
+		Waiter w = new Waiter(priority, route);
+		if (priority == DATA)
+			dataQueue.addLast(w);
+		else
+			managementQueue.addLast(w);
+		if (dispatch())
+			notifyAll();
+
+		// like the former synchronized methods, waiting is not interruptible
+		boolean interrupted = false;
+		while (!w.granted) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return w;
+	}
+
+	private synchronized void release(Waiter w) {
+		inFlight--;
+		int[] count = inFlightByRoute.get(w.route);
+		if (--count[0] == 0)
+			inFlightByRoute.remove(w.route);
+		if (dispatch())
+			notifyAll();
+	}
+
+	/**
+	 * Assigns the free slots to the queued requests.
+	 *
+	 * @return true if at least one request has been granted
+	 */
+	private boolean dispatch() {
+		boolean granted = false;
+		while (inFlight < maxInFlight) {
+			Waiter w;
+			if (dataGrants < dataWeight) {
+				w = pollEligible(dataQueue);
+				if (w == null)
+					w = pollEligible(managementQueue);
+			} else {
+				w = pollEligible(managementQueue);
+				if (w == null)
+					w = pollEligible(dataQueue);
+			}
+			if (w == null)
+				break;
+
+			if (w.priority == DATA)
+				dataGrants++;
+			else
+				dataGrants = 0;
+
+			inFlight++;
+			int[] count = inFlightByRoute.get(w.route);
+			if (count == null)
+				inFlightByRoute.put(w.route, count = new int[1]);
+			count[0]++;
+			w.granted = true;
+			granted = true;
+		}
+		return granted;
+	}
+
+	/**
+	 * Removes from the queue the oldest request that can be started now, i.e.
+	 * whose route is below its limit. The requests addressing a saturated
+	 * route do not block the ones addressing other routes.
+	 */
+	private Waiter pollEligible(LinkedList<Waiter> queue) {
+		if (queue.isEmpty())
+			return null;
+		if ((queue == managementQueue) && (inFlight >= maxInFlight - reservedForData))
+			return null;
+		for (Iterator<Waiter> i = queue.iterator(); i.hasNext();) {
+			Waiter w = i.next();
+			int[] count = inFlightByRoute.get(w.route);
+			if ((count == null) || (count[0] < maxPerRoute)) {
+				i.remove();
+				return w;
+			}
+		}
+		return null;
 	}
 
-	synchronized Response handle(Method action, String uri, Representation rep) {
-		return restClient.handle(new Request(action, uri, rep));
+	/**
+	 * Returns the scheme, host and port part of the uri
+	 */
+	private static String getRoute(String uri) {
+		int start = uri.indexOf("://");
+		if (start < 0)
+			return uri;
+		int end = start + 3;
+		while (end < uri.length()) {
+			char c = uri.charAt(end);
+			if ((c == '/') || (c == '?') || (c == '#'))
+				break;
+			end++;
+		}
+		return uri.substring(0, end).toLowerCase();
 	}
 }
@@ -35,10 +35,19 @@ public class GatewayFactoryImpl extends GatewayFactory {
 	
 	private GatewayProperties properties;
 	private Client client;
+	private ConcurrencyRestClient restClient;
 	private Component component;
 	private JAXBContext context;
+	private StaxMessageCodec codec;
 //	private NamespacePrefixMapper mapper;
 	private RestletEventListener restlet;
+	// sends the APS messages in asynchronous confirm mode, in order for each
+	// destination
+	private KeyedEventDispatcher confirmDispatcher;
+
+	// lanes of the confirm dispatcher: the destinations sharing a lane are
+	// sent one after the other
+	private static final int CONFIRM_LANES = 64;
 	
 	public GatewayFactoryImpl() {}
 	public GatewayFactoryImpl(GatewayProperties prop) throws Exception {
@@ -53,13 +62,28 @@ public class GatewayFactoryImpl extends GatewayFactory {
 		return client;
 	}
 
+	ConcurrencyRestClient getRestClient() {
+		return restClient;
+	}
+
 	RestletEventListener getRestlet() {
 		return restlet;
 	}
+
+	/**
+	 * @return null if the APS messages are confirmed synchronously
+	 */
+	KeyedEventDispatcher getConfirmDispatcher() {
+		return confirmDispatcher;
+	}
 	
 	public JaxbConverter createConverter() throws JAXBException, IOException {
 		String namespace = properties.getProperty(GatewayProperties.REST_NAMESPACE);
-		JaxbConverter converter = new JaxbConverter(context, namespace);
+		JaxbConverter converter = new JaxbConverter(context, namespace,
+				Integer.parseInt(properties.getProperty(GatewayProperties.MARSHALLER_POOL_SIZE)),
+				properties.getProperty(GatewayProperties.FORMATTED_OUTPUT).equalsIgnoreCase("true"));
+		converter.setTracePayloads(properties.getProperty(GatewayProperties.TRACE_PAYLOADS).equalsIgnoreCase("true"));
+		if (codec != null) converter.setStreamingCodec(codec);
 		//converter.getMarshaller().setProperty(prefixMapperProperty, mapper);
 		return converter;
 	}
@@ -67,6 +91,8 @@ public class GatewayFactoryImpl extends GatewayFactory {
 	protected void init(GatewayProperties prop) throws Exception {
 		properties = prop;
 		context = JAXBContext.newInstance(jaxbPackage, ObjectFactory.class.getClassLoader());
+		if (properties.getProperty(GatewayProperties.USE_STREAMING_CODEC).equalsIgnoreCase("true"))
+			codec = new StaxMessageCodec();
 //		mapper = new NamespacePrefixMapper() {
 //			String gatewayNS = properties.getProperty(GatewayProperties.GATEWAY_NAMESPACE);
 //			String restNS = properties.getProperty(GatewayProperties.REST_NAMESPACE);
@@ -81,13 +107,33 @@ public class GatewayFactoryImpl extends GatewayFactory {
 //			}
 //		};
 //		
+		int maxPerRoute = Integer.parseInt(properties.getProperty(GatewayProperties.MAX_CONNECTIONS_PER_ROUTE));
 		client = new Client(Protocol.HTTP);
 		client.setConnectTimeout(Integer.parseInt(properties.getProperty(GatewayProperties.CONNECTION_TIMEOUT)));
+		restClient = new ConcurrencyRestClient(client,
+				Integer.parseInt(properties.getProperty(GatewayProperties.MAX_IN_FLIGHT_REQUESTS)),
+				maxPerRoute,
+				Integer.parseInt(properties.getProperty(GatewayProperties.DATA_REQUESTS_WEIGHT)));
+		if (properties.getProperty(GatewayProperties.APS_ASYNC_CONFIRM).equalsIgnoreCase("true")) {
+			int threads = Integer.parseInt(properties.getProperty(GatewayProperties.MAX_IN_FLIGHT_REQUESTS));
+			int capacity = Integer.parseInt(properties.getProperty(GatewayProperties.APS_CONFIRM_QUEUE_CAPACITY));
+			// the messages to a destination are sent one at a time, in the
+			// order of the calls; when the queue is full the sender waits,
+			// which slows it down to the pace of the gateway
+			confirmDispatcher = new KeyedEventDispatcher("GAL APS confirm", threads, CONFIRM_LANES, capacity, capacity,
+					KeyedEventDispatcher.BLOCK);
+		}
 		
 		component = new Component();
 		Integer port=Integer.parseInt(properties.getProperty(GatewayProperties.LOCAL_PORT));
 		component.getServers().add(Protocol.HTTP, port);
-		restlet = new RestletEventListener(createConverter());
+		KeyedEventDispatcher dispatcher = new KeyedEventDispatcher("GAL event dispatcher",
+				Integer.parseInt(properties.getProperty(GatewayProperties.EVENT_THREADS)),
+				Integer.parseInt(properties.getProperty(GatewayProperties.EVENT_LANES)),
+				Integer.parseInt(properties.getProperty(GatewayProperties.EVENT_LANE_CAPACITY)),
+				Integer.parseInt(properties.getProperty(GatewayProperties.EVENT_QUEUE_CAPACITY)),
+				KeyedEventDispatcher.parsePolicy(properties.getProperty(GatewayProperties.EVENT_OVERFLOW_POLICY)));
+		restlet = new RestletEventListener(createConverter(), dispatcher);
 		component.getDefaultHost().attachDefault(restlet);
 		
 		if (properties.getProperty(GatewayProperties.ENABLE_RESTLET_CONSOLE).equalsIgnoreCase("false")) {
@@ -99,6 +145,7 @@ public class GatewayFactoryImpl extends GatewayFactory {
 	}
 
 	public void close() throws Exception {
+		if (confirmDispatcher != null) confirmDispatcher.shutdown();
 		try {restlet.stop();} catch (Exception e) {}
 		try {component.getDefaultHost().stop();} catch (Exception e) {}
 		try {component.stop();} catch (Exception e) {}
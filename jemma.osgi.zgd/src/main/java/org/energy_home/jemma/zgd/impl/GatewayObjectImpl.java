@@ -21,9 +21,11 @@ import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.xml.bind.JAXBException;
 
+import org.energy_home.jemma.zgd.APSMessageConfirmListener;
 import org.energy_home.jemma.zgd.APSMessageListener;
 import org.energy_home.jemma.zgd.GatewayConstants;
 import org.energy_home.jemma.zgd.GatewayEventListener;
@@ -62,13 +64,29 @@ class GatewayObjectImpl implements GatewayInterface, ResourcePathURIs, EventPath
 	private String localHost;
 	private String gatewayRootURI;
 	private String networkRootURI;
-
+	// null if the APS messages are confirmed synchronously
+	private KeyedEventDispatcher confirmDispatcher;
+	// send APS message URIs, by source endpoint (see getSendAPSMessageURI())
+	private final AtomicReferenceArray<SendURI> sendAPSMessageURIs = new AtomicReferenceArray<SendURI>(256);
+
+	private static final class SendURI {
+		final short endpoint;
+		final long timeout;
+		final String uri;
+
+		SendURI(short endpoint, long timeout, String uri) {
+			this.endpoint = endpoint;
+			this.timeout = timeout;
+			this.uri = uri;
+		}
+	}
 	
 	GatewayObjectImpl(GatewayFactoryImpl f) throws JAXBException, IOException {
 		restlet = f.getRestlet();
+		confirmDispatcher = f.getConfirmDispatcher();
 		jaxbConverter = f.createConverter();
 		//restClient = f.getClient();
-		restClient = new ConcurrencyRestClient(f.getClient());
+		restClient = f.getRestClient();
 		jaxbFactory = new ObjectFactory();
 		gatewayRootURI = f.getProperties().getProperty(GatewayProperties.GATEWAY_ROOT_URI);
 		if (gatewayRootURI.endsWith("/")) gatewayRootURI = gatewayRootURI.substring(0, gatewayRootURI.length() -1);
@@ -721,27 +739,122 @@ class GatewayObjectImpl implements GatewayInterface, ResourcePathURIs, EventPath
 	}
 	
 	public void sendAPSMessage(long timeout, APSMessage message) throws IOException, JAXBException, GatewayException {
+		sendAPSMessage(timeout, message, null);
+	}
+	
+	public void sendAPSMessage(APSMessage message, APSMessageConfirmListener listener) throws IOException, JAXBException, GatewayException {
+		if (listener == null) throw new IllegalArgumentException("APSMessageConfirmListener cannot be null.");
+		sendAPSMessage(0, message, listener);
+	}
+	
+	/**
+	 * @param listener
+	 *            null if the outcome is only traced in asynchronous confirm
+	 *            mode, and thrown otherwise
+	 */
+	private void sendAPSMessage(long timeout, APSMessage message, final APSMessageConfirmListener listener) throws IOException,
+			JAXBException, GatewayException {
 		if (message == null) throw new IllegalArgumentException("APSMessage cannot be null.");
 		if (timeout == 0) timeout = GatewayConstants.INFINITE_TIMEOUT;
 		
 		// Prepare the request
-		short ep = message.getSourceEndpoint();
-		StringBuilder sb = new StringBuilder(networkRootURI);
+		final String uri = getSendAPSMessageURI(message.getSourceEndpoint(), timeout);
+		Trace.println(uri);
+		
+		// the message is marshalled here, so the caller can reuse it (and its
+		// data) as soon as this method returns
+		final Representation rep = jaxbConverter.toRepresentation(message);
+		if (confirmDispatcher != null) {
+			boolean queued = confirmDispatcher.submit(getDestinationKey(message.getDestinationAddress()), new Runnable() {
+				public void run() {
+					Exception failure = null;
+					try {
+						confirmAPSMessage(restClient.postData(uri, rep));
+					} catch (Exception e) {
+						Trace.println("APS message not confirmed: " + e.getMessage());
+						failure = e;
+					}
+					if (listener != null)
+						notifyConfirm(listener, failure);
+				}
+			});
+			if (!queued)
+				throw new GatewayException("APS message not sent: gateway closed");
+			return;
+		}
+		
+		// Handle it using an HTTP client connector
+		if (listener == null) {
+			confirmAPSMessage(restClient.postData(uri, rep));
+			return;
+		}
+		Exception failure = null;
+		try {
+			confirmAPSMessage(restClient.postData(uri, rep));
+		} catch (Exception e) {
+			failure = e;
+		}
+		notifyConfirm(listener, failure);
+	}
+	
+	private static void notifyConfirm(APSMessageConfirmListener listener, Exception failure) {
+		try {
+			if (failure == null)
+				listener.apsMessageConfirmed();
+			else
+				listener.apsMessageNotConfirmed(failure);
+		} catch (Throwable t) {
+			Trace.println("APS message confirm listener failed: " + t.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns the key that selects the lane of the confirm dispatcher used by
+	 * the APS messages to the passed destination. Different destinations can
+	 * share a lane, which only makes them wait for each other. The IEEE
+	 * address comes first: it is the one used by the ZigBee manager, so all
+	 * the messages to a node take the same lane.
+	 */
+	private static int getDestinationKey(Address destination) {
+		if (destination != null) {
+			if (destination.getIeeeAddress() != null)
+				return destination.getIeeeAddress().hashCode();
+			if (destination.getNetworkAddress() != null)
+				return destination.getNetworkAddress().intValue();
+			if (destination.getAliasAddress() != null)
+				return destination.getAliasAddress().hashCode();
+		}
+		return 0;
+	}
+
+	private void confirmAPSMessage(Response response) throws IOException, JAXBException, GatewayException {
+		Info info = jaxbConverter.getInfo(response);
+		checkStatus(info.getStatus());
+	}
+	
+	/**
+	 * Returns the URI used to send the APS messages from the passed endpoint.
+	 * The last URI built for each endpoint is kept, since all the messages of
+	 * an endpoint are usually sent with the same timeout.
+	 */
+	private String getSendAPSMessageURI(short ep, long timeout) {
+		int index = ep & 0xff;
+		SendURI cached = sendAPSMessageURIs.get(index);
+		if (cached != null && cached.endpoint == ep && cached.timeout == timeout)
+			return cached.uri;
+		
+		StringBuilder sb = new StringBuilder(networkRootURI.length() + 64);
+		sb.append(networkRootURI);
 		sb.append(LOCALNODE_SERVICES).append('/');
 		appendPaddedNumber(sb, ep);
 		sb.append(SEND_APSMESSAGE);
 		sb.append('?').append(TIMEOUT_PARAM);
 		appendPaddedNumber(sb, timeout);
-		
-		Trace.println(sb.toString());
-		
-		// Handle it using an HTTP client connector
-		Representation rep = jaxbConverter.toRepresentation(message);
-		Response response = restClient.post(sb.toString(), rep);
-		Info info = jaxbConverter.getInfo(response);
-		checkStatus(info.getStatus());
-		info.getDetail().getAPSMessageResult();
+		String uri = sb.toString();
+		sendAPSMessageURIs.set(index, new SendURI(ep, timeout, uri));
+		return uri;
 	}
+
 	
 	public void resetDongle(long timeout, short mode) throws IOException, Exception, GatewayException {
 
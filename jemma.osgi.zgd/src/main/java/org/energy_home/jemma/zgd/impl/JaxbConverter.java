@@ -21,9 +21,13 @@ package org.energy_home.jemma.zgd.impl;
  * Unmarshaller instance, as long as you don't use one instance from two threads at the same time.
 */
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
@@ -32,15 +36,14 @@ import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.helpers.DefaultValidationEventHandler;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
 
 import org.energy_home.jemma.zgd.Trace;
 import org.energy_home.jemma.zgd.jaxb.Info;
-import org.restlet.data.CharacterSet;
 import org.restlet.data.MediaType;
 import org.restlet.data.Response;
 import org.restlet.resource.OutputRepresentation;
 import org.restlet.resource.Representation;
-import org.restlet.resource.StringRepresentation;
 
 import com.sun.xml.bind.marshaller.NamespacePrefixMapper;
 
@@ -52,10 +55,19 @@ public class JaxbConverter {
 	private Marshaller marshaller;
 	private Unmarshaller unmarshaller;
 	private String namespace = "";
+	private StaxMessageCodec codec;
+
+	// JAXB marshallers are not thread safe: each call borrows its own
+	private boolean formattedOutput;
+	private boolean tracePayloads = true;
+	private BlockingQueue<Marshaller> marshallers;
+	private BlockingQueue<Unmarshaller> unmarshallers;
 
 	JAXBContext getContext() {
 		return context;
 	}
+	// the instances returned by these methods must be used in a block
+	// synchronized on them
 	Marshaller getMarshaller() {
 		return marshaller;
 	}
@@ -63,30 +75,81 @@ public class JaxbConverter {
 		return unmarshaller;
 	}
 	
+	/**
+	 * Sets the codec used in place of JAXB for the messages it supports, or
+	 * null to always use JAXB
+	 */
+	void setStreamingCodec(StaxMessageCodec c) {
+		codec = c;
+	}
+	
+	/**
+	 * Enables the trace of the exchanged XML documents. Even if enabled, the
+	 * documents are copied only when a Trace is set.
+	 */
+	void setTracePayloads(boolean b) {
+		tracePayloads = b;
+	}
+	
 //	JaxbConverter(JAXBContext c, String ns) throws JAXBException {
 //		this(c, ns, null);
 //	}
 	
 	public JaxbConverter(JAXBContext c, String ns, NamespacePrefixMapper nm) throws JAXBException {
-		context = c;
-		namespace = ns;
-		marshaller = c.createMarshaller();
-		unmarshaller = c.createUnmarshaller();
-		unmarshaller.setEventHandler(new DefaultValidationEventHandler());
-		marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-		marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+		this(c, ns);
 //		if (nm != null) marshaller.setProperty(prefixMapperProperty, nm);
 	}
 	
 	public JaxbConverter(JAXBContext c, String ns) throws JAXBException {
+		this(c, ns, 1, true);
+	}
+	
+	/**
+	 * @param poolSize
+	 *            The max number of idle marshallers (and unmarshallers) kept
+	 *            for reuse. Concurrent calls exceeding it create new instances
+	 * @param formatted
+	 *            If true the produced documents are indented
+	 */
+	JaxbConverter(JAXBContext c, String ns, int poolSize, boolean formatted) throws JAXBException {
 		context = c;
 		namespace = ns;
-		marshaller = c.createMarshaller();
-		unmarshaller = c.createUnmarshaller();
-		unmarshaller.setEventHandler(new DefaultValidationEventHandler());
-		marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-		marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
-//		if (nm != null) marshaller.setProperty(prefixMapperProperty, nm);
+		formattedOutput = formatted;
+		marshallers = new ArrayBlockingQueue<Marshaller>(Math.max(1, poolSize));
+		unmarshallers = new ArrayBlockingQueue<Unmarshaller>(Math.max(1, poolSize));
+		marshaller = createMarshaller();
+		unmarshaller = createUnmarshaller();
+	}
+	
+	Marshaller acquireMarshaller() throws JAXBException {
+		Marshaller m = marshallers.poll();
+		return (m != null) ? m : createMarshaller();
+	}
+	
+	void releaseMarshaller(Marshaller m) {
+		marshallers.offer(m);
+	}
+	
+	Unmarshaller acquireUnmarshaller() throws JAXBException {
+		Unmarshaller u = unmarshallers.poll();
+		return (u != null) ? u : createUnmarshaller();
+	}
+	
+	void releaseUnmarshaller(Unmarshaller u) {
+		unmarshallers.offer(u);
+	}
+	
+	private Marshaller createMarshaller() throws JAXBException {
+		Marshaller m = context.createMarshaller();
+		m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.valueOf(formattedOutput));
+		m.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+		return m;
+	}
+	
+	private Unmarshaller createUnmarshaller() throws JAXBException {
+		Unmarshaller u = context.createUnmarshaller();
+		u.setEventHandler(new DefaultValidationEventHandler());
+		return u;
 	}
 	
 	public Representation toRepresentation(Object object) throws IOException, JAXBException {
@@ -98,9 +161,22 @@ public class JaxbConverter {
 	
 	Representation toRepresentation(final JAXBElement<?> element) throws IOException, JAXBException {
 		final ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
-		synchronized (marshaller) {
-			marshaller.marshal(element, baos);
+		if (codec != null && codec.canWrite(element.getValue())) {
+			try {
+				codec.write(element.getName(), element.getValue(), baos);
+			} catch (XMLStreamException e) {
+				throw new JAXBException(e.getMessage(), e);
+			}
+		} else {
+			Marshaller m = acquireMarshaller();
+			try {
+				m.marshal(element, baos);
+			} finally {
+				releaseMarshaller(m);
+			}
 		}
+		if (isTracePayloads())
+			Trace.println(baos.toString("UTF-8"));
 		final IOException[] ioex = new IOException[1];
 		Representation rep = new OutputRepresentation(MediaType.APPLICATION_XML, baos.size()) {
 			public void write(OutputStream os) {
@@ -112,31 +188,73 @@ public class JaxbConverter {
 			}
 		};
 		if (ioex[0] != null) throw ioex[0];
-		return doLog(rep);
+		return rep;
 	}
 	
 	
 	Info getInfo(Response response) throws IOException, JAXBException {
 		org.restlet.data.Status httpStatus = response.getStatus();
-		if (httpStatus.isError())
+		if (httpStatus.isError()) {
+			// reads the error page, so that the connection can be kept alive
+			Representation rep = response.getEntity();
+			if (rep != null) {
+				try {
+					InputStream in = rep.getStream();
+					if (in != null) {
+						byte[] buffer = new byte[512];
+						while (in.read(buffer) >= 0);
+						in.close();
+					}
+				} catch (IOException e) {}
+			}
 			throw new IOException(httpStatus.getCode() + " - " + httpStatus.getDescription());
+		}
 		return getInfo(response.getEntity());
 	}
 	
 	Info getInfo(Representation rep) throws IOException, JAXBException {
-		rep = doLog(rep);
-		synchronized (unmarshaller) {
-			JAXBElement<?> element = (JAXBElement<?>)unmarshaller.unmarshal(rep.getStream());
+		InputStream in = rep.getStream();
+		boolean trace = isTracePayloads();
+		if (codec != null || trace) {
+			// the content is buffered, so that JAXB can read it when the
+			// codec does not support it
+			byte[] xml = readFully(in);
+			if (trace)
+				Trace.println(new String(xml, "UTF-8"));
+			if (codec != null) {
+				try {
+					Object value = codec.read(new ByteArrayInputStream(xml));
+					if (value instanceof Info)
+						return (Info)value;
+				} catch (XMLStreamException e) {
+					// JAXB reports the error
+				}
+			}
+			in = new ByteArrayInputStream(xml);
+		}
+		Unmarshaller u = acquireUnmarshaller();
+		try {
+			JAXBElement<?> element = (JAXBElement<?>)u.unmarshal(in);
 			return (Info)element.getValue();
+		} finally {
+			releaseUnmarshaller(u);
 		}
 	}
 	
-	private Representation doLog(Representation rep) throws IOException {
-		if (Trace.isTrace()) {
-			String xml = rep.getText();
-			Trace.println(xml);
-			rep = new StringRepresentation(xml, MediaType.TEXT_XML, null, CharacterSet.UTF_8);
+	private boolean isTracePayloads() {
+		return tracePayloads && Trace.isTrace();
+	}
+	
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+		byte[] buffer = new byte[1024];
+		int n;
+		try {
+			while ((n = in.read(buffer)) >= 0)
+				baos.write(buffer, 0, n);
+		} finally {
+			in.close();
 		}
-		return rep;
+		return baos.toByteArray();
 	}
 }
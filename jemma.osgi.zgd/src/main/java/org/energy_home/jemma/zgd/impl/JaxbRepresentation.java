@@ -20,6 +20,8 @@ import java.io.OutputStream;
 
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.namespace.QName;
 
 import org.restlet.data.MediaType;
@@ -74,9 +76,12 @@ class JaxbRepresentation<T> extends SaxRepresentation {
 	T getObject() {
 		T result = null;
 		try {
-			synchronized (jaxbConverter.getUnmarshaller()) {
-				JAXBElement<T> element = (JAXBElement<T>)jaxbConverter.getUnmarshaller().unmarshal(getSaxSource());
+			Unmarshaller u = jaxbConverter.acquireUnmarshaller();
+			try {
+				JAXBElement<T> element = (JAXBElement<T>)u.unmarshal(getSaxSource());
 				result = element.getValue();
+			} finally {
+				jaxbConverter.releaseUnmarshaller(u);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -90,8 +95,11 @@ class JaxbRepresentation<T> extends SaxRepresentation {
 			if (name == null) name = object.getClass().getSimpleName();
 			QName qname = new QName(getDefaultNamespace(), name);
 			JAXBElement<T> element = new JAXBElement<T>(qname, (Class<T>)object.getClass(), object);
-			synchronized (jaxbConverter.getMarshaller()) {
-				jaxbConverter.getMarshaller().marshal(element, outputStream);
+			Marshaller m = jaxbConverter.acquireMarshaller();
+			try {
+				m.marshal(element, outputStream);
+			} finally {
+				jaxbConverter.releaseMarshaller(m);
 			}
 		} catch (JAXBException e) {
 			e.printStackTrace();
@@ -0,0 +1,312 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd.impl;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.energy_home.jemma.zgd.Trace;
+
+/**
+ * Executes the events received from the GAL on a fixed set of threads.
+ * <p>
+ * Each event has an integer key (e.g. derived from the address of the source
+ * node) that selects one of a fixed number of lanes. The events of a lane are
+ * executed one at a time, in arrival order, while different lanes run in
+ * parallel; ready lanes are served round robin, one event per turn, so a busy
+ * lane cannot starve the others.
+ * <p>
+ * Both the events queued in a lane and the events queued overall are bounded.
+ * When a limit is reached the overflow policy decides what happens: the
+ * incoming event is dropped, the oldest event of the lane (or of the longest
+ * lane) is dropped, or the caller waits for room.
+ */
+class KeyedEventDispatcher {
+
+	static final int DROP_NEWEST = 0;
+	static final int DROP_OLDEST = 1;
+	static final int BLOCK = 2;
+
+	/**
+	 * Parses the value of the event-overflow-policy property
+	 */
+	static int parsePolicy(String s) {
+		if ("drop-newest".equalsIgnoreCase(s))
+			return DROP_NEWEST;
+		if ("block".equalsIgnoreCase(s))
+			return BLOCK;
+		return DROP_OLDEST;
+	}
+
+	private static class Entry {
+		final Runnable task;
+		final long enqueueTime;
+
+		Entry(Runnable task, long enqueueTime) {
+			this.task = task;
+			this.enqueueTime = enqueueTime;
+		}
+	}
+
+	private static class Lane {
+		final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+		boolean busy = false;
+		boolean ready = false;
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private final Lane[] lanes;
+	private final ArrayDeque<Lane> readyLanes;
+	private final Thread[] workers;
+	private final int laneCapacity;
+	private final int capacity;
+	private final int policy;
+
+	private int queued = 0;
+	private boolean stopped = false;
+
+	// metrics, guarded by lock
+	private int maxQueued = 0;
+	private long submittedCount = 0;
+	private long executedCount = 0;
+	private long droppedCount = 0;
+	private long totalWaitNanos = 0;
+	private long maxWaitNanos = 0;
+
+	/**
+	 * @param name
+	 *            Prefix of the names of the threads
+	 * @param threads
+	 *            The number of threads executing the events
+	 * @param laneCount
+	 *            The number of lanes, rounded up to a power of 2
+	 * @param laneCapacity
+	 *            The max number of events queued in a lane
+	 * @param capacity
+	 *            The max number of events queued in all the lanes
+	 * @param policy
+	 *            What to do when a limit is reached: DROP_NEWEST, DROP_OLDEST
+	 *            or BLOCK
+	 */
+	KeyedEventDispatcher(String name, int threads, int laneCount, int laneCapacity, int capacity, int policy) {
+		int size = 1;
+		while (size < laneCount)
+			size <<= 1;
+		lanes = new Lane[size];
+		for (int i = 0; i < size; i++)
+			lanes[i] = new Lane();
+		readyLanes = new ArrayDeque<Lane>(size);
+
+		this.laneCapacity = Math.max(1, laneCapacity);
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+
+		workers = new Thread[Math.max(1, threads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(name + "-" + i) {
+				public void run() {
+					work();
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Queues an event. The events submitted with the same key are executed in
+	 * submission order.
+	 *
+	 * @return false if the event has been dropped (or the dispatcher is
+	 *         stopped)
+	 */
+	boolean submit(int key, Runnable task) {
+		Lane lane = lanes[spread(key) & (lanes.length - 1)];
+		lock.lock();
+		try {
+			if (stopped)
+				return false;
+			submittedCount++;
+
+			while ((queued >= capacity) || (lane.queue.size() >= laneCapacity)) {
+				if (policy == BLOCK) {
+					try {
+						notFull.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						droppedCount++;
+						return false;
+					}
+					if (stopped)
+						return false;
+				} else if (policy == DROP_OLDEST) {
+					// a full lane loses its own events, otherwise the longest
+					// lane pays for the global limit
+					Lane victim = (lane.queue.size() >= laneCapacity) ? lane : longestLane();
+					if (victim.queue.isEmpty()) {
+						droppedCount++;
+						return false;
+					}
+					victim.queue.pollFirst();
+					queued--;
+					droppedCount++;
+				} else {
+					droppedCount++;
+					return false;
+				}
+			}
+
+			lane.queue.addLast(new Entry(task, System.nanoTime()));
+			queued++;
+			if (queued > maxQueued)
+				maxQueued = queued;
+			if (!lane.busy && !lane.ready) {
+				lane.ready = true;
+				readyLanes.addLast(lane);
+				notEmpty.signal();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the threads. The queued events are discarded.
+	 */
+	void shutdown() {
+		lock.lock();
+		try {
+			stopped = true;
+			for (int i = 0; i < lanes.length; i++)
+				lanes[i].queue.clear();
+			readyLanes.clear();
+			queued = 0;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (int i = 0; i < workers.length; i++)
+			workers[i].interrupt();
+	}
+
+	int getQueued() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getDroppedCount() {
+		lock.lock();
+		try {
+			return droppedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	String getStatistics() {
+		lock.lock();
+		try {
+			long avgWait = (executedCount == 0) ? 0 : totalWaitNanos / executedCount;
+			return "queued " + queued + " (max " + maxQueued + "), submitted " + submittedCount + ", executed " + executedCount
+					+ ", dropped " + droppedCount + ", queue latency avg " + TimeUnit.NANOSECONDS.toMicros(avgWait) + " us, max "
+					+ TimeUnit.NANOSECONDS.toMicros(maxWaitNanos) + " us";
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Lane longestLane() {
+		Lane longest = null;
+		for (int i = 0; i < lanes.length; i++) {
+			if ((longest == null) || (lanes[i].queue.size() > longest.queue.size()))
+				longest = lanes[i];
+		}
+		return longest;
+	}
+
+	private void work() {
+		Lane lane = null;
+		while (true) {
+			Entry entry;
+			lock.lock();
+			try {
+				if (lane != null) {
+					// the lane goes back to the tail of the ready lanes
+					lane.busy = false;
+					if (!lane.queue.isEmpty()) {
+						lane.ready = true;
+						readyLanes.addLast(lane);
+					}
+				}
+				lane = null;
+				while (lane == null) {
+					while (readyLanes.isEmpty() && !stopped) {
+						try {
+							notEmpty.await();
+						} catch (InterruptedException e) {
+							// checks stopped
+						}
+					}
+					if (stopped)
+						return;
+					lane = readyLanes.pollFirst();
+					lane.ready = false;
+					// DROP_OLDEST may have emptied a ready lane
+					if (lane.queue.isEmpty())
+						lane = null;
+				}
+
+				lane.busy = true;
+				entry = lane.queue.pollFirst();
+				queued--;
+				if (!readyLanes.isEmpty())
+					notEmpty.signal();
+				if (policy == BLOCK)
+					notFull.signalAll();
+
+				long wait = System.nanoTime() - entry.enqueueTime;
+				totalWaitNanos += wait;
+				if (wait > maxWaitNanos)
+					maxWaitNanos = wait;
+				executedCount++;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				entry.task.run();
+			} catch (Throwable e) {
+				Trace.println("error dispatching GAL event: " + e);
+			}
+		}
+	}
+
+	private static int spread(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
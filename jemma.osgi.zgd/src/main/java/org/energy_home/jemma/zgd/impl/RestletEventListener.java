@@ -17,11 +17,9 @@ package org.energy_home.jemma.zgd.impl;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.JAXBException;
 
@@ -29,6 +27,7 @@ import org.energy_home.jemma.zgd.APSMessageListener;
 import org.energy_home.jemma.zgd.GatewayEventListener;
 import org.energy_home.jemma.zgd.Trace;
 import org.energy_home.jemma.zgd.jaxb.APSMessageEvent;
+import org.energy_home.jemma.zgd.jaxb.Address;
 import org.energy_home.jemma.zgd.jaxb.BindingList;
 import org.energy_home.jemma.zgd.jaxb.Info;
 import org.energy_home.jemma.zgd.jaxb.NodeDescriptor;
@@ -44,27 +43,55 @@ import org.restlet.resource.StringRepresentation;
 
 
 class RestletEventListener extends Application implements GatewayEventListener, EventPathURIs {
+	// event types, see parseEventPath()
+	private static final int UNKNOWN_EVENT = 0;
+	private static final int APS_EVENT = 1;
+	private static final int STARTUP_EVENT = 2;
+	private static final int RESET_EVENT = 3;
+	private static final int LEAVE_EVENT = 4;
+	private static final int PERMITJOIN_EVENT = 5;
+	private static final int NODE_DISCOVERED_EVENT = 6;
+	private static final int NODE_REMOVED_EVENT = 7;
+	private static final int SERVICES_EVENT = 8;
+	private static final int SERVICE_DESCRIPTOR_EVENT = 9;
+	private static final int NODE_DESCRIPTOR_EVENT = 10;
+	private static final int BINDING_EVENT = 11;
+	private static final int UNBINDING_EVENT = 12;
+	private static final int BINDING_LIST_EVENT = 13;
+
+	// read only after the class initialization
+	private static final Map<String, Integer> eventTypes = new HashMap<String, Integer>();
+	static {
+		eventTypes.put(APS_NOTIFY_EVENT, new Integer(APS_EVENT));
+		eventTypes.put(STARTUP_RESPONSE, new Integer(STARTUP_EVENT));
+		eventTypes.put(RESET_RESPONSE, new Integer(RESET_EVENT));
+		eventTypes.put(LEAVE_RESPONSE, new Integer(LEAVE_EVENT));
+		eventTypes.put(PERMITJOIN_RESPONSE, new Integer(PERMITJOIN_EVENT));
+		eventTypes.put(NODE_DISCOVERED, new Integer(NODE_DISCOVERED_EVENT));
+		eventTypes.put(NODE_REMOVED, new Integer(NODE_REMOVED_EVENT));
+		eventTypes.put(SERVICES_DISCOVERED, new Integer(SERVICES_EVENT));
+		eventTypes.put(SERVICE_DESCRIPTOR, new Integer(SERVICE_DESCRIPTOR_EVENT));
+		eventTypes.put(NODE_DESCRIPTOR, new Integer(NODE_DESCRIPTOR_EVENT));
+		eventTypes.put(NODE_BINDING_RESPONSE, new Integer(BINDING_EVENT));
+		eventTypes.put(NODE_UNBINDING_RESPONSE, new Integer(UNBINDING_EVENT));
+		eventTypes.put(NODE_BINDING_LIST_RESPONSE, new Integer(BINDING_LIST_EVENT));
+	}
+
 	private Representation okResponse;
 	
 	private JaxbConverter jaxbConverter;
-	private GatewayEventListener eventListener;
-	private Map<Long, APSMessageListener> callbacks;
-	//private ExecutorService executor;
-	private ThreadPoolExecutor executor;
+	private volatile GatewayEventListener eventListener;
+	// APS listeners by callback identifier. Callbacks are created and deleted
+	// by the client threads while the dispatcher threads look them up
+	private final Map<Long, APSMessageListener> callbacks = new ConcurrentHashMap<Long, APSMessageListener>();
+	// used for the APS events whose callback identifier is missing or unknown
+	private volatile APSMessageListener defaultCallback;
+	// events of the same node are dispatched in order, see getEventKey()
+	private KeyedEventDispatcher dispatcher;
 	
-	RestletEventListener(JaxbConverter converter) throws JAXBException, IOException {
+	RestletEventListener(JaxbConverter converter, KeyedEventDispatcher dispatcher) throws JAXBException, IOException {
 		jaxbConverter = converter;
-		callbacks = new HashMap<Long, APSMessageListener>();		
-		
-		executor = new ThreadPoolExecutor(4, 48, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
-				new RejectedExecutionHandler() {
-
-					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-						// TODO Auto-generated method stub
-						Trace.println("\nrejected GAL request because of unavailable resources\n");
-						Trace.println(((DispatchTask)r).eventPath);
-					}
-				});
+		this.dispatcher = dispatcher;
 		
 		eventListener = this;
 		Status s = new Status();
@@ -76,14 +103,21 @@ class RestletEventListener extends Application implements GatewayEventListener,
 
 	@Override
     public void handle(Request request, Response response) {
-		Trace.println("\nreceived event from gateway");
-		Trace.println(request.getResourceRef().toString());
-		Trace.println(request.getResourceRef().getPath(false));
+		if (Trace.isTrace()) {
+			Trace.println("\nreceived event from gateway");
+			Trace.println(request.getResourceRef().toString());
+			Trace.println(request.getResourceRef().getPath(false));
+		}
 		
 		// read request Info:
 		try {
 			Info info = jaxbConverter.getInfo(request.getEntity());
-			executor.execute(new DispatchTask(info, request.getResourceRef().getPath(false)));
+			String eventPath = request.getResourceRef().getPath(false);
+			int eventType = parseEventPath(eventPath);
+			if (!dispatcher.submit(getEventKey(eventType, info), new DispatchTask(info, eventType, eventPath))) {
+				Trace.println("\nrejected GAL event because the event queue is full: " + eventPath);
+				Trace.println(dispatcher.getStatistics());
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -101,9 +135,45 @@ class RestletEventListener extends Application implements GatewayEventListener,
     }
 	
 	public void stop() throws Exception {
-		executor.shutdownNow();
+		Trace.println("GAL event dispatcher: " + dispatcher.getStatistics());
+		dispatcher.shutdown();
 		super.stop();
 	}
+	
+	/**
+	 * The APS messages are keyed by source node, so the messages of a node
+	 * are delivered in order while different nodes are served in parallel.
+	 * All the other events share one key, i.e. they keep the order in which
+	 * the GAL sent them.
+	 */
+	private static int getEventKey(int eventType, Info info) {
+		if (eventType == APS_EVENT) {
+			Info.Detail detail = info.getDetail();
+			APSMessageEvent message = (detail == null) ? null : detail.getAPSMessageEvent();
+			Address source = (message == null) ? null : message.getSourceAddress();
+			if (source != null) {
+				if (source.getNetworkAddress() != null)
+					return source.getNetworkAddress().intValue() + 1;
+				if (source.getIeeeAddress() != null)
+					return source.getIeeeAddress().hashCode();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Maps the path the GAL posted the event to into one of the event types.
+	 * The path is resolved once, when the event is received, instead of being
+	 * compared with all the known paths by the dispatch task.
+	 */
+	static int parseEventPath(String eventPath) {
+		if (eventPath == null)
+			return UNKNOWN_EVENT;
+		Integer type = eventTypes.get(eventPath);
+		if (type == null && eventPath.length() > 1 && eventPath.charAt(eventPath.length() - 1) == '/')
+			type = eventTypes.get(eventPath.substring(0, eventPath.length() - 1));
+		return (type == null) ? UNKNOWN_EVENT : type.intValue();
+	}
 
 	void setGatewayEventListener(GatewayEventListener l) {
 		eventListener = l;
@@ -114,11 +184,35 @@ class RestletEventListener extends Application implements GatewayEventListener,
 	}
 	
 	void addAPSMEssageListener(Long cid, APSMessageListener l) {
-		callbacks.put(cid, l);
+		if (l == null)
+			return;
+		if (cid != null)
+			callbacks.put(cid, l);
+		synchronized (callbacks) {
+			if (defaultCallback == null)
+				defaultCallback = l;
+		}
 	}
 	
 	void removeAPSMesssageListener(long cid) {
-		callbacks.remove(cid);
+		APSMessageListener l = callbacks.remove(new Long(cid));
+		if (l == null)
+			return;
+		synchronized (callbacks) {
+			if (defaultCallback == l && !callbacks.containsValue(l)) {
+				Iterator<APSMessageListener> i = callbacks.values().iterator();
+				defaultCallback = i.hasNext() ? i.next() : null;
+			}
+		}
+	}
+
+	/**
+	 * @return The listener of the callback or, if the callback is unknown,
+	 *         the default one
+	 */
+	private APSMessageListener getAPSMessageListener(Long cid) {
+		APSMessageListener l = (cid == null) ? null : callbacks.get(cid);
+		return (l != null) ? l : defaultCallback;
 	}
 
 
@@ -172,10 +266,12 @@ class RestletEventListener extends Application implements GatewayEventListener,
 	
 	private class DispatchTask implements Runnable {
 		private Info info;
+		private int eventType;
 		private String eventPath;
 		
-		DispatchTask(Info i, String p) {
+		DispatchTask(Info i, int t, String p) {
 			info = i;
+			eventType = t;
 			eventPath = p;
 		}
 		
@@ -184,58 +280,65 @@ class RestletEventListener extends Application implements GatewayEventListener,
 				Info.Detail detail = info.getDetail();
 				Status status = info.getStatus();
 				
-				if (eventPath.equals(APS_NOTIFY_EVENT)) {
+				switch (eventType) {
+				case APS_EVENT:
 					APSMessageEvent message = detail.getAPSMessageEvent();
 					Long cid = info.getEventCallbackIdentifier();
-					APSMessageListener l = callbacks.get(cid);
-					if (l == null && !callbacks.values().isEmpty()) l = callbacks.values().iterator().next(); // take the 1st as default
+					APSMessageListener l = getAPSMessageListener(cid);
 					if (l != null) l.notifyAPSMessage(message);
 					else Trace.print("callback Id does not match a registered listener " + cid);
-					
-				} else if (eventPath.equals(STARTUP_RESPONSE)) {
+					break;
+
+				case STARTUP_EVENT:
 					eventListener.gatewayStartResult(status);
-				
-				} else if (eventPath.equals(RESET_RESPONSE)) {
+					break;
+
+				case RESET_EVENT:
 					eventListener.dongleResetResult(status);
-					
-				} else if (eventPath.equals(LEAVE_RESPONSE)) {
+					break;
+
+				case LEAVE_EVENT:
 					//eventListener.leaveResult(status);
-					
-				} else if (eventPath.equals(PERMITJOIN_RESPONSE)) {
+					break;
+
+				case PERMITJOIN_EVENT:
 					//eventListener.permitJoinResult(status);
-				
-				} else if (eventPath.equals(NODE_DISCOVERED)) {
-					WSNNode node = detail == null ? null : detail.getWSNNode();
-					eventListener.nodeDiscovered(status, node);
-					
-				} else if (eventPath.equals(NODE_REMOVED)) {
-					WSNNode node = detail == null ? null : detail.getWSNNode();
-					eventListener.nodeRemoved(status, node);
-				
-				} else if (eventPath.equals(SERVICES_DISCOVERED)) {
-					NodeServices services = detail == null ? null : detail.getNodeServices();
-					eventListener.servicesDiscovered(status, services);
-					
-				} else if (eventPath.equals(SERVICE_DESCRIPTOR)) {
-					ServiceDescriptor service = detail == null ? null : detail.getServiceDescriptor();
-					eventListener.serviceDescriptorRetrieved(status, service);
-					
-				} else if (eventPath.equals(NODE_DESCRIPTOR)) {
-					NodeDescriptor node = detail == null ? null : detail.getNodeDescriptor();
-					eventListener.nodeDescriptorRetrieved(status, node);
-					
-				} else if (eventPath.equals(NODE_BINDING_RESPONSE)) {
+					break;
+
+				case NODE_DISCOVERED_EVENT:
+					eventListener.nodeDiscovered(status, detail == null ? null : detail.getWSNNode());
+					break;
+
+				case NODE_REMOVED_EVENT:
+					eventListener.nodeRemoved(status, detail == null ? null : detail.getWSNNode());
+					break;
+
+				case SERVICES_EVENT:
+					eventListener.servicesDiscovered(status, detail == null ? null : detail.getNodeServices());
+					break;
+
+				case SERVICE_DESCRIPTOR_EVENT:
+					eventListener.serviceDescriptorRetrieved(status, detail == null ? null : detail.getServiceDescriptor());
+					break;
+
+				case NODE_DESCRIPTOR_EVENT:
+					eventListener.nodeDescriptorRetrieved(status, detail == null ? null : detail.getNodeDescriptor());
+					break;
+
+				case BINDING_EVENT:
 					eventListener.bindingResult(status);
-					
-				} else if (eventPath.equals(NODE_UNBINDING_RESPONSE)) {
-					eventListener.unbindingResult(status);	
-					
-				} else if (eventPath.equals(NODE_BINDING_LIST_RESPONSE)) {
-					BindingList bindings = detail == null ? null : detail.getBindings();
-					eventListener.nodeBindingsRetrieved(status, bindings);	
-										
-				} else {
-					Trace.println("Unknown event resource path");
+					break;
+
+				case UNBINDING_EVENT:
+					eventListener.unbindingResult(status);
+					break;
+
+				case BINDING_LIST_EVENT:
+					eventListener.nodeBindingsRetrieved(status, detail == null ? null : detail.getBindings());
+					break;
+
+				default:
+					Trace.println("Unknown event resource path " + eventPath);
 				}
 			} catch (Exception e) {
 				// TODO Auto-generated catch block
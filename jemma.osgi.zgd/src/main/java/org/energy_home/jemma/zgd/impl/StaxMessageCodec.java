@@ -0,0 +1,531 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd.impl;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.energy_home.jemma.zgd.jaxb.APSMessage;
+import org.energy_home.jemma.zgd.jaxb.APSMessageEvent;
+import org.energy_home.jemma.zgd.jaxb.APSMessageResult;
+import org.energy_home.jemma.zgd.jaxb.Address;
+import org.energy_home.jemma.zgd.jaxb.Info;
+import org.energy_home.jemma.zgd.jaxb.InterPANMessage;
+import org.energy_home.jemma.zgd.jaxb.SecurityStatus;
+import org.energy_home.jemma.zgd.jaxb.Status;
+import org.energy_home.jemma.zgd.jaxb.TxOptions;
+
+/**
+ * Hand written StAX reader and writer for the messages exchanged with the GAL
+ * at high rate: APSMessage, APSMessageEvent, InterPANMessage and Info (the
+ * latter when its detail, if any, is an APSMessageEvent, an APSMessageResult
+ * or a callback identifier). It produces and accepts the same XML documents
+ * as the JAXB binding of the org.energy_home.jemma.zgd.jaxb classes, without
+ * reflection and with far less garbage.
+ * <p>
+ * The codec never handles a document partially: canWrite() tells in advance
+ * whether an object is supported and read() returns null as soon as it finds
+ * anything it does not know, so that the caller can use JAXB instead. This
+ * includes unknown elements and elements in the wrong namespace, which JAXB
+ * rejects, so the errors are still reported by JAXB.
+ * <p>
+ * Instances are thread safe.
+ */
+class StaxMessageCodec {
+	// namespaces of the generated classes (see package-info and Info)
+	static final String GATEWAY_NS = "http://www.zigbee.org/GWGSchema";
+	static final String REST_NS = "http://www.zigbee.org/GWGRESTSchema";
+
+	private static final String REST_PREFIX = "rs";
+	private static final String ROOT_PREFIX = "ns3";
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Thrown, and caught by read(), when the document contains something the
+	 * codec does not handle
+	 */
+	@SuppressWarnings("serial")
+	private static class UnsupportedContentException extends Exception {
+	}
+
+	private static final UnsupportedContentException UNSUPPORTED = new UnsupportedContentException();
+
+	private final XMLInputFactory inputFactory;
+	private final XMLOutputFactory outputFactory;
+
+	StaxMessageCodec() {
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		outputFactory = XMLOutputFactory.newInstance();
+	}
+
+	/**
+	 * Returns true if write() supports the passed object
+	 */
+	boolean canWrite(Object value) {
+		if ((value instanceof APSMessage) || (value instanceof APSMessageEvent) || (value instanceof InterPANMessage))
+			return true;
+		return (value instanceof Info) && (((Info) value).getDetail() == null);
+	}
+
+	/**
+	 * Writes the passed object as the root element of a UTF-8 document.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the object is not supported (see canWrite())
+	 */
+	void write(QName name, Object value, OutputStream out) throws XMLStreamException {
+		if (!canWrite(value))
+			throw new IllegalArgumentException("Unsupported type " + value.getClass().getName());
+
+		XMLStreamWriter w = outputFactory.createXMLStreamWriter(out, "UTF-8");
+		w.writeStartDocument("UTF-8", "1.0");
+
+		String rootNs = name.getNamespaceURI();
+		String rootPrefix;
+		if (GATEWAY_NS.equals(rootNs))
+			rootPrefix = "";
+		else if (REST_NS.equals(rootNs))
+			rootPrefix = REST_PREFIX;
+		else
+			rootPrefix = ROOT_PREFIX;
+		w.writeStartElement(rootPrefix, name.getLocalPart(), rootNs);
+		w.writeDefaultNamespace(GATEWAY_NS);
+		w.writeNamespace(REST_PREFIX, REST_NS);
+		if (rootPrefix.equals(ROOT_PREFIX))
+			w.writeNamespace(ROOT_PREFIX, rootNs);
+
+		if (value instanceof APSMessage)
+			writeContent(w, (APSMessage) value);
+		else if (value instanceof APSMessageEvent)
+			writeContent(w, (APSMessageEvent) value);
+		else if (value instanceof InterPANMessage)
+			writeContent(w, (InterPANMessage) value);
+		else
+			writeContent(w, (Info) value);
+
+		w.writeEndElement();
+		w.writeEndDocument();
+		w.flush();
+		w.close();
+	}
+
+	/**
+	 * Reads a document whose root element is an Info, an APSMessage, an
+	 * APSMessageEvent or an InterPANMessage.
+	 *
+	 * @return The object or null if the document contains anything not
+	 *         supported by the codec
+	 * @throws XMLStreamException
+	 *             if the document is not well formed
+	 */
+	Object read(InputStream in) throws XMLStreamException {
+		XMLStreamReader r = inputFactory.createXMLStreamReader(in);
+		try {
+			r.nextTag();
+			if (!REST_NS.equals(r.getNamespaceURI()))
+				return null;
+			String name = r.getLocalName();
+			if ("Info".equals(name))
+				return readInfo(r);
+			else if ("APSMessage".equals(name))
+				return readAPSMessage(r);
+			else if ("APSMessageEvent".equals(name))
+				return readAPSMessageEvent(r);
+			else if ("InterPANMessage".equals(name))
+				return readInterPANMessage(r);
+			return null;
+		} catch (UnsupportedContentException e) {
+			return null;
+		} finally {
+			r.close();
+		}
+	}
+
+	private void writeContent(XMLStreamWriter w, Info info) throws XMLStreamException {
+		Status status = info.getStatus();
+		if (status != null) {
+			w.writeStartElement(REST_PREFIX, "Status", REST_NS);
+			writeLeaf(w, REST_NS, "Code", Short.toString(status.getCode()));
+			if (status.getMessage() != null)
+				writeLeaf(w, REST_NS, "Message", status.getMessage());
+			w.writeEndElement();
+		}
+		if (info.getRequestIdentifier() != null)
+			writeLeaf(w, REST_NS, "RequestIdentifier", printHex(info.getRequestIdentifier()));
+		if (info.getEventCallbackIdentifier() != null)
+			writeLeaf(w, REST_NS, "EventCallbackIdentifier", info.getEventCallbackIdentifier().toString());
+		if (info.getNWKStatus() != null)
+			writeLeaf(w, REST_NS, "NWKStatus", info.getNWKStatus().toString());
+	}
+
+	private void writeContent(XMLStreamWriter w, APSMessage m) throws XMLStreamException {
+		if (m.getDestinationAddressMode() != null)
+			writeLeaf(w, GATEWAY_NS, "DestinationAddressMode", m.getDestinationAddressMode().toString());
+		writeAddress(w, "DestinationAddress", m.getDestinationAddress());
+		writeLeaf(w, GATEWAY_NS, "DestinationEndpoint", Short.toString(m.getDestinationEndpoint()));
+		writeLeaf(w, GATEWAY_NS, "SourceEndpoint", Short.toString(m.getSourceEndpoint()));
+		if (m.getProfileID() != null)
+			writeLeaf(w, GATEWAY_NS, "ProfileID", m.getProfileID().toString());
+		writeLeaf(w, GATEWAY_NS, "ClusterID", Integer.toString(m.getClusterID()));
+		if (m.getData() != null)
+			writeLeaf(w, GATEWAY_NS, "Data", printHex(m.getData()));
+		TxOptions tx = m.getTxOptions();
+		if (tx != null) {
+			w.writeStartElement("", "TxOptions", GATEWAY_NS);
+			writeLeaf(w, GATEWAY_NS, "SecurityEnabled", String.valueOf(tx.isSecurityEnabled()));
+			writeLeaf(w, GATEWAY_NS, "UseNetworkKey", String.valueOf(tx.isUseNetworkKey()));
+			writeLeaf(w, GATEWAY_NS, "Acknowledged", String.valueOf(tx.isAcknowledged()));
+			writeLeaf(w, GATEWAY_NS, "PermitFragmentation", String.valueOf(tx.isPermitFragmentation()));
+			w.writeEndElement();
+		}
+		writeLeaf(w, GATEWAY_NS, "Radius", Short.toString(m.getRadius()));
+	}
+
+	private void writeContent(XMLStreamWriter w, APSMessageEvent m) throws XMLStreamException {
+		if (m.getDestinationAddressMode() != null)
+			writeLeaf(w, GATEWAY_NS, "DestinationAddressMode", m.getDestinationAddressMode().toString());
+		writeAddress(w, "DestinationAddress", m.getDestinationAddress());
+		writeLeaf(w, GATEWAY_NS, "DestinationEndpoint", Short.toString(m.getDestinationEndpoint()));
+		writeAddress(w, "SourceAddress", m.getSourceAddress());
+		if (m.getSourceAddressMode() != null)
+			writeLeaf(w, GATEWAY_NS, "SourceAddressMode", m.getSourceAddressMode().toString());
+		writeLeaf(w, GATEWAY_NS, "SourceEndpoint", Short.toString(m.getSourceEndpoint()));
+		if (m.getProfileID() != null)
+			writeLeaf(w, GATEWAY_NS, "ProfileID", m.getProfileID().toString());
+		writeLeaf(w, GATEWAY_NS, "ClusterID", Integer.toString(m.getClusterID()));
+		if (m.getData() != null)
+			writeLeaf(w, GATEWAY_NS, "Data", printHex(m.getData()));
+		writeLeaf(w, GATEWAY_NS, "APSStatus", Integer.toString(m.getAPSStatus()));
+		if (m.getSecurityStatus() != null)
+			writeLeaf(w, GATEWAY_NS, "SecurityStatus", m.getSecurityStatus().value());
+		if (m.getLinkQuality() != null)
+			writeLeaf(w, GATEWAY_NS, "LinkQuality", m.getLinkQuality().toString());
+		if (m.getRxTime() != null)
+			writeLeaf(w, GATEWAY_NS, "RxTime", m.getRxTime().toString());
+	}
+
+	private void writeContent(XMLStreamWriter w, InterPANMessage m) throws XMLStreamException {
+		writeLeaf(w, GATEWAY_NS, "SrcAddressMode", Long.toString(m.getSrcAddressMode()));
+		writeAddress(w, "SrcAddress", m.getSrcAddress());
+		writeLeaf(w, GATEWAY_NS, "DstAddressMode", Long.toString(m.getDstAddressMode()));
+		writeAddress(w, "DestinationAddress", m.getDestinationAddress());
+		writeLeaf(w, GATEWAY_NS, "DestPANID", Integer.toString(m.getDestPANID()));
+		if (m.getProfileID() != null)
+			writeLeaf(w, GATEWAY_NS, "ProfileID", m.getProfileID().toString());
+		writeLeaf(w, GATEWAY_NS, "ClusterID", Integer.toString(m.getClusterID()));
+		writeLeaf(w, GATEWAY_NS, "ASDULength", Long.toString(m.getASDULength()));
+		if (m.getASDU() != null)
+			writeLeaf(w, GATEWAY_NS, "ASDU", printHex(m.getASDU()));
+		writeLeaf(w, GATEWAY_NS, "ASDUHandle", Short.toString(m.getASDUHandle()));
+	}
+
+	private void writeAddress(XMLStreamWriter w, String name, Address a) throws XMLStreamException {
+		if (a == null)
+			return;
+		w.writeStartElement("", name, GATEWAY_NS);
+		if (a.getNetworkAddress() != null)
+			writeLeaf(w, GATEWAY_NS, "NetworkAddress", a.getNetworkAddress().toString());
+		if (a.getIeeeAddress() != null)
+			writeLeaf(w, GATEWAY_NS, "IeeeAddress", a.getIeeeAddress().toString());
+		if (a.getAliasAddress() != null)
+			writeLeaf(w, GATEWAY_NS, "AliasAddress", a.getAliasAddress());
+		w.writeEndElement();
+	}
+
+	private void writeLeaf(XMLStreamWriter w, String ns, String name, String text) throws XMLStreamException {
+		w.writeStartElement(REST_NS.equals(ns) ? REST_PREFIX : "", name, ns);
+		w.writeCharacters(text);
+		w.writeEndElement();
+	}
+
+	private Info readInfo(XMLStreamReader r) throws XMLStreamException, UnsupportedContentException {
+		Info info = new Info();
+		while (nextElement(r, REST_NS)) {
+			String name = r.getLocalName();
+			if ("Status".equals(name)) {
+				Status status = new Status();
+				while (nextElement(r, REST_NS)) {
+					name = r.getLocalName();
+					if ("Code".equals(name))
+						status.setCode(parseShort(r.getElementText()));
+					else if ("Message".equals(name))
+						status.setMessage(r.getElementText());
+					else
+						throw UNSUPPORTED;
+				}
+				info.setStatus(status);
+			} else if ("RequestIdentifier".equals(name))
+				info.setRequestIdentifier(parseHex(r.getElementText()));
+			else if ("EventCallbackIdentifier".equals(name))
+				info.setEventCallbackIdentifier(new Long(parseLong(r.getElementText())));
+			else if ("NWKStatus".equals(name))
+				info.setNWKStatus(new Integer(parseInt(r.getElementText())));
+			else if ("Detail".equals(name))
+				info.setDetail(readDetail(r));
+			else
+				throw UNSUPPORTED;
+		}
+		return info;
+	}
+
+	private Info.Detail readDetail(XMLStreamReader r) throws XMLStreamException, UnsupportedContentException {
+		Info.Detail detail = new Info.Detail();
+		while (nextElement(r, REST_NS)) {
+			String name = r.getLocalName();
+			if ("APSMessageEvent".equals(name))
+				detail.setAPSMessageEvent(readAPSMessageEvent(r));
+			else if ("APSMessageResult".equals(name)) {
+				APSMessageResult result = new APSMessageResult();
+				while (nextElement(r, GATEWAY_NS)) {
+					name = r.getLocalName();
+					if ("ConfirmStatus".equals(name))
+						result.setConfirmStatus(parseInt(r.getElementText()));
+					else if ("TxTime".equals(name))
+						result.setTxTime(parseLong(r.getElementText()));
+					else
+						throw UNSUPPORTED;
+				}
+				detail.setAPSMessageResult(result);
+			} else if ("CallbackIdentifier".equals(name))
+				detail.setCallbackIdentifier(new Long(parseLong(r.getElementText())));
+			else
+				throw UNSUPPORTED;
+		}
+		return detail;
+	}
+
+	private APSMessage readAPSMessage(XMLStreamReader r) throws XMLStreamException, UnsupportedContentException {
+		APSMessage m = new APSMessage();
+		while (nextElement(r, GATEWAY_NS)) {
+			String name = r.getLocalName();
+			if ("DestinationAddressMode".equals(name))
+				m.setDestinationAddressMode(new Long(parseLong(r.getElementText())));
+			else if ("DestinationAddress".equals(name))
+				m.setDestinationAddress(readAddress(r));
+			else if ("DestinationEndpoint".equals(name))
+				m.setDestinationEndpoint(parseShort(r.getElementText()));
+			else if ("SourceEndpoint".equals(name))
+				m.setSourceEndpoint(parseShort(r.getElementText()));
+			else if ("ProfileID".equals(name))
+				m.setProfileID(new Integer(parseInt(r.getElementText())));
+			else if ("ClusterID".equals(name))
+				m.setClusterID(parseInt(r.getElementText()));
+			else if ("Data".equals(name))
+				m.setData(parseHex(r.getElementText()));
+			else if ("TxOptions".equals(name)) {
+				TxOptions tx = new TxOptions();
+				while (nextElement(r, GATEWAY_NS)) {
+					name = r.getLocalName();
+					if ("SecurityEnabled".equals(name))
+						tx.setSecurityEnabled(parseBoolean(r.getElementText()));
+					else if ("UseNetworkKey".equals(name))
+						tx.setUseNetworkKey(parseBoolean(r.getElementText()));
+					else if ("Acknowledged".equals(name))
+						tx.setAcknowledged(parseBoolean(r.getElementText()));
+					else if ("PermitFragmentation".equals(name))
+						tx.setPermitFragmentation(parseBoolean(r.getElementText()));
+					else
+						throw UNSUPPORTED;
+				}
+				m.setTxOptions(tx);
+			} else if ("Radius".equals(name))
+				m.setRadius(parseShort(r.getElementText()));
+			else
+				throw UNSUPPORTED;
+		}
+		return m;
+	}
+
+	private APSMessageEvent readAPSMessageEvent(XMLStreamReader r) throws XMLStreamException, UnsupportedContentException {
+		APSMessageEvent m = new APSMessageEvent();
+		while (nextElement(r, GATEWAY_NS)) {
+			String name = r.getLocalName();
+			if ("DestinationAddressMode".equals(name))
+				m.setDestinationAddressMode(new Long(parseLong(r.getElementText())));
+			else if ("DestinationAddress".equals(name))
+				m.setDestinationAddress(readAddress(r));
+			else if ("DestinationEndpoint".equals(name))
+				m.setDestinationEndpoint(parseShort(r.getElementText()));
+			else if ("SourceAddress".equals(name))
+				m.setSourceAddress(readAddress(r));
+			else if ("SourceAddressMode".equals(name))
+				m.setSourceAddressMode(new Long(parseLong(r.getElementText())));
+			else if ("SourceEndpoint".equals(name))
+				m.setSourceEndpoint(parseShort(r.getElementText()));
+			else if ("ProfileID".equals(name))
+				m.setProfileID(new Integer(parseInt(r.getElementText())));
+			else if ("ClusterID".equals(name))
+				m.setClusterID(parseInt(r.getElementText()));
+			else if ("Data".equals(name))
+				m.setData(parseHex(r.getElementText()));
+			else if ("APSStatus".equals(name))
+				m.setAPSStatus(parseInt(r.getElementText()));
+			else if ("SecurityStatus".equals(name))
+				m.setSecurityStatus(parseSecurityStatus(r.getElementText()));
+			else if ("LinkQuality".equals(name))
+				m.setLinkQuality(new Short(parseShort(r.getElementText())));
+			else if ("RxTime".equals(name))
+				m.setRxTime(new Long(parseLong(r.getElementText())));
+			else
+				throw UNSUPPORTED;
+		}
+		return m;
+	}
+
+	private InterPANMessage readInterPANMessage(XMLStreamReader r) throws XMLStreamException, UnsupportedContentException {
+		InterPANMessage m = new InterPANMessage();
+		while (nextElement(r, GATEWAY_NS)) {
+			String name = r.getLocalName();
+			if ("SrcAddressMode".equals(name))
+				m.setSrcAddressMode(parseLong(r.getElementText()));
+			else if ("SrcAddress".equals(name))
+				m.setSrcAddress(readAddress(r));
+			else if ("DstAddressMode".equals(name))
+				m.setDstAddressMode(parseLong(r.getElementText()));
+			else if ("DestinationAddress".equals(name))
+				m.setDestinationAddress(readAddress(r));
+			else if ("DestPANID".equals(name))
+				m.setDestPANID(parseInt(r.getElementText()));
+			else if ("ProfileID".equals(name))
+				m.setProfileID(new Integer(parseInt(r.getElementText())));
+			else if ("ClusterID".equals(name))
+				m.setClusterID(parseInt(r.getElementText()));
+			else if ("ASDULength".equals(name))
+				m.setASDULength(parseLong(r.getElementText()));
+			else if ("ASDU".equals(name))
+				m.setASDU(parseHex(r.getElementText()));
+			else if ("ASDUHandle".equals(name))
+				m.setASDUHandle(parseShort(r.getElementText()));
+			else
+				throw UNSUPPORTED;
+		}
+		return m;
+	}
+
+	private Address readAddress(XMLStreamReader r) throws XMLStreamException, UnsupportedContentException {
+		Address a = new Address();
+		while (nextElement(r, GATEWAY_NS)) {
+			String name = r.getLocalName();
+			if ("NetworkAddress".equals(name))
+				a.setNetworkAddress(new Integer(parseInt(r.getElementText())));
+			else if ("IeeeAddress".equals(name)) {
+				try {
+					a.setIeeeAddress(new BigInteger(r.getElementText().trim()));
+				} catch (NumberFormatException e) {
+					throw UNSUPPORTED;
+				}
+			} else if ("AliasAddress".equals(name))
+				a.setAliasAddress(r.getElementText());
+			else
+				throw UNSUPPORTED;
+		}
+		return a;
+	}
+
+	/**
+	 * Moves to the next child of the current element.
+	 *
+	 * @return false if the end of the current element has been reached
+	 * @throws UnsupportedContentException
+	 *             if the child is not in the expected namespace
+	 */
+	private static boolean nextElement(XMLStreamReader r, String ns) throws XMLStreamException, UnsupportedContentException {
+		if (r.nextTag() == XMLStreamConstants.END_ELEMENT)
+			return false;
+		if (!ns.equals(r.getNamespaceURI()))
+			throw UNSUPPORTED;
+		return true;
+	}
+
+	private static short parseShort(String s) throws UnsupportedContentException {
+		try {
+			return Short.parseShort(s.trim());
+		} catch (NumberFormatException e) {
+			throw UNSUPPORTED;
+		}
+	}
+
+	private static int parseInt(String s) throws UnsupportedContentException {
+		try {
+			return Integer.parseInt(s.trim());
+		} catch (NumberFormatException e) {
+			throw UNSUPPORTED;
+		}
+	}
+
+	private static long parseLong(String s) throws UnsupportedContentException {
+		try {
+			return Long.parseLong(s.trim());
+		} catch (NumberFormatException e) {
+			throw UNSUPPORTED;
+		}
+	}
+
+	private static boolean parseBoolean(String s) throws UnsupportedContentException {
+		s = s.trim();
+		if ("true".equals(s) || "1".equals(s))
+			return true;
+		if ("false".equals(s) || "0".equals(s))
+			return false;
+		throw UNSUPPORTED;
+	}
+
+	private static SecurityStatus parseSecurityStatus(String s) throws UnsupportedContentException {
+		try {
+			return SecurityStatus.fromValue(s.trim());
+		} catch (IllegalArgumentException e) {
+			throw UNSUPPORTED;
+		}
+	}
+
+	private static byte[] parseHex(String s) throws UnsupportedContentException {
+		s = s.trim();
+		int len = s.length();
+		if ((len & 1) != 0)
+			throw UNSUPPORTED;
+		byte[] data = new byte[len / 2];
+		for (int i = 0; i < len; i += 2) {
+			int h = Character.digit(s.charAt(i), 16);
+			int l = Character.digit(s.charAt(i + 1), 16);
+			if ((h < 0) || (l < 0))
+				throw UNSUPPORTED;
+			data[i / 2] = (byte) ((h << 4) | l);
+		}
+		return data;
+	}
+
+	private static String printHex(byte[] data) {
+		char[] chars = new char[data.length * 2];
+		for (int i = 0; i < data.length; i++) {
+			chars[2 * i] = HEX[(data[i] >> 4) & 0x0F];
+			chars[2 * i + 1] = HEX[data[i] & 0x0F];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd.simulator;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.energy_home.jemma.zgd.APSMessageListener;
+import org.energy_home.jemma.zgd.GatewayConstants;
+import org.energy_home.jemma.zgd.GatewayEventListener;
+import org.energy_home.jemma.zgd.GatewayInterface;
+import org.energy_home.jemma.zgd.GatewayProperties;
+import org.energy_home.jemma.zgd.jaxb.APSMessage;
+import org.energy_home.jemma.zgd.jaxb.APSMessageEvent;
+import org.energy_home.jemma.zgd.jaxb.Address;
+import org.energy_home.jemma.zgd.jaxb.BindingList;
+import org.energy_home.jemma.zgd.jaxb.NodeDescriptor;
+import org.energy_home.jemma.zgd.jaxb.NodeServices;
+import org.energy_home.jemma.zgd.jaxb.ServiceDescriptor;
+import org.energy_home.jemma.zgd.jaxb.SimpleDescriptor;
+import org.energy_home.jemma.zgd.jaxb.Status;
+import org.energy_home.jemma.zgd.jaxb.WSNNode;
+
+/**
+ * Measures the end-to-end APS throughput and latency of a GatewayInterface.
+ * <p>
+ * The driver keeps a fixed window of ZCL Read Attributes requests (On/Off
+ * attribute of the On/Off cluster) in flight, sent round robin to the target
+ * nodes, and matches each response with its request through the network
+ * address and the ZCL sequence number. The requests without a response
+ * within the timeout are counted as lost and free their slot of the window.
+ * The attribute reports received in the meantime are counted too.
+ * <p>
+ * The main() runs the driver against a SimulatedGateway configured with the
+ * system properties (GatewayProperties.SIMULATOR_*, 100 nodes if not set).
+ * Arguments: [duration (s)] [window] [timeout (ms)].
+ */
+public class GatewaySimulatorDriver implements APSMessageListener {
+	private static final short ENDPOINT = 1;
+	private static final int ON_OFF = 0x0006;
+	private static final int READ_ATTRIBUTES_RESPONSE = 0x01;
+	private static final int REPORT_ATTRIBUTES = 0x0A;
+
+	private final GatewayInterface gateway;
+	private final Address[] targets;
+
+	// request key (see getKey()) -> System.nanoTime() of the send
+	private final Map<Integer, Long> pending = new ConcurrentHashMap<Integer, Long>();
+	private Semaphore window;
+
+	private long[] latencies = new long[1024];
+	private int latenciesCount = 0;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong unmatched = new AtomicLong();
+	private final AtomicLong reports = new AtomicLong();
+	private long elapsed;
+
+	/**
+	 * @param gateway
+	 *            The gateway, whose APS callbacks must already deliver to
+	 *            this listener the messages received on endpoint 1
+	 * @param targets
+	 *            The network addresses of the nodes the requests are sent to
+	 */
+	public GatewaySimulatorDriver(GatewayInterface gateway, Address[] targets) {
+		if (targets.length == 0)
+			throw new IllegalArgumentException("no target nodes");
+		this.gateway = gateway;
+		this.targets = targets;
+	}
+
+	/**
+	 * Sends requests for the passed time, then waits for the outstanding
+	 * responses (up to the timeout).
+	 */
+	public void run(long duration, int windowSize, long timeout) throws InterruptedException {
+		window = new Semaphore(windowSize);
+		int[] sequences = new int[targets.length];
+		int next = 0;
+
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		while (System.nanoTime() < end) {
+			if (!window.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+				expire(timeout);
+				continue;
+			}
+			int index = next;
+			next = (next + 1) % targets.length;
+			int sequence = sequences[index] = (sequences[index] + 1) & 0xFF;
+			send(targets[index], sequence);
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (!pending.isEmpty() && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		expire(0);
+		elapsed = System.nanoTime() - start;
+	}
+
+	private void send(Address target, int sequence) {
+		APSMessage message = new APSMessage();
+		message.setDestinationAddressMode(new Long(GatewayConstants.SHORT_ADDRESS_MODE));
+		message.setDestinationAddress(target);
+		message.setDestinationEndpoint(ENDPOINT);
+		message.setSourceEndpoint(ENDPOINT);
+		message.setProfileID(new Integer(0x0104));
+		message.setClusterID(ON_OFF);
+		message.setData(new byte[] { 0x00, (byte) sequence, 0x00, 0x00, 0x00 });
+		message.setRadius((short) 10);
+
+		Integer key = getKey(target.getNetworkAddress().intValue(), sequence);
+		if (pending.put(key, new Long(System.nanoTime())) != null) {
+			// the sequence number wrapped around a request still pending
+			timedOut.incrementAndGet();
+			window.release();
+		}
+		try {
+			gateway.sendAPSMessage(message);
+			sent.incrementAndGet();
+		} catch (Exception e) {
+			errors.incrementAndGet();
+			if (pending.remove(key) != null)
+				window.release();
+		}
+	}
+
+	public void notifyAPSMessage(APSMessageEvent message) {
+		byte[] data = message.getData();
+		if ((data == null) || (data.length < 3) || (message.getSourceAddress() == null)
+				|| (message.getSourceAddress().getNetworkAddress() == null))
+			return;
+
+		int commandId = data[2] & 0xFF;
+		if (commandId == REPORT_ATTRIBUTES) {
+			reports.incrementAndGet();
+			return;
+		}
+		if ((commandId != READ_ATTRIBUTES_RESPONSE) || (message.getClusterID() != ON_OFF))
+			return;
+
+		Long sendTime = pending.remove(getKey(message.getSourceAddress().getNetworkAddress().intValue(), data[1] & 0xFF));
+		if (sendTime == null) {
+			// late or duplicated response
+			unmatched.incrementAndGet();
+			return;
+		}
+		addLatency((System.nanoTime() - sendTime.longValue()) / 1000);
+		received.incrementAndGet();
+		window.release();
+	}
+
+	private void expire(long timeout) {
+		long limit = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(timeout);
+		for (Iterator<Map.Entry<Integer, Long>> i = pending.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Integer, Long> entry = i.next();
+			if ((entry.getValue().longValue() <= limit) && pending.remove(entry.getKey()) != null) {
+				timedOut.incrementAndGet();
+				window.release();
+			}
+		}
+	}
+
+	private synchronized void addLatency(long micros) {
+		if (latenciesCount == latencies.length)
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		latencies[latenciesCount++] = micros;
+	}
+
+	private static Integer getKey(int networkAddress, int sequence) {
+		return new Integer((networkAddress << 8) | sequence);
+	}
+
+	public synchronized String getReport() {
+		long[] sorted = Arrays.copyOf(latencies, latenciesCount);
+		Arrays.sort(sorted);
+		double seconds = elapsed / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("sent=%d received=%d lost=%d errors=%d unmatched=%d reports=%d%n", sent.get(),
+				received.get(), timedOut.get(), errors.get(), unmatched.get(), reports.get()));
+		sb.append(String.format("elapsed=%.1fs throughput=%.1f msg/s%n", seconds, (seconds > 0) ? received.get() / seconds : 0.0));
+		sb.append(String.format("latency (ms): p50=%.2f p90=%.2f p99=%.2f max=%.2f", percentile(sorted, 50),
+				percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 100)));
+		return sb.toString();
+	}
+
+	private static double percentile(long[] sorted, int percentile) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1000.0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		long duration = (args.length > 0) ? Long.parseLong(args[0]) * 1000 : 10000;
+		int windowSize = (args.length > 1) ? Integer.parseInt(args[1]) : 32;
+		long timeout = (args.length > 2) ? Long.parseLong(args[2]) : 2000;
+
+		Properties properties = new Properties();
+		properties.putAll(System.getProperties());
+		if (properties.getProperty(GatewayProperties.SIMULATOR_NODES) == null)
+			properties.setProperty(GatewayProperties.SIMULATOR_NODES, "100");
+
+		final SimulatedGateway gateway = new SimulatedGateway(properties);
+		final Semaphore discovered = new Semaphore(0);
+		gateway.setGatewayEventListener(new GatewayEventListener() {
+			public void nodeDiscovered(Status status, WSNNode node) {
+				discovered.release();
+			}
+
+			public void gatewayStartResult(Status status) {}
+			public void nodeRemoved(Status status, WSNNode node) {}
+			public void servicesDiscovered(Status status, NodeServices services) {}
+			public void serviceDescriptorRetrieved(Status status, ServiceDescriptor service) {}
+			public void nodeDescriptorRetrieved(Status status, NodeDescriptor node) {}
+			public void dongleResetResult(Status status) {}
+			public void bindingResult(Status status) {}
+			public void unbindingResult(Status status) {}
+			public void nodeBindingsRetrieved(Status status, BindingList bindings) {}
+		});
+
+		try {
+			gateway.resetDongle(0, (short) 0);
+			SimpleDescriptor sd = new SimpleDescriptor();
+			sd.setEndPoint(new Short(ENDPOINT));
+			sd.setApplicationProfileIdentifier(new Integer(0x0104));
+			gateway.configureEndpoint(0, sd);
+			gateway.startNodeDiscovery(0, GatewayConstants.DISCOVERY_ANNOUNCEMENTS);
+			gateway.startGatewayDevice(0);
+
+			int nodes = gateway.getNodesCount();
+			if (!discovered.tryAcquire(nodes, 60, TimeUnit.SECONDS)) {
+				System.err.println("only " + gateway.getJoinedNodesCount() + " of " + nodes + " nodes joined");
+				return;
+			}
+
+			List<WSNNode> cache = gateway.readNodeCache().getWSNNode();
+			Address[] targets = new Address[cache.size()];
+			for (int i = 0; i < targets.length; i++) {
+				targets[i] = new Address();
+				targets[i].setNetworkAddress(cache.get(i).getAddress().getNetworkAddress());
+			}
+
+			GatewaySimulatorDriver driver = new GatewaySimulatorDriver(gateway, targets);
+			gateway.createAPSCallback(ENDPOINT, driver);
+			driver.run(duration, windowSize, timeout);
+			System.out.println(driver.getReport());
+			System.out.println(gateway.getStatistics());
+		} finally {
+			gateway.close();
+		}
+	}
+}
@@ -0,0 +1,633 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd.simulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.energy_home.jemma.zgd.APSMessageConfirmListener;
+import org.energy_home.jemma.zgd.APSMessageListener;
+import org.energy_home.jemma.zgd.GatewayConstants;
+import org.energy_home.jemma.zgd.GatewayEventListener;
+import org.energy_home.jemma.zgd.GatewayException;
+import org.energy_home.jemma.zgd.GatewayInterface;
+import org.energy_home.jemma.zgd.GatewayProperties;
+import org.energy_home.jemma.zgd.jaxb.APSMessage;
+import org.energy_home.jemma.zgd.jaxb.APSMessageEvent;
+import org.energy_home.jemma.zgd.jaxb.Address;
+import org.energy_home.jemma.zgd.jaxb.Aliases;
+import org.energy_home.jemma.zgd.jaxb.Binding;
+import org.energy_home.jemma.zgd.jaxb.BindingList;
+import org.energy_home.jemma.zgd.jaxb.Callback;
+import org.energy_home.jemma.zgd.jaxb.NodeServices;
+import org.energy_home.jemma.zgd.jaxb.NodeServicesList;
+import org.energy_home.jemma.zgd.jaxb.ServiceDescriptor;
+import org.energy_home.jemma.zgd.jaxb.SimpleDescriptor;
+import org.energy_home.jemma.zgd.jaxb.StartupAttributeInfo;
+import org.energy_home.jemma.zgd.jaxb.Status;
+import org.energy_home.jemma.zgd.jaxb.Version;
+import org.energy_home.jemma.zgd.jaxb.WSNNode;
+import org.energy_home.jemma.zgd.jaxb.WSNNodeList;
+
+/**
+ * In-JVM stand-in of the GAL, used to load and measure the ZigBee stack
+ * without a gateway and a radio.
+ * <p>
+ * The network is made of the number of nodes set by
+ * GatewayProperties.SIMULATOR_NODES, each one a simulated HA smart plug (see
+ * SimulatedNode). After startGatewayDevice() the nodes join the network, one
+ * every SIMULATOR_JOIN_INTERVAL ms, and are announced with nodeDiscovered()
+ * once startNodeDiscovery() has been called. Node, service and binding
+ * requests are answered through the GatewayEventListener, APS messages
+ * addressed to the nodes are answered through the APS callbacks, and each
+ * node sends a metering report every SIMULATOR_REPORT_INTERVAL ms.
+ * <p>
+ * Every message crossing the simulated radio, in both directions, is delayed
+ * by SIMULATOR_LATENCY ms plus a random jitter, is lost with probability
+ * SIMULATOR_LOSS percent and, with probability SIMULATOR_REORDER percent, is
+ * further delayed so that it is overtaken by the following messages. All the
+ * events are delivered by a single timer thread, so a listener that blocks
+ * stalls the whole simulated network, as it would stall the event dispatcher
+ * of the real gateway.
+ */
+public class SimulatedGateway implements GatewayInterface {
+	private static final int BROADCAST = 0xFFF8;
+	private static final short ZDP_PROFILE = 0;
+
+	private final ScheduledExecutorService scheduler;
+	private final Random random = new Random();
+
+	private final long latency;
+	private final int jitter;
+	private final double loss;
+	private final double reorder;
+	private final long reportInterval;
+	private final long joinInterval;
+
+	private final SimulatedNode[] nodes;
+	// the joined nodes, by network and by IEEE address
+	private final Map<Integer, SimulatedNode> joined = new ConcurrentHashMap<Integer, SimulatedNode>();
+	private final Map<Long, SimulatedNode> joinedByIeee = new ConcurrentHashMap<Long, SimulatedNode>();
+	private final Map<Long, APSCallback> callbacks = new ConcurrentHashMap<Long, APSCallback>();
+	private final Map<Short, SimpleDescriptor> localEndpoints = new ConcurrentHashMap<Short, SimpleDescriptor>();
+	private final AtomicLong callbackCounter = new AtomicLong();
+
+	private volatile GatewayEventListener listener;
+	private volatile boolean discoveryEnabled = false;
+	private volatile boolean removalEnabled = false;
+	private volatile StartupAttributeInfo startupAttributes = null;
+
+	private ScheduledFuture<?> joinTask;
+	private ScheduledFuture<?> reportTask;
+	private int joinIndex;
+
+	private final AtomicLong apsRequests = new AtomicLong();
+	private final AtomicLong apsEvents = new AtomicLong();
+	private final AtomicLong reports = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	private final AtomicLong reordered = new AtomicLong();
+
+	private static class APSCallback {
+		// -1 selects all the endpoints
+		final int endpoint;
+		final APSMessageListener listener;
+
+		APSCallback(int endpoint, APSMessageListener listener) {
+			this.endpoint = endpoint;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Creates a simulator configured with the SIMULATOR_* properties; the
+	 * missing ones take the GatewayProperties defaults.
+	 */
+	public SimulatedGateway(Properties properties) {
+		GatewayProperties defaults = new GatewayProperties();
+		int size = Integer.parseInt(getProperty(properties, defaults, GatewayProperties.SIMULATOR_NODES));
+		latency = Long.parseLong(getProperty(properties, defaults, GatewayProperties.SIMULATOR_LATENCY));
+		jitter = Integer.parseInt(getProperty(properties, defaults, GatewayProperties.SIMULATOR_JITTER));
+		loss = Double.parseDouble(getProperty(properties, defaults, GatewayProperties.SIMULATOR_LOSS)) / 100;
+		reorder = Double.parseDouble(getProperty(properties, defaults, GatewayProperties.SIMULATOR_REORDER)) / 100;
+		reportInterval = Long.parseLong(getProperty(properties, defaults, GatewayProperties.SIMULATOR_REPORT_INTERVAL));
+		joinInterval = Long.parseLong(getProperty(properties, defaults, GatewayProperties.SIMULATOR_JOIN_INTERVAL));
+
+		nodes = new SimulatedNode[size];
+		for (int i = 0; i < size; i++)
+			// 0x0000 is the address of the coordinator
+			nodes[i] = new SimulatedNode(0x00137A0000010000L + i, i + 1);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ZGD simulator");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private static String getProperty(Properties properties, Properties defaults, String key) {
+		String value = properties.getProperty(key);
+		return (value != null) ? value : defaults.getProperty(key);
+	}
+
+	/**
+	 * Stops the simulated network. No event is delivered after this call.
+	 */
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	public int getNodesCount() {
+		return nodes.length;
+	}
+
+	public int getJoinedNodesCount() {
+		return joined.size();
+	}
+
+	public String getStatistics() {
+		return "nodes=" + joined.size() + "/" + nodes.length + " aps-requests=" + apsRequests.get() + " aps-events="
+				+ apsEvents.get() + " reports=" + reports.get() + " lost=" + lost.get() + " reordered=" + reordered.get();
+	}
+
+	public void setGatewayEventListener(GatewayEventListener listener) {
+		this.listener = listener;
+	}
+
+	public Version getVersion() throws IOException, Exception, GatewayException {
+		Version version = new Version();
+		version.setManufacturerVersion("simulator");
+		return version;
+	}
+
+	public String getInfoBaseAttribute(short attrId) throws Exception, Exception, GatewayException {
+		return "";
+	}
+
+	public long createCallback(Callback callback, APSMessageListener listener) throws IOException, Exception, GatewayException {
+		return addCallback(-1, listener);
+	}
+
+	public long createAPSCallback(short endpoint, APSMessageListener listener) throws IOException, Exception, GatewayException {
+		return addCallback(endpoint, listener);
+	}
+
+	public long createAPSCallback(APSMessageListener listener) throws IOException, Exception, GatewayException {
+		return addCallback(-1, listener);
+	}
+
+	private long addCallback(int endpoint, APSMessageListener listener) {
+		long id = callbackCounter.incrementAndGet();
+		callbacks.put(new Long(id), new APSCallback(endpoint, listener));
+		return id;
+	}
+
+	public List<Long> listCallbacks() throws IOException, Exception, GatewayException {
+		return new ArrayList<Long>(callbacks.keySet());
+	}
+
+	public void deleteCallback(long callId) throws IOException, Exception, GatewayException {
+		if (callbacks.remove(new Long(callId)) == null)
+			throw new GatewayException("unknown callback " + callId);
+	}
+
+	public Aliases listAddresses() throws IOException, Exception, GatewayException {
+		Aliases aliases = new Aliases();
+		for (Iterator<SimulatedNode> i = joined.values().iterator(); i.hasNext();)
+			aliases.getAlias().add(i.next().createAddress());
+		aliases.setNumberOfAlias(new Long(aliases.getAlias().size()));
+		return aliases;
+	}
+
+	public void configureStartupAttributeSet(StartupAttributeInfo sai) throws IOException, Exception, GatewayException {
+		startupAttributes = sai;
+	}
+
+	public StartupAttributeInfo readStartupAttributeSet(short index) throws IOException, Exception, GatewayException {
+		StartupAttributeInfo sai = startupAttributes;
+		return (sai != null) ? sai : new StartupAttributeInfo();
+	}
+
+	public void startGatewayDevice(long timeout, StartupAttributeInfo sai) throws IOException, Exception, GatewayException {
+		startupAttributes = sai;
+		startGatewayDevice(timeout);
+	}
+
+	public synchronized void startGatewayDevice(long timeout) throws IOException, Exception, GatewayException {
+		post(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if (l != null)
+					l.gatewayStartResult(createStatus(GatewayConstants.SUCCESS));
+			}
+		});
+
+		if (joinTask != null)
+			return;
+
+		joinIndex = 0;
+		joinTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				joinNext();
+			}
+		}, latency, Math.max(1, joinInterval), TimeUnit.MILLISECONDS);
+
+		if (reportInterval > 0) {
+			reportTask = scheduler.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					scheduleReports();
+				}
+			}, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public WSNNodeList readNodeCache() throws IOException, Exception, GatewayException {
+		WSNNodeList list = new WSNNodeList();
+		for (Iterator<SimulatedNode> i = joined.values().iterator(); i.hasNext();)
+			list.getWSNNode().add(i.next().createWSNNode());
+		return list;
+	}
+
+	public void startNodeDiscovery(long timeout, int discoveryMask) throws IOException, Exception, GatewayException {
+		discoveryEnabled = discoveryMask != 0;
+		if (!discoveryEnabled)
+			return;
+		// the nodes already in the network are announced as well
+		for (Iterator<SimulatedNode> i = joined.values().iterator(); i.hasNext();)
+			announce(i.next());
+	}
+
+	public void subscribeNodeRemoval(long timeout, int discoveryMask) throws IOException, Exception, GatewayException {
+		removalEnabled = discoveryMask != 0;
+	}
+
+	public NodeServices getLocalServices() throws IOException, Exception, GatewayException {
+		NodeServices services = new NodeServices();
+		Address address = new Address();
+		address.setNetworkAddress(new Integer(0));
+		services.setAddress(address);
+		for (Iterator<SimpleDescriptor> i = localEndpoints.values().iterator(); i.hasNext();) {
+			SimpleDescriptor sd = i.next();
+			NodeServices.ActiveEndpoints ep = new NodeServices.ActiveEndpoints();
+			ep.setEndPoint(sd.getEndPoint().shortValue());
+			ep.setSimpleDescriptor(sd);
+			services.getActiveEndpoints().add(ep);
+		}
+		return services;
+	}
+
+	public NodeServicesList readServicesCache() throws IOException, Exception, GatewayException {
+		NodeServicesList list = new NodeServicesList();
+		for (Iterator<SimulatedNode> i = joined.values().iterator(); i.hasNext();)
+			list.getNodeServices().add(i.next().createNodeServices());
+		return list;
+	}
+
+	public void startServiceDiscovery(long timeout, Address addrOfInterest) throws IOException, Exception, GatewayException {
+		final SimulatedNode node = getNode(addrOfInterest);
+		send(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if (l != null)
+					l.servicesDiscovered(createStatus(GatewayConstants.SUCCESS), node.createNodeServices());
+			}
+		});
+	}
+
+	public void getServiceDescriptor(long timeout, Address addrOfInterest, final short endpoint) throws IOException, Exception,
+			GatewayException {
+		final SimulatedNode node = getNode(addrOfInterest);
+		send(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if (l != null) {
+					ServiceDescriptor sd = node.createServiceDescriptor(endpoint);
+					l.serviceDescriptorRetrieved(createStatus((sd != null) ? GatewayConstants.SUCCESS
+							: GatewayConstants.GENERAL_ERROR), sd);
+				}
+			}
+		});
+	}
+
+	public void getNodeDescriptor(long timeout, Address addrOfInterest) throws IOException, Exception, GatewayException {
+		final SimulatedNode node = getNode(addrOfInterest);
+		send(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if (l != null)
+					l.nodeDescriptorRetrieved(createStatus(GatewayConstants.SUCCESS), node.createNodeDescriptor());
+			}
+		});
+	}
+
+	public short configureEndpoint(long timeout, SimpleDescriptor desc) throws IOException, Exception, GatewayException {
+		if (desc.getEndPoint() == null)
+			throw new GatewayException("missing endpoint");
+		localEndpoints.put(desc.getEndPoint(), desc);
+		return desc.getEndPoint().shortValue();
+	}
+
+	public void clearEndpoint(short endpoint) throws IOException, Exception, GatewayException {
+		localEndpoints.remove(new Short(endpoint));
+	}
+
+	public void leaveAll() throws IOException, Exception, GatewayException {
+		for (Iterator<SimulatedNode> i = joined.values().iterator(); i.hasNext();)
+			remove(i.next());
+	}
+
+	public void leave(long timeout, Address addrOfInterest) throws IOException, Exception, GatewayException {
+		remove(getNode(addrOfInterest));
+	}
+
+	public void leave(long timeout, Address addrOfInterest, int mask) throws IOException, Exception, GatewayException {
+		remove(getNode(addrOfInterest));
+	}
+
+	public void addBinding(long timeout, Binding binding) throws IOException, Exception, GatewayException {
+		send(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if (l != null)
+					l.bindingResult(createStatus(GatewayConstants.SUCCESS));
+			}
+		});
+	}
+
+	public void removeBinding(long timeout, Binding binding) throws IOException, Exception, GatewayException {
+		send(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if (l != null)
+					l.unbindingResult(createStatus(GatewayConstants.SUCCESS));
+			}
+		});
+	}
+
+	public void getNodeBindings(long timeout, Address aoi) throws IOException, Exception, GatewayException {
+		getNode(aoi);
+		send(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if (l != null)
+					l.nodeBindingsRetrieved(createStatus(GatewayConstants.SUCCESS), new BindingList());
+			}
+		});
+	}
+
+	public void getNodeBindings(long timeout, Address aoi, short index) throws IOException, Exception, GatewayException {
+		getNodeBindings(timeout, aoi);
+	}
+
+	public void permitJoinAll(long timeout, short duration) throws IOException, Exception, GatewayException {
+		// all the simulated nodes join as soon as the network is started
+	}
+
+	public void permitJoin(long timeout, Address addrOfInterest, short duration) throws IOException, Exception, GatewayException {
+	}
+
+	public void sendAPSMessage(APSMessage message) throws IOException, Exception, GatewayException {
+		sendAPSMessage(0, message);
+	}
+
+	public void sendAPSMessage(long timeout, APSMessage message) throws IOException, Exception, GatewayException {
+		Address destination = message.getDestinationAddress();
+		if (destination == null)
+			throw new GatewayException("missing destination address");
+		apsRequests.incrementAndGet();
+
+		// the ZDP requests are accepted but not answered
+		if ((message.getProfileID() != null) && (message.getProfileID().intValue() == ZDP_PROFILE))
+			return;
+
+		Integer nwk = destination.getNetworkAddress();
+		if ((destination.getIeeeAddress() == null) && (nwk != null) && (nwk.intValue() >= BROADCAST)) {
+			for (Iterator<SimulatedNode> i = joined.values().iterator(); i.hasNext();)
+				transmit(i.next(), message);
+		} else {
+			transmit(getNode(destination), message);
+		}
+	}
+
+	/**
+	 * The simulated radio confirms the messages as soon as they are handed to
+	 * it, so the listener is notified before this method returns
+	 */
+	public void sendAPSMessage(APSMessage message, APSMessageConfirmListener listener) throws IOException, Exception,
+			GatewayException {
+		try {
+			sendAPSMessage(0, message);
+		} catch (GatewayException e) {
+			listener.apsMessageNotConfirmed(e);
+			return;
+		}
+		listener.apsMessageConfirmed();
+	}
+
+	public synchronized void resetDongle(long timeout, short mode) throws IOException, Exception, GatewayException {
+		if (joinTask != null) {
+			joinTask.cancel(false);
+			joinTask = null;
+		}
+		if (reportTask != null) {
+			reportTask.cancel(false);
+			reportTask = null;
+		}
+		joined.clear();
+		joinedByIeee.clear();
+		discoveryEnabled = false;
+		removalEnabled = false;
+
+		post(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if (l != null)
+					l.dongleResetResult(createStatus(GatewayConstants.SUCCESS));
+			}
+		});
+	}
+
+	private synchronized void joinNext() {
+		int count = (joinInterval > 0) ? 1 : nodes.length;
+		for (; (count > 0) && (joinIndex < nodes.length); count--) {
+			SimulatedNode node = nodes[joinIndex++];
+			joined.put(new Integer(node.getNetworkAddress()), node);
+			joinedByIeee.put(new Long(node.getIeeeAddress()), node);
+			if (discoveryEnabled)
+				announce(node);
+		}
+		if ((joinIndex >= nodes.length) && (joinTask != null))
+			joinTask.cancel(false);
+	}
+
+	private void announce(final SimulatedNode node) {
+		post(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if ((l != null) && joined.containsKey(new Integer(node.getNetworkAddress())))
+					l.nodeDiscovered(createStatus(GatewayConstants.SUCCESS), node.createWSNNode());
+			}
+		});
+	}
+
+	private void remove(final SimulatedNode node) {
+		if (joined.remove(new Integer(node.getNetworkAddress())) == null)
+			return;
+		joinedByIeee.remove(new Long(node.getIeeeAddress()));
+		if (!removalEnabled)
+			return;
+		send(new Runnable() {
+			public void run() {
+				GatewayEventListener l = listener;
+				if (l != null)
+					l.nodeRemoved(createStatus(GatewayConstants.SUCCESS), node.createWSNNode());
+			}
+		});
+	}
+
+	private void scheduleReports() {
+		for (Iterator<SimulatedNode> i = joined.values().iterator(); i.hasNext();) {
+			final SimulatedNode node = i.next();
+			// spreads the reports over the whole interval
+			schedule(new Runnable() {
+				public void run() {
+					if (!joined.containsKey(new Integer(node.getNetworkAddress())))
+						return;
+					reports.incrementAndGet();
+					receive(node, SimulatedNode.ENDPOINT, (short) -1, SimulatedNode.HA_PROFILE,
+							SimulatedNode.SIMPLE_METERING, node.createReport(SimulatedNode.SIMPLE_METERING));
+				}
+			}, (long) (random.nextDouble() * reportInterval));
+		}
+	}
+
+	/**
+	 * Sends the message to the node through the simulated radio and sends back
+	 * the response, if any
+	 */
+	private void transmit(final SimulatedNode node, APSMessage message) {
+		final short sourceEndpoint = message.getSourceEndpoint();
+		final short destinationEndpoint = message.getDestinationEndpoint();
+		final int profileId = (message.getProfileID() != null) ? message.getProfileID().intValue() : SimulatedNode.HA_PROFILE;
+		final int clusterId = message.getClusterID();
+		final byte[] data = message.getData();
+		send(new Runnable() {
+			public void run() {
+				byte[] response = node.handleZclFrame(destinationEndpoint, clusterId, data);
+				if (response != null)
+					receive(node, destinationEndpoint, sourceEndpoint, profileId, clusterId, response);
+			}
+		});
+	}
+
+	/**
+	 * Delivers a message sent by a node through the simulated radio.
+	 * 
+	 * @param destinationEndpoint
+	 *            -1 delivers the message to all the APS callbacks
+	 */
+	private void receive(final SimulatedNode node, final short sourceEndpoint, final short destinationEndpoint,
+			final int profileId, final int clusterId, final byte[] data) {
+		send(new Runnable() {
+			public void run() {
+				APSMessageEvent event = new APSMessageEvent();
+				event.setSourceAddressMode(new Long(GatewayConstants.SHORT_ADDRESS_MODE));
+				event.setSourceAddress(node.createAddress());
+				event.setSourceEndpoint(sourceEndpoint);
+				event.setDestinationEndpoint((destinationEndpoint >= 0) ? destinationEndpoint : (short) 1);
+				event.setProfileID(new Integer(profileId));
+				event.setClusterID(clusterId);
+				event.setData(data);
+				event.setAPSStatus(GatewayConstants.SUCCESS);
+				event.setLinkQuality(new Short((short) 255));
+				event.setRxTime(new Long(System.currentTimeMillis()));
+
+				for (Iterator<APSCallback> i = callbacks.values().iterator(); i.hasNext();) {
+					APSCallback callback = i.next();
+					if ((callback.endpoint < 0) || (destinationEndpoint < 0) || (callback.endpoint == destinationEndpoint)) {
+						apsEvents.incrementAndGet();
+						callback.listener.notifyAPSMessage(event);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the task after the delay of the simulated radio, unless the message
+	 * is lost
+	 */
+	private void send(Runnable task) {
+		if ((loss > 0) && (random.nextDouble() < loss)) {
+			lost.incrementAndGet();
+			return;
+		}
+		long delay = latency + ((jitter > 0) ? random.nextInt(jitter + 1) : 0);
+		if ((reorder > 0) && (random.nextDouble() < reorder)) {
+			reordered.incrementAndGet();
+			delay += latency + jitter + 1;
+		}
+		schedule(task, delay);
+	}
+
+	/**
+	 * Runs a task that does not cross the simulated radio
+	 */
+	private void post(Runnable task) {
+		schedule(task, 0);
+	}
+
+	private void schedule(Runnable task, long delay) {
+		try {
+			scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// closed
+		}
+	}
+
+	private SimulatedNode getNode(Address address) throws GatewayException {
+		SimulatedNode node = null;
+		if (address != null) {
+			if (address.getIeeeAddress() != null)
+				node = joinedByIeee.get(new Long(address.getIeeeAddress().longValue()));
+			else if (address.getNetworkAddress() != null)
+				node = joined.get(address.getNetworkAddress());
+		}
+		if (node != null)
+			return node;
+		throw new GatewayException("unknown node");
+	}
+
+	private static Status createStatus(int code) {
+		Status status = new Status();
+		status.setCode((short) code);
+		return status;
+	}
+}
@@ -0,0 +1,350 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+
+import org.energy_home.jemma.zgd.jaxb.Address;
+import org.energy_home.jemma.zgd.jaxb.LogicalType;
+import org.energy_home.jemma.zgd.jaxb.MACCapability;
+import org.energy_home.jemma.zgd.jaxb.NodeDescriptor;
+import org.energy_home.jemma.zgd.jaxb.NodeServices;
+import org.energy_home.jemma.zgd.jaxb.ServiceDescriptor;
+import org.energy_home.jemma.zgd.jaxb.SimpleDescriptor;
+import org.energy_home.jemma.zgd.jaxb.WSNNode;
+
+/**
+ * A simulated HA smart plug: a single endpoint with the Basic, Identify,
+ * On/Off and Simple Metering server clusters. It answers the ZCL Read
+ * Attributes, Write Attributes and Configure Reporting commands and the On/Off
+ * cluster commands, and produces Report Attributes frames.
+ */
+class SimulatedNode {
+	static final short ENDPOINT = 1;
+	static final int HA_PROFILE = 0x0104;
+	static final int DEVICE_ID = 0x0051; // smart plug
+	static final int MANUFACTURER_CODE = 0x1234;
+
+	static final int BASIC = 0x0000;
+	static final int IDENTIFY = 0x0003;
+	static final int ON_OFF = 0x0006;
+	static final int SIMPLE_METERING = 0x0702;
+
+	private static final int[] INPUT_CLUSTERS = { BASIC, IDENTIFY, ON_OFF, SIMPLE_METERING };
+
+	// ZCL frame control bits
+	private static final int FRAME_TYPE_CLUSTER = 0x01;
+	private static final int MANUFACTURER_SPECIFIC = 0x04;
+	private static final int SERVER_TO_CLIENT = 0x08;
+	private static final int DISABLE_DEFAULT_RESPONSE = 0x10;
+
+	// ZCL general commands
+	private static final int READ_ATTRIBUTES = 0x00;
+	private static final int READ_ATTRIBUTES_RESPONSE = 0x01;
+	private static final int WRITE_ATTRIBUTES = 0x02;
+	private static final int WRITE_ATTRIBUTES_RESPONSE = 0x04;
+	private static final int CONFIGURE_REPORTING = 0x06;
+	private static final int CONFIGURE_REPORTING_RESPONSE = 0x07;
+	private static final int REPORT_ATTRIBUTES = 0x0A;
+	private static final int DEFAULT_RESPONSE = 0x0B;
+
+	// ZCL status codes
+	private static final int SUCCESS = 0x00;
+	private static final int UNSUP_CLUSTER_COMMAND = 0x81;
+	private static final int UNSUP_GENERAL_COMMAND = 0x82;
+	private static final int UNSUPPORTED_ATTRIBUTE = 0x86;
+	private static final int UNSUPPORTED_CLUSTER = 0xC3;
+
+	// ZCL data types
+	private static final int BOOLEAN = 0x10;
+	private static final int UINT8 = 0x20;
+	private static final int UINT16 = 0x21;
+	private static final int UINT48 = 0x25;
+	private static final int INT24 = 0x2A;
+	private static final int ENUM8 = 0x30;
+	private static final int CHAR_STRING = 0x42;
+
+	private final long ieeeAddress;
+	private final int networkAddress;
+	private final Address address;
+
+	private int sequenceNumber = 0;
+	private boolean on = false;
+	private int identifyTime = 0;
+	private long summation = 0;
+	private int demand = 0;
+
+	SimulatedNode(long ieeeAddress, int networkAddress) {
+		this.ieeeAddress = ieeeAddress;
+		this.networkAddress = networkAddress;
+		this.address = createAddress();
+	}
+
+	long getIeeeAddress() {
+		return ieeeAddress;
+	}
+
+	int getNetworkAddress() {
+		return networkAddress;
+	}
+
+	/**
+	 * Returns a new copy of the address of the node, since the jaxb objects
+	 * handed to the listeners are mutable
+	 */
+	Address createAddress() {
+		Address a = new Address();
+		a.setNetworkAddress(new Integer(networkAddress));
+		a.setIeeeAddress(BigInteger.valueOf(ieeeAddress));
+		return a;
+	}
+
+	WSNNode createWSNNode() {
+		WSNNode node = new WSNNode();
+		node.setAddress(createAddress());
+		node.setCapabilityInformation(createCapability());
+		return node;
+	}
+
+	NodeDescriptor createNodeDescriptor() {
+		NodeDescriptor nd = new NodeDescriptor();
+		nd.setLogicalType(LogicalType.ROUTER);
+		nd.setMACCapabilityFlag(createCapability());
+		nd.setManufacturerCode(new Integer(MANUFACTURER_CODE));
+		nd.setMaximumBufferSize(new Short((short) 80));
+		nd.setMaximumIncomingTransferSize(new Integer(80));
+		nd.setMaximumOutgoingTransferSize(new Integer(80));
+		return nd;
+	}
+
+	NodeServices createNodeServices() {
+		NodeServices services = new NodeServices();
+		services.setAddress(createAddress());
+		NodeServices.ActiveEndpoints ep = new NodeServices.ActiveEndpoints();
+		ep.setEndPoint(ENDPOINT);
+		ep.setSimpleDescriptor(createSimpleDescriptor());
+		services.getActiveEndpoints().add(ep);
+		return services;
+	}
+
+	/**
+	 * @return null if the node has not the passed endpoint
+	 */
+	ServiceDescriptor createServiceDescriptor(short endpoint) {
+		if (endpoint != ENDPOINT)
+			return null;
+		ServiceDescriptor sd = new ServiceDescriptor();
+		sd.setAddress(createAddress());
+		sd.setEndPoint(ENDPOINT);
+		sd.setSimpleDescriptor(createSimpleDescriptor());
+		return sd;
+	}
+
+	/**
+	 * Handles a ZCL frame addressed to the node.
+	 *
+	 * @return The ZCL frame to send back, or null if the request has no
+	 *         response
+	 */
+	synchronized byte[] handleZclFrame(short endpoint, int clusterId, byte[] frame) {
+		if ((frame == null) || (frame.length < 3))
+			return null;
+
+		int frameControl = frame[0] & 0xFF;
+		int offset = ((frameControl & MANUFACTURER_SPECIFIC) != 0) ? 3 : 1;
+		if (frame.length < offset + 2)
+			return null;
+		int sequence = frame[offset] & 0xFF;
+		int commandId = frame[offset + 1] & 0xFF;
+		int payload = offset + 2;
+		boolean clusterCommand = (frameControl & FRAME_TYPE_CLUSTER) != 0;
+		boolean defaultResponse = (frameControl & DISABLE_DEFAULT_RESPONSE) == 0;
+
+		if ((frameControl & SERVER_TO_CLIENT) != 0)
+			// a response or a command of a client cluster: nothing to answer
+			return null;
+
+		if ((endpoint != ENDPOINT) || !isInputCluster(clusterId))
+			return defaultResponse ? createDefaultResponse(sequence, commandId, UNSUPPORTED_CLUSTER) : null;
+
+		if (clusterCommand) {
+			int status = UNSUP_CLUSTER_COMMAND;
+			if (clusterId == ON_OFF && commandId <= 0x02) {
+				on = (commandId == 0x02) ? !on : (commandId == 0x01);
+				status = SUCCESS;
+			}
+			return defaultResponse ? createDefaultResponse(sequence, commandId, status) : null;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		switch (commandId) {
+		case READ_ATTRIBUTES:
+			writeHeader(out, sequence, READ_ATTRIBUTES_RESPONSE);
+			for (int i = payload; i + 1 < frame.length; i += 2) {
+				int attributeId = (frame[i] & 0xFF) | ((frame[i + 1] & 0xFF) << 8);
+				writeUint16(out, attributeId);
+				if (!writeAttribute(out, clusterId, attributeId, true))
+					out.write(UNSUPPORTED_ATTRIBUTE);
+			}
+			return out.toByteArray();
+
+		case WRITE_ATTRIBUTES:
+			writeHeader(out, sequence, WRITE_ATTRIBUTES_RESPONSE);
+			out.write(SUCCESS);
+			return out.toByteArray();
+
+		case CONFIGURE_REPORTING:
+			writeHeader(out, sequence, CONFIGURE_REPORTING_RESPONSE);
+			out.write(SUCCESS);
+			return out.toByteArray();
+
+		default:
+			return defaultResponse ? createDefaultResponse(sequence, commandId, UNSUP_GENERAL_COMMAND) : null;
+		}
+	}
+
+	/**
+	 * Updates the metering values and returns a Report Attributes frame for
+	 * the passed cluster.
+	 */
+	synchronized byte[] createReport(int clusterId) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+		writeHeader(out, nextSequenceNumber(), REPORT_ATTRIBUTES);
+		if (clusterId == SIMPLE_METERING) {
+			demand = on ? 100 + (int) (ieeeAddress & 0x3F) : 0;
+			summation += demand;
+			writeUint16(out, 0x0000);
+			writeAttribute(out, clusterId, 0x0000, false);
+			writeUint16(out, 0x0400);
+			writeAttribute(out, clusterId, 0x0400, false);
+		} else {
+			writeUint16(out, 0x0000);
+			writeAttribute(out, ON_OFF, 0x0000, false);
+		}
+		return out.toByteArray();
+	}
+
+	private int nextSequenceNumber() {
+		sequenceNumber = (sequenceNumber + 1) & 0xFF;
+		return sequenceNumber;
+	}
+
+	private boolean isInputCluster(int clusterId) {
+		for (int i = 0; i < INPUT_CLUSTERS.length; i++) {
+			if (INPUT_CLUSTERS[i] == clusterId)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the type and the value of an attribute, preceded by a success
+	 * status if requested.
+	 *
+	 * @return false if the attribute is not supported
+	 */
+	private boolean writeAttribute(ByteArrayOutputStream out, int clusterId, int attributeId, boolean status) {
+		int key = (clusterId << 16) | attributeId;
+		switch (key) {
+		case (BASIC << 16) | 0x0000: // ZCL version
+			writeValue(out, status, UINT8, 1, 1);
+			return true;
+		case (BASIC << 16) | 0x0004: // manufacturer name
+			writeString(out, status, "JEMMA");
+			return true;
+		case (BASIC << 16) | 0x0005: // model identifier
+			writeString(out, status, "SIM-PLUG");
+			return true;
+		case (BASIC << 16) | 0x0007: // power source: mains
+			writeValue(out, status, ENUM8, 1, 1);
+			return true;
+		case (IDENTIFY << 16) | 0x0000:
+			writeValue(out, status, UINT16, identifyTime, 2);
+			return true;
+		case (ON_OFF << 16) | 0x0000:
+			writeValue(out, status, BOOLEAN, on ? 1 : 0, 1);
+			return true;
+		case (SIMPLE_METERING << 16) | 0x0000: // current summation delivered
+			writeValue(out, status, UINT48, summation, 6);
+			return true;
+		case (SIMPLE_METERING << 16) | 0x0300: // unit of measure: kW
+			writeValue(out, status, ENUM8, 0, 1);
+			return true;
+		case (SIMPLE_METERING << 16) | 0x0400: // instantaneous demand
+			writeValue(out, status, INT24, demand, 3);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void writeValue(ByteArrayOutputStream out, boolean status, int type, long value, int size) {
+		if (status)
+			out.write(SUCCESS);
+		out.write(type);
+		for (int i = 0; i < size; i++)
+			out.write((int) (value >> (8 * i)) & 0xFF);
+	}
+
+	private void writeString(ByteArrayOutputStream out, boolean status, String value) {
+		if (status)
+			out.write(SUCCESS);
+		out.write(CHAR_STRING);
+		out.write(value.length());
+		for (int i = 0; i < value.length(); i++)
+			out.write(value.charAt(i));
+	}
+
+	private byte[] createDefaultResponse(int sequence, int commandId, int status) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(5);
+		writeHeader(out, sequence, DEFAULT_RESPONSE);
+		out.write(commandId);
+		out.write(status);
+		return out.toByteArray();
+	}
+
+	private static void writeHeader(ByteArrayOutputStream out, int sequence, int commandId) {
+		out.write(SERVER_TO_CLIENT | DISABLE_DEFAULT_RESPONSE);
+		out.write(sequence);
+		out.write(commandId);
+	}
+
+	private static void writeUint16(ByteArrayOutputStream out, int value) {
+		out.write(value & 0xFF);
+		out.write((value >> 8) & 0xFF);
+	}
+
+	private MACCapability createCapability() {
+		MACCapability c = new MACCapability();
+		c.setDeviceIsFFD(true);
+		c.setMainsPowered(true);
+		c.setReceiverOnWhenIdle(true);
+		c.setAllocateAddress(true);
+		return c;
+	}
+
+	private SimpleDescriptor createSimpleDescriptor() {
+		SimpleDescriptor sd = new SimpleDescriptor();
+		sd.setEndPoint(new Short(ENDPOINT));
+		sd.setApplicationProfileIdentifier(new Integer(HA_PROFILE));
+		sd.setApplicationDeviceIdentifier(new Integer(DEVICE_ID));
+		sd.setApplicationDeviceVersion(new Short((short) 0));
+		for (int i = 0; i < INPUT_CLUSTERS.length; i++)
+			sd.getApplicationInputCluster().add(new Integer(INPUT_CLUSTERS[i]));
+		return sd;
+	}
+}
@@ -0,0 +1,320 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.energy_home.jemma.zgd.GatewayException;
+import org.energy_home.jemma.zgd.GatewayInterface;
+import org.energy_home.jemma.zgd.GatewayProperties;
+import org.energy_home.jemma.zgd.jaxb.Address;
+import org.energy_home.jemma.zgd.simulator.SimulatedGateway;
+import org.junit.Test;
+
+/**
+ * Short runs of the GatewayLoadClient that check its JSON output and its
+ * error accounting.
+ */
+public class GatewayLoadClientTest {
+
+	/**
+	 * Minimal JSON parser: objects become LinkedHashMaps, arrays ArrayLists
+	 * and numbers Doubles
+	 */
+	private static class JsonParser {
+		private final String s;
+		private int pos = 0;
+
+		JsonParser(String s) {
+			this.s = s;
+		}
+
+		Object parseDocument() {
+			Object value = parseValue();
+			skipWhitespace();
+			if (pos != s.length())
+				throw error("trailing content");
+			return value;
+		}
+
+		private Object parseValue() {
+			skipWhitespace();
+			if (pos >= s.length())
+				throw error("unexpected end");
+			char c = s.charAt(pos);
+			if (c == '{')
+				return parseObject();
+			if (c == '[')
+				return parseArray();
+			if (c == '"')
+				return parseString();
+			return parseNumber();
+		}
+
+		private Map<String, Object> parseObject() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			pos++;
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return map;
+			}
+			while (true) {
+				skipWhitespace();
+				String key = parseString();
+				skipWhitespace();
+				expect(':');
+				if (map.put(key, parseValue()) != null)
+					throw error("duplicated key " + key);
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+					continue;
+				}
+				expect('}');
+				return map;
+			}
+		}
+
+		private List<Object> parseArray() {
+			List<Object> list = new ArrayList<Object>();
+			pos++;
+			skipWhitespace();
+			if (peek() == ']') {
+				pos++;
+				return list;
+			}
+			while (true) {
+				list.add(parseValue());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+					continue;
+				}
+				expect(']');
+				return list;
+			}
+		}
+
+		private String parseString() {
+			expect('"');
+			int end = s.indexOf('"', pos);
+			if (end < 0)
+				throw error("unterminated string");
+			String value = s.substring(pos, end);
+			if (value.indexOf('\\') >= 0)
+				throw error("escapes not supported");
+			pos = end + 1;
+			return value;
+		}
+
+		private Double parseNumber() {
+			int start = pos;
+			while ((pos < s.length()) && ("+-0123456789.eE".indexOf(s.charAt(pos)) >= 0))
+				pos++;
+			try {
+				return Double.valueOf(s.substring(start, pos));
+			} catch (NumberFormatException e) {
+				throw error("invalid number");
+			}
+		}
+
+		private char peek() {
+			if (pos >= s.length())
+				throw error("unexpected end");
+			return s.charAt(pos);
+		}
+
+		private void expect(char c) {
+			if (peek() != c)
+				throw error("expected " + c);
+			pos++;
+		}
+
+		private void skipWhitespace() {
+			while ((pos < s.length()) && Character.isWhitespace(s.charAt(pos)))
+				pos++;
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at " + pos);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> object(Object o, String key) {
+		Map<String, Object> value = (Map<String, Object>) ((Map<String, Object>) o).get(key);
+		assertNotNull(key + " reported", value);
+		return value;
+	}
+
+	private static long number(Map<String, Object> o, String key) {
+		return ((Double) o.get(key)).longValue();
+	}
+
+	/**
+	 * Parses the output of the client
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getResults(GatewayLoadClient client) throws IOException {
+		StringWriter writer = new StringWriter();
+		client.writeResults(writer);
+		Object document = new JsonParser(writer.toString()).parseDocument();
+		assertTrue("JSON output is not an object", document instanceof Map);
+		Map<String, Object> results = (Map<String, Object>) document;
+		assertTrue(results.containsKey("rate"));
+		assertTrue(results.containsKey("threads"));
+		assertTrue(results.containsKey("duration_s"));
+		assertTrue(results.containsKey("aps_received"));
+		return results;
+	}
+
+	/**
+	 * Checks the consistency of the entry of an operation
+	 */
+	@SuppressWarnings("unchecked")
+	private static void assertConsistent(String name, Map<String, Object> op) {
+		long ok = number(op, "ok");
+		long errors = number(op, "errors");
+		double expectedRate = (ok + errors > 0) ? (double) errors / (ok + errors) : 0.0;
+		assertEquals(name + " error_rate", expectedRate, ((Double) op.get("error_rate")).doubleValue(), 1e-5);
+
+		long typed = 0;
+		Map<String, Object> types = (Map<String, Object>) op.get("error_types");
+		for (Iterator<Object> i = types.values().iterator(); i.hasNext();)
+			typed += ((Double) i.next()).longValue();
+		assertEquals(name + " error_types", errors, typed);
+
+		long inHistogram = 0;
+		List<Object> histogram = (List<Object>) op.get("histogram");
+		for (Iterator<Object> i = histogram.iterator(); i.hasNext();) {
+			List<Object> bucket = (List<Object>) i.next();
+			inHistogram += ((Double) bucket.get(2)).longValue();
+		}
+		assertEquals(name + " histogram", ok, inHistogram);
+		if (ok > 0) {
+			Map<String, Object> latency = (Map<String, Object>) op.get("latency_us");
+			assertTrue(name + " min <= p50", number(latency, "min") <= number(latency, "p50"));
+			assertTrue(name + " p50 <= p99", number(latency, "p50") <= number(latency, "p99"));
+			assertTrue(name + " p99 <= max", number(latency, "p99") <= number(latency, "max"));
+		}
+	}
+
+	/**
+	 * All the operations run against the SimulatedGateway complete without
+	 * errors
+	 */
+	@Test(timeout = 30000)
+	public void simulatedGateway() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(GatewayProperties.SIMULATOR_NODES, "8");
+		properties.setProperty(GatewayProperties.SIMULATOR_LATENCY, "2");
+		properties.setProperty(GatewayProperties.SIMULATOR_JITTER, "1");
+		properties.setProperty(GatewayProperties.SIMULATOR_JOIN_INTERVAL, "1");
+		SimulatedGateway simulator = new SimulatedGateway(properties);
+		try {
+			short endpoint = 1;
+			GatewayLoadClient.startSimulator(simulator, endpoint);
+			GatewayLoadClient client = new GatewayLoadClient(simulator, GatewayLoadClient.getTargets(simulator), endpoint,
+					"send:4,read:1,version:1,callback:1");
+			long callbackId = simulator.createAPSCallback(endpoint, client.getAPSMessageListener());
+			try {
+				client.run(200, 2, 200, 1000);
+			} finally {
+				simulator.deleteCallback(callbackId);
+			}
+
+			Map<String, Object> results = getResults(client);
+			Map<String, Object> operations = object(results, "operations");
+			String[] names = new String[] { GatewayLoadClient.OP_SEND, GatewayLoadClient.OP_READ,
+					GatewayLoadClient.OP_VERSION, GatewayLoadClient.OP_CALLBACK };
+			assertEquals(names.length, operations.size());
+			for (int i = 0; i < names.length; i++) {
+				Map<String, Object> op = object(operations, names[i]);
+				assertTrue(names[i] + " completed", number(op, "ok") > 0);
+				assertEquals(names[i] + " errors", 0, number(op, "errors"));
+				assertConsistent(names[i], op);
+			}
+			assertTrue("responses received", number(results, "aps_received") > 0);
+		} finally {
+			simulator.close();
+		}
+	}
+
+	/**
+	 * A loopback stub fails the reads with an IOException and every other
+	 * version request with a GatewayException: ok + errors must match the
+	 * calls of each operation, and the errors are broken down by exception
+	 * class
+	 */
+	@Test(timeout = 30000)
+	public void failingGateway() throws Exception {
+		final Map<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+		calls.put("readNodeCache", new AtomicLong());
+		calls.put("getVersion", new AtomicLong());
+		GatewayInterface stub = (GatewayInterface) Proxy.newProxyInstance(GatewayInterface.class.getClassLoader(),
+				new Class[] { GatewayInterface.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						AtomicLong counter = calls.get(method.getName());
+						if (counter == null)
+							throw new UnsupportedOperationException(method.getName());
+						long n = counter.incrementAndGet();
+						if (method.getName().equals("readNodeCache"))
+							throw new IOException("connection refused");
+						if ((n % 2) == 0)
+							throw new GatewayException("busy");
+						return null;
+					}
+				});
+
+		GatewayLoadClient client = new GatewayLoadClient(stub, new Address[0], (short) 1, "read:1,version:1");
+		// without warmup every call is recorded
+		client.run(0, 2, 0, 300);
+
+		Map<String, Object> operations = object(getResults(client), "operations");
+
+		Map<String, Object> read = object(operations, GatewayLoadClient.OP_READ);
+		long readCalls = calls.get("readNodeCache").get();
+		assertTrue(readCalls > 0);
+		assertEquals(0, number(read, "ok"));
+		assertEquals(readCalls, number(read, "errors"));
+		assertEquals(readCalls, number(object(read, "error_types"), IOException.class.getName()));
+		assertConsistent(GatewayLoadClient.OP_READ, read);
+
+		Map<String, Object> version = object(operations, GatewayLoadClient.OP_VERSION);
+		long versionCalls = calls.get("getVersion").get();
+		assertEquals(versionCalls, number(version, "ok") + number(version, "errors"));
+		assertEquals(versionCalls / 2, number(version, "errors"));
+		assertEquals(versionCalls / 2, number(object(version, "error_types"), GatewayException.class.getName()));
+		assertConsistent(GatewayLoadClient.OP_VERSION, version);
+	}
+}
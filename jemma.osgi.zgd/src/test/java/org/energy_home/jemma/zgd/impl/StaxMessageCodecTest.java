@@ -0,0 +1,326 @@
+/**
+ * This file is part of JEMMA - http://jemma.energy-home.org
+ * (C) Copyright 2010 Telecom Italia (http://www.telecomitalia.it)
+ *
+ * JEMMA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License (LGPL) version 3
+ * or later as published by the Free Software Foundation, which accompanies
+ * this distribution and is available at http://www.gnu.org/licenses/lgpl.html
+ *
+ * JEMMA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License (LGPL) for more details.
+ *
+ */
+package org.energy_home.jemma.zgd.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import org.energy_home.jemma.zgd.jaxb.APSMessage;
+import org.energy_home.jemma.zgd.jaxb.APSMessageEvent;
+import org.energy_home.jemma.zgd.jaxb.APSMessageResult;
+import org.energy_home.jemma.zgd.jaxb.Address;
+import org.energy_home.jemma.zgd.jaxb.Info;
+import org.energy_home.jemma.zgd.jaxb.InterPANMessage;
+import org.energy_home.jemma.zgd.jaxb.ObjectFactory;
+import org.energy_home.jemma.zgd.jaxb.SecurityStatus;
+import org.energy_home.jemma.zgd.jaxb.Status;
+import org.energy_home.jemma.zgd.jaxb.TxOptions;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that the StaxMessageCodec and the JAXB binding produce the same
+ * output on the messages handled by the codec. Every sample is written by the
+ * codec and read back by both the codec and JAXB, then written by JAXB and
+ * read back by the codec; the objects read must be equal, property by
+ * property, to the sample. The documents the codec does not handle must make
+ * read() return null, so that the caller falls back to JAXB.
+ */
+public class StaxMessageCodecTest {
+
+	private static final String JAXB_PACKAGE = "org.energy_home.jemma.zgd.jaxb";
+
+	private static final String RS = "xmlns=\"" + StaxMessageCodec.GATEWAY_NS + "\" xmlns:rs=\"" + StaxMessageCodec.REST_NS
+			+ "\"";
+
+	private static JAXBContext context;
+
+	private final StaxMessageCodec codec = new StaxMessageCodec();
+
+	@BeforeClass
+	public static void createContext() throws Exception {
+		context = JAXBContext.newInstance(JAXB_PACKAGE, ObjectFactory.class.getClassLoader());
+	}
+
+	@Test
+	public void apsMessage() throws Exception {
+		APSMessage aps = new APSMessage();
+		aps.setDestinationAddressMode(new Long(2));
+		aps.setDestinationAddress(address(new Integer(0x1234), new BigInteger("18446744073709551615"), "plug"));
+		aps.setDestinationEndpoint((short) 10);
+		aps.setSourceEndpoint((short) 1);
+		aps.setProfileID(new Integer(0x0104));
+		aps.setClusterID(0x0006);
+		aps.setData(new byte[] { 0x01, 0x2A, 0x02 });
+		TxOptions tx = new TxOptions();
+		tx.setSecurityEnabled(true);
+		tx.setUseNetworkKey(true);
+		tx.setAcknowledged(true);
+		tx.setPermitFragmentation(false);
+		aps.setTxOptions(tx);
+		aps.setRadius((short) 10);
+		assertRoundTrip(aps);
+	}
+
+	@Test
+	public void apsMessageWithOptionalPropertiesMissing() throws Exception {
+		assertRoundTrip(new APSMessage());
+
+		APSMessage empty = new APSMessage();
+		empty.setData(new byte[0]);
+		empty.setDestinationAddress(new Address());
+		assertRoundTrip(empty);
+	}
+
+	@Test
+	public void apsMessageEvent() throws Exception {
+		assertRoundTrip(newApsMessageEvent());
+		assertRoundTrip(new APSMessageEvent());
+	}
+
+	@Test
+	public void interPanMessage() throws Exception {
+		InterPANMessage ipan = new InterPANMessage();
+		ipan.setSrcAddressMode(3);
+		ipan.setSrcAddress(address(null, new BigInteger("1311768467294899695"), null));
+		ipan.setDstAddressMode(2);
+		ipan.setDestinationAddress(address(new Integer(0xFFFF), null, null));
+		ipan.setDestPANID(0xABCD);
+		ipan.setProfileID(new Integer(0x0109));
+		ipan.setClusterID(0x0700);
+		ipan.setASDULength(4);
+		ipan.setASDU(new byte[] { 0x01, 0x02, 0x03, 0x04 });
+		ipan.setASDUHandle((short) 7);
+		assertRoundTrip(ipan);
+		assertRoundTrip(new InterPANMessage());
+	}
+
+	@Test
+	public void info() throws Exception {
+		Info info = new Info();
+		info.setStatus(newStatus());
+		info.setRequestIdentifier(new byte[] { 0x0A, (byte) 0xBC });
+		info.setEventCallbackIdentifier(new Long(42));
+		info.setNWKStatus(new Integer(0));
+		assertRoundTrip(info);
+		assertRoundTrip(new Info());
+
+		Info noMessage = new Info();
+		noMessage.setStatus(new Status());
+		assertRoundTrip(noMessage);
+	}
+
+	@Test
+	public void infoDetailsAreReadButNotWritten() throws Exception {
+		Info withEvent = newInfoWithDetail();
+		withEvent.getDetail().setAPSMessageEvent(newApsMessageEvent());
+		assertReadOnly(withEvent);
+
+		Info withResult = newInfoWithDetail();
+		APSMessageResult result = new APSMessageResult();
+		result.setConfirmStatus(0);
+		result.setTxTime(987654321L);
+		withResult.getDetail().setAPSMessageResult(result);
+		assertReadOnly(withResult);
+
+		Info withCallback = newInfoWithDetail();
+		withCallback.getDetail().setCallbackIdentifier(new Long(5));
+		assertReadOnly(withCallback);
+	}
+
+	@Test
+	public void otherInfoDetailsAreLeftToJaxb() throws Exception {
+		Info withEndpoint = newInfoWithDetail();
+		withEndpoint.getDetail().setEndpoint(new Short((short) 3));
+
+		assertFalse(codec.canWrite(withEndpoint));
+		assertNull(codec.read(new ByteArrayInputStream(writeWithJaxb(withEndpoint))));
+	}
+
+	@Test
+	public void unsupportedDocumentsAreLeftToJaxb() throws Exception {
+		assertFallback("<rs:Version " + RS + "/>");
+		// root in the gateway namespace
+		assertFallback("<APSMessage " + RS + "><Radius>1</Radius></APSMessage>");
+		assertFallback("<rs:APSMessage " + RS + "><Hops>1</Hops></rs:APSMessage>");
+		// element in the wrong namespace
+		assertFallback("<rs:APSMessage " + RS + "><rs:Radius>1</rs:Radius></rs:APSMessage>");
+	}
+
+	@Test
+	public void invalidValuesAreLeftToJaxb() throws Exception {
+		assertFallback("<rs:APSMessage " + RS + "><Data>ABC</Data></rs:APSMessage>");
+		assertFallback("<rs:APSMessage " + RS + "><Data>0G</Data></rs:APSMessage>");
+		assertFallback("<rs:APSMessage " + RS + "><ClusterID>x</ClusterID></rs:APSMessage>");
+		assertFallback("<rs:APSMessage " + RS + "><TxOptions><Acknowledged>yes</Acknowledged></TxOptions></rs:APSMessage>");
+		assertFallback("<rs:APSMessageEvent " + RS + "><SecurityStatus>Secured</SecurityStatus></rs:APSMessageEvent>");
+		assertFallback("<rs:APSMessage " + RS
+				+ "><DestinationAddress><IeeeAddress>x</IeeeAddress></DestinationAddress></rs:APSMessage>");
+	}
+
+	/**
+	 * Round trips a sample supported by write(). JAXB must write the same
+	 * document from the sample and from what the codec reads back.
+	 */
+	private void assertRoundTrip(Object value) throws Exception {
+		assertTrue(codec.canWrite(value));
+		byte[] xml = writeWithCodec(value);
+		Object decoded = codec.read(new ByteArrayInputStream(xml));
+		assertSameProperties("codec -> codec", value, decoded);
+		assertSameProperties("codec -> JAXB", value, readWithJaxb(xml, value.getClass()));
+		assertArrayEquals(writeWithJaxb(value), writeWithJaxb(decoded));
+
+		xml = writeWithJaxb(value);
+		assertSameProperties("JAXB -> codec", value, codec.read(new ByteArrayInputStream(xml)));
+	}
+
+	/**
+	 * Checks a sample that write() does not support, but that read() must
+	 * decode
+	 */
+	private void assertReadOnly(Object value) throws Exception {
+		assertFalse(codec.canWrite(value));
+		byte[] xml = writeWithJaxb(value);
+		assertSameProperties("JAXB -> codec", value, codec.read(new ByteArrayInputStream(xml)));
+	}
+
+	private void assertFallback(String xml) throws Exception {
+		assertNull(xml, codec.read(new ByteArrayInputStream(xml.getBytes("UTF-8"))));
+	}
+
+	private static void assertSameProperties(String message, Object expected, Object actual) throws Exception {
+		StringBuilder diff = new StringBuilder();
+		compare(expected.getClass().getSimpleName(), expected, actual, diff);
+		assertEquals(message, "", diff.toString());
+	}
+
+	/**
+	 * Compares the values of all the getters of the generated classes
+	 */
+	private static void compare(String path, Object expected, Object actual, StringBuilder diff) throws Exception {
+		if ((expected == null) || (actual == null)) {
+			if (expected != actual)
+				diff.append(" ").append(path).append(": ").append(expected).append(" != ").append(actual);
+			return;
+		}
+		if (expected.getClass() != actual.getClass()) {
+			diff.append(" ").append(path).append(": ").append(expected.getClass().getName()).append(" != ")
+					.append(actual.getClass().getName());
+			return;
+		}
+		if (expected instanceof byte[]) {
+			if (!Arrays.equals((byte[]) expected, (byte[]) actual))
+				diff.append(" ").append(path).append(": data differs");
+			return;
+		}
+		if (!expected.getClass().getName().startsWith(JAXB_PACKAGE)) {
+			if (!expected.equals(actual))
+				diff.append(" ").append(path).append(": ").append(expected).append(" != ").append(actual);
+			return;
+		}
+		Method[] methods = expected.getClass().getMethods();
+		for (int i = 0; i < methods.length; i++) {
+			Method m = methods[i];
+			String n = m.getName();
+			if ((m.getParameterTypes().length > 0) || (m.getDeclaringClass() == Object.class))
+				continue;
+			if (!n.startsWith("get") && !n.startsWith("is"))
+				continue;
+			compare(path + "/" + n, m.invoke(expected, (Object[]) null), m.invoke(actual, (Object[]) null), diff);
+		}
+	}
+
+	private static QName rootName(Object value) {
+		return new QName(StaxMessageCodec.REST_NS, value.getClass().getSimpleName());
+	}
+
+	private byte[] writeWithCodec(Object value) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.write(rootName(value), value, out);
+		return out.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static byte[] writeWithJaxb(Object value) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Marshaller m = context.createMarshaller();
+		m.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+		m.marshal(new JAXBElement<Object>(rootName(value), (Class<Object>) value.getClass(), value), out);
+		return out.toByteArray();
+	}
+
+	private static Object readWithJaxb(byte[] xml, Class<?> type) throws Exception {
+		Unmarshaller u = context.createUnmarshaller();
+		// APSMessageEvent and InterPANMessage are not global elements
+		return u.unmarshal(new StreamSource(new ByteArrayInputStream(xml)), type).getValue();
+	}
+
+	private static Address address(Integer nwk, BigInteger ieee, String alias) {
+		Address a = new Address();
+		a.setNetworkAddress(nwk);
+		a.setIeeeAddress(ieee);
+		a.setAliasAddress(alias);
+		return a;
+	}
+
+	private static Status newStatus() {
+		Status status = new Status();
+		status.setCode((short) 0);
+		status.setMessage("Success");
+		return status;
+	}
+
+	private static Info newInfoWithDetail() {
+		Info info = new Info();
+		info.setStatus(newStatus());
+		info.setDetail(new Info.Detail());
+		return info;
+	}
+
+	private static APSMessageEvent newApsMessageEvent() {
+		APSMessageEvent m = new APSMessageEvent();
+		m.setDestinationAddressMode(new Long(2));
+		m.setDestinationAddress(address(new Integer(0), null, null));
+		m.setDestinationEndpoint((short) 1);
+		m.setSourceAddress(address(new Integer(0x1234), new BigInteger("1234567890123456789"), null));
+		m.setSourceAddressMode(new Long(3));
+		m.setSourceEndpoint((short) 10);
+		m.setProfileID(new Integer(0x0104));
+		m.setClusterID(0x0702);
+		m.setData(new byte[] { 0x18, 0x01, 0x01, 0x00, 0x00, 0x00, 0x25, (byte) 0xFF });
+		m.setAPSStatus(0);
+		m.setSecurityStatus(SecurityStatus.SECURED_NWK_KEY);
+		m.setLinkQuality(new Short((short) 200));
+		m.setRxTime(new Long(123456789L));
+		return m;
+	}
+}